@@ -0,0 +1,47 @@
+package qupath.ext.proximity;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for {@code PT2D.initialize()} (via {@code build()}) in EDGE and CENTROID modes, with the STRtree
+ * and grid neighbor engines, without and with tiling (tile size in pixels, with a halo of 50 pixels, as the
+ * synthetic image has no pixel calibration).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class PT2DInitializeBenchmark {
+
+    @Param({"10000", "100000"})
+    int noCells;
+    @Param({"3", "10"})
+    int k;
+    @Param({"0", "16"})
+    int noCores;
+    @Param({"EDGE", "CENTROID"})
+    PT2D.ComparisonType comparisonType;
+    @Param({"STRTREE", "GRID"})
+    PT2D.NeighborEngine neighborEngine;
+    @Param({"0", "2000"})
+    double tileSize;
+
+    private PTBenchmarkData data;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        data = new PTBenchmarkData(noCells, noCores, 42);
+    }
+
+    @Benchmark
+    public PT2D initialize() {
+        return data.builder(k, noCores, comparisonType)
+                .neighborEngine(neighborEngine)
+                .setTiling(tileSize, 50)
+                .build();
+    }
+
+}
@@ -0,0 +1,65 @@
+package qupath.ext.proximity;
+
+import org.openjdk.jmh.annotations.*;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.TMACoreObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for {@code addMeasurements}, {@code addCellMeasurements} and {@code PTMath.fitWeibull}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class PT2DMeasurementBenchmark {
+
+    @Param({"10000", "100000"})
+    int noCells;
+    @Param({"3", "10"})
+    int k;
+    @Param({"0", "16"})
+    int noCores;
+
+    private PTBenchmarkData data;
+    private PT2D pt2D;
+    private List<Double> nearestDistances;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        data = new PTBenchmarkData(noCells, noCores, 42);
+        pt2D = data.builder(k, noCores, PT2D.ComparisonType.EDGE).build();
+        nearestDistances = new ArrayList<>();
+        pt2D.forEachInteraction(Double.POSITIVE_INFINITY, (target, reference, rank, distance) -> {
+            if (rank == 0) nearestDistances.add(distance);
+        });
+    }
+
+    @Benchmark
+    public void addMeasurements() {
+        if (noCores > 0) {
+            for (TMACoreObject core : data.imageData.getHierarchy().getTMAGrid().getTMACoreList()) {
+                pt2D.addMeasurements(core, "Target", "Reference",
+                        pt2D.tmaCoreAnaCellsMap.get(core), pt2D.tmaCoreRefCellsMap.get(core), 10);
+            }
+        } else {
+            PathObject root = data.imageData.getHierarchy().getRootObject();
+            pt2D.addMeasurements(root, "Target", "Reference", null, null, 10);
+        }
+    }
+
+    @Benchmark
+    public void addCellMeasurements() {
+        pt2D.addCellMeasurements("Target", "Reference");
+    }
+
+    @Benchmark
+    public double[] fitWeibull() {
+        return PTMath.fitWeibull(nearestDistances);
+    }
+
+}
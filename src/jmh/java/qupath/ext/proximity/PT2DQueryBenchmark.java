@@ -0,0 +1,47 @@
+package qupath.ext.proximity;
+
+import org.openjdk.jmh.annotations.*;
+import qupath.lib.objects.PathObject;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for {@code query} and {@code exclusive().query} at several distance thresholds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PT2DQueryBenchmark {
+
+    @Param({"10000", "100000"})
+    int noCells;
+    @Param({"3", "10"})
+    int k;
+    @Param({"0", "16"})
+    int noCores;
+    @Param({"1", "10", "50"})
+    double distanceThreshold;
+
+    private PT2D pt2D;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pt2D = new PTBenchmarkData(noCells, noCores, 42)
+                .builder(k, noCores, PT2D.ComparisonType.EDGE)
+                .build();
+    }
+
+    @Benchmark
+    public Set<PathObject> query() {
+        return pt2D.get(distanceThreshold, 1);
+    }
+
+    @Benchmark
+    public Set<PathObject> exclusiveQuery() {
+        return pt2D.exclusive().get(distanceThreshold, 1);
+    }
+
+}
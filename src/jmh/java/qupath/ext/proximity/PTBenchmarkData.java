@@ -0,0 +1,74 @@
+package qupath.ext.proximity;
+
+import qupath.ext.proximity.synthetic.PTSyntheticTissue;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * In-memory image data for the benchmarks (see {@link PTSyntheticTissue}): dispersed target cells and
+ * clustered reference cells, optionally split into a grid of TMA cores. No image server or viewer is needed.
+ */
+class PTBenchmarkData {
+
+    static final String TARGET_CLASS = "Target";
+    static final String REFERENCE_CLASS = "Reference";
+
+    final PTSyntheticTissue tissue;
+    final ImageData<BufferedImage> imageData;
+    final List<PathObject> targetCells;
+    final List<PathObject> referenceCells;
+
+    PTBenchmarkData(int noCells, int noCores, long seed) {
+        this(new PTSyntheticTissue.PTSyntheticTissueBuilder(), noCells, noCores, seed);
+    }
+
+    /**
+     * @param noCells
+     * @param noCores
+     * @param vertices number of vertices per cell outline
+     * @param seed
+     */
+    PTBenchmarkData(int noCells, int noCores, int vertices, long seed) {
+        this(noCells, noCores, vertices, false, seed);
+    }
+
+    /**
+     * @param noCells
+     * @param noCores
+     * @param vertices number of vertices per cell outline
+     * @param nuclei whether to create cell objects with nuclei
+     * @param seed
+     */
+    PTBenchmarkData(int noCells, int noCores, int vertices, boolean nuclei, long seed) {
+        this(new PTSyntheticTissue.PTSyntheticTissueBuilder().setVertices(vertices, vertices).withNuclei(nuclei),
+                noCells, noCores, seed);
+    }
+
+    private PTBenchmarkData(PTSyntheticTissue.PTSyntheticTissueBuilder tissueBuilder, int noCells, int noCores, long seed) {
+        int coresPerRow = (int) Math.ceil(Math.sqrt(noCores));
+        this.tissue = tissueBuilder
+                .seed(seed)
+                .setNoCells(noCells)
+                .addPopulation(TARGET_CLASS, 0.5, PTSyntheticTissue.Distribution.DISPERSED)
+                .addPopulation(REFERENCE_CLASS, 0.5, PTSyntheticTissue.Distribution.CLUSTERED)
+                .setTMAGrid(coresPerRow, coresPerRow)
+                .build();
+        this.imageData = tissue.getImageData();
+        this.targetCells = tissue.getCells(TARGET_CLASS);
+        this.referenceCells = tissue.getCells(REFERENCE_CLASS);
+    }
+
+    PT2D.PT2DBuilder builder(int maxInteractionsToTest, int noCores, PT2D.ComparisonType comparisonType) {
+        return new PT2D.PT2DBuilder()
+                .setImageData(imageData)
+                .setCellsToAnalyze(targetCells)
+                .setReferenceCells(referenceCells)
+                .setMaxInteractionsToTest(maxInteractionsToTest)
+                .mode(noCores > 0 ? PT2D.Mode.TMA : PT2D.Mode.FULL_IMAGE)
+                .comparisonType(comparisonType);
+    }
+
+}
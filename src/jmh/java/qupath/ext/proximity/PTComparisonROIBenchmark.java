@@ -0,0 +1,41 @@
+package qupath.ext.proximity;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for {@code PT2D.initialize()} (via {@code build()}) in EDGE mode comparing cell boundaries or
+ * nucleus boundaries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class PTComparisonROIBenchmark {
+
+    @Param({"10000", "100000"})
+    int noCells;
+    @Param({"3", "10"})
+    int k;
+    @Param({"64", "200"})
+    int vertices;
+    @Param({"CELL", "NUCLEUS"})
+    PT2D.ComparisonROI comparisonROI;
+
+    private PTBenchmarkData data;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        data = new PTBenchmarkData(noCells, 0, vertices, true, 42);
+    }
+
+    @Benchmark
+    public PT2D initialize() {
+        return data.builder(k, 0, PT2D.ComparisonType.EDGE)
+                .comparisonROI(comparisonROI)
+                .build();
+    }
+
+}
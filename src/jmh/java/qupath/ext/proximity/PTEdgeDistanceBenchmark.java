@@ -0,0 +1,48 @@
+package qupath.ext.proximity;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for {@code PT2D.initialize()} (via {@code build()}) in EDGE mode with indexed and naive edge
+ * distances, with and without lower-bound pruning and outline simplification (tolerance in pixels, as the
+ * synthetic image has no pixel calibration), on cell outlines with increasing numbers of vertices.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class PTEdgeDistanceBenchmark {
+
+    @Param({"10000", "100000"})
+    int noCells;
+    @Param({"3", "10"})
+    int k;
+    @Param({"16", "64", "200"})
+    int vertices;
+    @Param({"INDEXED", "NAIVE"})
+    PT2D.EdgeDistance edgeDistance;
+    @Param({"STRTREE", "STRTREE_PRUNED"})
+    PT2D.NeighborEngine neighborEngine;
+    @Param({"0", "0.5"})
+    double simplificationTolerance;
+
+    private PTBenchmarkData data;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        data = new PTBenchmarkData(noCells, 0, vertices, 42);
+    }
+
+    @Benchmark
+    public PT2D initialize() {
+        return data.builder(k, 0, PT2D.ComparisonType.EDGE)
+                .edgeDistance(edgeDistance)
+                .neighborEngine(neighborEngine)
+                .setSimplificationTolerance(simplificationTolerance)
+                .build();
+    }
+
+}
@@ -0,0 +1,46 @@
+package qupath.ext.proximity.engine;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the scalar and SIMD squared distance kernels over runs of points of typical lengths for the grid
+ * engine (a few buckets of about 8 centroids each). The SIMD kernel is skipped if the Vector API is unavailable.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class PTDistanceKernelBenchmark {
+
+    @Param({"8", "24", "64", "1024"})
+    int runLength;
+    @Param({"SCALAR", "VECTOR"})
+    String kernelType;
+
+    private PTDistanceKernel kernel;
+    private double[] xs;
+    private double[] ys;
+    private double[] out;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        kernel = kernelType.equals("VECTOR") ? PTDistanceKernel.vector() : PTDistanceKernel.scalar();
+        if (kernel == null)
+            throw new IllegalStateException("The Vector API is not available (run with --add-modules jdk.incubator.vector)");
+        Random random = new Random(42);
+        xs = random.doubles(runLength, 0, 1000).toArray();
+        ys = random.doubles(runLength, 0, 1000).toArray();
+        out = new double[runLength];
+    }
+
+    @Benchmark
+    public double[] squaredDistances() {
+        kernel.squaredDistances(500, 500, xs, ys, 0, runLength, out);
+        return out;
+    }
+
+}
@@ -2,34 +2,58 @@ package qupath.ext.proximity;
 
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.index.strtree.STRtree;
 import org.locationtech.jts.operation.distance.DistanceOp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.ext.proximity.aux.PTCellNeighborTracker;
 import qupath.ext.proximity.aux.PTLineAnnotationTracker;
-import qupath.lib.gui.scripting.QPEx;
+import qupath.ext.proximity.aux.PTMetrics;
+import qupath.ext.proximity.aux.PTRadiusNeighbors;
+import qupath.ext.proximity.aux.PTReferenceIndex;
+import qupath.ext.proximity.aux.PTTileGrid;
+import qupath.ext.proximity.engine.PTIndexedEdgeDistance;
+import qupath.ext.proximity.engine.PTNeighborList;
+import qupath.ext.proximity.io.PTCellNeighborExporter;
+import qupath.ext.proximity.io.PTEdgeConsumer;
+import qupath.ext.proximity.io.PTEdgeListFile;
+import qupath.ext.proximity.io.PTNeighborCacheFile;
+import qupath.ext.proximity.io.PTSnapshotFile;
+import qupath.ext.proximity.jfr.PTHierarchyMutationEvent;
+import qupath.ext.proximity.jfr.PTInitializePhaseEvent;
+import qupath.ext.proximity.jfr.PTTMACoreEvent;
+import qupath.ext.proximity.shard.PTShardCoordinator;
+import qupath.ext.proximity.shard.PTShardFile;
+import qupath.ext.proximity.shard.PTShardResults;
+import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.viewer.OverlayOptions;
+import qupath.lib.gui.viewer.QuPathViewer;
 import qupath.lib.images.ImageData;
 import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathCellObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.TMACoreObject;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.roi.ROIs;
 import qupath.lib.roi.interfaces.ROI;
 import qupath.lib.scripting.QP;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import java.util.stream.Stream;
 
 /**
  * Main class to perform proximity analysis.
@@ -66,7 +90,13 @@ public class PT2D {
      * Array of TreeMap to be initialized of size mapSize. Retrieving the nth index of the array
      * will provide the map of cells that have n interactions.
      */
-    private final TreeMap<Double, Set<PathObject>>[] globalCellMaps;
+    private TreeMap<Double, Set<PathObject>>[] globalCellMaps;
+    /**
+     * Reference indexes built during initialization, kept so that the nearest neighbor search can be resumed
+     * (see {@link #extendMaxInteractionsToTest(int)}) without rebuilding them.
+     */
+    private final Map<TMACoreObject, PTReferenceIndex> tmaIndexMap = new ConcurrentHashMap<>(); // for TMA mode
+    private PTReferenceIndex fullImageIndex = null; // for full image mode
     /**
      * To store child (including grandchild and beyond) cells from {@code anaCells} for each TMA core,
      * if TMA option was used.
@@ -82,6 +112,52 @@ public class PT2D {
      * {@link qupath.ext.proximity.aux.PTLineAnnotationTracker})
      */
     private final Set<PTLineAnnotationTracker> lineAnnotationData = ConcurrentHashMap.newKeySet();
+    /**
+     * Phase timings and work counters of this instance (see {@link #getMetrics()}).
+     */
+    private final PTMetrics metrics = new PTMetrics();
+    /**
+     * Memory plan made before initialization (null if no plan was made, see {@link PT2DBuilder#build()}).
+     */
+    private PTMemoryPlanner.Plan memoryPlan = null;
+    /**
+     * Max interactions to test requested from the builder, before any reduction by the memory plan.
+     */
+    private int requestedMaxInteractionsToTest = mapSize - 1;
+    /**
+     * Set to false if the memory plan dropped labels or connections; requests to display them are then ignored.
+     */
+    private boolean labelsAllowed = true;
+    private boolean connectionsAllowed = true;
+    /**
+     * Radius (µm) for the radius mode, or 0 if disabled. In radius mode, all reference cells within the radius
+     * are stored in {@code radiusNeighbors}, so that interaction counts are exact at any distance threshold up
+     * to the radius.
+     */
+    private double radius = 0;
+    private PTRadiusNeighbors radiusNeighbors = null;
+    /**
+     * Tile size and halo (µm) for the tiled mode, or 0 if disabled (see {@link PT2DBuilder#setTiling(double, double)}).
+     * In tiled mode, the reference indexes are built and released tile by tile, and only neighbors within the
+     * halo are stored, so queries and measurements are exact at any distance threshold up to the halo.
+     */
+    private double tileSize = 0;
+    private double halo = 0;
+    private PTTileGrid tileGrid = null; // for tiled mode
+    /**
+     * Number of worker processes for the sharded mode (tiled mode only), or 0 to process the tiles in this JVM
+     * (see {@link PT2DBuilder#setWorkers(int, String)}).
+     */
+    private int noWorkers = 0;
+    private String workerHeap = null;
+    /**
+     * Directory of the neighbor cache, or null if disabled (see {@link PT2DBuilder#setCacheDirectory(Path)}).
+     * {@code neighborsRestored} is true if the nearest neighbors were read from the cache, in which case the
+     * reference indexes are only built if the search has to be resumed.
+     */
+    private Path cacheDirectory = null;
+    private long cacheFingerprint = 0;
+    private boolean neighborsRestored = false;
     private boolean labelsAdded = false;
     private boolean connectionsAdded = false;
     private double pixelSize;
@@ -105,7 +181,11 @@ public class PT2D {
      * is not called).
      */
     protected boolean fireHierarchyUpdateFlag = false;
-    private static final ExecutorService pool = Executors.newCachedThreadPool();
+    private static final ExecutorService pool = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "pt2d-query");
+        thread.setDaemon(true); // don't keep headless (e.g., command line) runs alive
+        return thread;
+    });
     /**
      * Placeholder PathClass for line annotations (connections) not in display.
      */
@@ -114,8 +194,11 @@ public class PT2D {
      * String identifier to add to line annotations (connections) as metadata.
      */
     protected static final String lineMetadataKey = "PT2D_LINE";
+    /**
+     * Max number of neighbor cache files kept per cache directory; the least recently used are deleted.
+     */
+    private static final int MAX_NEIGHBOR_CACHE_FILES = 8;
     private static final Logger logger = LoggerFactory.getLogger(PT2D.class);
-    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
     public enum ComparisonType {
         EDGE, CENTROID
@@ -123,6 +206,27 @@ public class PT2D {
 
     private ComparisonType comparisonType = ComparisonType.EDGE;
 
+    /**
+     * ROI of each cell compared (by edge or centroid). NUCLEUS uses the nucleus ROI of cell objects, which is
+     * smaller and has fewer vertices than the cell boundary; objects without a nucleus ROI (e.g., detections that
+     * are not cells) are compared by their ROI.
+     */
+    public enum ComparisonROI {
+        CELL, NUCLEUS;
+
+        /**
+         * @param pathObject
+         * @return the ROI of the object to compare
+         */
+        public ROI getROI(PathObject pathObject) {
+            if (this == NUCLEUS && pathObject instanceof PathCellObject cell && cell.getNucleusROI() != null)
+                return cell.getNucleusROI();
+            return pathObject.getROI();
+        }
+    }
+
+    private ComparisonROI comparisonROI = ComparisonROI.CELL;
+
     public enum LineType {
         LINE, ARROW, DOUBLE_ARROW
     }
@@ -135,19 +239,73 @@ public class PT2D {
 
     private Mode mode = Mode.FULL_IMAGE;
 
-    private PT2D(PT2DBuilder builder) {
+    /**
+     * Engine used for the nearest neighbor search. All engines return the same neighbors (up to ties);
+     * STRTREE_PRUNED ranks EDGE candidates by cheap lower bounds (envelope and bounding circle distances) and only
+     * computes exact distances for those that may beat the current kth neighbor; GRID buckets the reference cells in
+     * a uniform grid sized from the cells, which suits densely packed cells of similar sizes; BRUTE_FORCE is an
+     * exhaustive search intended as a reference for verification and tiny populations.
+     * <p>
+     * By default, GRID is used for CENTROID comparisons, as it filters candidate centroids with the SIMD distance
+     * kernel, and STRTREE for EDGE comparisons.
+     */
+    public enum NeighborEngine {
+        STRTREE, STRTREE_PRUNED, GRID, BRUTE_FORCE;
+
+        /**
+         * @param comparisonType
+         * @return the default engine for the comparison type
+         */
+        public static NeighborEngine getDefault(ComparisonType comparisonType) {
+            return comparisonType == ComparisonType.CENTROID ? GRID : STRTREE;
+        }
+    }
+
+    private NeighborEngine neighborEngine = NeighborEngine.STRTREE;
+
+    /**
+     * How edge distances are computed for the EDGE comparison type. INDEXED indexes the segments of each cell to
+     * analyze once and reuses the index for all its candidates and connections (see
+     * {@link qupath.ext.proximity.engine.PTIndexedEdgeDistance}); NAIVE compares every pair of segments for
+     * every candidate. Both give the same distances.
+     */
+    public enum EdgeDistance {
+        INDEXED, NAIVE
+    }
+
+    private EdgeDistance edgeDistance = EdgeDistance.INDEXED;
+    /**
+     * Tolerance (µm) of the simplified outlines searched before refining exactly, or 0 to search the original
+     * outlines (see {@link PT2DBuilder#setSimplificationTolerance(double)}).
+     */
+    private double simplificationTolerance = 0;
+
+    private PT2D(PT2DBuilder builder, PTMemoryPlanner.Plan memoryPlan) {
         this.imageData = builder.imageData;
         this.hierarchy = this.imageData.getHierarchy();
         this.anaCells = builder.cellsToAnalyze;
         this.refCells = builder.referenceCells;
-        this.mapSize = builder.maxInteractionsToTest + 1;
+        this.memoryPlan = memoryPlan;
+        this.requestedMaxInteractionsToTest = builder.maxInteractionsToTest;
+        this.mapSize = (memoryPlan == null ? builder.maxInteractionsToTest : memoryPlan.maxInteractionsToTest()) + 1;
+        this.labelsAllowed = memoryPlan == null || !builder.displayLabels || memoryPlan.labels();
+        this.connectionsAllowed = memoryPlan == null || !builder.displayConnections || memoryPlan.connections();
         this.globalCellMaps = new TreeMap[mapSize];
         this.mode = builder.mode;
         this.comparisonType = builder.comparisonType;
+        this.comparisonROI = builder.comparisonROI;
         this.lineType = builder.lineType;
+        this.neighborEngine = builder.neighborEngine != null ? builder.neighborEngine : NeighborEngine.getDefault(builder.comparisonType);
+        this.edgeDistance = builder.edgeDistance;
+        this.simplificationTolerance = builder.simplificationTolerance;
+        this.radius = builder.radius;
+        this.tileSize = builder.tileSize;
+        this.halo = Math.max(builder.halo, builder.radius); // the radius mode needs all neighbors within the radius
+        this.noWorkers = builder.noWorkers;
+        this.workerHeap = builder.workerHeap;
+        this.cacheDirectory = builder.cacheDirectory;
         this.terminationFlag = builder.terminationFlag;
-        OverlayOptions overlayOptions = QPEx.getQuPath().getViewer().getOverlayOptions();
-        overlayOptions.setPathClassHidden(hiddenPathClass, true);
+        hideHiddenPathClass();
         initialize();
     }
 
@@ -158,8 +316,22 @@ public class PT2D {
         private int maxInteractionsToTest = 0;
         private Mode mode = Mode.FULL_IMAGE;
         private ComparisonType comparisonType = ComparisonType.EDGE;
+        private ComparisonROI comparisonROI = ComparisonROI.CELL;
         private LineType lineType = LineType.LINE;
+        private NeighborEngine neighborEngine = null; // default for the comparison type
+        private EdgeDistance edgeDistance = EdgeDistance.INDEXED;
+        private double simplificationTolerance = 0;
         private AtomicBoolean terminationFlag = new AtomicBoolean(false);
+        private long heapBudget = -1;
+        private double radius = 0;
+        private double tileSize = 0;
+        private double halo = 0;
+        private int noWorkers = 0;
+        private String workerHeap = null;
+        private Path cacheDirectory = null;
+        private boolean allowDegradation = false;
+        private boolean displayLabels = false;
+        private boolean displayConnections = false;
 
         public PT2DBuilder setImageData(ImageData<BufferedImage> imageData) {
             this.imageData = imageData;
@@ -197,18 +369,225 @@ public class PT2D {
             return this;
         }
 
+        /**
+         * Set the ROI of each cell compared: the cell boundary (default) or the nucleus boundary. Combined with
+         * the comparison type, this gives cell edge, nucleus edge or centroid comparisons. Nuclei have fewer
+         * vertices and overlap less, so edge comparisons on nuclei are faster.
+         * @param comparisonROI
+         * @return this builder
+         */
+        public PT2DBuilder comparisonROI(ComparisonROI comparisonROI) {
+            this.comparisonROI = comparisonROI;
+            return this;
+        }
+
         public PT2DBuilder lineType(LineType lineType) {
             this.lineType = lineType;
             return this;
         }
 
+        /**
+         * Set the neighbor engine. By default, the engine is chosen from the comparison type
+         * (see {@link NeighborEngine#getDefault(ComparisonType)}).
+         * @param neighborEngine
+         * @return this builder
+         */
+        public PT2DBuilder neighborEngine(NeighborEngine neighborEngine) {
+            this.neighborEngine = neighborEngine;
+            return this;
+        }
+
+        public PT2DBuilder edgeDistance(EdgeDistance edgeDistance) {
+            this.edgeDistance = edgeDistance;
+            return this;
+        }
+
+        /**
+         * Search simplified cell outlines (topology preserving, within the tolerance of the originals) for the
+         * EDGE comparison, which is much faster for vertex-heavy outlines. Simplification only selects candidates:
+         * a simplified distance is within twice the tolerance of the exact one, so all candidates that may be
+         * nearest neighbors (or within the radius) are kept and refined on the original outlines, and the
+         * neighbors and distances are exactly the same as without simplification. The speedup drops if the
+         * tolerance is large relative to the cell spacing, as more candidates must be refined.
+         * @param tolerance the tolerance (µm); 0 (default) searches the original outlines
+         * @return this builder
+         */
+        public PT2DBuilder setSimplificationTolerance(double tolerance) {
+            if (tolerance < 0 || !Double.isFinite(tolerance))
+                throw new IllegalArgumentException("Simplification tolerance must be finite and cannot be negative!");
+            this.simplificationTolerance = tolerance;
+            return this;
+        }
+
+        /**
+         * Enable the radius mode: find all reference cells within a radius of each cell to analyze (range search
+         * with exact refinement), rather than only the nearest (max interactions to test + 1). Queries and
+         * measurements at any distance threshold up to the radius then give exact interaction counts, with no cap.
+         * Nearest neighbor distances are still stored for the first (max interactions to test + 1) neighbors,
+         * but only if they are within the radius.
+         * @param radius the radius (µm); 0 (default) disables the radius mode
+         * @return this builder
+         */
+        public PT2DBuilder setRadius(double radius) {
+            if (radius < 0 || !Double.isFinite(radius))
+                throw new IllegalArgumentException("Radius must be finite and cannot be negative!");
+            this.radius = radius;
+            return this;
+        }
+
+        /**
+         * Enable the tiled mode (full image mode only): the image plane is partitioned into square tiles, processed
+         * in parallel, each with a reference index over the reference cells within its halo region, which is
+         * released once the tile is done. Only the neighbors within the halo are stored per cell, so peak memory
+         * scales with the tile size rather than with the image, and queries and measurements give the same results
+         * as without tiling at any distance threshold up to the halo (larger thresholds are refused). As in the
+         * radius mode, nearest neighbor distances beyond the halo are not stored.
+         * @param tileSize the tile size (µm); 0 (default) disables the tiled mode
+         * @param halo the halo (µm), i.e., the largest distance threshold to query; at least the radius in radius mode
+         * @return this builder
+         */
+        public PT2DBuilder setTiling(double tileSize, double halo) {
+            if (tileSize < 0 || !Double.isFinite(tileSize))
+                throw new IllegalArgumentException("Tile size must be finite and cannot be negative!");
+            if (halo < 0 || !Double.isFinite(halo))
+                throw new IllegalArgumentException("Halo must be finite and cannot be negative!");
+            this.tileSize = tileSize;
+            this.halo = halo;
+            return this;
+        }
+
+        /**
+         * Enable the sharded mode (with the tiled mode, see {@link #setTiling(double, double)}): the tiles are split
+         * across worker JVMs started on this machine, which receive the cells' geometries through memory-mapped
+         * files and return the neighbors found (see {@link PTShardCoordinator}). The reference indexes are then
+         * built in the workers' heaps, and only the neighbors are merged back. Results are the same as in the tiled
+         * mode. Extending the max interactions to test later runs the tiles in this JVM.
+         * @param noWorkers the number of worker processes; 0 (default) processes the tiles in this JVM
+         * @param workerHeap the max heap of each worker, as for {@code -Xmx} (e.g., "8g"), or null for the JVM default
+         * @return this builder
+         */
+        public PT2DBuilder setWorkers(int noWorkers, String workerHeap) {
+            if (noWorkers < 0)
+                throw new IllegalArgumentException("Number of workers cannot be negative!");
+            this.noWorkers = noWorkers;
+            this.workerHeap = workerHeap;
+            return this;
+        }
+
+        /**
+         * Persist the nearest neighbors in a memory-mapped file of a directory (see {@link PTNeighborCacheFile}), so
+         * that a later PT2D instance with the same cells and configuration restores them instead of searching again.
+         * The file records the cells to analyze, the reference cells and a fingerprint of their ROIs (and TMA cores);
+         * if any of them changed, the neighbors are searched again and the file is replaced. Not used in radius mode.
+         * See {@link PT2D#getProjectCacheDirectory(ImageData)} for the directory of a project image.
+         * @param cacheDirectory the directory (created if needed), or null (default) to disable the cache
+         * @return this builder
+         */
+        public PT2DBuilder setCacheDirectory(Path cacheDirectory) {
+            this.cacheDirectory = cacheDirectory;
+            return this;
+        }
+
         protected PT2DBuilder assignTerminationFlag(AtomicBoolean terminationFlag) {
             this.terminationFlag = terminationFlag;
             return this;
         }
 
-        public PT2D build() {
-            return new PT2D(this);
+        /**
+         * Set the heap budget for the memory plan made before initialization (see {@link PTMemoryPlanner}).
+         * By default, no plan is made unless degradation is allowed, in which case a fraction of the heap available
+         * when building is used. Labels and connections are dropped if the analysis does not fit the budget.
+         * @param heapBudget the budget in bytes
+         * @return this builder
+         */
+        public PT2DBuilder setHeapBudget(long heapBudget) {
+            this.heapBudget = heapBudget;
+            return this;
+        }
+
+        /**
+         * Set whether the max interactions to test may be reduced if the analysis does not fit the heap budget,
+         * after dropping labels and connections. Otherwise, building fails. False by default, as fewer
+         * interactions to test changes the measurements (their names included).
+         * @param allowDegradation
+         * @return this builder
+         */
+        public PT2DBuilder allowDegradation(boolean allowDegradation) {
+            this.allowDegradation = allowDegradation;
+            return this;
+        }
+
+        /**
+         * Declare whether labels and connections are expected to be displayed, so that the memory plan accounts
+         * for them. Both are false by default (e.g., for measurements only).
+         * @param labels
+         * @param connections
+         * @return this builder
+         */
+        public PT2DBuilder planDisplay(boolean labels, boolean connections) {
+            this.displayLabels = labels;
+            this.displayConnections = connections;
+            return this;
+        }
+
+        /**
+         * Make the memory plan for the current settings, without building anything.
+         * @return the plan
+         */
+        public PTMemoryPlanner.Plan plan() {
+            double pixelSize = getPixelSize(imageData);
+            int noReferenceCells = referenceCells.size();
+            if (tileSize > 0 && mode == Mode.FULL_IMAGE && noWorkers > 0) {
+                noReferenceCells = 0; // the reference indexes are held by the workers
+            } else if (tileSize > 0 && mode == Mode.FULL_IMAGE) {
+                // only the reference indexes of the tiles in progress are held at once
+                PTTileGrid tileGrid = new PTTileGrid(cellsToAnalyze.toArray(PathObject[]::new),
+                        referenceCells.toArray(PathObject[]::new),
+                        comparisonROI,
+                        tileSize / pixelSize,
+                        Math.max(halo, radius) / pixelSize);
+                noReferenceCells = (int) Math.min(noReferenceCells,
+                        (long) ForkJoinPool.getCommonPoolParallelism() * tileGrid.getMaxReferencesPerTile());
+            }
+            return PTMemoryPlanner.plan(cellsToAnalyze.size(),
+                    noReferenceCells,
+                    PTMemoryPlanner.getAverageVertices(referenceCells, comparisonROI),
+                    maxInteractionsToTest,
+                    comparisonType,
+                    displayLabels,
+                    displayConnections,
+                    PTMemoryPlanner.estimateRadiusNeighbors(cellsToAnalyze, referenceCells, comparisonROI,
+                            comparisonType, radius / pixelSize),
+                    heapBudget > 0 ? heapBudget : PTMemoryPlanner.getDefaultBudget(),
+                    allowDegradation);
+        }
+
+        /**
+         * Build the PT2D instance. If a heap budget was set or degradation allowed, the memory footprint is planned
+         * first and the instance is degraded if needed (see {@link #plan()}); otherwise, it is built as requested.
+         * @return the PT2D instance
+         * @throws IllegalStateException if the analysis does not fit the heap budget
+         */
+        public PT2D build() throws IllegalStateException {
+            if (heapBudget <= 0 && !allowDegradation)
+                return new PT2D(this, null);
+            return build(plan());
+        }
+
+        /**
+         * Build the PT2D instance following a memory plan made beforehand with {@link #plan()}, e.g., once
+         * confirmed, so that the plan is not made again with a different heap reading.
+         * @param plan
+         * @return the PT2D instance
+         * @throws IllegalStateException if the plan refuses the analysis
+         */
+        public PT2D build(PTMemoryPlanner.Plan plan) throws IllegalStateException {
+            switch (plan.decision()) {
+                case RUN -> logger.debug("Memory plan: {}", plan.describe());
+                case DEGRADE -> logger.warn("Memory plan: {}", plan.describe());
+                case REFUSE -> throw new IllegalStateException("Not enough memory for PT2D. " + plan.describe());
+            }
+            return new PT2D(this, plan);
         }
     }
 
@@ -231,11 +610,47 @@ public class PT2D {
         }
 
         this.globalCellMaps = new TreeMap[mapSize];
-        OverlayOptions overlayOptions = QPEx.getQuPath().getViewer().getOverlayOptions();
-        overlayOptions.setPathClassHidden(hiddenPathClass, true);
+        hideHiddenPathClass();
         initialize();
     }
 
+    /**
+     * Restore a PT2D instance from a snapshot (see {@link #loadSnapshot(Path, ImageData)}).
+     * @param imageData the image the snapshot was saved from
+     * @param snapshot
+     * @throws IllegalArgumentException if the snapshot does not match the image
+     */
+    private PT2D(ImageData<BufferedImage> imageData, PTSnapshotFile.Snapshot snapshot) throws IllegalArgumentException {
+        this.imageData = imageData;
+        this.hierarchy = this.imageData.getHierarchy();
+        this.mode = snapshot.mode();
+        this.comparisonType = snapshot.comparisonType();
+        this.comparisonROI = snapshot.comparisonROI();
+        this.lineType = snapshot.lineType();
+        this.neighborEngine = snapshot.neighborEngine();
+        this.edgeDistance = snapshot.edgeDistance();
+        this.simplificationTolerance = snapshot.simplificationTolerance();
+        this.mapSize = snapshot.mapSize();
+        this.requestedMaxInteractionsToTest = snapshot.mapSize() - 1;
+        this.radius = snapshot.radius();
+        this.tileSize = snapshot.tileSize();
+        this.halo = snapshot.halo();
+        setImageProperties(imageData);
+        if (Math.abs(pixelSize - snapshot.pixelSize()) > 1e-9 * snapshot.pixelSize())
+            throw new IllegalArgumentException("The snapshot was saved with a pixel size of " + snapshot.pixelSize()
+                    + " µm, but the image has a pixel size of " + pixelSize + " µm");
+
+        Map<UUID, PathObject> objectsByID = hierarchy.getAllObjects(false).stream()
+                .collect(Collectors.toMap(PathObject::getID, Function.identity(), (object, duplicate) -> object));
+        PathObject[] targets = getObjects(snapshot.targetIDs(), objectsByID, "cells to analyze");
+        PathObject[] references = getObjects(snapshot.referenceIDs(), objectsByID, "reference cells");
+        this.anaCells = new HashSet<>(Arrays.asList(targets));
+        this.refCells = new HashSet<>(Arrays.asList(references));
+        this.globalCellMaps = new TreeMap[mapSize];
+        hideHiddenPathClass();
+        restoreSnapshot(snapshot, targets, references);
+    }
+
     /**
      * A one-time initialization of the PT2D instance involving R-tree generation and nearest-neighbor
      * calculations. Once completed, cell proximities can be efficiently queried any number of times
@@ -245,10 +660,21 @@ public class PT2D {
     private void initialize() throws PT2DTerminationException {
         if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
 
-        long start = System.currentTimeMillis();
+        long start = PTMetrics.start();
+        PTInitializePhaseEvent initializeEvent = beginInitializePhaseEvent(PTMetrics.Timer.INITIALIZE);
         logger.info("Initializing PT2D instance ({})", this);
 
         setImageProperties(imageData);
+        if (tileSize > 0 && mode == Mode.TMA)
+            logger.warn("The tiled mode only applies to the full image mode; TMA cores are processed whole");
+
+        if (comparisonROI == ComparisonROI.NUCLEUS) {
+            long noWithoutNucleus = Stream.concat(anaCells.stream(), refCells.stream())
+                    .filter(cell -> !(cell instanceof PathCellObject cellObject) || cellObject.getNucleusROI() == null)
+                    .count();
+            if (noWithoutNucleus > 0)
+                logger.warn("{} cells have no nucleus ROI and will be compared by their cell ROI", noWithoutNucleus);
+        }
 
         /*
         Populate these maps with all TMA cores ahead of time.
@@ -265,210 +691,923 @@ public class PT2D {
         tmaCoreRefCellsMap.putAll(getTMACoreList(hierarchy).stream()
                 .collect(Collectors.toMap(Function.identity(), v -> Collections.synchronizedSet(new HashSet<>()))));
 
-        // build Rtree for refCells, depending on mode
-        ConcurrentHashMap<TMACoreObject, STRtree> tmaRtreeMap = new ConcurrentHashMap<>(); // for TMA mode
-        STRtree rtree = new STRtree(); // for full image mode
+        cacheFingerprint = (cacheDirectory != null && radius == 0) ? computeCacheFingerprint() : 0;
+        if (!restoreNeighbors()) {
+            buildReferenceIndexes();
+            findNearestNeighbors();
+            writeNeighborCache();
+        }
 
-        long start_0 = System.currentTimeMillis();
-        refCells.parallelStream().forEach(cell -> {
+        long start_2 = PTMetrics.start();
+        PTInitializePhaseEvent treeMapsEvent = beginInitializePhaseEvent(PTMetrics.Timer.TREE_MAPS);
+        IntStream.range(0, globalCellMaps.length) // safer way of multithreading
+                .parallel()
+                .forEach(index -> globalCellMaps[index] = createCellMap(index));
 
-            if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+        if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
 
-            Geometry cellGeom = cell.getROI().getGeometry();
-            if (cellGeom == null) throw new IllegalStateException("One or more cell geometries are null!");
-
-            switch (mode) {
-                case TMA -> {
-                    PathObject parent = cell; // temporary assignment
-                    while (parent != null && !parent.isTMACore()) {
-                    /* Assign TMA core to parent if found. This is needed in case the TMA is not
-                    directly the cell's parent (e.g., grandparent).
-                     */
-                        parent = parent.getParent();
-                    }
-                    if (parent instanceof TMACoreObject) {
-                        // For caching (see documentation at top).
-                        tmaCoreRefCellsMap.get((TMACoreObject) parent).add(cell); // no need to computeIfAbsent; the map has been populated with all the cores
-
-                        // for actually constructing the tree
-                        tmaRtreeMap.computeIfAbsent((TMACoreObject) parent, k -> new STRtree());
-                        synchronized (tmaRtreeMap.get(parent)) { // make rtree thread safe
-                            tmaRtreeMap.get(parent).insert(cellGeom.getEnvelopeInternal(), cellGeom);
-                        }
-                    }
+        long time_2 = metrics.record(PTMetrics.Timer.TREE_MAPS, start_2);
+        treeMapsEvent.commit();
+        logger.info("Time to make {} ({}): {} ms",
+                (globalCellMaps.length > 1 ? "tree maps" : "tree map"),
+                globalCellMaps.length,
+                TimeUnit.NANOSECONDS.toMillis(time_2));
+
+        long time = metrics.record(PTMetrics.Timer.INITIALIZE, start);
+        initializeEvent.commit();
+        logger.info("TOTAL TIME TO INITIALIZE PT2D INSTANCE ({}): {} ms", this, TimeUnit.NANOSECONDS.toMillis(time));
+    }
+
+    /**
+     * Build the reference index (R-tree or other neighbor engine) for refCells, depending on mode. In tiled mode,
+     * only the tile grid is made; the reference indexes are built tile by tile when searching.
+     * @throws PT2DTerminationException
+     */
+    private void buildReferenceIndexes() throws PT2DTerminationException {
+        long start_0 = PTMetrics.start();
+        PTInitializePhaseEvent indexEvent = beginInitializePhaseEvent(PTMetrics.Timer.REFERENCE_INDEX);
+        switch (mode) {
+            case TMA -> {
+                assignTMACoreReferenceCells();
+
+                // for actually constructing the indexes (only for cores with reference cells)
+                tmaCoreRefCellsMap.entrySet().parallelStream()
+                        .filter(entry -> !entry.getValue().isEmpty())
+                        .forEach(entry -> {
+                            PTTMACoreEvent coreEvent = new PTTMACoreEvent();
+                            coreEvent.begin();
+                            tmaIndexMap.put(entry.getKey(), PTReferenceIndex.create(entry.getValue(), comparisonROI, comparisonType, neighborEngine, edgeDistance, simplificationTolerance/pixelSize, metrics));
+                            coreEvent.work = "Reference index";
+                            coreEvent.core = entry.getKey().getName();
+                            coreEvent.noReferenceCells = entry.getValue().size();
+                            coreEvent.k = mapSize;
+                            coreEvent.commit();
+                        });
+            }
+            case FULL_IMAGE -> {
+                if (tileSize > 0) {
+                    // the reference indexes are built tile by tile when searching (see findNearestNeighborsInTiles())
+                    tileGrid = createTileGrid();
+                } else {
+                    fullImageIndex = PTReferenceIndex.create(refCells, comparisonROI, comparisonType, neighborEngine, edgeDistance, simplificationTolerance/pixelSize, metrics);
                 }
-                case FULL_IMAGE -> {
-                    synchronized (rtree) {
-                        rtree.insert(cellGeom.getEnvelopeInternal(), cellGeom);
+            }
+            default -> throw new IllegalStateException();
+        }
+
+        if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+
+        long time_0 = metrics.record(PTMetrics.Timer.REFERENCE_INDEX, start_0);
+        indexEvent.commit();
+        logger.info("Time to make {} ({} {}): {} ms",
+                this.mode == Mode.TMA ? "reference indexes" : (tileGrid != null ? "tile grid" : "reference index"),
+                this.mode == Mode.TMA ? tmaIndexMap.size() : (tileGrid != null ? tileGrid.getNoTiles() : 1),
+                neighborEngine,
+                TimeUnit.NANOSECONDS.toMillis(time_0));
+    }
+
+    /**
+     * Find the nearest neighbors (or the neighbors within the radius) of the cells to analyze, depending on mode.
+     * @throws PT2DTerminationException
+     */
+    private void findNearestNeighbors() throws PT2DTerminationException {
+        long start_1 = PTMetrics.start();
+        PTInitializePhaseEvent neighborsEvent = beginInitializePhaseEvent(PTMetrics.Timer.NEAREST_NEIGHBORS);
+        if (radius > 0) {
+            if (tileGrid == null)
+                radiusNeighbors = findNeighborsWithinRadius();
+            else
+                radiusNeighbors = (noWorkers > 0) ? findNeighborsInShards() : findNeighborsWithinRadiusInTiles();
+            logger.info("Neighbors within radius: {}", radiusNeighbors);
+        } else if (tileGrid != null && noWorkers > 0) {
+            findNeighborsInShards();
+        } else if (tileGrid != null) {
+            findNearestNeighborsInTiles(mapSize, 0);
+        } else {
+            this.anaCells.parallelStream().forEach(cell -> {
+
+                if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+
+                Geometry cellGeom = comparisonROI.getROI(cell).getGeometry();
+                if (cellGeom == null) throw new IllegalStateException("One or more cell geometries are found to be null!");
+
+                PTReferenceIndex index = resolveReferenceIndex(cell);
+                PTCellNeighborTracker tracker = new PTCellNeighborTracker(cell, mapSize, plane);
+                if (index != null) {
+                    // for actually finding the nearest neighbors
+                    int[] ordinals = new int[mapSize];
+                    double[] distances = new double[mapSize];
+                    int noNeighbors = index.engine().findNearest(cellGeom, mapSize, ordinals, distances); // same as mapSize (or smaller)
+                    for (int i = 0; i < noNeighbors; i++) {
+                        tracker.addData(i, ordinals[i], index.cells()[ordinals[i]], index.geometries()[ordinals[i]], distances[i]*pixelSize);
                     }
                 }
-                default -> throw new IllegalStateException();
+                anaCellsData.put(cell, tracker);
+
+            });
+        }
+
+        if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+
+        long time_1 = metrics.record(PTMetrics.Timer.NEAREST_NEIGHBORS, start_1);
+        neighborsEvent.commit();
+        logger.info("Time to calculate distances: {} ms ({} distance evaluations, {} pruned, peak candidate set of {})",
+                TimeUnit.NANOSECONDS.toMillis(time_1),
+                metrics.getDistanceEvaluations(),
+                metrics.getPrunedCandidates(),
+                metrics.getPeakCandidateSetSize());
+    }
+
+    /**
+     * Cache the reference cells of each TMA core in {@code tmaCoreRefCellsMap}.
+     * @throws PT2DTerminationException
+     */
+    private void assignTMACoreReferenceCells() throws PT2DTerminationException {
+        refCells.parallelStream().forEach(cell -> {
+            if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+
+            /* Find the TMA core if any. This is needed in case the TMA is not directly the cell's
+            parent (e.g., grandparent).
+             */
+            TMACoreObject core = getTMACore(cell);
+            if (core != null) {
+                // For caching (see documentation at top).
+                tmaCoreRefCellsMap.get(core).add(cell); // no need to computeIfAbsent; the map has been populated with all the cores
             }
         });
 
         if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+    }
 
-        // Explicitly build the R-trees. This should prevent any NullPointerExceptions when calling findNearestGeoms() later.
-        switch (mode) {
-            case TMA -> tmaRtreeMap.values().forEach(STRtree::build);
-            case FULL_IMAGE -> rtree.build();
-            default -> throw new IllegalStateException();
+    private PTTileGrid createTileGrid() {
+        PTTileGrid tileGrid = new PTTileGrid(anaCells.toArray(PathObject[]::new), refCells.toArray(PathObject[]::new),
+                comparisonROI, tileSize/pixelSize, halo/pixelSize);
+        logger.info("Tiled mode: {}", tileGrid);
+        return tileGrid;
+    }
+
+    /**
+     * Get the neighbor cache directory of an image of the current project, i.e., a subdirectory of the
+     * project entry's data directory.
+     * @param imageData
+     * @return the directory, or null if the image is not in the current project
+     */
+    public static Path getProjectCacheDirectory(ImageData<BufferedImage> imageData) {
+        Project<BufferedImage> project = QP.getProject();
+        ProjectImageEntry<BufferedImage> entry = (project == null || imageData == null) ? null : project.getEntry(imageData);
+        Path entryPath = (entry == null) ? null : entry.getEntryPath();
+        return (entryPath == null) ? null : entryPath.resolve("proximity-tools");
+    }
+
+    /**
+     * Describe the settings that the nearest neighbors depend on. The neighbor engine, edge distance and
+     * simplification tolerance are left out, as they give the same neighbors.
+     * @return the configuration of the neighbor cache
+     */
+    private String getCacheConfiguration() {
+        return "mode=" + mode
+                + ";comparisonType=" + comparisonType
+                + ";comparisonROI=" + comparisonROI
+                + ";halo=" + (tileSize > 0 && mode == Mode.FULL_IMAGE ? halo : Double.POSITIVE_INFINITY)
+                + ";pixelSize=" + pixelSize;
+    }
+
+    /**
+     * Get the neighbor cache file of this instance. One file is kept per pair of populations (cells to analyze and
+     * reference cells, identified by their IDs), overwritten when the configuration or the cells change.
+     * @return the path
+     */
+    private Path getNeighborCachePath() {
+        long populations = mix(anaCells.parallelStream().mapToLong(cell -> mix(getIDHash(cell))).sum())
+                + refCells.parallelStream().mapToLong(cell -> mix(getIDHash(cell))).sum();
+        return cacheDirectory.resolve("pt2d-neighbors-" + Long.toHexString(mix(populations)) + ".bin");
+    }
+
+    /**
+     * Delete the least recently used neighbor cache files beyond {@link #MAX_NEIGHBOR_CACHE_FILES}, as populations
+     * whose cells were detected again (new IDs) leave their files behind. Failures are logged.
+     */
+    private void pruneNeighborCache() {
+        try (Stream<Path> files = Files.list(cacheDirectory)) {
+            List<Path> cacheFiles = files
+                    .filter(file -> file.getFileName().toString().matches("pt2d-neighbors-[0-9a-f]+\\.bin"))
+                    .sorted(Comparator.comparing(PT2D::getLastModifiedTime).reversed())
+                    .toList();
+            for (Path file : cacheFiles.subList(Math.min(MAX_NEIGHBOR_CACHE_FILES, cacheFiles.size()), cacheFiles.size())) {
+                Files.deleteIfExists(file);
+                logger.debug("Neighbor cache {} deleted", file.getFileName());
+            }
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("Unable to prune neighbor cache {}: {}", cacheDirectory, e.getMessage());
         }
+    }
 
-        long end_0 = System.currentTimeMillis();
-        logger.info("Time to make {} ({} trees): {} ms",
-                this.mode == Mode.TMA ? "R-trees" : "R-tree",
-                this.mode == Mode.TMA ? tmaRtreeMap.size() : 1,
-                (end_0 - start_0));
+    private static FileTime getLastModifiedTime(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        long start_1 = System.currentTimeMillis();
-        this.anaCells.parallelStream().forEach(cell -> {
+    /**
+     * Compute the fingerprint of the cells for the neighbor cache: it changes if a cell is added or removed, its
+     * comparison ROI changes (bounds, centroid or number of points), or, in TMA mode, it moves to another core.
+     * Independent of the order of the cells.
+     * @return the fingerprint
+     */
+    private long computeCacheFingerprint() {
+        long targets = anaCells.parallelStream().mapToLong(this::getCellFingerprint).sum();
+        long references = refCells.parallelStream().mapToLong(this::getCellFingerprint).sum();
+        return mix(mix(targets) + references) ^ Double.doubleToLongBits(pixelSize);
+    }
 
-            if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+    private long getCellFingerprint(PathObject cell) {
+        ROI roi = comparisonROI.getROI(cell);
+        long hash = mix(getIDHash(cell));
+        hash = mix(hash ^ Double.doubleToLongBits(roi.getBoundsX()));
+        hash = mix(hash ^ Double.doubleToLongBits(roi.getBoundsY()));
+        hash = mix(hash ^ Double.doubleToLongBits(roi.getBoundsWidth()));
+        hash = mix(hash ^ Double.doubleToLongBits(roi.getBoundsHeight()));
+        hash = mix(hash ^ Double.doubleToLongBits(roi.getCentroidX()));
+        hash = mix(hash ^ Double.doubleToLongBits(roi.getCentroidY()));
+        hash = mix(hash ^ roi.getNumPoints());
+        if (mode == Mode.TMA) {
+            TMACoreObject core = getTMACore(cell);
+            hash = mix(hash ^ (core == null ? 0 : getIDHash(core)));
+        }
+        return hash;
+    }
 
-            Geometry cellGeom = cell.getROI().getGeometry();
-            if (cellGeom == null) throw new IllegalStateException("One or more cell geometries are found to be null!");
-
-            List<Geometry> nearestNeighbors;
-            switch (mode) {
-                case TMA -> {
-                    PathObject parent = cell;
-                    while (parent != null && !parent.isTMACore()) {
-                        /* Assign TMA core to parent if found. This is needed in case the TMA is not
-                        directly the cell's parent (e.g., grandparent).
-                         */
-                        parent = parent.getParent();
-                    }
-                    if (parent == null) { // keep this separate from block below b/c null does not work with containsKey()
-                        nearestNeighbors = Collections.emptyList();
-                    } else if (!tmaRtreeMap.containsKey(parent)) {
-                        nearestNeighbors = Collections.emptyList();
-                    } else {
-                        // For caching (see documentation at top).
-                        tmaCoreAnaCellsMap.get((TMACoreObject) parent).add(cell); // no need to computeIfAbsent; the map has been populated with all the cores
+    private static long getIDHash(PathObject pathObject) {
+        return pathObject.getID().getMostSignificantBits() * 31 + pathObject.getID().getLeastSignificantBits();
+    }
 
-                        // for actually finding the nearest neighbors
-                        nearestNeighbors = findNearestGeoms(cellGeom, tmaRtreeMap.get(parent), mapSize, comparisonType);
-                    }
-                }
-                case FULL_IMAGE -> nearestNeighbors = findNearestGeoms(cellGeom, rtree, mapSize, comparisonType);
-                default -> throw new IllegalStateException();
+    /**
+     * Mix the bits of a hash (finalizer of SplitMix64), so that sums of hashes stay well distributed.
+     * @param hash
+     * @return the mixed hash
+     */
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    /**
+     * Restore the nearest neighbors from the neighbor cache, if enabled and up to date (same configuration, same
+     * cells and same fingerprint, at least as many neighbors per cell as needed). The neighbors are restored
+     * without geometries and ordinals; geometries are recreated for connections, and the reference indexes are
+     * built if the search has to be resumed (see {@link #extendMaxInteractionsToTest(int)}).
+     * @return true if the neighbors were restored
+     */
+    private boolean restoreNeighbors() {
+        if (cacheDirectory == null || radius > 0)
+            return false;
+        Path path = getNeighborCachePath();
+        if (!Files.isRegularFile(path))
+            return false;
+
+        long start = PTMetrics.start();
+        try (PTNeighborCacheFile.Reader reader = PTNeighborCacheFile.open(path)) {
+            if (!reader.getConfiguration().equals(getCacheConfiguration())
+                    || reader.getFingerprint() != cacheFingerprint
+                    || reader.getK() < mapSize
+                    || reader.getNoTargets() != anaCells.size()
+                    || reader.getNoReferences() != refCells.size()) {
+                logger.info("Neighbor cache {} is out of date", path.getFileName());
+                return false;
             }
 
-            anaCellsData.put(cell, new PTCellNeighborTracker(cell));
-            for (int i = 0; i < nearestNeighbors.size() /* same as mapSize (or smaller) */; i++) {
-                double nearestDistance = (comparisonType == ComparisonType.EDGE)
-                        ? cellGeom.distance(nearestNeighbors.get(i))*pixelSize
-                        : cellGeom.getCentroid().distance(nearestNeighbors.get(i).getCentroid())*pixelSize;
-                anaCellsData.get(cell).addData(i, nearestNeighbors.get(i), nearestDistance);
+            Map<UUID, PathObject> targetsByID = anaCells.stream().collect(Collectors.toMap(PathObject::getID, Function.identity()));
+            Map<UUID, PathObject> referencesByID = refCells.stream().collect(Collectors.toMap(PathObject::getID, Function.identity()));
+            PathObject[] targets = new PathObject[reader.getNoTargets()];
+            for (int i = 0; i < targets.length; i++) {
+                if ((targets[i] = targetsByID.get(reader.getTargetID(i))) == null)
+                    return false;
+            }
+            PathObject[] references = new PathObject[reader.getNoReferences()];
+            for (int j = 0; j < references.length; j++) {
+                if ((references[j] = referencesByID.get(reader.getReferenceID(j))) == null)
+                    return false;
             }
 
-        });
+            IntStream.range(0, targets.length).parallel().forEach(i -> {
+                PTCellNeighborTracker tracker = new PTCellNeighborTracker(targets[i], mapSize, plane);
+                int noNeighbors = Math.min(mapSize, reader.getNoNeighbors(i));
+                for (int n = 0; n < noNeighbors; n++) {
+                    tracker.addData(n, references[reader.getReferenceIndex(i, n)], null, reader.getDistance(i, n));
+                }
+                anaCellsData.put(targets[i], tracker);
+            });
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read neighbor cache {}: {}", path, e.getMessage());
+            anaCellsData.clear();
+            return false;
+        }
 
+        // what building the reference indexes would otherwise have cached
+        if (mode == Mode.TMA) {
+            assignTMACoreReferenceCells();
+            anaCells.forEach(cell -> {
+                TMACoreObject core = getTMACore(cell);
+                if (core != null && !tmaCoreRefCellsMap.get(core).isEmpty())
+                    tmaCoreAnaCellsMap.get(core).add(cell);
+            });
+        } else if (tileSize > 0) {
+            tileGrid = createTileGrid();
+        }
+        neighborsRestored = true;
+        try { // most recently used, for pruning
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.debug("Unable to touch neighbor cache {}: {}", path, e.getMessage());
+        }
+        logger.info("Nearest neighbors restored from cache {} in {} ms", path.getFileName(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+
+    /**
+     * Write the nearest neighbors to the neighbor cache, if enabled. Failures are logged, as the cache is optional.
+     */
+    private void writeNeighborCache() {
+        if (cacheDirectory == null || radius > 0)
+            return;
+        Path path = getNeighborCachePath();
+        long start = PTMetrics.start();
+        try {
+            Files.createDirectories(cacheDirectory);
+            PathObject[] targets = anaCells.toArray(PathObject[]::new);
+            PTCellNeighborTracker[] trackers = new PTCellNeighborTracker[targets.length];
+            for (int i = 0; i < targets.length; i++) {
+                trackers[i] = anaCellsData.get(targets[i]);
+            }
+            PTNeighborCacheFile.write(path, getCacheConfiguration(), cacheFingerprint, mapSize,
+                    targets, trackers, refCells.toArray(PathObject[]::new));
+            logger.info("Nearest neighbors written to cache {} in {} ms", path.getFileName(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to write neighbor cache {}: {}", path, e.getMessage());
+            return;
+        }
+        pruneNeighborCache();
+    }
+
+    /**
+     * Get the reference index to search for a cell to analyze, depending on mode. In TMA mode, the cell is also
+     * cached in {@code tmaCoreAnaCellsMap}.
+     * @param cell
+     * @return the index, or null if there is none (e.g., the cell is not in a TMA core with reference cells)
+     */
+    private PTReferenceIndex resolveReferenceIndex(PathObject cell) {
+        return switch (mode) {
+            case TMA -> {
+                /* Find the TMA core if any. This is needed in case the TMA is not
+                directly the cell's parent (e.g., grandparent).
+                 */
+                TMACoreObject core = getTMACore(cell);
+                if (core == null) { // keep this separate from block below b/c null does not work with containsKey()
+                    yield null;
+                } else if (!tmaIndexMap.containsKey(core)) {
+                    yield null;
+                } else {
+                    // For caching (see documentation at top).
+                    tmaCoreAnaCellsMap.get(core).add(cell); // no need to computeIfAbsent; the map has been populated with all the cores
+                    yield tmaIndexMap.get(core);
+                }
+            }
+            case FULL_IMAGE -> fullImageIndex;
+        };
+    }
+
+    /**
+     * Create the tree map of the cells to analyze keyed by their distance to their nth nearest neighbor.
+     * @param index n (0 = nearest)
+     * @return the tree map
+     * @throws PT2DTerminationException
+     */
+    private TreeMap<Double, Set<PathObject>> createCellMap(int index) throws PT2DTerminationException {
         if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
 
-        /*
-        Starting here, we create lines for the connections
-         */
+        TreeMap<Double, Set<PathObject>> tempCellMap = new TreeMap<>();
 
-        switch (comparisonType) {
-            case EDGE -> {
-                anaCellsData.entrySet().parallelStream().forEach(entry -> {
+        this.anaCells.forEach(cell -> {
+            Double distance = anaCellsData.get(cell).getDistanceByN(index);
+            if (distance != null) { // <- null will occur if the number of reference cells are fewer than mapSize
+                tempCellMap.computeIfAbsent(distance, k -> new HashSet<>()).add(cell);
+            } else {
+                tempCellMap.computeIfAbsent(Double.NaN, k -> new HashSet<>()).add(cell);
+            }
+        });
+
+        return tempCellMap;
+    }
 
+    /**
+     * Increase the max number of interactions to test without reinitializing. Each cell's nearest neighbor
+     * search is resumed from the neighbors already found (the reference indexes are reused and the first
+     * neighbors are not searched again), and tree maps are added for the new ranks. In tiled mode, the tile
+     * indexes are not kept, so those of the tiles with cells that may have more neighbors within the halo are
+     * built again before resuming. In radius mode, the additional neighbors are taken from the neighbors within
+     * the radius.
+     * <p>
+     * Existing connections are removed, as they only cover the previous neighbors; they are recreated by the next
+     * query that shows connections. Should not be called while a query is running.
+     * @param maxInteractionsToTest the new max interactions to test; nothing is done if not larger than the current one
+     * @throws IllegalStateException if the additional neighbors are not expected to fit the heap
+     * @throws PT2DTerminationException
+     */
+    public synchronized void extendMaxInteractionsToTest(int maxInteractionsToTest) throws IllegalStateException, PT2DTerminationException {
+        int oldMapSize = mapSize;
+        int newMapSize = maxInteractionsToTest + 1;
+        requestedMaxInteractionsToTest = Math.max(requestedMaxInteractionsToTest, maxInteractionsToTest);
+        if (newMapSize <= oldMapSize)
+            return;
+
+        // the reference indexes are built if the neighbors were restored without them
+        boolean indexes = hasReferenceIndexes() || (neighborsRestored && radiusNeighbors == null && tileGrid == null);
+        long bytes = estimateRetainedBytes(newMapSize, indexes);
+        long budget = PTMemoryPlanner.getDefaultBudget();
+        if (bytes > budget)
+            throw new IllegalStateException("Not enough memory to extend PT2D to " + maxInteractionsToTest
+                    + " interactions to test (estimated " + PTMemoryPlanner.formatBytes(bytes)
+                    + ", budget: " + PTMemoryPlanner.formatBytes(budget) + ")");
+
+        long start = PTMetrics.start();
+        logger.info("Extending PT2D instance from {} to {} interactions to test", oldMapSize - 1, maxInteractionsToTest);
+
+        if (radiusNeighbors != null) {
+            IntStream.range(0, radiusNeighbors.size()).parallel().forEach(i -> {
+                PTCellNeighborTracker tracker = anaCellsData.get(radiusNeighbors.getCell(i));
+                int noNeighbors = Math.min(newMapSize, radiusNeighbors.getNoNeighbors(i));
+                for (int n = tracker.size(); n < noNeighbors; n++) {
+                    PathObject neighbor = radiusNeighbors.getNeighbor(i, n);
+                    tracker.addData(n, neighbor, tileGrid == null ? comparisonROI.getROI(neighbor).getGeometry() : null, radiusNeighbors.getDistance(i, n));
+                }
+            });
+        } else if (tileGrid != null) {
+            // cells with fewer neighbors have all those within the halo
+            findNearestNeighborsInTiles(newMapSize, oldMapSize);
+        } else {
+            if (neighborsRestored) { // the reference indexes were not needed so far
+                buildReferenceIndexes();
+                neighborsRestored = false;
+            }
+            PathObject[] targets = anaCells.toArray(PathObject[]::new);
+            int chunkSize = getChunkSize(targets.length);
+            int noChunks = (targets.length + chunkSize - 1) / chunkSize;
+            IntStream.range(0, noChunks).parallel().forEach(chunk -> {
+                int[] ordinals = new int[newMapSize]; // reused within the chunk
+                double[] distances = new double[newMapSize];
+                int to = Math.min((chunk + 1) * chunkSize, targets.length);
+                for (int i = chunk * chunkSize; i < to; i++) {
                     if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
 
-                    PathObject anaCell = entry.getKey();
-                    ROI anaCellROI = anaCell.getROI();
-                    PTCellNeighborTracker nearestNeighborData = entry.getValue();
+                    PTCellNeighborTracker tracker = anaCellsData.get(targets[i]);
+                    int from = tracker.size();
+                    if (from < oldMapSize)
+                        continue; // all reference cells have already been found
+                    PTReferenceIndex index = resolveReferenceIndex(targets[i]);
+                    if (index == null)
+                        continue;
+
+                    boolean resumable = true;
+                    for (int n = 0; n < from; n++) {
+                        ordinals[n] = tracker.getOrdinal(n);
+                        distances[n] = tracker.getDistance(n)/pixelSize;
+                        resumable &= ordinals[n] >= 0;
+                    }
+                    if (!resumable) // ordinals unknown, search again from scratch
+                        from = 0;
 
-                    Geometry anaCellGeom = anaCellROI.getGeometry();
+                    Geometry cellGeom = comparisonROI.getROI(targets[i]).getGeometry();
+                    int noNeighbors = index.engine().findNearestFrom(cellGeom, from, newMapSize, ordinals, distances);
+                    for (int n = from; n < noNeighbors; n++) {
+                        tracker.addData(n, ordinals[n], index.cells()[ordinals[n]], index.geometries()[ordinals[n]], distances[n]*pixelSize);
+                    }
+                }
+            });
+        }
 
-                    for (Geometry geometry : nearestNeighborData.getGeometrySet()) {
-                        Coordinate[] closestPoints = DistanceOp.nearestPoints(anaCellGeom, geometry);
-                        Coordinate startPoint = closestPoints[0]; // Closest point on anaCell
-                        Coordinate endPoint = closestPoints[1]; // Closest point on nearest neighbor
+        TreeMap<Double, Set<PathObject>>[] newCellMaps = Arrays.copyOf(globalCellMaps, newMapSize);
+        IntStream.range(oldMapSize, newMapSize)
+                .parallel()
+                .forEach(index -> newCellMaps[index] = createCellMap(index));
+        globalCellMaps = newCellMaps;
+        mapSize = newMapSize;
+        writeNeighborCache();
+
+        if (!lineAnnotationData.isEmpty()) {
+            clearConnections();
+            lineAnnotationData.clear();
+            fireHierarchyUpdateFlag = true;
+        }
 
-                        ROI lineROI = ROIs.createLineROI(startPoint.getX(), startPoint.getY(), endPoint.getX(), endPoint.getY(), plane);
+        long time = metrics.record(PTMetrics.Timer.EXTEND_NEIGHBORS, start);
+        logger.info("Time to extend PT2D instance ({}): {} ms", this, TimeUnit.NANOSECONDS.toMillis(time));
+    }
 
-                        PathObject lineAnnotation = PathObjects.createAnnotationObject(lineROI);
-                        applyLineType(lineAnnotation, lineType); // mutate lineAnnotation
-                        lineAnnotationData.add(new PTLineAnnotationTracker(lineAnnotation, nearestNeighborData.getDistanceByGeom(geometry), anaCell));
-                    }
-                });
+    /**
+     * Create and begin a JFR event for an initialization phase. Events are only committed if the phase completes.
+     * @param phase
+     * @return the event, to be committed at the end of the phase
+     */
+    private PTInitializePhaseEvent beginInitializePhaseEvent(PTMetrics.Timer phase) {
+        PTInitializePhaseEvent event = new PTInitializePhaseEvent();
+        event.phase = phase.name();
+        event.mode = mode.name();
+        event.neighborEngine = neighborEngine.name();
+        event.noCellsToAnalyze = anaCells.size();
+        event.noReferenceCells = refCells.size();
+        event.k = mapSize;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commit a JFR event for a hierarchy mutation (objects added or removed).
+     * @param event the event, begun before the mutation
+     * @param operation
+     * @param noObjects
+     */
+    private void commitHierarchyMutationEvent(PTHierarchyMutationEvent event, String operation, int noObjects) {
+        event.operation = operation;
+        event.noObjects = noObjects;
+        event.noCellsToAnalyze = anaCells.size();
+        event.k = mapSize;
+        event.commit();
+    }
+
+    ImageData<BufferedImage> getImageData() {
+        return imageData;
+    }
+
+    int getNoCellsToAnalyze() {
+        return anaCells.size();
+    }
+
+    int getNoReferenceCells() {
+        return refCells.size();
+    }
+
+    /**
+     * @return the number of nearest neighbors stored per cell to analyze (max interactions to test + 1)
+     */
+    int getMapSize() {
+        return mapSize;
+    }
+
+    /**
+     * @return the max interactions to test requested when building, which is larger than {@code getMapSize() - 1}
+     * if the memory plan reduced it
+     */
+    int getRequestedMaxInteractionsToTest() {
+        return requestedMaxInteractionsToTest;
+    }
+
+    /**
+     * Estimate the heap retained by this instance: the neighbors of the cells to analyze (including all the neighbors
+     * within the radius in radius mode), the labels and connections it may display, and the reference indexes it
+     * keeps for resuming the nearest neighbor search.
+     * @return estimated bytes
+     */
+    long estimateRetainedBytes() {
+        return estimateRetainedBytes(mapSize, hasReferenceIndexes());
+    }
+
+    private long estimateRetainedBytes(int mapSize, boolean indexes) {
+        int noRef = indexes ? refCells.size() : 0;
+        double averageRefVertices = indexes ? PTMemoryPlanner.getAverageVertices(refCells, comparisonROI) : 0;
+        return PTMemoryPlanner.estimateBytes(anaCells.size(), noRef, averageRefVertices, mapSize, comparisonType,
+                labelsAllowed, connectionsAllowed) + (radiusNeighbors == null ? 0 : radiusNeighbors.getBytes());
+    }
+
+    private boolean hasReferenceIndexes() {
+        return fullImageIndex != null || !tmaIndexMap.isEmpty();
+    }
+
+    /**
+     * Get the phase timings and work counters of this instance. Initialization phases are recorded once;
+     * queries (including those made internally by measurements) and measurement batches are recorded
+     * each time they run. Use {@link PTMetrics#toJSON()} for a machine-readable summary.
+     * @return the metrics
+     */
+    public PTMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the neighbors within the radius, if the radius mode is enabled (see {@link PT2DBuilder#setRadius(double)}).
+     * @return the neighbors within the radius, or null if the radius mode is disabled
+     */
+    public PTRadiusNeighbors getRadiusNeighbors() {
+        return radiusNeighbors;
+    }
+
+    /**
+     * Get the memory plan made before initialization, including any degradation applied.
+     * @return the plan, or null if no plan was made (no heap budget set and no degradation allowed)
+     */
+    public PTMemoryPlanner.Plan getMemoryPlan() {
+        return memoryPlan;
+    }
+
+    /**
+     * Find all reference cells within the radius of each cell to analyze (range search with exact refinement)
+     * and store them in CSR form. The nearest {@code mapSize} of them also fill the cells' neighbor trackers,
+     * so that nearest neighbor measurements and connections remain available (limited to the radius).
+     * @return the neighbors within the radius
+     * @throws PT2DTerminationException
+     */
+    private PTRadiusNeighbors findNeighborsWithinRadius() throws PT2DTerminationException {
+        PathObject[] targets = anaCells.toArray(PathObject[]::new);
+        PathObject[][] targetNeighbors = new PathObject[targets.length][];
+        double[][] targetDistances = new double[targets.length][];
+        double maxDistance = radius / pixelSize; // in pixels
+
+        int chunkSize = getChunkSize(targets.length);
+        int noChunks = (targets.length + chunkSize - 1) / chunkSize;
+        IntStream.range(0, noChunks).parallel().forEach(chunk -> {
+            PTNeighborList result = new PTNeighborList(); // reused within the chunk
+            int from = chunk * chunkSize;
+            int to = Math.min(from + chunkSize, targets.length);
+            for (int i = from; i < to; i++) {
+                if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+                findWithinRadius(targets, i, resolveReferenceIndex(targets[i]), maxDistance, result, true, targetNeighbors, targetDistances);
             }
-            case CENTROID -> {
-                anaCellsData.entrySet().parallelStream().forEach(entry -> {
+        });
 
-                    if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+        return packRadiusNeighbors(targets, targetNeighbors, targetDistances);
+    }
 
-                    PathObject anaCell = entry.getKey();
-                    ROI anaCellROI = anaCell.getROI();
-                    PTCellNeighborTracker nearestNeighborData = entry.getValue();
+    /**
+     * Find all reference cells within the radius of each cell to analyze tile by tile (tiled mode), as
+     * {@link #findNeighborsWithinRadius()}. Each tile's reference index is released once the tile is done, and
+     * the neighbor trackers do not keep the neighbors' geometries.
+     * @return the neighbors within the radius
+     * @throws PT2DTerminationException
+     */
+    private PTRadiusNeighbors findNeighborsWithinRadiusInTiles() throws PT2DTerminationException {
+        PathObject[] targets = tileGrid.getTargets();
+        PathObject[][] targetNeighbors = new PathObject[targets.length][];
+        double[][] targetDistances = new double[targets.length][];
+        double maxDistance = radius / pixelSize; // in pixels
+
+        IntStream.range(0, tileGrid.getNoTiles()).parallel().forEach(tile -> {
+            int[] targetIndices = tileGrid.getTargetIndices(tile);
+            if (targetIndices.length == 0)
+                return;
+            if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
 
-                    double cellCentroidX = anaCellROI.getCentroidX();
-                    double cellCentroidY = anaCellROI.getCentroidY();
+            PTReferenceIndex index = createTileIndex(tile);
+            PTNeighborList result = new PTNeighborList(); // reused within the tile
+            for (int i : targetIndices) {
+                if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+                findWithinRadius(targets, i, index, maxDistance, result, false, targetNeighbors, targetDistances);
+            }
+        });
 
-                    for (Geometry geometry : nearestNeighborData.getGeometrySet()) {
-                        double geomCentroidX = geometry.getCentroid().getX();
-                        double geomCentroidY = geometry.getCentroid().getY();
+        return packRadiusNeighbors(targets, targetNeighbors, targetDistances);
+    }
 
-                        ROI lineROI = ROIs.createLineROI(cellCentroidX, cellCentroidY, geomCentroidX, geomCentroidY, plane);
+    /**
+     * Find the reference cells within the radius of a cell to analyze. All of them are stored in
+     * {@code targetNeighbors[i]} and {@code targetDistances[i]} (µm), and the nearest {@code mapSize} of them in
+     * the cell's neighbor tracker.
+     * @param targets the cells to analyze
+     * @param i index of the cell to analyze
+     * @param index the reference index to search, or null if there is none
+     * @param maxDistance the radius (in pixels)
+     * @param result list to reuse for the search
+     * @param keepGeometries whether the neighbor tracker keeps the neighbors' geometries (for connections)
+     * @param targetNeighbors
+     * @param targetDistances
+     */
+    private void findWithinRadius(PathObject[] targets,
+                                  int i,
+                                  PTReferenceIndex index,
+                                  double maxDistance,
+                                  PTNeighborList result,
+                                  boolean keepGeometries,
+                                  PathObject[][] targetNeighbors,
+                                  double[][] targetDistances) {
+        PathObject cell = targets[i];
+        Geometry cellGeom = comparisonROI.getROI(cell).getGeometry();
+        if (cellGeom == null) throw new IllegalStateException("One or more cell geometries are found to be null!");
+
+        PTCellNeighborTracker tracker = new PTCellNeighborTracker(cell, mapSize, plane);
+        if (index == null) {
+            result.clear();
+        } else {
+            index.engine().findWithin(cellGeom, maxDistance, result);
+        }
 
-                        PathObject lineAnnotation = PathObjects.createAnnotationObject(lineROI);
-                        applyLineType(lineAnnotation, lineType); // mutate lineAnnotation
-                        lineAnnotationData.add(new PTLineAnnotationTracker(lineAnnotation, nearestNeighborData.getDistanceByGeom(geometry), anaCell));
-                    }
-                });
-            }
-            default -> throw new IllegalStateException();
+        targetNeighbors[i] = new PathObject[result.size()];
+        targetDistances[i] = new double[result.size()];
+        for (int n = 0; n < result.size(); n++) {
+            targetNeighbors[i][n] = index.cells()[result.getOrdinal(n)];
+            targetDistances[i][n] = result.getDistance(n)*pixelSize;
+            if (n < mapSize && keepGeometries)
+                tracker.addData(n, result.getOrdinal(n), targetNeighbors[i][n], index.geometries()[result.getOrdinal(n)], targetDistances[i][n]);
+            else if (n < mapSize)
+                tracker.addData(n, targetNeighbors[i][n], null, targetDistances[i][n]);
         }
+        anaCellsData.put(cell, tracker);
+    }
 
-        if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+    /**
+     * Pack the neighbors within the radius of each cell to analyze into CSR form.
+     * @param targets the cells to analyze
+     * @param targetNeighbors the neighbors of each cell to analyze, sorted by distance
+     * @param targetDistances the distances (µm) of each cell to analyze, sorted
+     * @return the neighbors within the radius
+     */
+    private PTRadiusNeighbors packRadiusNeighbors(PathObject[] targets, PathObject[][] targetNeighbors, double[][] targetDistances) {
+        int[] offsets = new int[targets.length + 1];
+        for (int i = 0; i < targets.length; i++) {
+            long end = (long) offsets[i] + targetDistances[i].length;
+            if (end > Integer.MAX_VALUE)
+                throw new IllegalStateException("Too many neighbors within the radius; use a smaller radius");
+            offsets[i + 1] = (int) end;
+        }
+        double[] distances = new double[offsets[targets.length]];
+        PathObject[] neighbors = new PathObject[offsets[targets.length]];
+        IntStream.range(0, targets.length).parallel().forEach(i -> {
+            System.arraycopy(targetDistances[i], 0, distances, offsets[i], targetDistances[i].length);
+            System.arraycopy(targetNeighbors[i], 0, neighbors, offsets[i], targetNeighbors[i].length);
+        });
 
-        /*
-        End of creating line objects
-         */
+        return new PTRadiusNeighbors(radius, targets, offsets, distances, neighbors);
+    }
 
-        long end_1 = System.currentTimeMillis();
-        logger.info("Time to calculate distances: " + (end_1 - start_1) + " ms");
+    /**
+     * Find the nearest neighbors of the cells to analyze tile by tile (tiled mode). Each tile builds a reference
+     * index over the reference cells of its halo region, searches the nearest neighbors of its cells to analyze,
+     * and releases the index once done, so only the indexes of the tiles in progress are held at once. Neighbors
+     * beyond the halo are not stored, as a closer reference cell outside the halo region may have been missed;
+     * the neighbor trackers do not keep the neighbors' geometries.
+     * <p>
+     * When extending to more neighbors, the indexes (released after the first search) are only built again for
+     * the tiles with cells that may have more neighbors within the halo, and each search resumes from the
+     * neighbors already stored, through their ordinals in the tile index.
+     * @param k number of nearest neighbors to find
+     * @param minNoNeighbors only search for cells with at least this number of neighbors already stored
+     *                       (e.g., to find more neighbors only for cells that may have more within the halo)
+     * @throws PT2DTerminationException
+     */
+    private void findNearestNeighborsInTiles(int k, int minNoNeighbors) throws PT2DTerminationException {
+        PathObject[] targets = tileGrid.getTargets();
+        IntStream.range(0, tileGrid.getNoTiles()).parallel().forEach(tile -> {
+            int[] targetIndices = tileGrid.getTargetIndices(tile);
+            if (targetIndices.length == 0)
+                return;
+            if (minNoNeighbors > 0 && Arrays.stream(targetIndices).noneMatch(i -> anaCellsData.containsKey(targets[i])
+                    && anaCellsData.get(targets[i]).size() >= minNoNeighbors))
+                return; // all the neighbors within the halo have already been found
+            if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
 
-        long start_2 = System.currentTimeMillis();
-        IntStream.range(0, globalCellMaps.length) // safer way of multithreading
-                .parallel()
-                .forEach(index -> {
+            PTReferenceIndex index = createTileIndex(tile);
+            Map<PathObject, Integer> tileOrdinals = new HashMap<>(); // of the neighbors already stored, if any
+            if (index != null && minNoNeighbors > 0) {
+                for (int ordinal = 0; ordinal < index.cells().length; ordinal++)
+                    tileOrdinals.put(index.cells()[ordinal], ordinal);
+            }
+            int[] ordinals = new int[k]; // reused within the tile
+            double[] distances = new double[k];
+            for (int i : targetIndices) {
+                if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+
+                PathObject cell = targets[i];
+                PTCellNeighborTracker tracker = anaCellsData.computeIfAbsent(cell, c -> new PTCellNeighborTracker(c, k, plane));
+                if (index == null || tracker.size() < minNoNeighbors)
+                    continue;
+
+                int from = minNoNeighbors > 0 ? tracker.size() : 0;
+                for (int n = 0; n < from; n++) {
+                    Integer ordinal = tileOrdinals.get(tracker.getNeighbor(n));
+                    if (ordinal == null) { // neighbor unknown (e.g., restored without it), search again from scratch
+                        from = 0;
+                        break;
+                    }
+                    ordinals[n] = ordinal;
+                    distances[n] = tracker.getDistance(n)/pixelSize;
+                }
 
-                    if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+                Geometry cellGeom = comparisonROI.getROI(cell).getGeometry();
+                if (cellGeom == null) throw new IllegalStateException("One or more cell geometries are found to be null!");
+                int noNeighbors = from > 0
+                        ? index.engine().findNearestFrom(cellGeom, from, k, ordinals, distances)
+                        : index.engine().findNearest(cellGeom, k, ordinals, distances);
+                for (int n = from; n < noNeighbors && distances[n]*pixelSize <= halo; n++) {
+                    tracker.addData(n, index.cells()[ordinals[n]], null, distances[n]*pixelSize);
+                }
+            }
+        });
+    }
 
-                    TreeMap<Double, Set<PathObject>> tempCellMap = new TreeMap<>();
+    /**
+     * Find the neighbors of the cells to analyze in worker processes (sharded mode), storing them as
+     * {@link #findNearestNeighborsInTiles(int, int)} or {@link #findNeighborsWithinRadiusInTiles()} would.
+     * @return the neighbors within the radius in radius mode, otherwise null
+     * @throws PT2DTerminationException
+     */
+    private PTRadiusNeighbors findNeighborsInShards() throws PT2DTerminationException {
+        boolean radiusMode = radius > 0;
+        PTShardFile.Settings settings = new PTShardFile.Settings(comparisonType,
+                neighborEngine,
+                edgeDistance,
+                simplificationTolerance/pixelSize,
+                radiusMode ? 0 : mapSize,
+                radiusMode ? radius/pixelSize : Double.POSITIVE_INFINITY); // the halo is applied below, in µm
+        PTShardResults results;
+        try {
+            results = new PTShardCoordinator(noWorkers, workerHeap, terminationFlag).run(tileGrid, comparisonROI, settings);
+        } catch (CancellationException e) {
+            throw new PT2DTerminationException("PT2D terminated");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Sharded execution failed", e);
+        }
 
-                    this.anaCells.forEach(cell -> {
-                        Double distance = anaCellsData.get(cell).getDistanceByN(index);
-                        if (distance != null) { // <- null will occur if the number of reference cells are fewer than mapSize
-                            tempCellMap.computeIfAbsent(distance, k -> new HashSet<>()).add(cell);
-                        } else {
-                            tempCellMap.computeIfAbsent(Double.NaN, k -> new HashSet<>()).add(cell);
-                        }
-                    });
+        PathObject[] targets = tileGrid.getTargets();
+        PathObject[] references = tileGrid.getReferences();
+        PathObject[][] targetNeighbors = radiusMode ? new PathObject[targets.length][] : null;
+        double[][] targetDistances = radiusMode ? new double[targets.length][] : null;
+        IntStream.range(0, targets.length).parallel().forEach(i -> {
+            PTCellNeighborTracker tracker = new PTCellNeighborTracker(targets[i], mapSize, plane);
+            int noNeighbors = results.getNoNeighbors(i);
+            if (radiusMode) {
+                targetNeighbors[i] = new PathObject[noNeighbors];
+                targetDistances[i] = new double[noNeighbors];
+            }
+            for (int n = 0; n < noNeighbors; n++) {
+                PathObject neighbor = references[results.getReferenceIndex(i, n)];
+                double distance = results.getDistance(i, n)*pixelSize;
+                if (radiusMode) {
+                    targetNeighbors[i][n] = neighbor;
+                    targetDistances[i][n] = distance;
+                } else if (distance > halo) {
+                    break;
+                }
+                if (n < mapSize)
+                    tracker.addData(n, neighbor, null, distance);
+            }
+            anaCellsData.put(targets[i], tracker);
+        });
+        return radiusMode ? packRadiusNeighbors(targets, targetNeighbors, targetDistances) : null;
+    }
 
-                    globalCellMaps[index] = tempCellMap;
-                });
+    /**
+     * Create the reference index of a tile (tiled mode).
+     * @param tile
+     * @return the index over the reference cells of the tile's halo region, or null if there are none
+     */
+    private PTReferenceIndex createTileIndex(int tile) {
+        List<PathObject> references = tileGrid.getReferences(tile);
+        if (references.isEmpty())
+            return null;
+        return PTReferenceIndex.create(references, comparisonROI, comparisonType, neighborEngine, edgeDistance, simplificationTolerance/pixelSize, metrics);
+    }
 
-        if (terminationFlag.get()) throw new PT2DTerminationException("PT2D terminated");
+    /**
+     * Get the pixel size of an image, i.e., the average of the pixel width and height.
+     * @param imageData
+     * @return the pixel size (µm), or 1 if there is no image server (distances are then in pixels)
+     */
+    static double getPixelSize(ImageData<BufferedImage> imageData) {
+        if (imageData.getServer() == null)
+            return 1.0;
+        var pixelCal = imageData.getServer().getPixelCalibration();
+        return ((double)pixelCal.getPixelHeight() + (double)pixelCal.getPixelWidth())/2;
+    }
 
-        long end_2 = System.currentTimeMillis();
-        logger.info("Time to make {} ({}): {} ms",
-                (globalCellMaps.length > 1 ? "tree maps" : "tree map"),
-                globalCellMaps.length,
-                (end_2 - start_2));
+    private void setImageProperties(ImageData<BufferedImage> imageData) {
+        if (imageData.getServer() == null) // e.g., ImageData created in memory for headless use
+            logger.warn("No image server available: distances will be in pixels");
+        pixelSize = getPixelSize(imageData);
+        QuPathViewer viewer = getViewer();
+        plane = viewer == null ? ImagePlane.getPlane(0, 0) : viewer.getImagePlane();
+    }
 
-        long end = System.currentTimeMillis();
-        logger.info("TOTAL TIME TO INITIALIZE PT2D INSTANCE ({}): {} ms", this, (end - start));
+    /**
+     * Get the current viewer, if PT2D is running with a GUI.
+     * @return the current viewer, or null if running headless (e.g., from the command line)
+     */
+    private static QuPathViewer getViewer() {
+        QuPathGUI qupath = QuPathGUI.getInstance();
+        return qupath == null ? null : qupath.getViewer();
     }
 
-    private void setImageProperties(ImageData<BufferedImage> imageData) {
-        var pixelCal = imageData.getServer().getPixelCalibration();
-        pixelSize = ((double)pixelCal.getPixelHeight() + (double)pixelCal.getPixelWidth())/2;
-        plane = QPEx.getCurrentViewer() == null ? ImagePlane.getPlane(0, 0) : QPEx.getCurrentViewer().getImagePlane();
+    /**
+     * Hide the placeholder PathClass for connections not in display. This is skipped when running
+     * headless, where there is nothing to display.
+     */
+    private static void hideHiddenPathClass() {
+        QuPathViewer viewer = getViewer();
+        if (viewer == null)
+            return;
+        OverlayOptions overlayOptions = viewer.getOverlayOptions();
+        overlayOptions.setPathClassHidden(hiddenPathClass, true);
     }
 
     private static List<TMACoreObject> getTMACoreList(PathObjectHierarchy hierarchy) {
@@ -478,67 +1617,27 @@ public class PT2D {
     }
 
     /**
-     * Get the list of nearest neighbors of an STRtree by passing in a geometry, STRtree, number of nearest neighbors
-     * to get, and comparison type. This method should be thread safe.
-     * @param geom
-     * @param tree
-     * @param k
-     * @param comparisonType
-     * @return the list of nearest neighbor geometries
+     * Get the TMA core containing a cell, which need not be the cell's direct parent.
+     * @param cell
+     * @return the TMA core, or null if the cell is not within a TMA core
      */
-    private static List<Geometry> findNearestGeoms(Geometry geom, STRtree tree, int k, ComparisonType comparisonType) {
-        Object[] nearestGeomsArray;
-
-        // permit multithreading by default, but enforce single threading temporarily if an exception is caught
-        lock.readLock().lock();
-        try {
-            nearestGeomsArray = callNearestNeighbor(geom, tree, k, comparisonType);
-        } catch (Exception e) {
-            lock.readLock().unlock();
-            lock.writeLock().lock();
-            logger.warn("Unexpected exception in R-Tree query. Reattempting operation...", e);
-
-            try {
-                tree.build(); // prompt to build the tree to resolve any issues there
-                nearestGeomsArray = callNearestNeighbor(geom, tree, k, comparisonType); // reattempt the query
-            } finally {
-                lock.writeLock().unlock();
-            }
-
-            lock.readLock().lock();
-        } finally {
-            lock.readLock().unlock();
+    static TMACoreObject getTMACore(PathObject cell) {
+        PathObject parent = cell;
+        while (parent != null && !parent.isTMACore()) {
+            parent = parent.getParent();
         }
-
-        return Arrays.stream(nearestGeomsArray)
-                .map(Geometry.class::cast)
-                .collect(Collectors.toList());
+        return (parent instanceof TMACoreObject) ? (TMACoreObject) parent : null;
     }
 
     /**
-     * Get the array of nearest neighbors of an STRtree by passing in a geometry, STRtree, number of nearest neighbors
-     * to get, and comparison type. According to the {@link STRtree} documentation, read operations are thread safe,
-     * but for some reason, when multithreading, this method occasionally produces a NullPointerException despite
-     * valid arguments. (This probably has to do with the STRtree not being built yet; explicitly calling {@code build()}
-     * on the tree beforehand may help).
-     * @param geom
-     * @param tree
-     * @param k
-     * @param comparisonType
-     * @return the array of nearest neighbor geometries
-     * @throws NullPointerException
+     * Get a chunk size for splitting {@code n} items into parallel tasks, aiming for a few chunks per
+     * thread of the common pool so that the work stays balanced without creating one task per item.
+     * @param n number of items
+     * @return the chunk size (at least 1)
      */
-    private static Object[] callNearestNeighbor(Geometry geom, STRtree tree, int k, ComparisonType comparisonType)
-            throws NullPointerException {
-        return tree.nearestNeighbour(geom.getEnvelopeInternal(), geom, (item1, item2) -> {
-            Geometry g1 = (Geometry) item1.getItem();
-            Geometry g2 = (Geometry) item2.getItem();
-
-            Geometry o1 = (comparisonType == ComparisonType.EDGE) ? g1 : g1.getCentroid();
-            Geometry o2 = (comparisonType == ComparisonType.EDGE) ? g2 : g2.getCentroid();
-
-            return o1.distance(o2);
-        }, k);
+    private static int getChunkSize(int n) {
+        int noTasks = ForkJoinPool.getCommonPoolParallelism() * 4;
+        return Math.max(1, (n + noTasks - 1) / noTasks);
     }
 
     /**
@@ -572,7 +1671,8 @@ public class PT2D {
 
     /**
      * Core query method with full parameters and configurable display capabilities. This should be
-     * thread safe if highlight, label, and connect are set to false.
+     * thread safe if highlight, label, and connect are set to false. Labels and connections are not displayed
+     * if the memory plan dropped them (see {@link #getMemoryPlan()}).
      * @param distanceThreshold
      * @param noRefCells
      * @param highlight
@@ -583,23 +1683,44 @@ public class PT2D {
      */
     private Set<PathObject> query(double distanceThreshold, int noRefCells, boolean highlight, boolean label, boolean connect, boolean exclusive)
             throws ArrayIndexOutOfBoundsException {
+        long start = PTMetrics.start();
+        try {
+            return queryUntimed(distanceThreshold, noRefCells, highlight, label, connect, exclusive);
+        } finally {
+            metrics.record(PTMetrics.Timer.QUERY, start);
+        }
+    }
+
+    private Set<PathObject> queryUntimed(double distanceThreshold, int noRefCells, boolean highlight, boolean label, boolean connect, boolean exclusive)
+            throws ArrayIndexOutOfBoundsException {
 
         if (noRefCells < 0) throw new IllegalArgumentException("# of reference cells cannot be negative!");
+        label &= labelsAllowed; // the memory plan may have dropped labels or connections
+        connect &= connectionsAllowed;
         if (label && !labelsAdded) promptToAddLabels();
         if (connect && !connectionsAdded) promptToAddConnections();
 
+        if (tileGrid != null && distanceThreshold > halo)
+            throw new IllegalArgumentException("Distance threshold cannot exceed the tile halo (" + halo + " µm)!");
+
         TreeMap<Double, Set<PathObject>> cellMap;
-        if (noRefCells == 0) {
+        if (radiusNeighbors != null) {
+            // exact (uncapped) counts come from the neighbors within the radius instead of the tree maps
+            if (distanceThreshold > radius)
+                throw new IllegalArgumentException("Distance threshold cannot exceed the radius (" + radius + " µm)!");
+            cellMap = null;
+        } else if (noRefCells == 0) {
             cellMap = new TreeMap<>() {{ put(0.0, anaCells); }}; // wrap anacells around a map basically
         } else {
             cellMap = globalCellMaps[noRefCells - 1]; // adjust for array index
         }
 
-        if (cellMap == null || cellMap.isEmpty()) return Collections.emptySet();
+        if (radiusNeighbors == null && (cellMap == null || cellMap.isEmpty())) return Collections.emptySet();
 
         if (exclusive) {
-            TreeMap<Double, Set<PathObject>> cellsToExcludeMap = globalCellMaps[noRefCells]; // adjust for array index
+            TreeMap<Double, Set<PathObject>> cellsToExcludeMap = (radiusNeighbors == null) ? globalCellMaps[noRefCells] : null; // adjust for array index
             Future<Set<PathObject>> toExclude = pool.submit(() -> {
+                if (radiusNeighbors != null) return Collections.<PathObject>emptySet(); // counts are already exact
                 Set<PathObject> cellsToExclude = cellsToExcludeMap.headMap(distanceThreshold, true)
                         .values()
                         .stream()
@@ -609,6 +1730,7 @@ public class PT2D {
             });
 
             Future<Set<PathObject>> withinDistance = pool.submit(() -> {
+                if (radiusNeighbors != null) return radiusNeighbors.getCells(distanceThreshold, noRefCells, true);
                 Set<PathObject> cellsWithinDistance = cellMap.headMap(distanceThreshold, true)
                         .values()
                         .stream()
@@ -670,7 +1792,9 @@ public class PT2D {
             return cellsWithinDistance;
         }
 
-        Set<PathObject> cellsWithinDistance = cellMap.headMap(distanceThreshold, true)
+        Set<PathObject> cellsWithinDistance = (radiusNeighbors != null)
+                ? radiusNeighbors.getCells(distanceThreshold, noRefCells, false)
+                : cellMap.headMap(distanceThreshold, true)
                 .values()
                 .stream()
                 .flatMap(Set::stream)
@@ -797,9 +1921,10 @@ public class PT2D {
                                 Collection<PathObject> refSubset,
                                 double distanceThreshold) {
 
-        String distanceThresholdFormatted = String.format("%.2f", distanceThreshold);
-
+        long start = PTMetrics.start();
         MeasurementList objectMeasurementList = pathObject.getMeasurementList();
+        PTMeasurements measurements = new PTMeasurements(objectMeasurementList::put, anaName, refName, false, mapSize,
+                distanceThreshold);
 
         Set<PathObject> anaCellsCommon = new HashSet<>(anaCells);
         if (anaSubset != null) {
@@ -813,71 +1938,59 @@ public class PT2D {
             refCellsCommon.retainAll(refSubset);
         }
 
-        objectMeasurementList.put("Total count of " + anaName, anaCellsCommon.size());
-        objectMeasurementList.put("Total area (µm^2) of " + anaName,
-                anaCellsCommon.stream().mapToDouble(cell -> cell.getROI().getArea()).sum()*pixelSize*pixelSize);
-
-        objectMeasurementList.put("Total count of " + refName, refCellsCommon.size());
-        objectMeasurementList.put("Total area (µm^2) of " + refName,
-                refCellsCommon.stream().mapToDouble(cell -> cell.getROI().getArea()).sum()*pixelSize*pixelSize);
+        PTMeasurements.putTotals(objectMeasurementList::put, anaName, anaCellsCommon.size(), getArea(anaCellsCommon));
+        PTMeasurements.putTotals(objectMeasurementList::put, refName, refCellsCommon.size(), getArea(refCellsCommon));
 
         /*
         Step 1: DO COUNTS
          */
 
-        // Measure cumulative (1 or more interactions)
+        // Cumulative (1 or more interactions), exact # of interactions, and cells that exceed specified # of interactions
         Set<PathObject> cumulativeCellSet = get(distanceThreshold, 1);
         if (anaSubset != null)
             cumulativeCellSet.retainAll(anaSubset);
-        objectMeasurementList.put("Count of '" + anaName + "' with 1 or more '" + refName + "' interactions" + " (≤ " + distanceThresholdFormatted + " µm)",
-                cumulativeCellSet.size());
-
-        // Measure exact # of interactions
+        List<Set<PathObject>> exactCellSets = new ArrayList<>(mapSize);
         for (int i = 0; i < mapSize; i++) {
             Set<PathObject> cellSet = exclusive().get(distanceThreshold, i);
             if (anaSubset != null)
                 cellSet.retainAll(anaSubset);
-            objectMeasurementList.put("Count of '" + anaName + "' with exactly " + i + " '" + refName + "' "
-                            + ((i == 1) ? "interaction" : "interactions") + " (≤ " + distanceThresholdFormatted + " µm)",
-                    cellSet.size());
+            exactCellSets.add(cellSet);
         }
-
-        // Measure cells that exceed specified # of interactions
         Set<PathObject> excessCellSet = get(distanceThreshold, mapSize);
         if (anaSubset != null)
             excessCellSet.retainAll(anaSubset);
-        objectMeasurementList.put("Count of '" + anaName + "' with more than " + (mapSize - 1) + " '" + refName + "' "
-                        + ((mapSize - 1 == 1) ? "interaction" : "interactions") + " (≤ " + distanceThresholdFormatted + " µm)",
+        measurements.putCounts(cumulativeCellSet.size(),
+                exactCellSets.stream().mapToInt(Set::size).toArray(),
                 excessCellSet.size());
 
+        // Measure exact interaction totals (radius mode only, as the counts are otherwise capped)
+        if (radiusNeighbors != null) {
+            long noInteractions = 0;
+            int noCounted = 0;
+            int[] counts = radiusNeighbors.getCounts(distanceThreshold);
+            for (int i = 0; i < counts.length; i++) {
+                if (anaSubset == null || anaSubset.contains(radiusNeighbors.getCell(i))) {
+                    noInteractions += counts[i];
+                    noCounted++;
+                }
+            }
+            measurements.putInteractions(noInteractions, noCounted);
+        }
+
         /*
         Step 2: DO AREAS
          */
 
-        // Measure cumulative (1 or more interactions)
-        objectMeasurementList.put("Area (µm^2) of '" + anaName + "' with 1 or more '" + refName + "' interactions" + " (≤ " + distanceThresholdFormatted + " µm)",
-                cumulativeCellSet.stream().mapToDouble(cell -> cell.getROI().getArea()).sum()*pixelSize*pixelSize);
-
-        // Measure exact # of interactions
-        for (int i = 0; i < mapSize; i++) {
-            Set<PathObject> cellList = exclusive().get(distanceThreshold, i);
-            if (anaSubset != null)
-                cellList.retainAll(anaSubset);
-            objectMeasurementList.put("Area (µm^2) of '" + anaName + "' with exactly " + i + " '" + refName + "' "
-                            + ((i == 1) ? "interaction" : "interactions") + " (≤ " + distanceThresholdFormatted + " µm)",
-                    cellList.stream().mapToDouble(cell -> cell.getROI().getArea()).sum()*pixelSize*pixelSize);
-        }
-
-        // Measure cells that exceed specified # of interactions
-        objectMeasurementList.put("Area (µm^2) of '" + anaName + "' with more than " + (mapSize - 1) + " '" + refName + "' "
-                        + ((mapSize - 1 == 1) ? "interaction" : "interactions") + " (≤ " + distanceThresholdFormatted + " µm)",
-                excessCellSet.stream().mapToDouble(cell -> cell.getROI().getArea()).sum()*pixelSize*pixelSize);
+        measurements.putAreas(getArea(cumulativeCellSet),
+                exactCellSets.stream().mapToDouble(this::getArea).toArray(),
+                getArea(excessCellSet));
 
         /*
         Step 3: DO DESCRIPTIVE STATS
          */
 
-        addDescriptiveStatsMeasurements(pathObject, anaName, refName, anaSubset);
+        addDescriptiveStatsMeasurements(pathObject, measurements, anaSubset);
+        metrics.record(PTMetrics.Timer.MEASUREMENTS, start);
         logger.info("Measurements added to " + pathObject);
 
     }
@@ -893,27 +2006,48 @@ public class PT2D {
      */
     public void addCellMeasurements(String anaName, String refName, Function<PathObject, String> nameToAppend) {
 
+        long start = PTMetrics.start();
         String finalRefName = (refName == null) ? "reference" : refName;
         String finalAnaName = (anaName == null) ? "" : anaName;
         Function<PathObject, String> finalNameToAppend = (nameToAppend == null)
                 ? pathObject -> ""
                 : pathObject -> nameToAppend.apply(pathObject) + " ";
 
-        anaCellsData.entrySet().parallelStream().forEach(entry -> {
-            PathObject anaCell = entry.getKey();
-            var anaCellMeasurementList = anaCell.getMeasurementList();
-
-            Map<Integer, Double> doubleMap = entry.getValue().getIntDoubleNNMap();
-            var doubleMapSorted = doubleMap.entrySet().stream()
-                    .sorted((e1, e2) -> e1.getKey().compareTo(e2.getKey()))
-                    .toList();
-
-            doubleMapSorted.forEach(ent -> {
-                anaCellMeasurementList.put(finalNameToAppend.apply(anaCell) + "This cell ('" + finalAnaName + "') to #"
-                        + (ent.getKey() + 1) + " nearest '" + finalRefName + "' distance (µm)", ent.getValue());
-            });
+        /*
+        Measurement names only depend on the prefix and the rank, so build them once per prefix
+        rather than once per cell and rank.
+         */
+        Map<String, String[]> measurementKeysByPrefix = new ConcurrentHashMap<>();
+        Function<String, String[]> createMeasurementKeys = prefix -> {
+            String[] keys = new String[mapSize];
+            for (int n = 0; n < mapSize; n++) {
+                keys[n] = prefix + "This cell ('" + finalAnaName + "') to #" + (n + 1) + " nearest '" + finalRefName + "' distance (µm)";
+            }
+            return keys;
+        };
+
+        PTCellNeighborTracker[] trackers = anaCellsData.values().toArray(PTCellNeighborTracker[]::new);
+        int chunkSize = getChunkSize(trackers.length);
+        int noChunks = (trackers.length + chunkSize - 1) / chunkSize;
+
+        IntStream.range(0, noChunks).parallel().forEach(chunk -> {
+            int from = chunk * chunkSize;
+            int to = Math.min(from + chunkSize, trackers.length);
+            for (int i = from; i < to; i++) {
+                PTCellNeighborTracker tracker = trackers[i];
+                PathObject anaCell = tracker.getCell();
+                String[] keys = measurementKeysByPrefix.computeIfAbsent(finalNameToAppend.apply(anaCell), createMeasurementKeys);
+
+                // closing the measurement list after the bulk put trims it
+                try (MeasurementList anaCellMeasurementList = anaCell.getMeasurementList()) {
+                    for (int n = 0; n < tracker.size(); n++) {
+                        anaCellMeasurementList.put(keys[n], tracker.getDistance(n));
+                    }
+                }
+            }
         });
 
+        metrics.record(PTMetrics.Timer.CELL_MEASUREMENTS, start);
         logger.info("Cell measurements added");
     }
 
@@ -921,18 +2055,306 @@ public class PT2D {
         addCellMeasurements(anaName, refName, null);
     }
 
+    /**
+     * Export per-cell nearest neighbor data (cell ID, centroid, class, TMA core, and the distances to and IDs of
+     * the nearest neighbors) to a compact binary columnar file, without adding measurements to the hierarchy.
+     * See {@link PTCellNeighborExporter} for the file layout.
+     * @param path the binary file to write
+     * @param csvPath optional CSV file to also write (may be null)
+     * @throws IOException
+     */
+    public void exportCellNeighbors(Path path, Path csvPath) throws IOException {
+        PTCellNeighborExporter exporter = new PTCellNeighborExporter(
+                anaCellsData.values().toArray(PTCellNeighborTracker[]::new),
+                mapSize,
+                pixelSize,
+                PT2D::getTMACore);
+
+        exporter.writeBinary(path);
+        if (csvPath != null)
+            exporter.writeCSV(csvPath);
+
+        logger.info("Cell neighbors exported to " + path);
+    }
+
+    public void exportCellNeighbors(Path path) throws IOException {
+        exportCellNeighbors(path, null);
+    }
+
+    /**
+     * Save the computed state of this instance (settings, neighbors, tree maps and TMA core partitions) to a
+     * snapshot file, so that it can be restored with {@link #loadSnapshot(Path, ImageData)} without searching again.
+     * Cells and TMA cores are identified by their IDs, so the snapshot can be loaded wherever the image's objects
+     * are the same (e.g., on another workstation with the same project). Labels and connections are not saved.
+     * See {@link PTSnapshotFile} for the file layout.
+     * @param path the file to write (replaced if it exists)
+     * @throws IOException
+     */
+    public synchronized void saveSnapshot(Path path) throws IOException {
+        long start = PTMetrics.start();
+        PathObject[] targets;
+        if (radiusNeighbors != null) {
+            targets = new PathObject[radiusNeighbors.size()];
+            Arrays.setAll(targets, radiusNeighbors::getCell);
+        } else {
+            targets = anaCells.toArray(PathObject[]::new);
+        }
+        PathObject[] references = refCells.toArray(PathObject[]::new);
+        Map<PathObject, Integer> targetIndices = new HashMap<>(targets.length * 2);
+        for (int i = 0; i < targets.length; i++) {
+            targetIndices.put(targets[i], i);
+        }
+        Map<PathObject, Integer> referenceIndices = new HashMap<>(references.length * 2);
+        for (int j = 0; j < references.length; j++) {
+            referenceIndices.put(references[j], j);
+        }
+
+        // neighbors: all those within the radius in radius mode, otherwise the nearest neighbors
+        int[] neighborOffsets = new int[targets.length + 1];
+        for (int i = 0; i < targets.length; i++) {
+            int noNeighbors = (radiusNeighbors != null) ? radiusNeighbors.getNoNeighbors(i) : anaCellsData.get(targets[i]).size();
+            neighborOffsets[i + 1] = Math.addExact(neighborOffsets[i], noNeighbors);
+        }
+        int[] neighborIndices = new int[neighborOffsets[targets.length]];
+        double[] neighborDistances = new double[neighborIndices.length];
+        IntStream.range(0, targets.length).parallel().forEach(i -> {
+            PTCellNeighborTracker tracker = anaCellsData.get(targets[i]);
+            for (int n = 0; n < neighborOffsets[i + 1] - neighborOffsets[i]; n++) {
+                PathObject neighbor = (radiusNeighbors != null) ? radiusNeighbors.getNeighbor(i, n) : tracker.getNeighbor(n);
+                Integer j = (neighbor == null) ? null : referenceIndices.get(neighbor);
+                if (j == null)
+                    throw new IllegalStateException("Neighbor " + n + " of " + targets[i] + " is not a known reference cell");
+                neighborIndices[neighborOffsets[i] + n] = j;
+                neighborDistances[neighborOffsets[i] + n] = (radiusNeighbors != null) ? radiusNeighbors.getDistance(i, n) : tracker.getDistance(n);
+            }
+        });
+
+        // tree maps, as the cells to analyze sorted by the distance to their nth neighbor
+        int[][] thresholdColumns = new int[mapSize][];
+        IntStream.range(0, mapSize).parallel().forEach(n -> {
+            int[] column = new int[targets.length];
+            int size = 0;
+            for (Set<PathObject> cells : globalCellMaps[n].values()) {
+                for (PathObject cell : cells) {
+                    column[size++] = targetIndices.get(cell);
+                }
+            }
+            thresholdColumns[n] = column;
+        });
+
+        // TMA core partitions
+        TMACoreObject[] cores = (mode == Mode.TMA) ? tmaCoreAnaCellsMap.keySet().toArray(TMACoreObject[]::new) : new TMACoreObject[0];
+        int[] coreTargetOffsets = new int[cores.length + 1];
+        int[] coreReferenceOffsets = new int[cores.length + 1];
+        for (int c = 0; c < cores.length; c++) {
+            coreTargetOffsets[c + 1] = coreTargetOffsets[c] + tmaCoreAnaCellsMap.get(cores[c]).size();
+            coreReferenceOffsets[c + 1] = coreReferenceOffsets[c] + tmaCoreRefCellsMap.get(cores[c]).size();
+        }
+        int[] coreTargetIndices = new int[coreTargetOffsets[cores.length]];
+        int[] coreReferenceIndices = new int[coreReferenceOffsets[cores.length]];
+        for (int c = 0; c < cores.length; c++) {
+            int t = coreTargetOffsets[c];
+            for (PathObject cell : tmaCoreAnaCellsMap.get(cores[c])) {
+                coreTargetIndices[t++] = targetIndices.get(cell);
+            }
+            int r = coreReferenceOffsets[c];
+            for (PathObject cell : tmaCoreRefCellsMap.get(cores[c])) {
+                coreReferenceIndices[r++] = referenceIndices.get(cell);
+            }
+        }
+
+        PTSnapshotFile.write(path, new PTSnapshotFile.Snapshot(mode,
+                comparisonType,
+                comparisonROI,
+                lineType,
+                neighborEngine,
+                edgeDistance,
+                simplificationTolerance,
+                mapSize,
+                radius,
+                tileSize,
+                halo,
+                pixelSize,
+                Arrays.stream(targets).map(PathObject::getID).toArray(UUID[]::new),
+                Arrays.stream(references).map(PathObject::getID).toArray(UUID[]::new),
+                neighborOffsets,
+                neighborIndices,
+                neighborDistances,
+                thresholdColumns,
+                Arrays.stream(cores).map(PathObject::getID).toArray(UUID[]::new),
+                coreTargetOffsets,
+                coreTargetIndices,
+                coreReferenceOffsets,
+                coreReferenceIndices));
+        logger.info("PT2D snapshot saved to {} in {} ms", path, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Restore a PT2D instance saved with {@link #saveSnapshot(Path)}, without searching the neighbors again. The
+     * cells and TMA cores are looked up by ID in the image's hierarchy, so they must not have been removed since;
+     * edits to their ROIs are not detected. The reference indexes are only built if the search has to be resumed
+     * (see {@link #extendMaxInteractionsToTest(int)}).
+     * @param path the snapshot file
+     * @param imageData the image the snapshot was saved from
+     * @return the PT2D instance
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     * @throws IllegalArgumentException if cells or TMA cores of the snapshot are missing, or the pixel size differs
+     */
+    public static PT2D loadSnapshot(Path path, ImageData<BufferedImage> imageData) throws IOException, IllegalArgumentException {
+        long start = PTMetrics.start();
+        PT2D pt2D = new PT2D(imageData, PTSnapshotFile.read(path));
+        logger.info("PT2D snapshot loaded from {} ({}): {} ms", path, pt2D, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return pt2D;
+    }
+
+    /**
+     * Get the objects of a snapshot by ID.
+     * @param ids
+     * @param objectsByID the objects of the hierarchy
+     * @param description description of the objects, for the exception message
+     * @return the objects
+     * @throws IllegalArgumentException if an object is missing
+     */
+    private static PathObject[] getObjects(UUID[] ids, Map<UUID, PathObject> objectsByID, String description) throws IllegalArgumentException {
+        PathObject[] objects = new PathObject[ids.length];
+        int noMissing = 0;
+        for (int i = 0; i < ids.length; i++) {
+            objects[i] = objectsByID.get(ids[i]);
+            if (objects[i] == null)
+                noMissing++;
+        }
+        if (noMissing > 0)
+            throw new IllegalArgumentException(noMissing + " of the " + ids.length + " " + description + " of the snapshot are not in the image");
+        return objects;
+    }
+
+    /**
+     * Restore the neighbors, tree maps and TMA core partitions of a snapshot (see {@link #loadSnapshot(Path, ImageData)}).
+     * @param snapshot
+     * @param targets the cells to analyze, indexed as in the snapshot
+     * @param references the reference cells, indexed as in the snapshot
+     * @throws IllegalArgumentException if a TMA core of the snapshot is missing
+     */
+    private void restoreSnapshot(PTSnapshotFile.Snapshot snapshot, PathObject[] targets, PathObject[] references) throws IllegalArgumentException {
+        int[] offsets = snapshot.neighborOffsets();
+        double[] distances = snapshot.neighborDistances();
+        PathObject[] neighbors = new PathObject[snapshot.neighborIndices().length];
+        Arrays.parallelSetAll(neighbors, e -> references[snapshot.neighborIndices()[e]]);
+        IntStream.range(0, targets.length).parallel().forEach(i -> {
+            PTCellNeighborTracker tracker = new PTCellNeighborTracker(targets[i], mapSize, plane);
+            int noNeighbors = Math.min(mapSize, offsets[i + 1] - offsets[i]);
+            for (int n = 0; n < noNeighbors; n++) {
+                tracker.addData(n, neighbors[offsets[i] + n], null, distances[offsets[i] + n]);
+            }
+            anaCellsData.put(targets[i], tracker);
+        });
+        if (radius > 0)
+            radiusNeighbors = new PTRadiusNeighbors(radius, targets, offsets, distances, neighbors);
+
+        // the columns are sorted by distance, so each distance is looked up once
+        IntStream.range(0, mapSize).parallel().forEach(n -> {
+            TreeMap<Double, Set<PathObject>> cellMap = new TreeMap<>();
+            Double previousDistance = null;
+            Set<PathObject> cells = null;
+            for (int i : snapshot.thresholdColumns()[n]) {
+                Double distance = anaCellsData.get(targets[i]).getDistanceByN(n);
+                if (distance == null)
+                    distance = Double.NaN;
+                if (!distance.equals(previousDistance)) {
+                    cells = cellMap.computeIfAbsent(distance, k -> new HashSet<>());
+                    previousDistance = distance;
+                }
+                cells.add(targets[i]);
+            }
+            globalCellMaps[n] = cellMap;
+        });
+
+        List<TMACoreObject> coreList = getTMACoreList(hierarchy);
+        tmaCoreAnaCellsMap.putAll(coreList.stream()
+                .collect(Collectors.toMap(Function.identity(), v -> Collections.synchronizedSet(new HashSet<>()))));
+        tmaCoreRefCellsMap.putAll(coreList.stream()
+                .collect(Collectors.toMap(Function.identity(), v -> Collections.synchronizedSet(new HashSet<>()))));
+        Map<UUID, TMACoreObject> coresByID = coreList.stream()
+                .collect(Collectors.toMap(PathObject::getID, Function.identity()));
+        for (int c = 0; c < snapshot.coreIDs().length; c++) {
+            TMACoreObject core = coresByID.get(snapshot.coreIDs()[c]);
+            if (core == null)
+                throw new IllegalArgumentException("TMA core " + snapshot.coreIDs()[c] + " of the snapshot is not in the image");
+            for (int t = snapshot.coreTargetOffsets()[c]; t < snapshot.coreTargetOffsets()[c + 1]; t++) {
+                tmaCoreAnaCellsMap.get(core).add(targets[snapshot.coreTargetIndices()[t]]);
+            }
+            for (int r = snapshot.coreReferenceOffsets()[c]; r < snapshot.coreReferenceOffsets()[c + 1]; r++) {
+                tmaCoreRefCellsMap.get(core).add(references[snapshot.coreReferenceIndices()[r]]);
+            }
+        }
+
+        if (tileSize > 0 && mode == Mode.FULL_IMAGE)
+            tileGrid = createTileGrid();
+        neighborsRestored = true;
+    }
+
+    /**
+     * Pass each target-reference interaction from the nearest neighbor stage, i.e., (target cell, reference cell,
+     * rank, distance), to a consumer. In radius mode, all interactions within the radius are passed, not only
+     * those with the nearest neighbors. This should be thread safe.
+     * @param maxDistance only pass interactions with distances less than or equal to this value (µm)
+     * @param consumer the consumer of the interaction edges
+     */
+    public void forEachInteraction(double maxDistance, PTEdgeConsumer consumer) {
+        if (radiusNeighbors != null) {
+            for (int i = 0; i < radiusNeighbors.size(); i++) {
+                for (int n = 0; n < radiusNeighbors.getNoNeighbors(i) && radiusNeighbors.getDistance(i, n) <= maxDistance; n++) {
+                    consumer.accept(radiusNeighbors.getCell(i), radiusNeighbors.getNeighbor(i, n), n, radiusNeighbors.getDistance(i, n));
+                }
+            }
+            return;
+        }
+        for (PTCellNeighborTracker tracker : anaCellsData.values()) {
+            for (int n = 0; n < tracker.size(); n++) {
+                if (tracker.getDistance(n) <= maxDistance && tracker.getNeighbor(n) != null)
+                    consumer.accept(tracker.getCell(), tracker.getNeighbor(n), n, tracker.getDistance(n));
+            }
+        }
+    }
+
+    /**
+     * Export the target-reference interactions from the nearest neighbor stage as a memory-mapped edge list
+     * (see {@link PTEdgeListFile} for the file layout and for reading it back). As in
+     * {@link #forEachInteraction(double, PTEdgeConsumer)}, all interactions within the radius are exported in radius
+     * mode, not only those with the nearest neighbors.
+     * @param path the file to write
+     * @param maxDistance only export interactions with distances less than or equal to this value (µm)
+     * @return the number of edges exported
+     * @throws IOException
+     */
+    public long exportInteractionEdges(Path path, double maxDistance) throws IOException {
+        long count = PTEdgeListFile.write(path, this::forEachInteraction, maxDistance);
+        logger.info("{} interaction edges exported to {}", count, path);
+        return count;
+    }
+
+    public long exportInteractionEdges(Path path) throws IOException {
+        return exportInteractionEdges(path, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param cells
+     * @return the total area (µm^2) of the cells
+     */
+    private double getArea(Collection<PathObject> cells) {
+        return cells.stream().mapToDouble(cell -> cell.getROI().getArea()).sum()*pixelSize*pixelSize;
+    }
+
     /**
      * Add descriptive statistics measurements for distances to nth nearest neighbors (e.g., mean,
      * median, Weibull parameters.)
      *
      * @param pathObject
-     * @param anaName
-     * @param refName
+     * @param measurements
      * @param anaSubset
      */
     private void addDescriptiveStatsMeasurements(PathObject pathObject,
-                                                String anaName,
-                                                String refName,
+                                                PTMeasurements measurements,
                                                 Collection<PathObject> anaSubset) {
 
         Map<PathObject, PTCellNeighborTracker> anaCellsMeasurementsCommon = new LinkedHashMap<>(anaCellsData);
@@ -950,23 +2372,7 @@ public class PT2D {
                     .filter(Objects::nonNull) // filter out the nulls
                     .toList();
 
-            // prepare statistics
-            DescriptiveStatistics nearestDistanceStats = PTMath.getDescriptiveStatistics(nearestDistanceList);
-            double[] shapeAndScale = null;
-            try {
-                shapeAndScale = PTMath.fitWeibull(nearestDistanceList);
-            } catch (Exception e) {
-                logger.warn("Unable to extract Weibull parameters for " + pathObject + ": " + e);
-            }
-
-            pathObject.getMeasurementList().put("'" + anaName + "': #" + (i + 1) + " nearest '" + refName + "' distance (μm): mean", nearestDistanceStats.getMean());
-            pathObject.getMeasurementList().put("'" + anaName + "': #" + (i + 1) + " nearest '" + refName + "' distance (μm): median", nearestDistanceStats.getPercentile(50));
-            pathObject.getMeasurementList().put("'" + anaName + "': #" + (i + 1) + " nearest '" + refName + "' distance (μm): standard deviation", nearestDistanceStats.getStandardDeviation());
-            pathObject.getMeasurementList().put("'" + anaName + "': #" + (i + 1) + " nearest '" + refName + "' distance (μm): shape (Weibull parameter)",
-                    shapeAndScale == null ? Double.NaN : shapeAndScale[0]);
-            pathObject.getMeasurementList().put("'" + anaName + "': #" + (i + 1) + " nearest '" + refName + "' distance (μm): scale (Weibull parameter)",
-                    shapeAndScale == null ? Double.NaN : shapeAndScale[1]);
-
+            measurements.putDistanceStats(i, nearestDistanceList, pathObject);
         }
 
     }
@@ -982,6 +2388,8 @@ public class PT2D {
     }
 
     protected void promptToAddLabels() {
+        PTHierarchyMutationEvent event = new PTHierarchyMutationEvent();
+        event.begin();
         anaCellsData.entrySet().parallelStream().forEach(entry -> {
             PathObject anaCell = entry.getKey();
             PathObject pointObject = entry.getValue().getCentroidPoint();
@@ -990,9 +2398,86 @@ public class PT2D {
             pointObject.setPathClass(anaCell.getPathClass());
         });
         labelsAdded = true;
+        commitHierarchyMutationEvent(event, "promptToAddLabels", anaCellsData.size());
+    }
+
+    /**
+     * Create the line annotations (connections) between the analyzed cells and their nearest neighbors.
+     * This is a display concern only, so it is deferred until connections are first requested.
+     */
+    private void createConnections() {
+        long start = PTMetrics.start();
+        switch (comparisonType) {
+            case EDGE -> {
+                anaCellsData.entrySet().parallelStream().forEach(entry -> {
+                    PathObject anaCell = entry.getKey();
+                    ROI anaCellROI = comparisonROI.getROI(anaCell);
+                    PTCellNeighborTracker nearestNeighborData = entry.getValue();
+
+                    Geometry anaCellGeom = anaCellROI.getGeometry();
+                    // index the cell's segments once for all its neighbors
+                    PTIndexedEdgeDistance indexedDistance = (edgeDistance == EdgeDistance.INDEXED) ? new PTIndexedEdgeDistance(anaCellGeom) : null;
+
+                    for (int n = 0; n < nearestNeighborData.size(); n++) {
+                        Geometry geometry = getNeighborGeometry(nearestNeighborData, n);
+                        Coordinate[] closestPoints = (indexedDistance != null)
+                                ? indexedDistance.nearestPoints(geometry)
+                                : DistanceOp.nearestPoints(anaCellGeom, geometry);
+                        Coordinate startPoint = closestPoints[0]; // Closest point on anaCell
+                        Coordinate endPoint = closestPoints[1]; // Closest point on nearest neighbor
+
+                        ROI lineROI = ROIs.createLineROI(startPoint.getX(), startPoint.getY(), endPoint.getX(), endPoint.getY(), plane);
+
+                        PathObject lineAnnotation = PathObjects.createAnnotationObject(lineROI);
+                        applyLineType(lineAnnotation, lineType); // mutate lineAnnotation
+                        lineAnnotationData.add(new PTLineAnnotationTracker(lineAnnotation, nearestNeighborData.getDistance(n), anaCell));
+                    }
+                });
+            }
+            case CENTROID -> {
+                anaCellsData.entrySet().parallelStream().forEach(entry -> {
+                    PathObject anaCell = entry.getKey();
+                    ROI anaCellROI = comparisonROI.getROI(anaCell);
+                    PTCellNeighborTracker nearestNeighborData = entry.getValue();
+
+                    double cellCentroidX = anaCellROI.getCentroidX();
+                    double cellCentroidY = anaCellROI.getCentroidY();
+
+                    for (int n = 0; n < nearestNeighborData.size(); n++) {
+                        Geometry geometry = getNeighborGeometry(nearestNeighborData, n);
+                        double geomCentroidX = geometry.getCentroid().getX();
+                        double geomCentroidY = geometry.getCentroid().getY();
+
+                        ROI lineROI = ROIs.createLineROI(cellCentroidX, cellCentroidY, geomCentroidX, geomCentroidY, plane);
+
+                        PathObject lineAnnotation = PathObjects.createAnnotationObject(lineROI);
+                        applyLineType(lineAnnotation, lineType); // mutate lineAnnotation
+                        lineAnnotationData.add(new PTLineAnnotationTracker(lineAnnotation, nearestNeighborData.getDistance(n), anaCell));
+                    }
+                });
+            }
+            default -> throw new IllegalStateException();
+        }
+        metrics.record(PTMetrics.Timer.CONNECTIONS, start);
+    }
+
+    /**
+     * Get the geometry of a cell's nth nearest neighbor, recreating it from the neighbor's ROI if the tracker does
+     * not keep it (tiled mode).
+     * @param tracker
+     * @param n
+     * @return the geometry
+     */
+    private Geometry getNeighborGeometry(PTCellNeighborTracker tracker, int n) {
+        Geometry geometry = tracker.getGeometry(n);
+        return (geometry != null) ? geometry : comparisonROI.getROI(tracker.getNeighbor(n)).getGeometry();
     }
 
     protected void promptToAddConnections() {
+        PTHierarchyMutationEvent event = new PTHierarchyMutationEvent();
+        event.begin();
+        if (lineAnnotationData.isEmpty())
+            createConnections();
         lineAnnotationData.parallelStream().forEach(data -> {
             PathObject line = data.lineAnnotation();
             PathObject anaCell = data.cell();
@@ -1002,22 +2487,30 @@ public class PT2D {
             line.setPathClass(hiddenPathClass);
         });
         connectionsAdded = true;
+        commitHierarchyMutationEvent(event, "promptToAddConnections", lineAnnotationData.size());
     }
 
     protected void clearLabels() {
-        hierarchy.removeObjects(anaCellsData.values().stream()
+        if (!labelsAdded) return; // the labels are made lazily, so there is nothing to remove
+        PTHierarchyMutationEvent event = new PTHierarchyMutationEvent();
+        event.begin();
+        Set<PathObject> labels = anaCellsData.values().stream()
                 .map(PTCellNeighborTracker::getCentroidPoint)
-                .collect(Collectors.toSet()),
-                false);
+                .collect(Collectors.toSet());
+        hierarchy.removeObjects(labels, false);
         labelsAdded = false;
+        commitHierarchyMutationEvent(event, "clearLabels", labels.size());
     }
 
     protected void clearConnections() {
-        hierarchy.removeObjects(lineAnnotationData.stream()
+        PTHierarchyMutationEvent event = new PTHierarchyMutationEvent();
+        event.begin();
+        Set<PathObject> lines = lineAnnotationData.stream()
                 .map(PTLineAnnotationTracker::lineAnnotation)
-                .collect(Collectors.toSet()),
-                false);
+                .collect(Collectors.toSet());
+        hierarchy.removeObjects(lines, false);
         connectionsAdded = false;
+        commitHierarchyMutationEvent(event, "clearConnections", lines.size());
     }
 
     /**
@@ -1035,11 +2528,14 @@ public class PT2D {
      * invisible line annotations).
      */
     protected void removeInvisibleObjects() {
-        hierarchy.removeObjects(lineAnnotationData.stream()
+        PTHierarchyMutationEvent event = new PTHierarchyMutationEvent();
+        event.begin();
+        Set<PathObject> invisibleLines = lineAnnotationData.stream()
                 .map(PTLineAnnotationTracker::lineAnnotation)
                 .filter(line -> line.getPathClass() == hiddenPathClass)
-                .collect(Collectors.toSet()),
-                false);
+                .collect(Collectors.toSet());
+        hierarchy.removeObjects(invisibleLines, false);
+        commitHierarchyMutationEvent(event, "removeInvisibleObjects", invisibleLines.size());
     }
 
     /**
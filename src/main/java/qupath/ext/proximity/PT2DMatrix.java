@@ -0,0 +1,483 @@
+package qupath.ext.proximity;
+
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.proximity.aux.PTMetrics;
+import qupath.ext.proximity.aux.PTReferenceIndex;
+import qupath.ext.proximity.engine.PTNeighborList;
+import qupath.lib.images.ImageData;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.scripting.QP;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Proximity matrix of several cell populations (classes): every class is compared with every class, including
+ * itself, in one pass. One reference index is built per class (and per TMA core in TMA mode) and serves as the
+ * index of that class for all the other classes, and each cell's geometry is computed once, whether the cell is
+ * searched from or searched for. All searches then run in a single parallel pipeline over the cells.
+ * <p>
+ * Measurements are added per container (the image root object, or each TMA core in TMA mode) with the same names
+ * and meanings as {@link PT2D#addMeasurements(PathObject, String, String, Collection, Collection, double)} for each
+ * ordered pair of classes, so a matrix gives the same results as one PT2D per pair. Within a class, a cell is not
+ * counted as its own neighbor, so the reference class is named "other '...'" (e.g., "Count of 'Tumor' with exactly
+ * 1 other 'Tumor' interaction"), and these measurements do not clash with those of a PT2D comparing the class
+ * with itself.
+ */
+public class PT2DMatrix {
+
+    private static final Logger logger = LoggerFactory.getLogger(PT2DMatrix.class);
+
+    private final ImageData<BufferedImage> imageData;
+    private final List<PathClass> classes;
+    private final PT2D.Mode mode;
+    private final PT2D.ComparisonType comparisonType;
+    private final PT2D.ComparisonROI comparisonROI;
+    private final PT2D.NeighborEngine neighborEngine;
+    private final PT2D.EdgeDistance edgeDistance;
+    private final int mapSize;
+    private final double radius;
+    private final double pixelSize;
+    private final PTMetrics metrics = new PTMetrics();
+    private final List<Container> containers = new ArrayList<>();
+
+    /**
+     * Cells of a container by class, with their reference indexes and the neighbors found for each ordered pair
+     * of classes.
+     */
+    private static class Container {
+        private final PathObject pathObject;
+        private final PTReferenceIndex[] indexes; // by class (null if the container has no cell of the class)
+        private final Neighbors[][] neighbors; // by target class, then reference class
+
+        private Container(PathObject pathObject, int noClasses) {
+            this.pathObject = pathObject;
+            this.indexes = new PTReferenceIndex[noClasses];
+            this.neighbors = new Neighbors[noClasses][noClasses];
+        }
+
+        private PathObject[] getCells(int classIndex) {
+            return indexes[classIndex] == null ? new PathObject[0] : indexes[classIndex].cells();
+        }
+    }
+
+    /**
+     * Sorted neighbor distances (µm) of the target cells of a pair of classes: the nearest (up to the map size,
+     * NaN padded) or, in radius mode, all within the radius (none until searched).
+     */
+    private static class Neighbors {
+        private static final double[] NO_DISTANCES = new double[0];
+        private final int mapSize;
+        private final double[] nearestDistances; // [cell * mapSize + n]
+        private final double[][] radiusDistances; // [cell][n]
+
+        private Neighbors(int noCells, int mapSize, boolean radiusMode) {
+            this.mapSize = mapSize;
+            if (radiusMode) {
+                this.nearestDistances = null;
+                this.radiusDistances = new double[noCells][];
+                Arrays.fill(radiusDistances, NO_DISTANCES); // e.g., if the container has no cell of the reference class
+            } else {
+                this.nearestDistances = new double[noCells * mapSize];
+                Arrays.fill(nearestDistances, Double.NaN);
+                this.radiusDistances = null;
+            }
+        }
+
+        private int getNoNeighbors(int cell) {
+            if (radiusDistances != null)
+                return radiusDistances[cell].length;
+            int n = 0;
+            while (n < mapSize && !Double.isNaN(nearestDistances[cell * mapSize + n]))
+                n++;
+            return n;
+        }
+
+        private double getDistance(int cell, int n) {
+            return radiusDistances != null ? radiusDistances[cell][n] : nearestDistances[cell * mapSize + n];
+        }
+
+        /**
+         * @return the number of neighbors within the distance threshold (capped at the map size, except in radius mode)
+         */
+        private int getCount(int cell, double distanceThreshold) {
+            int noNeighbors = getNoNeighbors(cell);
+            int count = 0;
+            while (count < noNeighbors && getDistance(cell, count) <= distanceThreshold)
+                count++;
+            return count;
+        }
+    }
+
+    private PT2DMatrix(PT2DMatrixBuilder builder) {
+        this.imageData = builder.imageData;
+        this.mode = builder.mode;
+        this.comparisonType = builder.comparisonType;
+        this.comparisonROI = builder.comparisonROI;
+        this.neighborEngine = builder.neighborEngine != null ? builder.neighborEngine : PT2D.NeighborEngine.getDefault(builder.comparisonType);
+        this.edgeDistance = builder.edgeDistance;
+        this.mapSize = builder.maxInteractionsToTest + 1;
+        this.radius = builder.radius;
+        this.pixelSize = PT2D.getPixelSize(imageData);
+
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        this.classes = builder.classes != null
+                ? List.copyOf(builder.classes)
+                : hierarchy.getCellObjects().stream()
+                        .map(PathObject::getPathClass)
+                        .filter(Objects::nonNull)
+                        .distinct()
+                        .sorted(Comparator.comparing(PathClass::toString))
+                        .toList();
+
+        initialize(hierarchy);
+    }
+
+    public static class PT2DMatrixBuilder {
+        private ImageData<BufferedImage> imageData = QP.getCurrentImageData();
+        private List<PathClass> classes = null;
+        private int maxInteractionsToTest = 3;
+        private PT2D.Mode mode = PT2D.Mode.FULL_IMAGE;
+        private PT2D.ComparisonType comparisonType = PT2D.ComparisonType.EDGE;
+        private PT2D.ComparisonROI comparisonROI = PT2D.ComparisonROI.CELL;
+        private PT2D.NeighborEngine neighborEngine = null; // default for the comparison type
+        private PT2D.EdgeDistance edgeDistance = PT2D.EdgeDistance.INDEXED;
+        private double radius = 0;
+
+        public PT2DMatrixBuilder setImageData(ImageData<BufferedImage> imageData) {
+            this.imageData = imageData;
+            return this;
+        }
+
+        /**
+         * Set the classes compared. By default, all classes of the cells of the image are compared.
+         * @param classes the class names
+         * @return this builder
+         */
+        public PT2DMatrixBuilder setClasses(String... classes) {
+            this.classes = Arrays.stream(classes).map(PathClass::fromString).distinct().toList();
+            return this;
+        }
+
+        public PT2DMatrixBuilder setMaxInteractionsToTest(int maxInteractionsToTest) {
+            this.maxInteractionsToTest = maxInteractionsToTest;
+            return this;
+        }
+
+        public PT2DMatrixBuilder mode(PT2D.Mode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        public PT2DMatrixBuilder comparisonType(PT2D.ComparisonType comparisonType) {
+            this.comparisonType = comparisonType;
+            return this;
+        }
+
+        public PT2DMatrixBuilder comparisonROI(PT2D.ComparisonROI comparisonROI) {
+            this.comparisonROI = comparisonROI;
+            return this;
+        }
+
+        public PT2DMatrixBuilder neighborEngine(PT2D.NeighborEngine neighborEngine) {
+            this.neighborEngine = neighborEngine;
+            return this;
+        }
+
+        public PT2DMatrixBuilder edgeDistance(PT2D.EdgeDistance edgeDistance) {
+            this.edgeDistance = edgeDistance;
+            return this;
+        }
+
+        /**
+         * Enable the radius mode (see {@link PT2D.PT2DBuilder#setRadius(double)}).
+         * @param radius the radius (µm); 0 (default) disables the radius mode
+         * @return this builder
+         */
+        public PT2DMatrixBuilder setRadius(double radius) {
+            if (radius < 0 || !Double.isFinite(radius))
+                throw new IllegalArgumentException("Radius must be finite and cannot be negative!");
+            this.radius = radius;
+            return this;
+        }
+
+        public PT2DMatrix build() {
+            if (imageData == null)
+                throw new IllegalStateException("Image data must be set!");
+            if (maxInteractionsToTest < 0)
+                throw new IllegalArgumentException("Max interactions to test cannot be negative!");
+            return new PT2DMatrix(this);
+        }
+    }
+
+    private void initialize(PathObjectHierarchy hierarchy) {
+        long start = PTMetrics.start();
+
+        // group the cells by container, then by class
+        Map<PathClass, Integer> classIndexes = new HashMap<>();
+        for (int i = 0; i < classes.size(); i++)
+            classIndexes.put(classes.get(i), i);
+        Map<PathObject, List<List<PathObject>>> cellsByContainer = new LinkedHashMap<>();
+        if (mode == PT2D.Mode.TMA) {
+            if (hierarchy.getTMAGrid() != null) {
+                for (TMACoreObject core : hierarchy.getTMAGrid().getTMACoreList())
+                    cellsByContainer.put(core, newClassLists());
+            }
+        } else {
+            cellsByContainer.put(hierarchy.getRootObject(), newClassLists());
+        }
+        for (PathObject cell : hierarchy.getCellObjects()) {
+            Integer classIndex = classIndexes.get(cell.getPathClass());
+            if (classIndex == null)
+                continue;
+            PathObject container = mode == PT2D.Mode.TMA ? PT2D.getTMACore(cell) : hierarchy.getRootObject();
+            List<List<PathObject>> classLists = container == null ? null : cellsByContainer.get(container);
+            if (classLists != null)
+                classLists.get(classIndex).add(cell);
+        }
+
+        // build one reference index per class (and container), in parallel
+        long start_0 = PTMetrics.start();
+        List<Container> containerList = new ArrayList<>();
+        List<int[]> indexTasks = new ArrayList<>(); // (container, class)
+        for (Map.Entry<PathObject, List<List<PathObject>>> entry : cellsByContainer.entrySet()) {
+            for (int c = 0; c < classes.size(); c++) {
+                if (!entry.getValue().get(c).isEmpty())
+                    indexTasks.add(new int[]{containerList.size(), c});
+            }
+            containerList.add(new Container(entry.getKey(), classes.size()));
+        }
+        List<List<List<PathObject>>> cellLists = new ArrayList<>(cellsByContainer.values());
+        indexTasks.parallelStream().forEach(task -> containerList.get(task[0]).indexes[task[1]] = PTReferenceIndex.create(
+                cellLists.get(task[0]).get(task[1]), comparisonROI, comparisonType, neighborEngine, edgeDistance, 0, metrics));
+        long time_0 = metrics.record(PTMetrics.Timer.REFERENCE_INDEX, start_0);
+        logger.info("Time to make reference indexes ({} {}): {} ms", indexTasks.size(), neighborEngine,
+                TimeUnit.NANOSECONDS.toMillis(time_0));
+
+        // search all pairs of classes, cell by cell, in parallel
+        long start_1 = PTMetrics.start();
+        for (Container container : containerList) {
+            for (int t = 0; t < classes.size(); t++) {
+                for (int r = 0; r < classes.size(); r++) {
+                    container.neighbors[t][r] = new Neighbors(container.getCells(t).length, mapSize, radius > 0);
+                }
+            }
+        }
+        int[] taskOffsets = new int[indexTasks.size() + 1]; // cells are split flat, so that large classes split too
+        for (int i = 0; i < indexTasks.size(); i++)
+            taskOffsets[i + 1] = taskOffsets[i] + containerList.get(indexTasks.get(i)[0]).getCells(indexTasks.get(i)[1]).length;
+        IntStream.range(0, taskOffsets[indexTasks.size()]).parallel().forEach(i -> {
+            int task = Arrays.binarySearch(taskOffsets, i);
+            task = task >= 0 ? task : -task - 2; // offsets are strictly increasing, as no task is empty
+            findNeighbors(containerList.get(indexTasks.get(task)[0]), indexTasks.get(task)[1], i - taskOffsets[task]);
+        });
+        long time_1 = metrics.record(PTMetrics.Timer.NEAREST_NEIGHBORS, start_1);
+        logger.info("Time to calculate distances ({} classes): {} ms", classes.size(), TimeUnit.NANOSECONDS.toMillis(time_1));
+
+        containers.addAll(containerList);
+        long time = metrics.record(PTMetrics.Timer.INITIALIZE, start);
+        logger.info("Time to initialize PT2DMatrix: {} ms", TimeUnit.NANOSECONDS.toMillis(time));
+    }
+
+    private List<List<PathObject>> newClassLists() {
+        List<List<PathObject>> classLists = new ArrayList<>();
+        for (int i = 0; i < classes.size(); i++)
+            classLists.add(new ArrayList<>());
+        return classLists;
+    }
+
+    /**
+     * Find the neighbors of a cell in every class of its container. The cell itself is skipped in its own class.
+     * @param container
+     * @param targetClass
+     * @param cell the ordinal of the cell in the index of its class
+     */
+    private void findNeighbors(Container container, int targetClass, int cell) {
+        PTReferenceIndex targetIndex = container.indexes[targetClass];
+        Geometry cellGeom = targetIndex.geometries()[cell];
+        PathObject cellObject = targetIndex.cells()[cell];
+        int[] ordinals = new int[mapSize + 1];
+        double[] distances = new double[mapSize + 1];
+        PTNeighborList neighborList = radius > 0 ? new PTNeighborList() : null;
+
+        for (int r = 0; r < classes.size(); r++) {
+            PTReferenceIndex index = container.indexes[r];
+            if (index == null)
+                continue;
+            Neighbors neighbors = container.neighbors[targetClass][r];
+            if (radius > 0) {
+                neighborList.clear();
+                index.engine().findWithin(cellGeom, radius/pixelSize, neighborList);
+                double[] cellDistances = new double[neighborList.size()];
+                int n = 0;
+                for (int i = 0; i < neighborList.size(); i++) {
+                    if (index.cells()[neighborList.getOrdinal(i)] != cellObject)
+                        cellDistances[n++] = neighborList.getDistance(i)*pixelSize;
+                }
+                neighbors.radiusDistances[cell] = n == cellDistances.length ? cellDistances : Arrays.copyOf(cellDistances, n);
+            } else {
+                int k = r == targetClass ? mapSize + 1 : mapSize; // one more, as the cell finds itself
+                int noNeighbors = index.engine().findNearest(cellGeom, k, ordinals, distances);
+                int n = 0;
+                for (int i = 0; i < noNeighbors && n < mapSize; i++) {
+                    if (index.cells()[ordinals[i]] != cellObject)
+                        neighbors.nearestDistances[cell * mapSize + n++] = distances[i]*pixelSize;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the measurements of all ordered pairs of classes to each container's measurement list (the image root
+     * object, or each TMA core in TMA mode).
+     * @param distanceThreshold the distance threshold (µm) of the interaction counts
+     */
+    public void addMeasurements(double distanceThreshold) {
+        long start = PTMetrics.start();
+        for (Container container : containers) {
+            MeasurementList measurementList = container.pathObject.getMeasurementList();
+            getMeasurements(container, distanceThreshold).forEach(measurementList::put);
+        }
+        metrics.record(PTMetrics.Timer.MEASUREMENTS, start);
+        logger.info("Measurements added to {} containers ({} classes)", containers.size(), classes.size());
+    }
+
+    /**
+     * Write the measurements of all ordered pairs of classes as a CSV file, one row per container (the image, or
+     * each TMA core in TMA mode) and one column per measurement, as added by {@link #addMeasurements(double)}.
+     * @param path
+     * @param distanceThreshold the distance threshold (µm) of the interaction counts
+     * @throws IOException
+     */
+    public void writeTable(Path path, double distanceThreshold) throws IOException {
+        List<Map<String, Double>> rows = containers.stream()
+                .map(container -> getMeasurements(container, distanceThreshold))
+                .toList();
+        Set<String> columns = new LinkedHashSet<>();
+        rows.forEach(row -> columns.addAll(row.keySet()));
+
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            StringJoiner header = new StringJoiner(",");
+            header.add("Container");
+            columns.forEach(column -> header.add(quote(column)));
+            writer.write(header.toString());
+            writer.newLine();
+            for (int i = 0; i < rows.size(); i++) {
+                StringJoiner line = new StringJoiner(",");
+                line.add(quote(containers.get(i).pathObject.getDisplayedName()));
+                for (String column : columns) {
+                    Double value = rows.get(i).get(column);
+                    line.add(value == null || Double.isNaN(value) ? "" : String.valueOf(value));
+                }
+                writer.write(line.toString());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Compute the measurements of all ordered pairs of classes in a container, named as in
+     * {@link PT2D#addMeasurements(PathObject, String, String, Collection, Collection, double)}, except that the
+     * reference class of a class compared with itself is named "other '...'", as a cell is not its own neighbor.
+     * @param container
+     * @param distanceThreshold
+     * @return the measurements by name, in insertion order
+     */
+    private Map<String, Double> getMeasurements(Container container, double distanceThreshold) {
+        if (radius > 0 && distanceThreshold > radius)
+            throw new IllegalArgumentException("Distance threshold (" + distanceThreshold + " µm) cannot exceed the radius ("
+                    + radius + " µm)!");
+        Map<String, Double> measurements = new LinkedHashMap<>();
+
+        for (int t = 0; t < classes.size(); t++) {
+            String anaName = classes.get(t).toString();
+            PathObject[] anaCells = container.getCells(t);
+            PTMeasurements.putTotals(measurements::put, anaName, anaCells.length, getArea(anaCells, null, -1));
+
+            for (int r = 0; r < classes.size(); r++) {
+                PTMeasurements pairMeasurements = new PTMeasurements(measurements::put, anaName, classes.get(r).toString(),
+                        r == t, mapSize, distanceThreshold);
+                Neighbors neighbors = container.neighbors[t][r];
+
+                int[] counts = new int[anaCells.length];
+                long noInteractions = 0;
+                for (int cell = 0; cell < anaCells.length; cell++) {
+                    counts[cell] = neighbors.getCount(cell, distanceThreshold);
+                    noInteractions += counts[cell];
+                }
+
+                // counts and areas, as in PT2D (cells with more than mapSize - 1 interactions are counted once)
+                int[] exactCounts = new int[mapSize];
+                double[] exactAreas = new double[mapSize];
+                for (int i = 0; i < mapSize; i++) {
+                    int finalI = i;
+                    exactCounts[i] = (int) Arrays.stream(counts).filter(count -> count == finalI).count();
+                    exactAreas[i] = getArea(anaCells, counts, i);
+                }
+                pairMeasurements.putCounts((int) Arrays.stream(counts).filter(count -> count >= 1).count(),
+                        exactCounts,
+                        (int) Arrays.stream(counts).filter(count -> count >= mapSize).count());
+                if (radius > 0)
+                    pairMeasurements.putInteractions(noInteractions, anaCells.length);
+                pairMeasurements.putAreas(getArea(anaCells, counts, -1), exactAreas, getArea(anaCells, counts, mapSize));
+
+                // descriptive stats of the nearest neighbor distances
+                for (int n = 0; n < mapSize; n++) {
+                    List<Double> nearestDistanceList = new ArrayList<>();
+                    for (int cell = 0; cell < anaCells.length; cell++) {
+                        if (n < neighbors.getNoNeighbors(cell))
+                            nearestDistanceList.add(neighbors.getDistance(cell, n));
+                    }
+                    pairMeasurements.putDistanceStats(n, nearestDistanceList, container.pathObject);
+                }
+            }
+        }
+        return measurements;
+    }
+
+    /**
+     * @param cells
+     * @param counts the interaction counts of the cells, or null for all cells
+     * @param exactly the interaction count selected: -1 for 1 or more, the map size for more than (map size - 1)
+     * @return the total area (µm^2) of the selected cells
+     */
+    private double getArea(PathObject[] cells, int[] counts, int exactly) {
+        double area = 0;
+        for (int cell = 0; cell < cells.length; cell++) {
+            boolean selected = counts == null
+                    || (exactly < 0 ? counts[cell] >= 1 : (exactly == mapSize ? counts[cell] >= mapSize : counts[cell] == exactly));
+            if (selected)
+                area += cells[cell].getROI().getArea();
+        }
+        return area*pixelSize*pixelSize;
+    }
+
+    /**
+     * @return the classes compared, in matrix order
+     */
+    public List<PathClass> getClasses() {
+        return classes;
+    }
+
+    public PTMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static String quote(String value) {
+        return "\"" + (value == null ? "" : value.replace("\"", "\"\"")) + "\"";
+    }
+
+}
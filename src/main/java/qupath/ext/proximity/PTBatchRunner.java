@@ -0,0 +1,443 @@
+package qupath.ext.proximity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Applies a PT2D configuration across all entries of a QuPath {@link Project}, adding measurements
+ * and saving each entry. Images are processed concurrently on a bounded pool, and the number of images
+ * in flight is limited by an explicit heap budget. A timing and memory report is produced per image.
+ * <p>
+ * Runs headless (e.g., from a command line script) as well as from the GUI.
+ */
+public class PTBatchRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(PTBatchRunner.class);
+
+    private final Project<BufferedImage> project;
+    private final Function<PathObjectHierarchy, Collection<PathObject>> cellsToAnalyze;
+    private final Function<PathObjectHierarchy, Collection<PathObject>> referenceCells;
+    private final String anaName;
+    private final String refName;
+    private final int maxInteractionsToTest;
+    private final PT2D.Mode mode;
+    private final PT2D.ComparisonType comparisonType;
+    private final double distanceThreshold;
+    private final boolean addCellMeasurements;
+    private final long heapBudget;
+    private final int maxThreads;
+
+    private PTBatchRunner(PTBatchRunnerBuilder builder) {
+        this.project = builder.project;
+        this.cellsToAnalyze = builder.cellsToAnalyze;
+        this.referenceCells = builder.referenceCells;
+        this.anaName = builder.anaName;
+        this.refName = builder.refName;
+        this.maxInteractionsToTest = builder.maxInteractionsToTest;
+        this.mode = builder.mode;
+        this.comparisonType = builder.comparisonType;
+        this.distanceThreshold = builder.distanceThreshold;
+        this.addCellMeasurements = builder.addCellMeasurements;
+        this.heapBudget = builder.heapBudget;
+        this.maxThreads = builder.maxThreads;
+    }
+
+    public static class PTBatchRunnerBuilder {
+        private final Project<BufferedImage> project;
+        private Function<PathObjectHierarchy, Collection<PathObject>> cellsToAnalyze;
+        private Function<PathObjectHierarchy, Collection<PathObject>> referenceCells;
+        private String anaName;
+        private String refName;
+        private int maxInteractionsToTest = 3;
+        private PT2D.Mode mode = PT2D.Mode.FULL_IMAGE;
+        private PT2D.ComparisonType comparisonType = PT2D.ComparisonType.EDGE;
+        private double distanceThreshold = 1.0;
+        private boolean addCellMeasurements = true;
+        private long heapBudget = Runtime.getRuntime().maxMemory() / 2;
+        private int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        public PTBatchRunnerBuilder(Project<BufferedImage> project) {
+            this.project = project;
+        }
+
+        /**
+         * Set the cells to analyze (i.e., target cells) by class.
+         * @param pathClass
+         * @return this builder
+         */
+        public PTBatchRunnerBuilder setCellsToAnalyze(String pathClass) {
+            this.anaName = pathClass;
+            this.cellsToAnalyze = getCellsByClass(pathClass);
+            return this;
+        }
+
+        /**
+         * Set the cells to analyze (i.e., target cells) using a custom definition applied to each image.
+         * @param name name for cells to analyze, used in measurement names
+         * @param cellsToAnalyze function returning the cells to analyze for an image's hierarchy
+         * @return this builder
+         */
+        public PTBatchRunnerBuilder setCellsToAnalyze(String name, Function<PathObjectHierarchy, Collection<PathObject>> cellsToAnalyze) {
+            this.anaName = name;
+            this.cellsToAnalyze = cellsToAnalyze;
+            return this;
+        }
+
+        /**
+         * Set the reference cells by class.
+         * @param pathClass
+         * @return this builder
+         */
+        public PTBatchRunnerBuilder setReferenceCells(String pathClass) {
+            this.refName = pathClass;
+            this.referenceCells = getCellsByClass(pathClass);
+            return this;
+        }
+
+        /**
+         * Set the reference cells using a custom definition applied to each image.
+         * @param name name for reference cells, used in measurement names
+         * @param referenceCells function returning the reference cells for an image's hierarchy
+         * @return this builder
+         */
+        public PTBatchRunnerBuilder setReferenceCells(String name, Function<PathObjectHierarchy, Collection<PathObject>> referenceCells) {
+            this.refName = name;
+            this.referenceCells = referenceCells;
+            return this;
+        }
+
+        public PTBatchRunnerBuilder setMaxInteractionsToTest(int maxInteractionsToTest) {
+            this.maxInteractionsToTest = maxInteractionsToTest;
+            return this;
+        }
+
+        public PTBatchRunnerBuilder mode(PT2D.Mode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        public PTBatchRunnerBuilder comparisonType(PT2D.ComparisonType comparisonType) {
+            this.comparisonType = comparisonType;
+            return this;
+        }
+
+        public PTBatchRunnerBuilder setDistanceThreshold(double distanceThreshold) {
+            this.distanceThreshold = distanceThreshold;
+            return this;
+        }
+
+        public PTBatchRunnerBuilder addCellMeasurements(boolean addCellMeasurements) {
+            this.addCellMeasurements = addCellMeasurements;
+            return this;
+        }
+
+        /**
+         * Set the heap budget shared by all images in flight. An image whose estimated footprint exceeds the
+         * budget is still processed, but on its own.
+         * @param heapBudget the budget in bytes
+         * @return this builder
+         */
+        public PTBatchRunnerBuilder setHeapBudget(long heapBudget) {
+            this.heapBudget = heapBudget;
+            return this;
+        }
+
+        public PTBatchRunnerBuilder setMaxThreads(int maxThreads) {
+            this.maxThreads = maxThreads;
+            return this;
+        }
+
+        public PTBatchRunner build() {
+            if (cellsToAnalyze == null || referenceCells == null)
+                throw new IllegalStateException("Cells to analyze and reference cells must be set!");
+            if (heapBudget <= 0 || maxThreads <= 0)
+                throw new IllegalArgumentException("Heap budget and max threads must be positive!");
+            return new PTBatchRunner(this);
+        }
+
+        private static Function<PathObjectHierarchy, Collection<PathObject>> getCellsByClass(String pathClass) {
+            PathClass finalPathClass = PathClass.fromString(pathClass);
+            return hierarchy -> hierarchy.getCellObjects().stream()
+                    .filter(cell -> cell.getPathClass() == finalPathClass)
+                    .toList();
+        }
+    }
+
+    /**
+     * Timing and memory report for one project entry.
+     * @param imageName name of the project entry
+     * @param succeeded whether the entry was processed and saved
+     * @param message error message if the entry failed (otherwise empty)
+     * @param noCellsToAnalyze number of cells to analyze
+     * @param noReferenceCells number of reference cells
+     * @param estimatedBytes estimated heap footprint reserved from the budget (the hierarchy and the PT2D instance)
+     * @param readMillis time to read the image data
+     * @param initializeMillis time to build the PT2D instance
+     * @param measureMillis time to add measurements
+     * @param saveMillis time to save the image data
+     * @param heapUsedBytes JVM heap in use after the entry finished (shared by all images in flight)
+     * @param metrics summary of the PT2D metrics as JSON (see {@link PT2D#getMetrics()}), or empty if unavailable
+     */
+    public record EntryReport(String imageName,
+                              boolean succeeded,
+                              String message,
+                              int noCellsToAnalyze,
+                              int noReferenceCells,
+                              long estimatedBytes,
+                              long readMillis,
+                              long initializeMillis,
+                              long measureMillis,
+                              long saveMillis,
+                              long heapUsedBytes,
+                              String metrics) {
+
+        public long totalMillis() {
+            return readMillis + initializeMillis + measureMillis + saveMillis;
+        }
+    }
+
+    /**
+     * Process all entries of the project.
+     * @return a report per entry, in project order
+     * @throws InterruptedException
+     */
+    public List<EntryReport> run() throws InterruptedException {
+        return run(project.getImageList());
+    }
+
+    /**
+     * Process the given entries of the project.
+     * @param entries
+     * @return a report per entry, in the given order
+     * @throws InterruptedException
+     */
+    public List<EntryReport> run(List<ProjectImageEntry<BufferedImage>> entries) throws InterruptedException {
+        /*
+        Budget permits are in MiB to fit large heaps into an int. Each image reserves an estimate of its hierarchy
+        before reading it, then its full estimate (hierarchy and PT2D instance) once read, capped at the full budget
+        so that a single oversized image can still run alone.
+         */
+        int budgetMiB = (int) Math.max(1, Math.min(Integer.MAX_VALUE, heapBudget >> 20));
+        Semaphore budget = new Semaphore(budgetMiB, true);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxThreads, Math.max(1, entries.size())));
+
+        logger.info("Running PT2D on {} images ({} threads, heap budget {} MiB)", entries.size(), maxThreads, budgetMiB);
+        try {
+            List<Future<EntryReport>> futures = new ArrayList<>();
+            for (ProjectImageEntry<BufferedImage> entry : entries) {
+                futures.add(executor.submit(() -> runEntry(entry, budget, budgetMiB)));
+            }
+            List<EntryReport> reports = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    reports.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    reports.add(new EntryReport(entries.get(i).getImageName(), false, String.valueOf(e.getCause()),
+                            0, 0, 0, 0, 0, 0, 0, usedHeap(), ""));
+                }
+            }
+            return reports;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private EntryReport runEntry(ProjectImageEntry<BufferedImage> entry, Semaphore budget, int budgetMiB) throws InterruptedException {
+        String imageName = entry.getImageName();
+        long readMillis = 0, initializeMillis = 0, measureMillis = 0, saveMillis = 0;
+        int noAna = 0, noRef = 0;
+        long estimatedBytes = 0;
+        int permits = 0;
+        String metrics = "";
+        ImageData<BufferedImage> imageData = null;
+
+        try {
+            long start = System.nanoTime();
+            // reserve the hierarchy before reading it, estimated from the size of the entry's data file
+            permits = toPermits(PTMemoryPlanner.estimateHierarchyBytes(getDataFileSize(entry)), budgetMiB);
+            budget.acquire(permits);
+
+            Collection<PathObject> anaCells;
+            Collection<PathObject> refCells;
+            while (true) {
+                imageData = entry.readImageData();
+                PathObjectHierarchy hierarchy = imageData.getHierarchy();
+                anaCells = cellsToAnalyze.apply(hierarchy);
+                refCells = referenceCells.apply(hierarchy);
+
+                // the hierarchy, as read, and the PT2D instance
+                estimatedBytes = PTMemoryPlanner.estimateHierarchyBytes(hierarchy)
+                        + PTMemoryPlanner.estimateBytes(anaCells, refCells, maxInteractionsToTest + 1, comparisonType, false, false);
+                int neededPermits = toPermits(estimatedBytes, budgetMiB);
+                if (neededPermits <= permits) {
+                    budget.release(permits - neededPermits);
+                    permits = neededPermits;
+                    break;
+                }
+                if (budget.tryAcquire(neededPermits - permits)) {
+                    permits = neededPermits;
+                    break;
+                }
+                // waiting for more while holding a part of the budget could deadlock the pool, so release the
+                // image and its permits, wait for the full reservation, then read again
+                closeServer(imageData);
+                imageData = null;
+                anaCells = null;
+                refCells = null;
+                budget.release(permits);
+                permits = 0;
+                budget.acquire(neededPermits);
+                permits = neededPermits;
+            }
+            noAna = anaCells.size();
+            noRef = refCells.size();
+            PathObjectHierarchy hierarchy = imageData.getHierarchy();
+            readMillis = elapsedMillis(start);
+
+            start = System.nanoTime();
+            PT2D pt2D = new PT2D.PT2DBuilder()
+                    .setImageData(imageData)
+                    .setCellsToAnalyze(anaCells)
+                    .setReferenceCells(refCells)
+                    .setMaxInteractionsToTest(maxInteractionsToTest)
+                    .mode(mode)
+                    .comparisonType(comparisonType)
+                    .build(); // no memory plan: the batch budget is enforced here, and measurements stay comparable across images
+            initializeMillis = elapsedMillis(start);
+            metrics = pt2D.getMetrics().toJSON();
+
+            start = System.nanoTime();
+            if (mode == PT2D.Mode.TMA) {
+                for (TMACoreObject core : hierarchy.getTMAGrid() == null
+                        ? Collections.<TMACoreObject>emptyList()
+                        : hierarchy.getTMAGrid().getTMACoreList()) {
+                    pt2D.addMeasurements(core, anaName, refName,
+                            pt2D.tmaCoreAnaCellsMap.get(core), pt2D.tmaCoreRefCellsMap.get(core), distanceThreshold);
+                }
+                if (addCellMeasurements)
+                    pt2D.addCellMeasurements(anaName, refName, cell -> {
+                        TMACoreObject core = PT2D.getTMACore(cell);
+                        return "[" + (core == null ? null : core.getName()) + "]";
+                    });
+            } else {
+                pt2D.addMeasurements(hierarchy.getRootObject(), anaName, refName, null, null, distanceThreshold);
+                if (addCellMeasurements)
+                    pt2D.addCellMeasurements(anaName, refName);
+            }
+            measureMillis = elapsedMillis(start);
+            metrics = pt2D.getMetrics().toJSON();
+
+            start = System.nanoTime();
+            entry.saveImageData(imageData);
+            saveMillis = elapsedMillis(start);
+
+            logger.info("Processed {} in {} ms", imageName, readMillis + initializeMillis + measureMillis + saveMillis);
+            return new EntryReport(imageName, true, "", noAna, noRef, estimatedBytes,
+                    readMillis, initializeMillis, measureMillis, saveMillis, usedHeap(), metrics);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("Unable to process " + imageName, e);
+            return new EntryReport(imageName, false, String.valueOf(e), noAna, noRef, estimatedBytes,
+                    readMillis, initializeMillis, measureMillis, saveMillis, usedHeap(), metrics);
+        } finally {
+            closeServer(imageData);
+            if (permits > 0)
+                budget.release(permits);
+        }
+    }
+
+    /**
+     * Close the image server of an entry's image data, opened when read (e.g., for the pixel size), so that its
+     * files and caches are not kept for the rest of the batch.
+     * @param imageData the image data, or null if not read
+     */
+    private static void closeServer(ImageData<BufferedImage> imageData) {
+        if (imageData == null)
+            return;
+        try {
+            imageData.getServer().close();
+        } catch (Exception e) {
+            logger.warn("Unable to close the image server of {}", imageData, e);
+        }
+    }
+
+    /**
+     * Write the reports as a CSV file.
+     * @param reports
+     * @param path
+     * @throws IOException
+     */
+    public static void writeReport(List<EntryReport> reports, Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write("Image,Succeeded,Message,Cells to analyze,Reference cells,Estimated MiB,"
+                    + "Read ms,Initialize ms,Measure ms,Save ms,Total ms,Heap used MiB,PT2D metrics");
+            writer.newLine();
+            for (EntryReport report : reports) {
+                writer.write(String.join(",",
+                        quote(report.imageName()),
+                        String.valueOf(report.succeeded()),
+                        quote(report.message()),
+                        String.valueOf(report.noCellsToAnalyze()),
+                        String.valueOf(report.noReferenceCells()),
+                        String.valueOf(report.estimatedBytes() >> 20),
+                        String.valueOf(report.readMillis()),
+                        String.valueOf(report.initializeMillis()),
+                        String.valueOf(report.measureMillis()),
+                        String.valueOf(report.saveMillis()),
+                        String.valueOf(report.totalMillis()),
+                        String.valueOf(report.heapUsedBytes() >> 20),
+                        quote(report.metrics())));
+                writer.newLine();
+            }
+        }
+    }
+
+    private static String quote(String value) {
+        return "\"" + (value == null ? "" : value.replace("\"", "\"\"")) + "\"";
+    }
+
+    private static int toPermits(long bytes, int budgetMiB) {
+        return (int) Math.max(1, Math.min(budgetMiB, bytes >> 20)); // capped so that an oversized image can run alone
+    }
+
+    /**
+     * @param entry
+     * @return the size of the entry's data file (bytes), or 0 if unknown (e.g., not yet saved)
+     */
+    private static long getDataFileSize(ProjectImageEntry<BufferedImage> entry) {
+        try {
+            Path dataFile = entry.getEntryPath().resolve("data.qpdata");
+            return Files.isRegularFile(dataFile) ? Files.size(dataFile) : 0;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
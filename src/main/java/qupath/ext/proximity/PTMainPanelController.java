@@ -17,7 +17,10 @@ import javafx.scene.layout.HBox;
 import org.controlsfx.dialog.ProgressDialog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import qupath.ext.proximity.jfr.PTMeasurementBatchEvent;
+import qupath.ext.proximity.jfr.PTQueryEvent;
 import qupath.ext.proximity.managers.PTMultiViewerManager;
+import qupath.ext.proximity.managers.PTSessionCache;
 import qupath.ext.proximity.scripting.PTMiniScriptEditor;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.dialogs.Dialogs;
@@ -87,6 +90,8 @@ public class PTMainPanelController implements Initializable {
     CheckMenuItem labelMenuItem = new CheckMenuItem("Show labels...");
     CheckMenuItem connectMenuItem = new CheckMenuItem("Show connections...");
     MenuItem scriptContextMenuItem = new MenuItem("Create script...");
+    MenuItem memoryPlanMenuItem = new MenuItem("Estimate memory...");
+    CheckMenuItem nucleiMenuItem = new CheckMenuItem("Compare nuclei...");
     CheckMenuItem advancedFeaturesMenuItem = new CheckMenuItem("Advanced features...");
     private String anaCellsAlias;
     private String refCellsAlias;
@@ -96,6 +101,11 @@ public class PTMainPanelController implements Initializable {
     private final double sliderMaxValueAdvanced = 1000;
     private final int refCellSliderMaxValue = 10;
     private PT2D pt2DInstance;
+    private String pt2DConfiguration; // see getSessionConfiguration()
+    /**
+     * Sessions set aside when another image gets the focus, restored when their image gets it back.
+     */
+    private final PTSessionCache sessionCache = new PTSessionCache(8, Runtime.getRuntime().maxMemory() / 4);
     protected CompletableFuture<Void> runPT2DAsync;
     protected final AtomicBoolean stopPT2DRun = new AtomicBoolean(false);
     private final BooleanProperty taskRunning = new SimpleBooleanProperty(false);
@@ -147,41 +157,48 @@ public class PTMainPanelController implements Initializable {
                     imageDataOld.getHierarchy().removeListener(this::hierarchyChanged);
                 if (imageDataNew != null && imageDataNew.getHierarchy() != null)
                     imageDataNew.getHierarchy().addListener(this::hierarchyChanged);
+                parkPT2DInstance(); // before the combo boxes are updated; discarded if its image was closed
+                sessionCache.retainImages(getOpenImages());
                 updateComboBoxes();
                 invalidateCustom();
                 stopPT2DRun.set(true);
                 if (runPT2DAsync != null) {
                     runPT2DAsync.cancel(true); // this doesn't seem to work
                 }
-                nullifyPT2DInstance(true);
+                restorePT2DInstanceLater();
             }
 
             @Override // This is probably redundant
             public void viewerClosed(QuPathViewer viewer) {
                 System.out.println("VIEWER CLOSED: Updating combo boxes...");
+                parkPT2DInstance(); // before the combo boxes are updated; discarded if its image was closed
+                sessionCache.retainImages(getOpenImages());
                 updateComboBoxes();
                 invalidateCustom();
                 stopPT2DRun.set(true);
                 if (runPT2DAsync != null) {
                     runPT2DAsync.cancel(true); // this doesn't seem to work
                 }
-                nullifyPT2DInstance(true);
+                restorePT2DInstanceLater();
             }
 
         };
         // This below is needed because it will detect mouse movements/clicks across viewers and determine if combo box updates are needed.
         ptMultiViewerManager.setCustomEvent(e -> {
-            updateComboBoxes();
             // This is needed because it checks if the focus has changed (even if none of the images were changed among the viewers).
             // This exploits the fact that qupath.getImageData() retrieves the currently focused ImageData.
-            if (lastImageData != qupath.getImageData()) {
+            boolean focusChanged = lastImageData != qupath.getImageData();
+            if (focusChanged)
+                parkPT2DInstance(); // before the combo boxes are updated, which would end the session
+            updateComboBoxes();
+            if (focusChanged) {
                 lastImageData = qupath.getImageData();
                 invalidateCustom();
                 stopPT2DRun.set(true);
                 if (runPT2DAsync != null) {
                     runPT2DAsync.cancel(true); // this doesn't seem to work
                 }
-                nullifyPT2DInstance(true);
+                restorePT2DInstanceLater();
             }
         });
 
@@ -257,21 +274,7 @@ public class PTMainPanelController implements Initializable {
             }
             double linearValue = Math.exp(n.doubleValue()) - 1;
             int refValue = (int)Math.round(noRefCellSlider.getValue());
-
-            if (noRefCellLabel.getText().toLowerCase().contains("exclusive")) {
-                pt2DInstance.exclusive().query(linearValue,
-                        refValue,
-                        highlightMenuItem.isSelected(),
-                        labelMenuItem.isSelected(),
-                        connectMenuItem.isSelected());
-            } else {
-                pt2DInstance.query(linearValue,
-                        refValue,
-                        highlightMenuItem.isSelected(),
-                        labelMenuItem.isSelected(),
-                        connectMenuItem.isSelected());
-            }
-
+            query("Distance threshold slider", linearValue, refValue);
         });
         noRefCellSlider.valueProperty().addListener((v, o, n) -> {
             if (pt2DInstance == null) {
@@ -279,19 +282,7 @@ public class PTMainPanelController implements Initializable {
             }
             int refValue = (int)Math.round(n.doubleValue());
             double linearValue = Math.exp(distanceThresholdSlider.getValue()) - 1;
-            if (noRefCellLabel.getText().toLowerCase().contains("exclusive")) {
-                pt2DInstance.exclusive().query(linearValue,
-                        refValue,
-                        highlightMenuItem.isSelected(),
-                        labelMenuItem.isSelected(),
-                        connectMenuItem.isSelected());
-            } else {
-                pt2DInstance.query(linearValue,
-                        refValue,
-                        highlightMenuItem.isSelected(),
-                        labelMenuItem.isSelected(),
-                        connectMenuItem.isSelected());
-            }
+            query("Reference cells slider", linearValue, refValue);
         });
 
         // SPECIAL SETUP FOR THE #REFCELL TEXT LABEL
@@ -303,6 +294,7 @@ public class PTMainPanelController implements Initializable {
                     noRefCellLabel.setText("# reference cells:");
                 }
 
+                updateNoRefCellSliderMax();
                 refreshDisplay();
             }
         });
@@ -357,6 +349,9 @@ public class PTMainPanelController implements Initializable {
             PTKeyListener.clearPressedKeys(); // prompt listener to clear pressed keys as JavaFx sometimes causes keys to stay stuck
 
             nullifyPT2DInstance(true); // proactively remove the previous instance
+            String sessionConfiguration = getSessionConfiguration();
+            if (sessionConfiguration != null)
+                sessionCache.remove(QP.getCurrentImageData(), sessionConfiguration); // run again rather than restored
 
             String mode;
             if (QP.getTMACoreList().size() > 0) {
@@ -380,16 +375,8 @@ public class PTMainPanelController implements Initializable {
 
             runPT2DAsync = CompletableFuture.runAsync(() -> {
                 try {
-                    Collection<PathObject> toAnalyzeCells = (cellsToAnalyzeComboBox.getValue() != null && cellsToAnalyzeComboBox.getValue().equals(anaCustomConfirmedName))
-                            ? anaCustomCollection
-                            : QP.getCellObjects().stream()
-                            .filter(cell -> cell.getPathClass() == PathClass.fromString(cellsToAnalyzeComboBox.getValue())) // using .equals() might be better, but it risks NullPointerException
-                            .toList();
-                    Collection<PathObject> referenceCells = (referenceCellsComboBox.getValue() != null && referenceCellsComboBox.getValue().equals(refCustomConfirmedName))
-                            ? refCustomCollection
-                            : QP.getCellObjects().stream()
-                            .filter(cell -> cell.getPathClass() == PathClass.fromString(referenceCellsComboBox.getValue())) // using .equals() might be better, but it risks NullPointerException
-                            .toList();
+                    Collection<PathObject> toAnalyzeCells = getSelectedCellsToAnalyze();
+                    Collection<PathObject> referenceCells = getSelectedReferenceCells();
 
                     if (stopPT2DRun.get() || Thread.interrupted()) {
                         logger.warn("Terminating run...");
@@ -398,19 +385,43 @@ public class PTMainPanelController implements Initializable {
                         return;
                     }
 
+                    PT2D.PT2DBuilder pt2DBuilder = new PT2D.PT2DBuilder()
+                            .setImageData(QP.getCurrentImageData())
+                            .setCellsToAnalyze(toAnalyzeCells)
+                            .setReferenceCells(referenceCells)
+                            .setMaxInteractionsToTest(getMaxInteractionsToTest())
+                            .mode(mode.equals("TMA cores") ? PT2D.Mode.TMA : PT2D.Mode.FULL_IMAGE)
+                            .comparisonType(connectionDisplay)
+                            .comparisonROI(nucleiMenuItem.isSelected() ? PT2D.ComparisonROI.NUCLEUS : PT2D.ComparisonROI.CELL)
+                            .lineType(lineDisplay)
+                            .planDisplay(true, true) // labels and connections can be toggled at any time during a session
+                            .allowDegradation(true) // fewer interactions to test are confirmed below
+                            .setCacheDirectory(PT2D.getProjectCacheDirectory(QP.getCurrentImageData())) // reopened images restore their neighbors
+                            .assignTerminationFlag(stopPT2DRun); // responsible for throwing PT2D.PT2DTerminationException
+
+                    // report the memory plan before allocating anything
+                    PTMemoryPlanner.Plan memoryPlan = pt2DBuilder.plan();
+                    logger.info("Memory plan: {}", memoryPlan.describe());
+                    if (memoryPlan.decision() == PTMemoryPlanner.Decision.REFUSE) {
+                        Dialogs.showErrorMessage("Proximity Tools memory plan", memoryPlan.describe());
+                        unlockGUI();
+                        return;
+                    }
+                    if (memoryPlan.decision() == PTMemoryPlanner.Decision.DEGRADE
+                            && !Dialogs.showConfirmDialog("Proximity Tools memory plan", memoryPlan.describe() + "\n\nContinue?")) {
+                        unlockGUI();
+                        return;
+                    }
+
                     try {
-                        this.pt2DInstance = new PT2D.PT2DBuilder()
-                                .setImageData(QP.getCurrentImageData())
-                                .setCellsToAnalyze(toAnalyzeCells)
-                                .setReferenceCells(referenceCells)
-                                .setMaxInteractionsToTest(advancedFeaturesMenuItem.isSelected() ? refCellSliderMaxValue : 3)
-                                .mode(mode.equals("TMA cores") ? PT2D.Mode.TMA : PT2D.Mode.FULL_IMAGE)
-                                .comparisonType(connectionDisplay)
-                                .lineType(lineDisplay)
-                                .assignTerminationFlag(stopPT2DRun) // responsible for throwing PT2D.PT2DTerminationException
-                                .build();
+                        this.pt2DInstance = pt2DBuilder.build(memoryPlan); // the plan confirmed, not a new one
+                        this.pt2DConfiguration = sessionConfiguration;
                     } catch (PT2D.PT2DTerminationException pte) {
                         logger.warn("PT2D initialization terminated...");
+                    } catch (IllegalStateException ise) {
+                        Dialogs.showErrorMessage("Proximity Tools memory plan", ise.getMessage());
+                        unlockGUI();
+                        return;
                     }
 
                     if (stopPT2DRun.get() || Thread.interrupted()) {
@@ -421,6 +432,7 @@ public class PTMainPanelController implements Initializable {
                     }
 
                     this.pt2DInstance.GUIControl = true;
+                    updateNoRefCellSliderMax();
                     refreshDisplay();
                     lockMenuItem.setDisable(false);
                     addMeasurementsMenuItem.setDisable(false);
@@ -453,6 +465,20 @@ public class PTMainPanelController implements Initializable {
         lockMenuItem.setOnAction(e -> {
             nullifyPT2DInstance(false);
         });
+        memoryPlanMenuItem.setOnAction(e -> {
+            PTMemoryPlanner.Plan memoryPlan = new PT2D.PT2DBuilder()
+                    .setImageData(QP.getCurrentImageData())
+                    .setCellsToAnalyze(getSelectedCellsToAnalyze())
+                    .setReferenceCells(getSelectedReferenceCells())
+                    .setMaxInteractionsToTest(getMaxInteractionsToTest())
+                    .mode(QP.getTMACoreList().size() > 0 ? PT2D.Mode.TMA : PT2D.Mode.FULL_IMAGE) // default choice when running
+                    .comparisonType(getKeyComparisonType())
+                    .comparisonROI(nucleiMenuItem.isSelected() ? PT2D.ComparisonROI.NUCLEUS : PT2D.ComparisonROI.CELL)
+                    .planDisplay(true, true)
+                    .allowDegradation(true)
+                    .plan(); // same settings as the run button
+            Dialogs.showMessageDialog("Proximity Tools memory plan", memoryPlan.describe());
+        });
         addMeasurementsMenuItem.setOnAction(e -> {
             lockGUI();
             // ensure image data is later saved WITHOUT keeping any overlaid labels or connections
@@ -566,6 +592,8 @@ public class PTMainPanelController implements Initializable {
 
         final double heightOffset = 65; // 65 works. Trying to call getHeight() from refCellsHBox1/2/3 gives 0.
 
+        nucleiMenuItem.setOnAction(e -> nullifyPT2DInstance(true)); // distances change, so the session must be run again
+
         advancedFeaturesMenuItem.setOnAction(e -> {
             if (!advancedFeaturesMenuItem.isSelected()) {
                 refCellsHBox1.setVisible(false);
@@ -592,7 +620,7 @@ public class PTMainPanelController implements Initializable {
 
                 ptMainPanel.getStage().setHeight(ptMainPanel.getStage().getHeight() + heightOffset);
                 distanceThresholdSlider.setMax(Math.log(sliderMaxValueAdvanced + 1));
-                nullifyPT2DInstance(true);
+                extendPT2DInstance(); // resume the nearest neighbor search rather than running again
             }
         });
 
@@ -605,7 +633,9 @@ public class PTMainPanelController implements Initializable {
         ptGUIContextMenu.getItems().add(connectMenuItem);
         ptGUIContextMenu.getItems().add(new SeparatorMenuItem());
         ptGUIContextMenu.getItems().add(scriptContextMenuItem);
+        ptGUIContextMenu.getItems().add(memoryPlanMenuItem);
         ptGUIContextMenu.getItems().add(new SeparatorMenuItem());
+        ptGUIContextMenu.getItems().add(nucleiMenuItem);
         ptGUIContextMenu.getItems().add(advancedFeaturesMenuItem);
         settingsButton.setContextMenu(ptGUIContextMenu); // show context menu on right click
         settingsButton.setOnAction(e -> ptGUIContextMenu.show(runButton, Side.RIGHT, 0, 0)); // show context menu on left click
@@ -840,10 +870,10 @@ public class PTMainPanelController implements Initializable {
         String text = noRefCellTextField.getText().trim();
         try {
             double value = Double.parseDouble(text);
-            if (value >= 0 && value <= refCellSliderMaxValue) {
+            if (value >= 0 && value <= noRefCellSlider.getMax()) {
                 noRefCellSlider.setValue(value);
-            } else if (value > refCellSliderMaxValue) {
-                noRefCellSlider.setValue(refCellSliderMaxValue);
+            } else if (value > noRefCellSlider.getMax()) {
+                noRefCellSlider.setValue(noRefCellSlider.getMax());
             } else if (value < 0) {
                 noRefCellSlider.setValue(0);
             }
@@ -919,6 +949,86 @@ public class PTMainPanelController implements Initializable {
         refCustomCollection = new ArrayList<>();
     }
 
+    private Collection<PathObject> getSelectedCellsToAnalyze() {
+        return (cellsToAnalyzeComboBox.getValue() != null && cellsToAnalyzeComboBox.getValue().equals(anaCustomConfirmedName))
+                ? anaCustomCollection
+                : QP.getCellObjects().stream()
+                .filter(cell -> cell.getPathClass() == PathClass.fromString(cellsToAnalyzeComboBox.getValue())) // using .equals() might be better, but it risks NullPointerException
+                .toList();
+    }
+
+    private Collection<PathObject> getSelectedReferenceCells() {
+        return (referenceCellsComboBox.getValue() != null && referenceCellsComboBox.getValue().equals(refCustomConfirmedName))
+                ? refCustomCollection
+                : QP.getCellObjects().stream()
+                .filter(cell -> cell.getPathClass() == PathClass.fromString(referenceCellsComboBox.getValue())) // using .equals() might be better, but it risks NullPointerException
+                .toList();
+    }
+
+    /**
+     * @return the comparison type selected by the keys pressed, as when running (CENTROID is a hidden feature)
+     */
+    private static PT2D.ComparisonType getKeyComparisonType() {
+        return PTKeyListener.areKeysPressed(KeyCode.T) && !PTKeyListener.areKeysPressed(KeyCode.Y, KeyCode.U)
+                ? PT2D.ComparisonType.CENTROID
+                : PT2D.ComparisonType.EDGE;
+    }
+
+    /**
+     * Limit the # reference cells slider to the interactions the current PT2D instance can answer, which may be
+     * fewer than requested if its memory plan reduced them (exclusive queries also need the next neighbor).
+     */
+    private void updateNoRefCellSliderMax() {
+        PT2D instance = pt2DInstance;
+        boolean exclusive = noRefCellLabel.getText().toLowerCase().contains("exclusive");
+        int max = (instance == null)
+                ? refCellSliderMaxValue
+                : Math.max(0, Math.min(refCellSliderMaxValue, instance.getMapSize() - (exclusive ? 2 : 1)));
+        Runnable update = () -> {
+            noRefCellSlider.setMax(max);
+            if (noRefCellSlider.getValue() > max)
+                noRefCellSlider.setValue(max);
+        };
+        if (Platform.isFxApplicationThread())
+            update.run();
+        else
+            Platform.runLater(update);
+    }
+
+    private int getMaxInteractionsToTest() {
+        return advancedFeaturesMenuItem.isSelected() ? refCellSliderMaxValue : 3;
+    }
+
+    /**
+     * Extend the current PT2D instance, if any, to the max interactions to test of the current features
+     * (see {@link PT2D#extendMaxInteractionsToTest(int)}), if larger than requested when it was built. The instance
+     * is kept as it is if the extension does not fit the heap, and discarded if it fails otherwise.
+     */
+    private void extendPT2DInstance() {
+        PT2D instance = pt2DInstance;
+        if (instance == null || getMaxInteractionsToTest() <= instance.getRequestedMaxInteractionsToTest())
+            return; // not more than requested when building (the memory plan may have run fewer)
+
+        int maxInteractionsToTest = getMaxInteractionsToTest();
+        lockGUI();
+        CompletableFuture.runAsync(() -> {
+            try {
+                instance.extendMaxInteractionsToTest(maxInteractionsToTest);
+                updateNoRefCellSliderMax();
+                refreshDisplay();
+            } catch (IllegalStateException ex) { // not enough memory: the instance is still valid as it is
+                logger.warn("PT2D instance not extended: {}", ex.getMessage());
+                Dialogs.showWarningNotification("Session not extended", ex.getMessage());
+            } catch (Exception ex) {
+                logger.error("Error extending PT2D instance: " + ex);
+                Dialogs.showErrorNotification("Error extending session", ex);
+                Platform.runLater(() -> nullifyPT2DInstance(true));
+            } finally {
+                unlockGUI();
+            }
+        });
+    }
+
     private void nullifyPT2DInstance(boolean cleanup) { // TODO: rename to invalidatePT2DInstance()?
         if (pt2DInstance == null)
             return;
@@ -933,6 +1043,75 @@ public class PTMainPanelController implements Initializable {
         addMeasurementsMenuItem.setDisable(true);
         showSessionActive(false);
         this.pt2DInstance = null;
+        this.pt2DConfiguration = null;
+        updateNoRefCellSliderMax();
+    }
+
+    /**
+     * Set the current PT2D instance, if any, aside in the session cache instead of discarding it, so that it is
+     * restored when its image gets the focus back (see {@link #restorePT2DInstance()}). Its display is cleared as
+     * when discarded. Instances of images no longer open, or of custom cell definitions, are discarded.
+     */
+    private void parkPT2DInstance() {
+        PT2D instance = pt2DInstance;
+        String configuration = pt2DConfiguration;
+        nullifyPT2DInstance(true);
+        if (instance == null || configuration == null || !getOpenImages().contains(instance.getImageData()))
+            return;
+        sessionCache.put(instance.getImageData(), configuration, instance, instance.estimateRetainedBytes());
+    }
+
+    /**
+     * Restore the PT2D instance of the focused image (see {@link #restorePT2DInstance()}) once the combo boxes have
+     * settled: {@link #updateComboBoxes()} repopulates them later on the FX thread if the classes differ between
+     * images, which would otherwise end the restored session (and it is no longer in the session cache).
+     */
+    private void restorePT2DInstanceLater() {
+        Platform.runLater(this::restorePT2DInstance); // queued after the repopulation of the combo boxes, if any
+    }
+
+    /**
+     * Restore the session of the focused image and current configuration from the session cache, if any.
+     * The session is extended if advanced features were enabled meanwhile.
+     */
+    private void restorePT2DInstance() {
+        ImageData<BufferedImage> imageData = qupath.getImageData();
+        String configuration = getSessionConfiguration();
+        if (pt2DInstance != null || taskRunning.get() || imageData == null || configuration == null)
+            return;
+        PT2D instance = sessionCache.remove(imageData, configuration);
+        if (instance == null)
+            return;
+
+        logger.info("Restoring session: {}", configuration);
+        this.pt2DInstance = instance;
+        this.pt2DConfiguration = configuration;
+        instance.fireHierarchyUpdateFlag = true; // its display was cleared when set aside
+        lockMenuItem.setDisable(false);
+        addMeasurementsMenuItem.setDisable(false);
+        showSessionActive(true);
+        updateNoRefCellSliderMax();
+        refreshDisplay();
+        extendPT2DInstance();
+    }
+
+    /**
+     * Describe the GUI configuration of a session, as the key of the session cache (with the image).
+     * @return the configuration, or null if a population is a custom cell definition (not kept across focus changes)
+     */
+    private String getSessionConfiguration() {
+        String anaCells = cellsToAnalyzeComboBox.getValue();
+        String refCells = referenceCellsComboBox.getValue();
+        if (anaCells == null || refCells == null || anaCells.equals(anaCustomConfirmedName) || refCells.equals(refCustomConfirmedName))
+            return null;
+        return anaCells + " -> " + refCells + (nucleiMenuItem.isSelected() ? " (nuclei)" : "");
+    }
+
+    private List<ImageData<BufferedImage>> getOpenImages() {
+        return qupath.getAllViewers().stream()
+                .map(QuPathViewer::getImageData)
+                .filter(Objects::nonNull)
+                .toList();
     }
 
     private void refreshDisplay() { // TODO: rename this to refreshQuery() or redoQuery()?
@@ -941,22 +1120,42 @@ public class PTMainPanelController implements Initializable {
 
         double linearValue = Math.exp(distanceThresholdSlider.getValue()) - 1;
         int refValue = (int)Math.round(noRefCellSlider.getValue());
+        query("Refresh", linearValue, refValue);
 
-        if (noRefCellLabel.getText().toLowerCase().contains("exclusive")) {
-            pt2DInstance.exclusive().query(linearValue,
-                    refValue,
-                    highlightMenuItem.isSelected(),
-                    labelMenuItem.isSelected(),
-                    connectMenuItem.isSelected());
+        QP.fireHierarchyUpdate(); // this might be redundant
+    }
+
+    /**
+     * Query the PT2D instance with the current display options, recording a JFR event.
+     * @param trigger the GUI control that triggered the query
+     * @param distanceThreshold
+     * @param noRefCells
+     */
+    private void query(String trigger, double distanceThreshold, int noRefCells) {
+        PTQueryEvent event = new PTQueryEvent();
+        event.begin();
+
+        boolean exclusive = noRefCellLabel.getText().toLowerCase().contains("exclusive");
+        noRefCells = Math.max(0, Math.min(noRefCells, pt2DInstance.getMapSize() - (exclusive ? 2 : 1))); // in case the slider is not updated yet
+        boolean highlight = highlightMenuItem.isSelected();
+        boolean label = labelMenuItem.isSelected();
+        boolean connect = connectMenuItem.isSelected();
+        if (exclusive) {
+            pt2DInstance.exclusive().query(distanceThreshold, noRefCells, highlight, label, connect);
         } else {
-            pt2DInstance.query(linearValue,
-                    refValue,
-                    highlightMenuItem.isSelected(),
-                    labelMenuItem.isSelected(),
-                    connectMenuItem.isSelected());
+            pt2DInstance.query(distanceThreshold, noRefCells, highlight, label, connect);
         }
 
-        QP.fireHierarchyUpdate(); // this might be redundant
+        event.trigger = trigger;
+        event.distanceThreshold = distanceThreshold;
+        event.noRefCells = noRefCells;
+        event.exclusive = exclusive;
+        event.highlight = highlight;
+        event.label = label;
+        event.connect = connect;
+        event.noCellsToAnalyze = pt2DInstance.getNoCellsToAnalyze();
+        event.k = pt2DInstance.getMapSize();
+        event.commit();
     }
 
     private void lockGUI() {
@@ -1008,6 +1207,7 @@ public class PTMainPanelController implements Initializable {
 
     protected void cleanupUponExit() {
         nullifyPT2DInstance(true);
+        sessionCache.clear();
         setDefaultMenuItemChoices();
     }
 
@@ -1081,7 +1281,8 @@ public class PTMainPanelController implements Initializable {
                     .replace("[noRefCells]", String.valueOf((int)noRefCellSlider.getValue()))
                     .replace("[highlight]", String.valueOf(highlightMenuItem.isSelected()))
                     .replace("[label]", String.valueOf(labelMenuItem.isSelected()))
-                    .replace("[connect]", String.valueOf(connectMenuItem.isSelected()));
+                    .replace("[connect]", String.valueOf(connectMenuItem.isSelected()))
+                    .replace("[comparisonROI]", (nucleiMenuItem.isSelected() ? PT2D.ComparisonROI.NUCLEUS : PT2D.ComparisonROI.CELL).name());
 
             String editedScript2 = advancedFeaturesMenuItem.isSelected()
                     ? editedScript1.replace(".setMaxInteractionsToTest(3)", ".setMaxInteractionsToTest(" + refCellSliderMaxValue + ")")
@@ -1162,8 +1363,10 @@ public class PTMainPanelController implements Initializable {
         protected Void call() {
             try  {
                 int batchSize = pathObjectBatch.size();
+                double distanceThreshold = Math.exp(distanceThresholdSlider.getValue()) - 1;
 
                 // Multithreaded (should be thread safe)
+                PTMeasurementBatchEvent measurementsEvent = beginMeasurementBatchEvent("Measurements", distanceThreshold);
                 AtomicInteger atomicCounter = new AtomicInteger(0);
                 Object lock = new Object();
                 pathObjectBatch.parallelStream().forEach(pathObject -> {
@@ -1181,20 +1384,25 @@ public class PTMainPanelController implements Initializable {
                             refCellsAlias,
                             (anaSubsetting == null) ? null : anaSubsetting.apply(pathObject),
                             (refSubsetting == null) ? null : refSubsetting.apply(pathObject),
-                            Math.exp(distanceThresholdSlider.getValue()) - 1);
+                            distanceThreshold);
                 });
+                measurementsEvent.commit();
 
                 if (isQuietlyCancelled() || isCancelled()) return null;
 
                 updateProgress(batchSize - 0.5, batchSize);
                 updateMessage("Adding cell measurements...");
+                PTMeasurementBatchEvent cellMeasurementsEvent = beginMeasurementBatchEvent("Cell measurements", distanceThreshold);
                 pt2DInstance.addCellMeasurements(anaCellsAlias, refCellsAlias, cellMeasurementPrefix);
+                cellMeasurementsEvent.commit();
 
                 if (isQuietlyCancelled() || isCancelled()) return null;
 
                 updateProgress(batchSize, batchSize);
                 updateMessage("Saving...");
+                PTMeasurementBatchEvent saveEvent = beginMeasurementBatchEvent("Save", distanceThreshold);
                 QP.getProjectEntry().saveImageData(QP.getCurrentImageData());
+                saveEvent.commit();
 
             } catch (Exception e) {
                 taskFailed = true;
@@ -1204,6 +1412,24 @@ public class PTMainPanelController implements Initializable {
 
             return null;
         }
+
+        /**
+         * Create and begin a JFR event for a step of this batch.
+         * @param step
+         * @param distanceThreshold
+         * @return the event, to be committed at the end of the step
+         */
+        private PTMeasurementBatchEvent beginMeasurementBatchEvent(String step, double distanceThreshold) {
+            PTMeasurementBatchEvent event = new PTMeasurementBatchEvent();
+            event.step = step;
+            event.noObjects = pathObjectBatch.size();
+            event.distanceThreshold = distanceThreshold;
+            event.noCellsToAnalyze = pt2DInstance.getNoCellsToAnalyze();
+            event.noReferenceCells = pt2DInstance.getNoReferenceCells();
+            event.k = pt2DInstance.getMapSize();
+            event.begin();
+            return event;
+        }
     }
 
 }
@@ -0,0 +1,135 @@
+package qupath.ext.proximity;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Names and puts the measurements of a pair of cell populations (cells to analyze, reference cells) within a
+ * distance threshold, so that {@link PT2D} and {@link PT2DMatrix} add the same measurements from their own counts.
+ * <p>
+ * When the reference cells are the cells to analyze and a cell is not counted as its own neighbor (within a class
+ * of a {@link PT2DMatrix}), the reference population is named "other '...'", as its counts and distances differ
+ * from those of a PT2D comparing the class with itself.
+ */
+final class PTMeasurements {
+
+    private static final Logger logger = LoggerFactory.getLogger(PTMeasurements.class);
+
+    private final BiConsumer<String, Double> measurements;
+    private final String anaName;
+    private final String refName;
+    private final int mapSize;
+    private final String distanceThresholdFormatted;
+
+    /**
+     * Constructor
+     * @param measurements where the measurements are put, e.g., a measurement list
+     * @param anaName name for cells to analyze
+     * @param refName name for reference cells
+     * @param excludeSelf whether the reference cells are the cells to analyze, a cell not being its own neighbor
+     * @param mapSize number of nearest neighbors stored per cell (max interactions to test + 1)
+     * @param distanceThreshold the distance threshold (µm) of the interaction counts
+     */
+    PTMeasurements(BiConsumer<String, Double> measurements,
+                   String anaName,
+                   String refName,
+                   boolean excludeSelf,
+                   int mapSize,
+                   double distanceThreshold) {
+        this.measurements = measurements;
+        this.anaName = "'" + anaName + "'";
+        this.refName = (excludeSelf ? "other '" : "'") + refName + "'";
+        this.mapSize = mapSize;
+        this.distanceThresholdFormatted = " (≤ " + String.format("%.2f", distanceThreshold) + " µm)";
+    }
+
+    /**
+     * Put the total count and area of a population.
+     * @param measurements
+     * @param name
+     * @param count
+     * @param area total area (µm^2)
+     */
+    static void putTotals(BiConsumer<String, Double> measurements, String name, int count, double area) {
+        measurements.accept("Total count of " + name, (double) count);
+        measurements.accept("Total area (µm^2) of " + name, area);
+    }
+
+    /**
+     * Put the counts of cells to analyze by number of interactions.
+     * @param cumulative count with 1 or more interactions
+     * @param exactly count with exactly i interactions, for i up to {@code mapSize - 1}
+     * @param moreThan count with more than {@code mapSize - 1} interactions
+     */
+    void putCounts(int cumulative, int[] exactly, int moreThan) {
+        measurements.accept("Count of " + anaName + " with 1 or more " + refName + " interactions" + distanceThresholdFormatted,
+                (double) cumulative);
+        for (int i = 0; i < mapSize; i++)
+            measurements.accept("Count of " + anaName + exactlyName(i), (double) exactly[i]);
+        measurements.accept("Count of " + anaName + moreThanName(), (double) moreThan);
+    }
+
+    /**
+     * Put the exact interaction totals (radius mode only, as the counts are otherwise capped).
+     * @param noInteractions total number of interactions
+     * @param noCells number of cells to analyze counted
+     */
+    void putInteractions(long noInteractions, int noCells) {
+        measurements.accept("Count of " + anaName + "-" + refName + " interactions" + distanceThresholdFormatted,
+                (double) noInteractions);
+        measurements.accept("Mean number of " + refName + " interactions per " + anaName + distanceThresholdFormatted,
+                noCells == 0 ? Double.NaN : (double) noInteractions / noCells);
+    }
+
+    /**
+     * Put the areas (µm^2) of cells to analyze by number of interactions.
+     * @param cumulative area with 1 or more interactions
+     * @param exactly area with exactly i interactions, for i up to {@code mapSize - 1}
+     * @param moreThan area with more than {@code mapSize - 1} interactions
+     */
+    void putAreas(double cumulative, double[] exactly, double moreThan) {
+        measurements.accept("Area (µm^2) of " + anaName + " with 1 or more " + refName + " interactions" + distanceThresholdFormatted,
+                cumulative);
+        for (int i = 0; i < mapSize; i++)
+            measurements.accept("Area (µm^2) of " + anaName + exactlyName(i), exactly[i]);
+        measurements.accept("Area (µm^2) of " + anaName + moreThanName(), moreThan);
+    }
+
+    /**
+     * Put the descriptive statistics (mean, median, standard deviation, Weibull parameters) of the distances to
+     * the nth nearest neighbors.
+     * @param n the rank (from 0)
+     * @param distances the distances (µm) of the cells to analyze with an nth neighbor
+     * @param context what is measured (e.g., the object the measurements are added to), for logging
+     */
+    void putDistanceStats(int n, List<Double> distances, Object context) {
+        DescriptiveStatistics stats = PTMath.getDescriptiveStatistics(distances);
+        double[] shapeAndScale = null;
+        try {
+            shapeAndScale = PTMath.fitWeibull(distances);
+        } catch (Exception e) {
+            logger.debug("Unable to extract Weibull parameters for {} ({} -> {}): {}", context, anaName, refName, e.toString());
+        }
+
+        String prefix = anaName + ": #" + (n + 1) + " nearest " + refName + " distance (μm): ";
+        measurements.accept(prefix + "mean", stats.getMean());
+        measurements.accept(prefix + "median", stats.getPercentile(50));
+        measurements.accept(prefix + "standard deviation", stats.getStandardDeviation());
+        measurements.accept(prefix + "shape (Weibull parameter)", shapeAndScale == null ? Double.NaN : shapeAndScale[0]);
+        measurements.accept(prefix + "scale (Weibull parameter)", shapeAndScale == null ? Double.NaN : shapeAndScale[1]);
+    }
+
+    private String exactlyName(int i) {
+        return " with exactly " + i + " " + refName + " " + ((i == 1) ? "interaction" : "interactions") + distanceThresholdFormatted;
+    }
+
+    private String moreThanName() {
+        return " with more than " + (mapSize - 1) + " " + refName + " "
+                + ((mapSize - 1 == 1) ? "interaction" : "interactions") + distanceThresholdFormatted;
+    }
+
+}
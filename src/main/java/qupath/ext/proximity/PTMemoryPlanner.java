@@ -0,0 +1,494 @@
+package qupath.ext.proximity;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.*;
+
+/**
+ * Pre-flight estimator for the heap footprint of a PT2D instance. The estimate is made from the population sizes,
+ * the number of interactions to test and the display options, before anything is allocated. If the estimate
+ * exceeds the budget, the planner degrades the analysis (no connections, then no labels, then, only if allowed,
+ * fewer interactions to test) until it fits, or refuses it. Dropping display items does not change the
+ * measurements, whereas fewer interactions to test changes their names, so the latter needs an explicit opt-in.
+ * <p>
+ * Per-object sizes are rough averages for a 64-bit JVM with compressed references, so plans should be read as
+ * orders of magnitude rather than exact figures.
+ */
+public class PTMemoryPlanner {
+
+    /**
+     * Bytes retained per target cell regardless of rank (neighbor tracker, map and set entries, array headers).
+     */
+    static final long BYTES_PER_TARGET = 200;
+    /**
+     * Bytes retained per target cell and rank (tracker array slots and, in the worst case of distinct distances,
+     * one tree map entry with a boxed distance and a single-element set).
+     */
+    static final long BYTES_PER_TARGET_RANK = 200;
+    /**
+     * Bytes retained per reference cell regardless of its outline (index slots, R-tree item and envelope,
+     * set entry).
+     */
+    static final long BYTES_PER_REFERENCE = 160;
+    /**
+     * Additional bytes per reference cell when comparing centroids (precomputed centroid point).
+     */
+    static final long BYTES_PER_REFERENCE_CENTROID = 110;
+    /**
+     * Bytes per geometry (polygon, ring and coordinate sequence headers) and per vertex of a reference
+     * geometry held by the index.
+     */
+    static final long BYTES_PER_GEOMETRY = 150;
+    static final long BYTES_PER_VERTEX = 44;
+    /**
+     * Bytes per label (point annotation) and per connection (line annotation with its metadata and tracker).
+     */
+    static final long BYTES_PER_LABEL = 300;
+    static final long BYTES_PER_CONNECTION = 350;
+    /**
+     * Bytes per neighbor stored in radius mode (distance and reference slots of the packed arrays, and of the
+     * per-cell arrays they are packed from).
+     */
+    static final long BYTES_PER_RADIUS_NEIGHBOR = 24;
+    /**
+     * Bytes per object of a hierarchy (object, measurement list and ROI headers), and per vertex of its ROIs.
+     */
+    static final long BYTES_PER_HIERARCHY_OBJECT = 600;
+    static final long BYTES_PER_HIERARCHY_VERTEX = 32;
+    /**
+     * Heap bytes of a hierarchy per byte of the data file it is read from.
+     */
+    static final long HIERARCHY_BYTES_PER_DATA_BYTE = 4;
+    /**
+     * Fraction of the available heap used as the default budget.
+     */
+    static final double DEFAULT_HEADROOM = 0.9;
+    /**
+     * Maximum number of reference cells sampled to estimate the average number of vertices.
+     */
+    private static final int VERTEX_SAMPLE_SIZE = 1000;
+    /**
+     * Maximum number of columns and rows of the grid used to estimate the local density of reference cells.
+     */
+    private static final int MAX_DENSITY_GRID_SIZE = 2048;
+
+    public enum Decision {
+        /** the analysis fits as requested */
+        RUN,
+        /** the analysis fits only after degradation (see {@link Plan#steps()}) */
+        DEGRADE,
+        /** the analysis does not fit, even after degradation (if allowed) */
+        REFUSE
+    }
+
+    /**
+     * A memory plan.
+     * @param decision whether to run as requested, degrade, or refuse
+     * @param budgetBytes the heap budget
+     * @param requestedBytes estimated footprint of the analysis as requested
+     * @param estimatedBytes estimated footprint of the analysis as planned
+     * @param maxInteractionsToTest the max interactions to test as planned
+     * @param labels whether labels may be displayed
+     * @param connections whether connections may be displayed
+     * @param steps human-readable description of the degradation steps (empty if none)
+     */
+    public record Plan(Decision decision,
+                       long budgetBytes,
+                       long requestedBytes,
+                       long estimatedBytes,
+                       int maxInteractionsToTest,
+                       boolean labels,
+                       boolean connections,
+                       List<String> steps) {
+
+        /**
+         * @return a multi-line description of the plan, e.g., to show before running
+         */
+        public String describe() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Estimated memory: ").append(formatBytes(requestedBytes))
+                    .append(" (budget: ").append(formatBytes(budgetBytes)).append(")");
+            switch (decision) {
+                case RUN -> sb.append("\nThe analysis fits as requested.");
+                case DEGRADE -> {
+                    sb.append("\nTo fit, the analysis will be degraded:");
+                    steps.forEach(step -> sb.append("\n - ").append(step));
+                    sb.append("\nEstimated memory after degradation: ").append(formatBytes(estimatedBytes));
+                }
+                case REFUSE -> {
+                    sb.append("\nThe analysis does not fit");
+                    if (!steps.isEmpty()) {
+                        sb.append(", even after:");
+                        steps.forEach(step -> sb.append("\n - ").append(step));
+                    } else {
+                        sb.append(".");
+                    }
+                    sb.append("\nConsider analyzing fewer cells (e.g., by TMA core or region) or increasing the maximum heap.");
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private PTMemoryPlanner() {}
+
+    /**
+     * Get the heap currently available to the JVM. This includes garbage that has not yet been collected as used,
+     * so it errs on the conservative side.
+     * @return available heap in bytes
+     */
+    public static long getAvailableHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * @return the default budget, i.e., a fraction of the available heap
+     */
+    public static long getDefaultBudget() {
+        return (long) (getAvailableHeap() * DEFAULT_HEADROOM);
+    }
+
+    /**
+     * Estimate the average number of vertices of the cells' ROIs from a sample.
+     * @param cells
+     * @return the average number of vertices (0 if there are no cells)
+     */
+    public static double getAverageVertices(Collection<PathObject> cells) {
+        return getAverageVertices(cells, PT2D.ComparisonROI.CELL);
+    }
+
+    /**
+     * Estimate the average number of vertices of the compared ROIs of the cells (e.g., nuclei) from a sample.
+     * @param cells
+     * @param comparisonROI the ROI of each cell compared
+     * @return the average number of vertices (0 if there are no cells)
+     */
+    public static double getAverageVertices(Collection<PathObject> cells, PT2D.ComparisonROI comparisonROI) {
+        if (cells.isEmpty())
+            return 0;
+        int step = Math.max(1, cells.size() / VERTEX_SAMPLE_SIZE);
+        long noVertices = 0;
+        int noSampled = 0;
+        int i = 0;
+        for (PathObject cell : cells) {
+            if (i++ % step != 0)
+                continue;
+            ROI roi = comparisonROI.getROI(cell);
+            noVertices += (roi == null) ? 0 : roi.getNumPoints();
+            noSampled++;
+        }
+        return (double) noVertices / noSampled;
+    }
+
+    /**
+     * Estimate the number of neighbors stored in radius mode, i.e., of (cell to analyze, reference cell) pairs
+     * within the radius, from the local density of reference cells around a sample of the cells to analyze, so that
+     * dense infiltrates count as such. Cells are counted by centroid, within the radius plus the average cell sizes
+     * when comparing edges. TMA cores are not taken into account, so pairs across cores are counted too.
+     * @param cellsToAnalyze
+     * @param referenceCells
+     * @param comparisonROI the ROI of each cell compared
+     * @param comparisonType
+     * @param radius the radius (in pixels)
+     * @return the estimated number of neighbors (0 if the radius is 0)
+     */
+    public static long estimateRadiusNeighbors(Collection<PathObject> cellsToAnalyze,
+                                               Collection<PathObject> referenceCells,
+                                               PT2D.ComparisonROI comparisonROI,
+                                               PT2D.ComparisonType comparisonType,
+                                               double radius) {
+        if (radius <= 0 || cellsToAnalyze.isEmpty() || referenceCells.isEmpty())
+            return 0;
+        double reach = radius;
+        if (comparisonType == PT2D.ComparisonType.EDGE)
+            reach += getAverageHalfExtent(cellsToAnalyze, comparisonROI) + getAverageHalfExtent(referenceCells, comparisonROI);
+
+        // count the reference cells per grid cell (at least the reach wide, so that the 3x3 block around a cell
+        // covers the disc within reach)
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (PathObject cell : referenceCells) {
+            ROI roi = comparisonROI.getROI(cell);
+            if (roi == null)
+                continue;
+            minX = Math.min(minX, roi.getCentroidX());
+            minY = Math.min(minY, roi.getCentroidY());
+            maxX = Math.max(maxX, roi.getCentroidX());
+            maxY = Math.max(maxY, roi.getCentroidY());
+        }
+        if (minX > maxX)
+            return 0;
+        double gridCellSize = Math.max(reach, Math.max(maxX - minX, maxY - minY) / MAX_DENSITY_GRID_SIZE);
+        int noColumns = (int) ((maxX - minX) / gridCellSize) + 1;
+        int noRows = (int) ((maxY - minY) / gridCellSize) + 1;
+        int[] counts = new int[noColumns * noRows];
+        for (PathObject cell : referenceCells) {
+            ROI roi = comparisonROI.getROI(cell);
+            if (roi != null)
+                counts[(int) ((roi.getCentroidY() - minY) / gridCellSize) * noColumns + (int) ((roi.getCentroidX() - minX) / gridCellSize)]++;
+        }
+
+        int step = Math.max(1, cellsToAnalyze.size() / VERTEX_SAMPLE_SIZE);
+        double noNeighbors = 0;
+        int noSampled = 0;
+        int i = 0;
+        for (PathObject cell : cellsToAnalyze) {
+            if (i++ % step != 0)
+                continue;
+            noSampled++;
+            ROI roi = comparisonROI.getROI(cell);
+            if (roi == null)
+                continue;
+            int column = (int) Math.floor((roi.getCentroidX() - minX) / gridCellSize);
+            int row = (int) Math.floor((roi.getCentroidY() - minY) / gridCellSize);
+            long count = 0;
+            for (int r = Math.max(0, row - 1); r <= Math.min(noRows - 1, row + 1); r++) {
+                for (int c = Math.max(0, column - 1); c <= Math.min(noColumns - 1, column + 1); c++) {
+                    count += counts[r * noColumns + c];
+                }
+            }
+            noNeighbors += Math.min(count, count / (9 * gridCellSize * gridCellSize) * Math.PI * reach * reach);
+        }
+        return (long) Math.ceil(noNeighbors / noSampled * cellsToAnalyze.size());
+    }
+
+    /**
+     * @return the average half of the bounds width and height of the compared ROIs of a sample of the cells
+     */
+    private static double getAverageHalfExtent(Collection<PathObject> cells, PT2D.ComparisonROI comparisonROI) {
+        int step = Math.max(1, cells.size() / VERTEX_SAMPLE_SIZE);
+        double extent = 0;
+        int noSampled = 0;
+        int i = 0;
+        for (PathObject cell : cells) {
+            if (i++ % step != 0)
+                continue;
+            ROI roi = comparisonROI.getROI(cell);
+            if (roi == null)
+                continue;
+            extent += (roi.getBoundsWidth() + roi.getBoundsHeight()) / 4;
+            noSampled++;
+        }
+        return noSampled == 0 ? 0 : extent / noSampled;
+    }
+
+    /**
+     * Estimate the heap footprint of a hierarchy once read, from its objects (sampled for their vertices, including
+     * the nuclei of cells).
+     * @param hierarchy
+     * @return estimated bytes
+     */
+    public static long estimateHierarchyBytes(PathObjectHierarchy hierarchy) {
+        Collection<PathObject> objects = hierarchy.getAllObjects(false);
+        List<PathObject> cells = objects.stream().filter(PathObject::isCell).toList();
+        double averageNucleusVertices = cells.isEmpty() ? 0 : getAverageVertices(cells, PT2D.ComparisonROI.NUCLEUS);
+        return (long) objects.size() * (BYTES_PER_HIERARCHY_OBJECT + (long) (BYTES_PER_HIERARCHY_VERTEX * getAverageVertices(objects)))
+                + (long) cells.size() * (long) (BYTES_PER_HIERARCHY_VERTEX * averageNucleusVertices);
+    }
+
+    /**
+     * Estimate the heap footprint of a hierarchy before reading it.
+     * @param dataFileBytes size of the data file the hierarchy is read from
+     * @return estimated bytes
+     */
+    public static long estimateHierarchyBytes(long dataFileBytes) {
+        return dataFileBytes * HIERARCHY_BYTES_PER_DATA_BYTE;
+    }
+
+    /**
+     * Estimate the heap footprint of a PT2D instance.
+     * @param noAna number of cells to analyze
+     * @param noRef number of reference cells
+     * @param averageRefVertices average number of vertices of the reference cells
+     * @param mapSize number of nearest neighbors stored per cell (max interactions to test + 1)
+     * @param comparisonType
+     * @param labels whether labels will be displayed
+     * @param connections whether connections will be displayed
+     * @return estimated bytes
+     */
+    public static long estimateBytes(int noAna,
+                                     int noRef,
+                                     double averageRefVertices,
+                                     int mapSize,
+                                     PT2D.ComparisonType comparisonType,
+                                     boolean labels,
+                                     boolean connections) {
+        return estimateBytes(noAna, noRef, averageRefVertices, mapSize, comparisonType, labels, connections, 0);
+    }
+
+    /**
+     * Estimate the heap footprint of a PT2D instance.
+     * @param noAna number of cells to analyze
+     * @param noRef number of reference cells
+     * @param averageRefVertices average number of vertices of the reference cells
+     * @param mapSize number of nearest neighbors stored per cell (max interactions to test + 1)
+     * @param comparisonType
+     * @param labels whether labels will be displayed
+     * @param connections whether connections will be displayed
+     * @param noRadiusNeighbors number of neighbors stored in radius mode (see
+     *                          {@link #estimateRadiusNeighbors(Collection, Collection, PT2D.ComparisonROI, PT2D.ComparisonType, double)}),
+     *                          otherwise 0
+     * @return estimated bytes
+     */
+    public static long estimateBytes(int noAna,
+                                     int noRef,
+                                     double averageRefVertices,
+                                     int mapSize,
+                                     PT2D.ComparisonType comparisonType,
+                                     boolean labels,
+                                     boolean connections,
+                                     long noRadiusNeighbors) {
+        long bytes = noRadiusNeighbors * BYTES_PER_RADIUS_NEIGHBOR;
+        bytes += = (long) noAna * (BYTES_PER_TARGET + BYTES_PER_TARGET_RANK * mapSize);
+        bytes += (long) noRef * (BYTES_PER_REFERENCE + BYTES_PER_GEOMETRY + (long) (BYTES_PER_VERTEX * averageRefVertices));
+        if (comparisonType == PT2D.ComparisonType.CENTROID)
+            bytes += (long) noRef * BYTES_PER_REFERENCE_CENTROID;
+        if (labels)
+            bytes += (long) noAna * BYTES_PER_LABEL;
+        if (connections)
+            bytes += (long) noAna * mapSize * BYTES_PER_CONNECTION;
+        return bytes;
+    }
+
+    /**
+     * Estimate the heap footprint of a PT2D instance.
+     * @param cellsToAnalyze
+     * @param referenceCells
+     * @param mapSize number of nearest neighbors stored per cell (max interactions to test + 1)
+     * @param comparisonType
+     * @param labels whether labels will be displayed
+     * @param connections whether connections will be displayed
+     * @return estimated bytes
+     */
+    public static long estimateBytes(Collection<PathObject> cellsToAnalyze,
+                                     Collection<PathObject> referenceCells,
+                                     int mapSize,
+                                     PT2D.ComparisonType comparisonType,
+                                     boolean labels,
+                                     boolean connections) {
+        return estimateBytes(cellsToAnalyze.size(), referenceCells.size(), getAverageVertices(referenceCells),
+                mapSize, comparisonType, labels, connections);
+    }
+
+    /**
+     * Plan a PT2D analysis within a heap budget.
+     * @param noAna number of cells to analyze
+     * @param noRef number of reference cells
+     * @param averageRefVertices average number of vertices of the reference cells
+     * @param maxInteractionsToTest
+     * @param comparisonType
+     * @param labels whether labels are requested
+     * @param connections whether connections are requested
+     * @param budgetBytes the heap budget
+     * @param reduceInteractions whether the max interactions to test may be reduced to fit (labels and connections
+     *                           may always be dropped)
+     * @return the plan
+     */
+    public static Plan plan(int noAna,
+                            int noRef,
+                            double averageRefVertices,
+                            int maxInteractionsToTest,
+                            PT2D.ComparisonType comparisonType,
+                            boolean labels,
+                            boolean connections,
+                            long budgetBytes,
+                            boolean reduceInteractions) {
+        return plan(noAna, noRef, averageRefVertices, maxInteractionsToTest, comparisonType, labels, connections, 0,
+                budgetBytes, reduceInteractions);
+    }
+
+    /**
+     * Plan a PT2D analysis within a heap budget. The neighbors stored in radius mode do not depend on the max
+     * interactions to test, so reducing it may not be enough.
+     * @param noAna number of cells to analyze
+     * @param noRef number of reference cells
+     * @param averageRefVertices average number of vertices of the reference cells
+     * @param maxInteractionsToTest
+     * @param comparisonType
+     * @param labels whether labels are requested
+     * @param connections whether connections are requested
+     * @param noRadiusNeighbors number of neighbors stored in radius mode, otherwise 0
+     * @param budgetBytes the heap budget
+     * @param reduceInteractions whether the max interactions to test may be reduced to fit (labels and connections
+     *                           may always be dropped)
+     * @return the plan
+     */
+    public static Plan plan(int noAna,
+                            int noRef,
+                            double averageRefVertices,
+                            int maxInteractionsToTest,
+                            PT2D.ComparisonType comparisonType,
+                            boolean labels,
+                            boolean connections,
+                            long noRadiusNeighbors,
+                            long budgetBytes,
+                            boolean reduceInteractions) {
+        long requestedBytes = estimateBytes(noAna, noRef, averageRefVertices, maxInteractionsToTest + 1,
+                comparisonType, labels, connections, noRadiusNeighbors);
+        if (requestedBytes <= budgetBytes)
+            return new Plan(Decision.RUN, budgetBytes, requestedBytes, requestedBytes, maxInteractionsToTest,
+                    labels, connections, Collections.emptyList());
+        List<String> steps = new ArrayList<>();
+        int plannedInteractions = maxInteractionsToTest;
+        long estimatedBytes = requestedBytes;
+
+        // connections scale with N×k, so they go first
+        if (connections) {
+            connections = false;
+            steps.add("Connections will not be displayed");
+            estimatedBytes = estimateBytes(noAna, noRef, averageRefVertices, plannedInteractions + 1,
+                    comparisonType, labels, false, noRadiusNeighbors);
+        }
+        if (estimatedBytes > budgetBytes && labels) {
+            labels = false;
+            steps.add("Labels will not be displayed");
+            estimatedBytes = estimateBytes(noAna, noRef, averageRefVertices, plannedInteractions + 1,
+                    comparisonType, false, false, noRadiusNeighbors);
+        }
+        while (reduceInteractions && estimatedBytes > budgetBytes && plannedInteractions > 0) {
+            plannedInteractions--;
+            estimatedBytes = estimateBytes(noAna, noRef, averageRefVertices, plannedInteractions + 1,
+                    comparisonType, false, false, noRadiusNeighbors);
+        }
+        if (plannedInteractions < maxInteractionsToTest)
+            steps.add("Max interactions to test will be reduced from " + maxInteractionsToTest + " to " + plannedInteractions);
+
+        return new Plan(estimatedBytes <= budgetBytes ? Decision.DEGRADE : Decision.REFUSE,
+                budgetBytes, requestedBytes, estimatedBytes, plannedInteractions, labels, connections, List.copyOf(steps));
+    }
+
+    /**
+     * Plan a PT2D analysis within a heap budget.
+     * @param cellsToAnalyze
+     * @param referenceCells
+     * @param maxInteractionsToTest
+     * @param comparisonType
+     * @param labels whether labels are requested
+     * @param connections whether connections are requested
+     * @param budgetBytes the heap budget
+     * @param reduceInteractions whether the max interactions to test may be reduced to fit (labels and connections
+     *                           may always be dropped)
+     * @return the plan
+     */
+    public static Plan plan(Collection<PathObject> cellsToAnalyze,
+                            Collection<PathObject> referenceCells,
+                            int maxInteractionsToTest,
+                            PT2D.ComparisonType comparisonType,
+                            boolean labels,
+                            boolean connections,
+                            long budgetBytes,
+                            boolean reduceInteractions) {
+        return plan(cellsToAnalyze.size(), referenceCells.size(), getAverageVertices(referenceCells),
+                maxInteractionsToTest, comparisonType, labels, connections, budgetBytes, reduceInteractions);
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes >= 1L << 30)
+            return String.format("%.1f GB", bytes / (double) (1L << 30));
+        return String.format("%.0f MB", bytes / (double) (1L << 20));
+    }
+
+}
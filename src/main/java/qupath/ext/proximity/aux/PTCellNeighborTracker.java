@@ -1,9 +1,9 @@
 package qupath.ext.proximity.aux;
 
 import org.locationtech.jts.geom.Geometry;
-import qupath.lib.gui.scripting.QPEx;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
 import qupath.lib.roi.ROIs;
 import qupath.lib.roi.interfaces.ROI;
 
@@ -20,46 +20,162 @@ public class PTCellNeighborTracker {
      */
     private final PathObject cell;
     /**
-     * Integer-Double Nearest Neighbors Map.<br>
-     * Key = n;
-     * Value = distance to nth nearest neighbor
+     * Distances to the nearest neighbors, indexed by n (i.e., index n = distance to nth nearest neighbor).
+     * Stored as a primitive array so that ranks can be iterated by index without boxing.
      */
-    private final Map<Integer, Double> intDoubleNNMap = new HashMap<>();
+    private double[] distances;
     /**
-     * Geometry-Double Nearest Neighbors Map.<br>
-     * Key = geometry;
-     * Value = distance to geometry
+     * Geometries of the nearest neighbors, indexed by n in parallel with {@code distances}.
      */
-    private final Map<Geometry, Double> geomDoubleNNMap = new HashMap<>();
+    private Geometry[] geometries;
     /**
-     * Point object at the cell's centroid, which can be used to display labels.
+     * Nearest neighbor (reference) cells, indexed by n in parallel with {@code distances}. Entries may
+     * be null if the identity of the neighbor was not provided.
      */
-    private final PathObject centroidPoint;
+    private PathObject[] neighbors;
+    /**
+     * Ordinals of the nearest neighbors in the reference index they were found in, indexed by n in parallel with
+     * {@code distances}. Entries are -1 if the ordinal was not provided. Used to resume the search for more
+     * neighbors without repeating it.
+     */
+    private int[] ordinals;
+    /**
+     * Number of filled ranks. Ranks are expected to be filled contiguously from n = 0.
+     */
+    private int size = 0;
+    /**
+     * Plane on which to create display objects.
+     */
+    private final ImagePlane plane;
+    /**
+     * Point object at the cell's centroid, which can be used to display labels. Created lazily since it is
+     * only needed for display.
+     */
+    private volatile PathObject centroidPoint;
 
     /**
      * Constructor
      * @param cell the cell object representing the data to be added
+     * @param capacity expected number of nearest neighbors to be stored (the storage will grow if exceeded)
+     * @param plane plane on which to create display objects
      */
-    public PTCellNeighborTracker(PathObject cell) {
+    public PTCellNeighborTracker(PathObject cell, int capacity, ImagePlane plane) {
         this.cell = cell;
-        ROI roi = ROIs.createLineROI(cell.getROI().getCentroidX(), cell.getROI().getCentroidY(), QPEx.getCurrentViewer().getImagePlane()); // a 0-length line looks better than a point
-        PathObject pointObject = PathObjects.createAnnotationObject(roi);
-        this.centroidPoint = pointObject;
+        this.distances = new double[Math.max(capacity, 0)];
+        this.geometries = new Geometry[Math.max(capacity, 0)];
+        this.neighbors = new PathObject[Math.max(capacity, 0)];
+        this.ordinals = new int[Math.max(capacity, 0)];
+        this.plane = plane;
+    }
+
+    /**
+     * Constructor
+     * @param cell the cell object representing the data to be added
+     */
+    public PTCellNeighborTracker(PathObject cell) {
+        this(cell, 0, ImagePlane.getDefaultPlane());
     }
 
     /**
      * Add nearest neighbor data to the tracker.
-     * WARNING: for efficiency, this method will not check if existing keys in
-     * {@code nearestNeighborsByN} and {@code nearestNeighborsByGeom} are being
-     * overridden, which may desync the maps.
+     * WARNING: for efficiency, this method will not check if an existing nth nearest
+     * neighbor is being overridden.
+     *
+     * @param n representing nth nearest neighbor
+     * @param geometry geometry of the nth nearest neighbor
+     * @param distance distance to the nth nearest neighbor
+     */
+    public void addData(int n, Geometry geometry, double distance) {
+        addData(n, null, geometry, distance);
+    }
+
+    /**
+     * Add nearest neighbor data to the tracker, including the identity of the neighbor.
+     * WARNING: for efficiency, this method will not check if an existing nth nearest
+     * neighbor is being overridden.
+     *
+     * @param n representing nth nearest neighbor
+     * @param neighbor the nth nearest neighbor (reference) cell
+     * @param geometry geometry of the nth nearest neighbor
+     * @param distance distance to the nth nearest neighbor
+     */
+    public void addData(int n, PathObject neighbor, Geometry geometry, double distance) {
+        addData(n, -1, neighbor, geometry, distance);
+    }
+
+    /**
+     * Add nearest neighbor data to the tracker, including the identity of the neighbor and its ordinal in
+     * the reference index.
+     * WARNING: for efficiency, this method will not check if an existing nth nearest
+     * neighbor is being overridden.
      *
      * @param n representing nth nearest neighbor
+     * @param ordinal ordinal of the nth nearest neighbor in the reference index
+     * @param neighbor the nth nearest neighbor (reference) cell
      * @param geometry geometry of the nth nearest neighbor
      * @param distance distance to the nth nearest neighbor
      */
-    public synchronized void addData(int n, Geometry geometry, double distance) { // synchronize to ensure thread safety
-        intDoubleNNMap.put(n, distance);
-        geomDoubleNNMap.put(geometry, distance);
+    public synchronized void addData(int n, int ordinal, PathObject neighbor, Geometry geometry, double distance) { // synchronize to ensure thread safety
+        if (n >= distances.length) {
+            int newCapacity = Math.max(n + 1, distances.length * 2);
+            distances = Arrays.copyOf(distances, newCapacity);
+            geometries = Arrays.copyOf(geometries, newCapacity);
+            neighbors = Arrays.copyOf(neighbors, newCapacity);
+            ordinals = Arrays.copyOf(ordinals, newCapacity);
+        }
+        distances[n] = distance;
+        geometries[n] = geometry;
+        neighbors[n] = neighbor;
+        ordinals[n] = ordinal;
+        size = Math.max(size, n + 1);
+    }
+
+    /**
+     * Get the number of nearest neighbors stored.
+     * @return the number of nearest neighbors
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the distance to the nth nearest neighbor as a primitive. The caller is responsible for
+     * checking that {@code n < size()}.
+     * @param n
+     * @return distance to the nth nearest neighbor
+     */
+    public double getDistance(int n) {
+        return distances[n];
+    }
+
+    /**
+     * Get the geometry of the nth nearest neighbor. The caller is responsible for
+     * checking that {@code n < size()}.
+     * @param n
+     * @return geometry of the nth nearest neighbor
+     */
+    public Geometry getGeometry(int n) {
+        return geometries[n];
+    }
+
+    /**
+     * Get the nth nearest neighbor (reference) cell. The caller is responsible for
+     * checking that {@code n < size()}.
+     * @param n
+     * @return the nth nearest neighbor, or null if its identity was not provided
+     */
+    public PathObject getNeighbor(int n) {
+        return neighbors[n];
+    }
+
+    /**
+     * Get the ordinal of the nth nearest neighbor in the reference index. The caller is responsible for
+     * checking that {@code n < size()}.
+     * @param n
+     * @return the ordinal, or -1 if it was not provided
+     */
+    public int getOrdinal(int n) {
+        return ordinals[n];
     }
 
     /**
@@ -67,7 +183,11 @@ public class PTCellNeighborTracker {
      * @return unmodifiable set of nearest geometries
      */
     public Set<Geometry> getGeometrySet() {
-        return Collections.unmodifiableSet(geomDoubleNNMap.keySet());
+        Set<Geometry> geometrySet = new LinkedHashSet<>();
+        for (int n = 0; n < size; n++) {
+            geometrySet.add(geometries[n]);
+        }
+        return Collections.unmodifiableSet(geometrySet);
     }
 
     /**
@@ -77,7 +197,7 @@ public class PTCellNeighborTracker {
      * Null will be returned if the nth nearest neighbor does not exist.
      */
     public Double getDistanceByN(int n) {
-        return intDoubleNNMap.get(n);
+        return (n >= 0 && n < size) ? distances[n] : null;
     }
 
     /**
@@ -87,14 +207,25 @@ public class PTCellNeighborTracker {
      * Null will be returned if the geometry does not exist.
      */
     public Double getDistanceByGeom(Geometry geometry) {
-        return geomDoubleNNMap.get(geometry);
+        for (int n = 0; n < size; n++) {
+            if (geometries[n] == geometry) return distances[n];
+        }
+        return null;
     }
 
     public Map<Integer, Double> getIntDoubleNNMap() {
+        Map<Integer, Double> intDoubleNNMap = new LinkedHashMap<>();
+        for (int n = 0; n < size; n++) {
+            intDoubleNNMap.put(n, distances[n]);
+        }
         return Collections.unmodifiableMap(intDoubleNNMap);
     }
 
     public Map<Geometry, Double> getGeomDoubleNNMap() {
+        Map<Geometry, Double> geomDoubleNNMap = new LinkedHashMap<>();
+        for (int n = 0; n < size; n++) {
+            geomDoubleNNMap.put(geometries[n], distances[n]);
+        }
         return Collections.unmodifiableMap(geomDoubleNNMap);
     }
 
@@ -103,6 +234,17 @@ public class PTCellNeighborTracker {
     }
 
     public PathObject getCentroidPoint() {
-        return centroidPoint;
+        PathObject pointObject = centroidPoint;
+        if (pointObject == null) {
+            synchronized (this) {
+                pointObject = centroidPoint;
+                if (pointObject == null) {
+                    ROI roi = ROIs.createLineROI(cell.getROI().getCentroidX(), cell.getROI().getCentroidY(), plane); // a 0-length line looks better than a point
+                    pointObject = PathObjects.createAnnotationObject(roi);
+                    centroidPoint = pointObject;
+                }
+            }
+        }
+        return pointObject;
     }
 }
@@ -0,0 +1,192 @@
+package qupath.ext.proximity.aux;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Data structure to work with {@link qupath.ext.proximity.PT2D} to record the durations of its phases and
+ * operations (in nanoseconds) together with work counters. Each PT2D instance owns one, available via
+ * {@code PT2D.getMetrics()}. Thread safe.
+ */
+public class PTMetrics {
+
+    /**
+     * Timed phases and operations. Initialization phases are normally recorded once; queries and measurement
+     * batches are recorded every time they run.
+     */
+    public enum Timer {
+        /** building the reference index(es) */
+        REFERENCE_INDEX,
+        /** nearest neighbor search for all cells to analyze */
+        NEAREST_NEIGHBORS,
+        /** building the tree maps used by queries */
+        TREE_MAPS,
+        /** the whole initialization */
+        INITIALIZE,
+        /** resuming the nearest neighbor search to increase the max interactions to test */
+        EXTEND_NEIGHBORS,
+        /** creating the line annotations (connections) */
+        CONNECTIONS,
+        /** a single query (including the queries made internally, e.g., by measurements) */
+        QUERY,
+        /** adding measurements to one object (e.g., a TMA core) */
+        MEASUREMENTS,
+        /** adding nearest neighbor distances to the cells' measurement lists */
+        CELL_MEASUREMENTS
+    }
+
+    private final Map<Timer, TimerData> timers = new LinkedHashMap<>();
+    private final LongAdder distanceEvaluations = new LongAdder();
+    private final LongAdder prunedCandidates = new LongAdder();
+    private final LongAccumulator peakCandidateSetSize = new LongAccumulator(Math::max, 0);
+
+    public PTMetrics() {
+        for (Timer timer : Timer.values()) {
+            timers.put(timer, new TimerData());
+        }
+    }
+
+    private static class TimerData {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private volatile long lastNanos = 0;
+    }
+
+    /**
+     * Get a start time to pass to {@link #record(Timer, long)}.
+     * @return the current value of {@link System#nanoTime()}
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record an operation that started at {@code startNanos}.
+     * @param timer
+     * @param startNanos value returned by {@link #start()}
+     * @return the duration of the operation (ns)
+     */
+    public long record(Timer timer, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        TimerData data = timers.get(timer);
+        data.count.increment();
+        data.totalNanos.add(nanos);
+        data.maxNanos.accumulate(nanos);
+        data.lastNanos = nanos;
+        return nanos;
+    }
+
+    /**
+     * Record the work of one nearest neighbor search.
+     * @param noDistanceEvaluations number of exact distances evaluated for the search, which is also the size of its
+     *                              candidate set
+     */
+    public void recordSearch(int noDistanceEvaluations) {
+        recordSearch(noDistanceEvaluations, 0);
+    }
+
+    /**
+     * Record the work of one nearest neighbor search that pruned candidates with lower bounds.
+     * @param noDistanceEvaluations number of exact distances evaluated for the search
+     * @param noPrunedCandidates number of candidates discarded by their lower bound, without an exact distance
+     */
+    public void recordSearch(int noDistanceEvaluations, int noPrunedCandidates) {
+        distanceEvaluations.add(noDistanceEvaluations);
+        prunedCandidates.add(noPrunedCandidates);
+        peakCandidateSetSize.accumulate(noDistanceEvaluations);
+    }
+
+    public long getCount(Timer timer) {
+        return timers.get(timer).count.sum();
+    }
+
+    public long getTotalNanos(Timer timer) {
+        return timers.get(timer).totalNanos.sum();
+    }
+
+    public long getMaxNanos(Timer timer) {
+        return timers.get(timer).maxNanos.get();
+    }
+
+    public long getLastNanos(Timer timer) {
+        return timers.get(timer).lastNanos;
+    }
+
+    /**
+     * @return the total number of exact distances evaluated by the nearest neighbor searches
+     */
+    public long getDistanceEvaluations() {
+        return distanceEvaluations.sum();
+    }
+
+    /**
+     * @return the total number of candidates discarded by their lower bound without an exact distance (0 unless
+     * the neighbor engine prunes)
+     */
+    public long getPrunedCandidates() {
+        return prunedCandidates.sum();
+    }
+
+    /**
+     * @return the ratio of exact distance evaluations to pruned candidates, or NaN if nothing was pruned
+     */
+    public double getExactToPrunedRatio() {
+        long pruned = getPrunedCandidates();
+        return pruned == 0 ? Double.NaN : (double) getDistanceEvaluations() / pruned;
+    }
+
+    /**
+     * @return the largest number of candidates evaluated exactly by a single nearest neighbor search
+     */
+    public long getPeakCandidateSetSize() {
+        return peakCandidateSetSize.get();
+    }
+
+    /**
+     * Get a machine-readable summary of the metrics. For each timer, the keys are prefixed by the timer name
+     * in lower case (e.g., {@code query_count}, {@code query_total_ns}, {@code query_max_ns}, {@code query_last_ns}).
+     * All values are longs, except {@code exact_to_pruned_ratio} (a double, NaN if nothing was pruned).
+     * @return an ordered map of metric names to values
+     */
+    public Map<String, Number> toMap() {
+        Map<String, Number> map = new LinkedHashMap<>();
+        for (Timer timer : Timer.values()) {
+            String prefix = timer.name().toLowerCase(Locale.ROOT);
+            map.put(prefix + "_count", getCount(timer));
+            map.put(prefix + "_total_ns", getTotalNanos(timer));
+            map.put(prefix + "_max_ns", getMaxNanos(timer));
+            map.put(prefix + "_last_ns", getLastNanos(timer));
+        }
+        map.put("distance_evaluations", getDistanceEvaluations());
+        map.put("pruned_candidates", getPrunedCandidates());
+        map.put("exact_to_pruned_ratio", getExactToPrunedRatio());
+        map.put("peak_candidate_set_size", getPeakCandidateSetSize());
+        return map;
+    }
+
+    /**
+     * @return the summary from {@link #toMap()} as a single-line JSON object (NaN is written as null)
+     */
+    public String toJSON() {
+        return toMap().entrySet().stream()
+                .map(entry -> "\"" + entry.getKey() + "\":" + toJSON(entry.getValue()))
+                .collect(Collectors.joining(",", "{", "}"));
+    }
+
+    private static String toJSON(Number value) {
+        if (value instanceof Double d && !Double.isFinite(d))
+            return "null";
+        return String.valueOf(value);
+    }
+
+    @Override
+    public String toString() {
+        return toJSON();
+    }
+
+}
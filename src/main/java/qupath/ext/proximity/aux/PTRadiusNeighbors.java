@@ -0,0 +1,160 @@
+package qupath.ext.proximity.aux;
+
+import qupath.lib.objects.PathObject;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Data structure to work with {@link qupath.ext.proximity.PT2D} to store, for each analyzed cell, all reference
+ * cells within a fixed radius together with their distances, sorted by ascending distance. The lists are stored
+ * in compressed sparse row (CSR) form: the neighbors of cell {@code i} occupy the range
+ * {@code [offsets[i], offsets[i + 1])} of the flat {@code distances} and {@code neighbors} arrays.
+ * <p>
+ * Since the lists are complete up to the radius, the number of reference cells within any distance threshold
+ * up to the radius is exact (not capped by the number of nearest neighbors). Immutable once created, so thread safe.
+ */
+public class PTRadiusNeighbors {
+
+    /**
+     * The radius (µm) up to which neighbors are stored
+     */
+    private final double radius;
+    private final PathObject[] cells;
+    private final int[] offsets;
+    /**
+     * Distances (µm), sorted in ascending order within each cell's range
+     */
+    private final double[] distances;
+    private final PathObject[] neighbors;
+
+    /**
+     * Constructor
+     * @param radius the radius (µm) up to which neighbors are stored
+     * @param cells the analyzed cells
+     * @param offsets start of each cell's range in the flat arrays (length {@code cells.length + 1})
+     * @param distances flat array of distances (µm), sorted within each cell's range
+     * @param neighbors flat array of the reference cells, in parallel with {@code distances}
+     */
+    public PTRadiusNeighbors(double radius, PathObject[] cells, int[] offsets, double[] distances, PathObject[] neighbors) {
+        if (offsets.length != cells.length + 1 || distances.length != neighbors.length || offsets[cells.length] != distances.length)
+            throw new IllegalArgumentException("Inconsistent CSR arrays!");
+        this.radius = radius;
+        this.cells = cells;
+        this.offsets = offsets;
+        this.distances = distances;
+        this.neighbors = neighbors;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    /**
+     * @return the number of analyzed cells
+     */
+    public int size() {
+        return cells.length;
+    }
+
+    public PathObject getCell(int i) {
+        return cells[i];
+    }
+
+    /**
+     * @return the heap used by the arrays (assuming compressed references), not counting the cells themselves
+     */
+    public long getBytes() {
+        long headers = 4 * 16;
+        return headers + 4L * cells.length + 4L * offsets.length + 8L * distances.length + 4L * neighbors.length;
+    }
+
+    /**
+     * @return the total number of stored (cell, neighbor) pairs
+     */
+    public int getNoEntries() {
+        return distances.length;
+    }
+
+    /**
+     * @param i index of the analyzed cell
+     * @return the number of reference cells within the radius
+     */
+    public int getNoNeighbors(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * @param i index of the analyzed cell
+     * @param n rank of the neighbor (0 = nearest)
+     * @return the distance (µm)
+     */
+    public double getDistance(int i, int n) {
+        return distances[offsets[i] + n];
+    }
+
+    /**
+     * @param i index of the analyzed cell
+     * @param n rank of the neighbor (0 = nearest)
+     * @return the reference cell
+     */
+    public PathObject getNeighbor(int i, int n) {
+        return neighbors[offsets[i] + n];
+    }
+
+    /**
+     * Count the reference cells within a distance threshold of an analyzed cell (binary search).
+     * @param i index of the analyzed cell
+     * @param distanceThreshold the threshold (µm, inclusive), which should not exceed the radius
+     * @return the exact count
+     */
+    public int getCount(int i, double distanceThreshold) {
+        int low = offsets[i];
+        int high = offsets[i + 1];
+        while (low < high) { // find the first distance > distanceThreshold
+            int mid = (low + high) >>> 1;
+            if (distances[mid] <= distanceThreshold)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low - offsets[i];
+    }
+
+    /**
+     * Get the counts of reference cells within a distance threshold for all analyzed cells.
+     * @param distanceThreshold the threshold (µm, inclusive), which should not exceed the radius
+     * @return the counts, indexed as the analyzed cells
+     */
+    public int[] getCounts(double distanceThreshold) {
+        return IntStream.range(0, cells.length)
+                .parallel()
+                .map(i -> getCount(i, distanceThreshold))
+                .toArray();
+    }
+
+    /**
+     * Get the analyzed cells with at least (or exactly) a number of reference cells within a distance threshold.
+     * @param distanceThreshold the threshold (µm, inclusive), which should not exceed the radius
+     * @param noRefCells the number of reference cells
+     * @param exclusive if true, require exactly {@code noRefCells}; otherwise at least {@code noRefCells}
+     * @return the set of cells
+     */
+    public Set<PathObject> getCells(double distanceThreshold, int noRefCells, boolean exclusive) {
+        Set<PathObject> result = ConcurrentHashMap.newKeySet();
+        IntStream.range(0, cells.length).parallel().forEach(i -> {
+            int count = getCount(i, distanceThreshold);
+            if (exclusive ? count == noRefCells : count >= noRefCells)
+                result.add(cells[i]);
+        });
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "PTRadiusNeighbors{radius=" + radius + " µm, cells=" + cells.length + ", entries=" + distances.length
+                + ", max per cell=" + IntStream.range(0, cells.length).map(this::getNoNeighbors).max().orElse(0) + "}";
+    }
+
+}
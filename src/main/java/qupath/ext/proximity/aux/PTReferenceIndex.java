@@ -0,0 +1,53 @@
+package qupath.ext.proximity.aux;
+
+import org.locationtech.jts.geom.Geometry;
+import qupath.ext.proximity.PT2D;
+import qupath.ext.proximity.engine.PTNeighborEngine;
+import qupath.lib.objects.PathObject;
+
+import java.util.Collection;
+
+/**
+ * Data structure to work with {@link qupath.ext.proximity.PT2D} to hold a set of reference cells, their
+ * geometries and the neighbor engine built over them. Reference cells are addressed by their ordinal (index)
+ * in the arrays.
+ *
+ * @param cells the reference cells
+ * @param geometries the geometries of the reference cells (indexed as {@code cells})
+ * @param engine the neighbor engine built over {@code geometries}
+ */
+public record PTReferenceIndex(PathObject[] cells, Geometry[] geometries, PTNeighborEngine engine) {
+
+    /**
+     * Create a reference index.
+     * @param cells the reference cells
+     * @param comparisonROI the ROI of each cell to index
+     * @param comparisonType whether to compare edges or centroids
+     * @param neighborEngine the type of neighbor engine to build
+     * @param edgeDistance how edge distances are computed (EDGE comparison only)
+     * @param simplificationTolerance tolerance (in pixels) of the simplified outlines searched before refining
+     *                                exactly, or 0 to search the original outlines (EDGE comparison only)
+     * @param metrics metrics to which the neighbor engine reports its work
+     * @return the reference index
+     */
+    public static PTReferenceIndex create(Collection<PathObject> cells,
+                                          PT2D.ComparisonROI comparisonROI,
+                                          PT2D.ComparisonType comparisonType,
+                                          PT2D.NeighborEngine neighborEngine,
+                                          PT2D.EdgeDistance edgeDistance,
+                                          double simplificationTolerance,
+                                          PTMetrics metrics) {
+        PathObject[] cellArray = cells.toArray(PathObject[]::new);
+        Geometry[] geometries = new Geometry[cellArray.length];
+        for (int i = 0; i < cellArray.length; i++) {
+            geometries[i] = comparisonROI.getROI(cellArray[i]).getGeometry();
+            if (geometries[i] == null) throw new IllegalStateException("One or more cell geometries are null!");
+        }
+        return new PTReferenceIndex(cellArray, geometries, PTNeighborEngine.create(neighborEngine, geometries, comparisonType, edgeDistance, simplificationTolerance, metrics));
+    }
+
+    public int size() {
+        return cells.length;
+    }
+
+}
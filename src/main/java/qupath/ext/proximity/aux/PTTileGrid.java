@@ -0,0 +1,211 @@
+package qupath.ext.proximity.aux;
+
+import qupath.ext.proximity.PT2D;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Data structure to work with {@link qupath.ext.proximity.PT2D} to partition the image plane into square tiles
+ * for the tiled mode. Each cell to analyze is assigned to the tile containing its centroid, and each reference
+ * cell to every tile whose halo region it overlaps. The halo region of a tile extends beyond the tile by the halo
+ * plus the largest extent of the cells to analyze (which may extend beyond their tile), so every reference cell
+ * within the halo distance of a cell to analyze is assigned to the cell's tile.
+ * <p>
+ * Both assignments are stored in compressed sparse row (CSR) form: the cells to analyze of tile {@code t} occupy
+ * the range {@code [targetOffsets[t], targetOffsets[t + 1])} of {@code targetIndices}, and likewise for the
+ * reference cells. Only ROI bounds and centroids are used, so no geometry is created. Immutable once created,
+ * so thread safe.
+ */
+public class PTTileGrid {
+
+    /**
+     * Tile size and halo (in pixels)
+     */
+    private final double tileSize;
+    private final double halo;
+    private final double minX;
+    private final double minY;
+    private final int noColumns;
+    private final int noRows;
+    private final PathObject[] targets;
+    private final PathObject[] references;
+    private final int[] targetOffsets;
+    private final int[] targetIndices;
+    private final int[] referenceOffsets;
+    private final int[] referenceIndices;
+
+    /**
+     * Constructor
+     * @param targets the cells to analyze
+     * @param references the reference cells
+     * @param comparisonROI the ROI of each cell compared
+     * @param tileSize the tile size (in pixels)
+     * @param halo the halo (in pixels), i.e., the largest distance for which neighbors must be found
+     */
+    public PTTileGrid(PathObject[] targets, PathObject[] references, PT2D.ComparisonROI comparisonROI, double tileSize, double halo) {
+        if (!(tileSize > 0) || !Double.isFinite(tileSize))
+            throw new IllegalArgumentException("Tile size must be finite and positive!");
+        this.tileSize = tileSize;
+        this.halo = halo;
+        this.targets = targets;
+        this.references = references;
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        double maxExtent = 0;
+        for (PathObject target : targets) {
+            ROI roi = comparisonROI.getROI(target);
+            minX = Math.min(minX, roi.getCentroidX());
+            minY = Math.min(minY, roi.getCentroidY());
+            maxX = Math.max(maxX, roi.getCentroidX());
+            maxY = Math.max(maxY, roi.getCentroidY());
+            maxExtent = Math.max(maxExtent, Math.max(roi.getBoundsWidth(), roi.getBoundsHeight()));
+        }
+        this.minX = targets.length == 0 ? 0 : minX;
+        this.minY = targets.length == 0 ? 0 : minY;
+        this.noColumns = targets.length == 0 ? 1 : Math.max(1, (int) Math.ceil((maxX - minX) / tileSize));
+        this.noRows = targets.length == 0 ? 1 : Math.max(1, (int) Math.ceil((maxY - minY) / tileSize));
+        if ((long) noColumns * noRows > Integer.MAX_VALUE - 1)
+            throw new IllegalArgumentException("Too many tiles; use a larger tile size");
+        int noTiles = noColumns * noRows;
+
+        // cells to analyze: one tile each
+        int[] targetTiles = new int[targets.length];
+        this.targetOffsets = new int[noTiles + 1];
+        for (int i = 0; i < targets.length; i++) {
+            ROI roi = comparisonROI.getROI(targets[i]);
+            targetTiles[i] = getTile(getColumn(roi.getCentroidX()), getRow(roi.getCentroidY()));
+            targetOffsets[targetTiles[i] + 1]++;
+        }
+        Arrays.parallelPrefix(targetOffsets, Integer::sum);
+        this.targetIndices = new int[targets.length];
+        int[] cursors = Arrays.copyOf(targetOffsets, noTiles);
+        for (int i = 0; i < targets.length; i++) {
+            targetIndices[cursors[targetTiles[i]]++] = i;
+        }
+
+        // reference cells: every tile whose halo region overlaps their bounds
+        double margin = halo + maxExtent;
+        int[][] referenceRanges = new int[references.length][]; // first column, last column, first row, last row
+        this.referenceOffsets = new int[noTiles + 1];
+        for (int j = 0; j < references.length; j++) {
+            ROI roi = comparisonROI.getROI(references[j]);
+            int[] range = {
+                    (int) Math.max(0, Math.ceil((roi.getBoundsX() - margin - this.minX) / tileSize) - 1),
+                    (int) Math.min(noColumns - 1, Math.floor((roi.getBoundsX() + roi.getBoundsWidth() + margin - this.minX) / tileSize)),
+                    (int) Math.max(0, Math.ceil((roi.getBoundsY() - margin - this.minY) / tileSize) - 1),
+                    (int) Math.min(noRows - 1, Math.floor((roi.getBoundsY() + roi.getBoundsHeight() + margin - this.minY) / tileSize))
+            };
+            referenceRanges[j] = range;
+            for (int row = range[2]; row <= range[3]; row++) {
+                for (int column = range[0]; column <= range[1]; column++) {
+                    referenceOffsets[getTile(column, row) + 1]++;
+                }
+            }
+        }
+        long noEntries = 0;
+        for (int t = 0; t < noTiles; t++) {
+            noEntries += referenceOffsets[t + 1];
+            if (noEntries > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Too many tile assignments; use a larger tile size");
+            referenceOffsets[t + 1] = (int) noEntries;
+        }
+        this.referenceIndices = new int[(int) noEntries];
+        cursors = Arrays.copyOf(referenceOffsets, noTiles);
+        for (int j = 0; j < references.length; j++) {
+            int[] range = referenceRanges[j];
+            for (int row = range[2]; row <= range[3]; row++) {
+                for (int column = range[0]; column <= range[1]; column++) {
+                    referenceIndices[cursors[getTile(column, row)]++] = j;
+                }
+            }
+        }
+    }
+
+    private int getColumn(double x) {
+        return Math.max(0, Math.min(noColumns - 1, (int) Math.floor((x - minX) / tileSize)));
+    }
+
+    private int getRow(double y) {
+        return Math.max(0, Math.min(noRows - 1, (int) Math.floor((y - minY) / tileSize)));
+    }
+
+    private int getTile(int column, int row) {
+        return row * noColumns + column;
+    }
+
+    /**
+     * @return the number of tiles
+     */
+    public int getNoTiles() {
+        return noColumns * noRows;
+    }
+
+    /**
+     * @return the cells to analyze, indexed as returned by {@link #getTargetIndices(int)}
+     */
+    public PathObject[] getTargets() {
+        return targets;
+    }
+
+    /**
+     * @param tile
+     * @return the indices (in {@link #getTargets()}) of the cells to analyze of the tile
+     */
+    public int[] getTargetIndices(int tile) {
+        return Arrays.copyOfRange(targetIndices, targetOffsets[tile], targetOffsets[tile + 1]);
+    }
+
+    /**
+     * @return the reference cells, indexed as returned by {@link #getReferenceIndices(int)}
+     */
+    public PathObject[] getReferences() {
+        return references;
+    }
+
+    /**
+     * @param tile
+     * @return the indices (in {@link #getReferences()}) of the reference cells of the tile's halo region
+     */
+    public int[] getReferenceIndices(int tile) {
+        return Arrays.copyOfRange(referenceIndices, referenceOffsets[tile], referenceOffsets[tile + 1]);
+    }
+
+    /**
+     * @param tile
+     * @return the reference cells of the tile's halo region
+     */
+    public List<PathObject> getReferences(int tile) {
+        List<PathObject> tileReferences = new ArrayList<>(referenceOffsets[tile + 1] - referenceOffsets[tile]);
+        for (int j = referenceOffsets[tile]; j < referenceOffsets[tile + 1]; j++) {
+            tileReferences.add(references[referenceIndices[j]]);
+        }
+        return tileReferences;
+    }
+
+    /**
+     * @return the largest number of reference cells in the halo region of a tile with cells to analyze
+     */
+    public int getMaxReferencesPerTile() {
+        int max = 0;
+        for (int t = 0; t < getNoTiles(); t++) {
+            if (targetOffsets[t + 1] > targetOffsets[t])
+                max = Math.max(max, referenceOffsets[t + 1] - referenceOffsets[t]);
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "PTTileGrid{" + noColumns + "×" + noRows + " tiles of " + tileSize + " px, halo=" + halo + " px"
+                + ", max references per tile=" + getMaxReferencesPerTile()
+                + ", reference copies=" + referenceIndices.length + " for " + references.length + " references}";
+    }
+
+}
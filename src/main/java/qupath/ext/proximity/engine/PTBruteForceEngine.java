@@ -0,0 +1,77 @@
+package qupath.ext.proximity.engine;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import qupath.ext.proximity.PT2D;
+import qupath.ext.proximity.aux.PTMetrics;
+
+import java.util.Arrays;
+
+/**
+ * Exhaustive O(N·M) nearest neighbor search that evaluates the exact distance to every reference geometry.
+ * Slow for large populations, but trivially correct, so it serves as the oracle for the faster engines
+ * (see the differential tests).
+ */
+class PTBruteForceEngine implements PTNeighborEngine {
+
+    private final Geometry[] geometries;
+    private final Point[] centroids;
+    private final PT2D.ComparisonType comparisonType;
+    private final PTMetrics metrics;
+
+    PTBruteForceEngine(Geometry[] geometries, PT2D.ComparisonType comparisonType, PTMetrics metrics) {
+        this.geometries = geometries;
+        this.comparisonType = comparisonType;
+        this.metrics = metrics;
+        this.centroids = (comparisonType == PT2D.ComparisonType.CENTROID) ? PTGeometryDistance.getCentroids(geometries) : null;
+    }
+
+    @Override
+    public int findNearest(Geometry query, int k, int[] ordinals, double[] distances) {
+        PTTopK topK = new PTTopK(k, ordinals, distances);
+        Point queryCentroid = (centroids == null) ? null : query.getCentroid();
+        for (int i = 0; i < geometries.length; i++) {
+            double distance = (centroids == null)
+                    ? query.distance(geometries[i])
+                    : queryCentroid.distance(centroids[i]);
+            topK.offer(i, distance);
+        }
+        metrics.recordSearch(geometries.length);
+        return topK.size();
+    }
+
+    @Override
+    public int findNearestFrom(Geometry query, int from, int k, int[] ordinals, double[] distances) {
+        int[] found = Arrays.copyOf(ordinals, from);
+        Arrays.sort(found);
+        PTTopK topK = PTTopK.extending(from, k);
+        Point queryCentroid = (centroids == null) ? null : query.getCentroid();
+        for (int i = 0; i < geometries.length; i++) {
+            if (Arrays.binarySearch(found, i) >= 0)
+                continue;
+            double distance = (centroids == null)
+                    ? query.distance(geometries[i])
+                    : queryCentroid.distance(centroids[i]);
+            topK.offer(i, distance);
+        }
+        metrics.recordSearch(geometries.length - from);
+        topK.copyTo(ordinals, distances, from);
+        return from + topK.size();
+    }
+
+    @Override
+    public void findWithin(Geometry query, double maxDistance, PTNeighborList result) {
+        result.clear();
+        Point queryCentroid = (centroids == null) ? null : query.getCentroid();
+        for (int i = 0; i < geometries.length; i++) {
+            double distance = (centroids == null)
+                    ? query.distance(geometries[i])
+                    : queryCentroid.distance(centroids[i]);
+            if (distance <= maxDistance)
+                result.add(i, distance);
+        }
+        result.sort();
+        metrics.recordSearch(geometries.length);
+    }
+
+}
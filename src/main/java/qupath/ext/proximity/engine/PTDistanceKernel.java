@@ -0,0 +1,86 @@
+package qupath.ext.proximity.engine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kernel computing squared distances from a point to a run of points stored as structure of arrays (separate
+ * x and y arrays). Results are bitwise identical to {@code dx*dx + dy*dy} in scalar code (no fused multiply-add),
+ * so all kernels give the same neighbors and distances.
+ * <p>
+ * {@link #get()} returns a SIMD kernel using the JDK Vector API if the {@code jdk.incubator.vector} module is
+ * available (e.g., QuPath started with {@code --add-modules jdk.incubator.vector}), otherwise a scalar kernel.
+ */
+interface PTDistanceKernel {
+
+    /**
+     * Compute squared distances from {@code (x, y)} to the points {@code [from, to)} of {@code xs} and {@code ys}.
+     * @param x
+     * @param y
+     * @param xs x coordinates of the points
+     * @param ys y coordinates of the points
+     * @param from first point (inclusive)
+     * @param to last point (exclusive)
+     * @param out output array (length at least {@code to - from}) receiving the squared distances from index 0
+     */
+    void squaredDistances(double x, double y, double[] xs, double[] ys, int from, int to, double[] out);
+
+    /**
+     * @return the fastest kernel available
+     */
+    static PTDistanceKernel get() {
+        return Holder.KERNEL;
+    }
+
+    /**
+     * @return the scalar kernel
+     */
+    static PTDistanceKernel scalar() {
+        return Holder.SCALAR;
+    }
+
+    /**
+     * @return the SIMD kernel, or null if the {@code jdk.incubator.vector} module is not available
+     */
+    static PTDistanceKernel vector() {
+        return Holder.VECTOR;
+    }
+
+    /**
+     * Lazy holder, so the Vector API is only probed on first use.
+     */
+    final class Holder {
+
+        private static final Logger logger = LoggerFactory.getLogger(PTDistanceKernel.class);
+        private static final PTDistanceKernel SCALAR = (x, y, xs, ys, from, to, out) -> {
+            for (int i = from; i < to; i++) {
+                double dx = x - xs[i];
+                double dy = y - ys[i];
+                out[i - from] = dx*dx + dy*dy;
+            }
+        };
+        private static final PTDistanceKernel VECTOR = createVectorKernel();
+        private static final PTDistanceKernel KERNEL = VECTOR == null ? SCALAR : VECTOR;
+
+        private Holder() {}
+
+        private static PTDistanceKernel createVectorKernel() {
+            if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+                logger.debug("jdk.incubator.vector is not available: using the scalar distance kernel");
+                return null;
+            }
+            try {
+                // loaded reflectively, so that this class does not depend on the incubator module
+                PTDistanceKernel kernel = (PTDistanceKernel) Class.forName("qupath.ext.proximity.engine.PTVectorDistanceKernel")
+                        .getDeclaredConstructor()
+                        .newInstance();
+                logger.debug("Using the vector distance kernel ({})", kernel);
+                return kernel;
+            } catch (ReflectiveOperationException | LinkageError e) {
+                logger.warn("Vector distance kernel unavailable: using the scalar kernel", e);
+                return null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package qupath.ext.proximity.engine;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import qupath.ext.proximity.PT2D;
+
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Distance helpers shared by the neighbor engines.
+ */
+class PTGeometryDistance {
+
+    private PTGeometryDistance() {}
+
+    /**
+     * Get the centroids of the geometries, computed once so that centroid comparisons do not
+     * recompute them for every candidate pair.
+     * @param geometries
+     * @return the centroids (indexed as the geometries)
+     */
+    static Point[] getCentroids(Geometry[] geometries) {
+        Point[] centroids = new Point[geometries.length];
+        for (int i = 0; i < geometries.length; i++) {
+            centroids[i] = geometries[i].getCentroid();
+        }
+        return centroids;
+    }
+
+    /**
+     * Get a circle around a geometry, centered on its centroid and passing through its farthest vertex. The
+     * edge distance between two geometries is at least the distance between their centroids minus both radii.
+     * @param geometry
+     * @return the circle as (x, y, radius)
+     */
+    static double[] getBoundingCircle(Geometry geometry) {
+        Point centroid = geometry.getCentroid();
+        double x = centroid.getX();
+        double y = centroid.getY();
+        double maxDistanceSq = 0;
+        for (Coordinate coordinate : geometry.getCoordinates()) {
+            double dx = coordinate.getX() - x;
+            double dy = coordinate.getY() - y;
+            maxDistanceSq = Math.max(maxDistanceSq, dx*dx + dy*dy);
+        }
+        return new double[]{x, y, Math.sqrt(maxDistanceSq)};
+    }
+
+    /**
+     * Get the bounding circles of the geometries (see {@link #getBoundingCircle(Geometry)}).
+     * @param geometries
+     * @return the circles packed as (x, y, radius) triplets (indexed as the geometries)
+     */
+    static double[] getBoundingCircles(Geometry[] geometries) {
+        double[] circles = new double[3*geometries.length];
+        for (int i = 0; i < geometries.length; i++) {
+            System.arraycopy(getBoundingCircle(geometries[i]), 0, circles, 3*i, 3);
+        }
+        return circles;
+    }
+
+    /**
+     * Prepare the distances from a query geometry to the reference geometries, so that anything depending only
+     * on the query (its centroid or its facet index) is computed once per search rather than once per candidate.
+     * @param query
+     * @param geometries the reference geometries
+     * @param centroids the centroids of the reference geometries for centroid comparisons, or null for edge comparisons
+     * @param edgeDistance how edge distances are computed
+     * @return function of the reference ordinal returning its distance to the query
+     */
+    static IntToDoubleFunction prepare(Geometry query, Geometry[] geometries, Point[] centroids, PT2D.EdgeDistance edgeDistance) {
+        if (centroids != null) {
+            Point queryCentroid = query.getCentroid();
+            return ordinal -> queryCentroid.distance(centroids[ordinal]);
+        }
+        if (edgeDistance == PT2D.EdgeDistance.INDEXED) {
+            PTIndexedEdgeDistance indexedDistance = new PTIndexedEdgeDistance(query);
+            return ordinal -> indexedDistance.distance(geometries[ordinal]);
+        }
+        return ordinal -> query.distance(geometries[ordinal]);
+    }
+
+}
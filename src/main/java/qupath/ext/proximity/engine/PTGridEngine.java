@@ -0,0 +1,308 @@
+package qupath.ext.proximity.engine;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import qupath.ext.proximity.PT2D;
+import qupath.ext.proximity.aux.PTMetrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Nearest neighbor search over a uniform grid of square buckets, sized from the reference cells (about one
+ * reference per bucket for densely packed cells of similar sizes). Each reference is assigned to the bucket of
+ * the center of its envelope, and the buckets are stored in compressed sparse row form: the ordinals of bucket
+ * {@code b} occupy the range {@code [bucketOffsets[b], bucketOffsets[b + 1])} of {@code bucketOrdinals}.
+ * <p>
+ * A k-nearest neighbor search scans rings of buckets of increasing size around the query envelope and stops
+ * once the ring cannot contain a reference closer than the kth so far (references extend beyond their bucket by
+ * at most half of the largest reference envelope). The grid is built in parallel without locks (atomic counters)
+ * and is immutable once built, so concurrent searches are safe.
+ * <p>
+ * For centroid comparisons, buckets hold several references and their centroids are also packed in bucket order
+ * as structure of arrays, so that the buckets of a grid row form one contiguous run. Each run is filtered with a
+ * {@link PTDistanceKernel} (SIMD if available) and only the references that may beat the kth distance so far
+ * (or be within the radius) are evaluated exactly.
+ */
+class PTGridEngine implements PTNeighborEngine {
+
+    private final Geometry[] geometries;
+    private final Point[] centroids;
+    private final PT2D.EdgeDistance edgeDistance;
+    private final PTMetrics metrics;
+    /**
+     * Envelopes of the references (of their centroids for centroid comparisons)
+     */
+    private final Envelope[] envelopes;
+    private final double minX;
+    private final double minY;
+    private final double bucketSize;
+    private final int noColumns;
+    private final int noRows;
+    /**
+     * Largest distance a reference extends beyond the center of its envelope (0 for centroid comparisons)
+     */
+    private final double maxHalfExtent;
+    private final int[] bucketOffsets;
+    private final int[] bucketOrdinals;
+    /**
+     * Centroid coordinates in bucket order (parallel to {@code bucketOrdinals}), for centroid comparisons only
+     */
+    private final double[] bucketX;
+    private final double[] bucketY;
+    private final PTDistanceKernel kernel;
+    /**
+     * Target number of references per bucket for centroid comparisons, so that the distance kernel works on
+     * runs of several points
+     */
+    private static final int CENTROIDS_PER_BUCKET = 8;
+    /**
+     * Relative slack when filtering with the kernel, as exact centroid distances may differ from the square root
+     * of the kernel's squared distance in the last bit
+     */
+    private static final double FILTER_SLACK = 1e-12;
+
+    PTGridEngine(Geometry[] geometries, PT2D.ComparisonType comparisonType, PT2D.EdgeDistance edgeDistance, PTMetrics metrics) {
+        this(geometries, comparisonType, edgeDistance, PTDistanceKernel.get(), metrics);
+    }
+
+    PTGridEngine(Geometry[] geometries, PT2D.ComparisonType comparisonType, PT2D.EdgeDistance edgeDistance, PTDistanceKernel kernel, PTMetrics metrics) {
+        this.geometries = geometries;
+        this.kernel = kernel;
+        this.edgeDistance = edgeDistance;
+        this.metrics = metrics;
+        this.centroids = (comparisonType == PT2D.ComparisonType.CENTROID) ? PTGeometryDistance.getCentroids(geometries) : null;
+
+        int n = geometries.length;
+        this.envelopes = new Envelope[n];
+        IntStream.range(0, n).parallel().forEach(i -> envelopes[i] = (centroids == null)
+                ? geometries[i].getEnvelopeInternal()
+                : centroids[i].getEnvelopeInternal());
+
+        Envelope extent = new Envelope();
+        double sumExtent = 0;
+        double maxExtent = 0;
+        for (Envelope envelope : envelopes) {
+            extent.expandToInclude(envelope);
+            double referenceExtent = Math.max(envelope.getWidth(), envelope.getHeight());
+            sumExtent += referenceExtent;
+            maxExtent = Math.max(maxExtent, referenceExtent);
+        }
+        this.maxHalfExtent = maxExtent / 2;
+        this.minX = extent.isNull() ? 0 : extent.getMinX();
+        this.minY = extent.isNull() ? 0 : extent.getMinY();
+
+        // buckets the size of an average reference, but no more buckets than about one per reference
+        // (or one per CENTROIDS_PER_BUCKET references for centroid comparisons)
+        int referencesPerBucket = (centroids == null) ? 1 : CENTROIDS_PER_BUCKET;
+        double size = Math.max(n == 0 ? 0 : sumExtent / n, Math.sqrt(extent.getArea() * referencesPerBucket / Math.max(n, 1)));
+        this.bucketSize = size > 0 ? size : 1; // e.g., a single reference point
+        this.noColumns = Math.max(1, (int) Math.ceil(extent.getWidth() / bucketSize));
+        this.noRows = Math.max(1, (int) Math.ceil(extent.getHeight() / bucketSize));
+        if ((long) noColumns * noRows > Integer.MAX_VALUE - 1)
+            throw new IllegalStateException("Too many grid buckets; use the STRtree engine");
+        int noBuckets = noColumns * noRows;
+
+        // lock-free parallel build: count, prefix sum, then fill through atomic cursors
+        int[] buckets = new int[n];
+        AtomicIntegerArray counts = new AtomicIntegerArray(noBuckets);
+        IntStream.range(0, n).parallel().forEach(i -> {
+            Envelope envelope = envelopes[i];
+            buckets[i] = getBucket(getColumn((envelope.getMinX() + envelope.getMaxX()) / 2), getRow((envelope.getMinY() + envelope.getMaxY()) / 2));
+            counts.incrementAndGet(buckets[i]);
+        });
+        this.bucketOffsets = new int[noBuckets + 1];
+        for (int b = 0; b < noBuckets; b++) {
+            bucketOffsets[b + 1] = bucketOffsets[b] + counts.get(b);
+        }
+        AtomicIntegerArray cursors = new AtomicIntegerArray(Arrays.copyOf(bucketOffsets, noBuckets));
+        this.bucketOrdinals = new int[n];
+        IntStream.range(0, n).parallel().forEach(i -> bucketOrdinals[cursors.getAndIncrement(buckets[i])] = i);
+
+        if (centroids == null) {
+            this.bucketX = null;
+            this.bucketY = null;
+        } else {
+            this.bucketX = new double[n];
+            this.bucketY = new double[n];
+            IntStream.range(0, n).parallel().forEach(j -> {
+                bucketX[j] = centroids[bucketOrdinals[j]].getX();
+                bucketY[j] = centroids[bucketOrdinals[j]].getY();
+            });
+        }
+    }
+
+    /**
+     * Per-search state: the scratch buffer of the kernel and the work counters.
+     */
+    private static class SearchState {
+        private final IntToDoubleFunction distance;
+        private final Envelope queryEnvelope;
+        private final double queryX;
+        private final double queryY;
+        private double[] buffer = new double[0];
+        private int noEvaluations = 0;
+        private int noPruned = 0;
+
+        private SearchState(IntToDoubleFunction distance, Envelope queryEnvelope) {
+            this.distance = distance;
+            this.queryEnvelope = queryEnvelope;
+            this.queryX = (queryEnvelope.getMinX() + queryEnvelope.getMaxX()) / 2; // the centroid for centroid comparisons
+            this.queryY = (queryEnvelope.getMinY() + queryEnvelope.getMaxY()) / 2;
+        }
+
+        private double[] getBuffer(int length) {
+            if (buffer.length < length)
+                buffer = new double[Math.max(length, 2*buffer.length)];
+            return buffer;
+        }
+    }
+
+    private int getColumn(double x) {
+        return Math.max(0, Math.min(noColumns - 1, (int) Math.floor((x - minX) / bucketSize)));
+    }
+
+    private int getRow(double y) {
+        return Math.max(0, Math.min(noRows - 1, (int) Math.floor((y - minY) / bucketSize)));
+    }
+
+    private int getBucket(int column, int row) {
+        return row * noColumns + column;
+    }
+
+    private Envelope getQueryEnvelope(Geometry query) {
+        return (centroids == null) ? query.getEnvelopeInternal() : query.getCentroid().getEnvelopeInternal();
+    }
+
+    @Override
+    public int findNearest(Geometry query, int k, int[] ordinals, double[] distances) {
+        if (geometries.length == 0 || k == 0)
+            return 0;
+        PTTopK topK = new PTTopK(k, ordinals, distances);
+        search(query, new int[0], topK);
+        return topK.size();
+    }
+
+    @Override
+    public int findNearestFrom(Geometry query, int from, int k, int[] ordinals, double[] distances) {
+        if (geometries.length <= from || k <= from)
+            return Math.min(from, geometries.length);
+        int[] found = Arrays.copyOf(ordinals, from);
+        Arrays.sort(found);
+        PTTopK topK = PTTopK.extending(from, k);
+        search(query, found, topK);
+        topK.copyTo(ordinals, distances, from);
+        return from + topK.size();
+    }
+
+    /**
+     * Scan rings of buckets around the query envelope until no closer reference can be found.
+     * @param query
+     * @param found sorted ordinals to exclude (neighbors already found)
+     * @param topK collector of the neighbors
+     */
+    private void search(Geometry query, int[] found, PTTopK topK) {
+        Envelope queryEnvelope = getQueryEnvelope(query);
+        SearchState state = new SearchState(PTGeometryDistance.prepare(query, geometries, centroids, edgeDistance), queryEnvelope);
+        int column0 = getColumn(queryEnvelope.getMinX());
+        int column1 = getColumn(queryEnvelope.getMaxX());
+        int row0 = getRow(queryEnvelope.getMinY());
+        int row1 = getRow(queryEnvelope.getMaxY());
+        int maxRing = Math.max(noColumns, noRows);
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // buckets of this ring are at least (ring - 1) buckets away from the query envelope
+            if (ring > 0 && (ring - 1) * bucketSize - maxHalfExtent > topK.getKthDistance())
+                break;
+            int top = row0 - ring;
+            int bottom = row1 + ring;
+            int left = column0 - ring;
+            int right = column1 + ring;
+            for (int row = Math.max(top, 0); row <= Math.min(bottom, noRows - 1); row++) {
+                if (ring == 0 || row == top || row == bottom) { // whole row of the ring: one contiguous run
+                    scanRun(getBucket(Math.max(left, 0), row), getBucket(Math.min(right, noColumns - 1), row), state, found, topK);
+                } else {
+                    if (left >= 0)
+                        scanRun(getBucket(left, row), getBucket(left, row), state, found, topK);
+                    if (right < noColumns)
+                        scanRun(getBucket(right, row), getBucket(right, row), state, found, topK);
+                }
+            }
+        }
+        metrics.recordSearch(state.noEvaluations, state.noPruned);
+    }
+
+    /**
+     * Offer the references of a run of consecutive buckets (of the same row) to the collector.
+     * @param firstBucket
+     * @param lastBucket inclusive
+     * @param state
+     * @param found sorted ordinals to exclude
+     * @param topK
+     */
+    private void scanRun(int firstBucket, int lastBucket, SearchState state, int[] found, PTTopK topK) {
+        int from = bucketOffsets[firstBucket];
+        int to = bucketOffsets[lastBucket + 1];
+        double[] squaredDistances = null;
+        if (bucketX != null && to > from) {
+            squaredDistances = state.getBuffer(to - from);
+            kernel.squaredDistances(state.queryX, state.queryY, bucketX, bucketY, from, to, squaredDistances);
+        }
+        for (int j = from; j < to; j++) {
+            int ordinal = bucketOrdinals[j];
+            if (found.length > 0 && Arrays.binarySearch(found, ordinal) >= 0)
+                continue;
+            double lowerBound = (squaredDistances == null)
+                    ? state.queryEnvelope.distance(envelopes[ordinal])
+                    : Math.sqrt(squaredDistances[j - from]) / (1 + FILTER_SLACK);
+            if (lowerBound > topK.getKthDistance()) {
+                state.noPruned++;
+                continue;
+            }
+            state.noEvaluations++;
+            topK.offer(ordinal, state.distance.applyAsDouble(ordinal));
+        }
+    }
+
+    @Override
+    public void findWithin(Geometry query, double maxDistance, PTNeighborList result) {
+        result.clear();
+        if (geometries.length == 0)
+            return;
+
+        Envelope queryEnvelope = getQueryEnvelope(query);
+        SearchState state = new SearchState(PTGeometryDistance.prepare(query, geometries, centroids, edgeDistance), queryEnvelope);
+        double margin = maxDistance + maxHalfExtent;
+        int firstColumn = getColumn(queryEnvelope.getMinX() - margin);
+        int lastColumn = getColumn(queryEnvelope.getMaxX() + margin);
+        for (int row = getRow(queryEnvelope.getMinY() - margin); row <= getRow(queryEnvelope.getMaxY() + margin); row++) {
+            int from = bucketOffsets[getBucket(firstColumn, row)];
+            int to = bucketOffsets[getBucket(lastColumn, row) + 1];
+            double[] squaredDistances = null;
+            if (bucketX != null && to > from) {
+                squaredDistances = state.getBuffer(to - from);
+                kernel.squaredDistances(state.queryX, state.queryY, bucketX, bucketY, from, to, squaredDistances);
+            }
+            for (int j = from; j < to; j++) {
+                int ordinal = bucketOrdinals[j];
+                double lowerBound = (squaredDistances == null)
+                        ? queryEnvelope.distance(envelopes[ordinal])
+                        : Math.sqrt(squaredDistances[j - from]) / (1 + FILTER_SLACK);
+                if (lowerBound > maxDistance) {
+                    state.noPruned++;
+                    continue;
+                }
+                state.noEvaluations++;
+                double exactDistance = state.distance.applyAsDouble(ordinal);
+                if (exactDistance <= maxDistance)
+                    result.add(ordinal, exactDistance);
+            }
+        }
+        result.sort();
+        metrics.recordSearch(state.noEvaluations, state.noPruned);
+    }
+
+}
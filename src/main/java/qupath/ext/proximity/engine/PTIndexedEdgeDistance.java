@@ -0,0 +1,79 @@
+package qupath.ext.proximity.engine;
+
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.algorithm.locate.SimplePointInAreaLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Location;
+import org.locationtech.jts.operation.distance.DistanceOp;
+import org.locationtech.jts.operation.distance.IndexedFacetDistance;
+
+/**
+ * Edge distance from one query geometry (e.g., a cell to analyze) to many other geometries. The facets (segments)
+ * of the query are indexed once with a JTS {@link IndexedFacetDistance}, so each distance avoids the
+ * segment-by-segment comparison of {@link Geometry#distance(Geometry)}, which matters for outlines with
+ * hundreds of vertices.
+ * <p>
+ * A facet distance is the distance between outlines, so it is corrected to 0 when one polygon lies entirely
+ * inside the other, giving the same result as {@link Geometry#distance(Geometry)}. Not thread safe (the point
+ * locator is created lazily); create one per query.
+ */
+public class PTIndexedEdgeDistance {
+
+    private final Geometry query;
+    private final IndexedFacetDistance facetDistance;
+    private IndexedPointInAreaLocator locator = null;
+
+    public PTIndexedEdgeDistance(Geometry query) {
+        this.query = query;
+        this.facetDistance = query.isEmpty() ? null : new IndexedFacetDistance(query);
+    }
+
+    /**
+     * @param other
+     * @return the distance between the query geometry and {@code other}, as {@link Geometry#distance(Geometry)}
+     */
+    public double distance(Geometry other) {
+        if (facetDistance == null || other.isEmpty())
+            return query.distance(other);
+        double distance = facetDistance.distance(other);
+        if (distance > 0 && isNested(other))
+            return 0;
+        return distance;
+    }
+
+    /**
+     * Get the nearest points of the query geometry and {@code other}, as {@link DistanceOp#nearestPoints(Geometry, Geometry)}.
+     * @param other
+     * @return the nearest point on the query geometry, then the nearest point on {@code other}
+     */
+    public Coordinate[] nearestPoints(Geometry other) {
+        if (facetDistance == null || other.isEmpty())
+            return DistanceOp.nearestPoints(query, other);
+        Coordinate[] points = facetDistance.nearestPoints(other);
+        if (!points[0].equals2D(points[1]) && isNested(other))
+            return DistanceOp.nearestPoints(query, other); // rare: the nearest points are inside, not on the outlines
+        return points;
+    }
+
+    /**
+     * Check whether one geometry lies inside the other, given that their outlines do not touch. Then, any
+     * vertex of the inner geometry is in the interior of the outer one, so checking one vertex is enough.
+     * @param other
+     * @return true if either geometry contains the other
+     */
+    private boolean isNested(Geometry other) {
+        Envelope queryEnvelope = query.getEnvelopeInternal();
+        Envelope otherEnvelope = other.getEnvelopeInternal();
+        if (query.getDimension() == 2 && queryEnvelope.covers(otherEnvelope)) {
+            if (locator == null)
+                locator = new IndexedPointInAreaLocator(query);
+            if (locator.locate(other.getCoordinate()) != Location.EXTERIOR)
+                return true;
+        }
+        return other.getDimension() == 2 && otherEnvelope.covers(queryEnvelope)
+                && SimplePointInAreaLocator.locate(query.getCoordinate(), other) != Location.EXTERIOR;
+    }
+
+}
@@ -0,0 +1,79 @@
+package qupath.ext.proximity.engine;
+
+import org.locationtech.jts.geom.Geometry;
+import qupath.ext.proximity.PT2D;
+import qupath.ext.proximity.aux.PTMetrics;
+
+/**
+ * Nearest neighbor and range search over a fixed array of reference geometries. Implementations must be thread
+ * safe for concurrent searches once constructed.
+ */
+public interface PTNeighborEngine {
+
+    /**
+     * Find the k nearest reference geometries of a query geometry.
+     * @param query the query geometry
+     * @param k the maximum number of neighbors to find
+     * @param ordinals output array (length at least k) receiving the indices of the neighbors in the reference array
+     * @param distances output array (length at least k) receiving the distances to the neighbors (in pixels)
+     * @return the number of neighbors found (k, or fewer if there are fewer references). Neighbors are sorted by
+     * ascending distance, with ties broken by ascending ordinal.
+     */
+    int findNearest(Geometry query, int k, int[] ordinals, double[] distances);
+
+    /**
+     * Extend a previous nearest neighbor search to more neighbors without repeating it: the neighbors already
+     * found are excluded and the search resumes from the farthest of them.
+     * @param query the query geometry
+     * @param from the number of neighbors already found, i.e., the result of a previous search with a smaller k
+     * @param k the new maximum number of neighbors
+     * @param ordinals array (length at least k) holding the ordinals of the neighbors already found in
+     *                 {@code [0, from)}, and receiving the new ones from index {@code from}
+     * @param distances array (length at least k) holding the distances (in pixels) of the neighbors already found
+     *                  in {@code [0, from)}, and receiving the new ones from index {@code from}
+     * @return the total number of neighbors found (k, or fewer if there are fewer references), with the same
+     * ordering as {@link #findNearest(Geometry, int, int[], double[])}
+     */
+    int findNearestFrom(Geometry query, int from, int k, int[] ordinals, double[] distances);
+
+    /**
+     * Find all reference geometries within a distance of a query geometry.
+     * @param query the query geometry
+     * @param maxDistance the maximum distance (in pixels, inclusive)
+     * @param result list cleared and then filled with the ordinals and distances (in pixels) of the references found,
+     *               sorted by ascending distance, with ties broken by ascending ordinal
+     */
+    void findWithin(Geometry query, double maxDistance, PTNeighborList result);
+
+    /**
+     * Create a neighbor engine.
+     * @param engine the type of engine
+     * @param geometries the reference geometries (indexed by ordinal)
+     * @param comparisonType whether to compare edges or centroids
+     * @param edgeDistance how edge distances are computed (EDGE comparison only; ignored by the brute-force
+     *                     engine, which always uses {@link Geometry#distance(Geometry)} as the reference)
+     * @param simplificationTolerance tolerance (in pixels) for searching simplified outlines before refining
+     *                                exactly (see {@link PTSimplifiedEngine}), or 0 to search the original
+     *                                outlines. EDGE comparison only; ignored by the brute-force engine.
+     * @param metrics metrics to which each search reports its distance evaluations
+     * @return the engine
+     */
+    static PTNeighborEngine create(PT2D.NeighborEngine engine,
+                                   Geometry[] geometries,
+                                   PT2D.ComparisonType comparisonType,
+                                   PT2D.EdgeDistance edgeDistance,
+                                   double simplificationTolerance,
+                                   PTMetrics metrics) {
+        if (simplificationTolerance > 0 && comparisonType == PT2D.ComparisonType.EDGE && engine != PT2D.NeighborEngine.BRUTE_FORCE) {
+            return new PTSimplifiedEngine(geometries, simplificationTolerance, edgeDistance, metrics,
+                    simplified -> create(engine, simplified, comparisonType, edgeDistance, 0, metrics));
+        }
+        return switch (engine) {
+            case STRTREE -> new PTSTRtreeEngine(geometries, comparisonType, edgeDistance, false, metrics);
+            case STRTREE_PRUNED -> new PTSTRtreeEngine(geometries, comparisonType, edgeDistance, true, metrics);
+            case GRID -> new PTGridEngine(geometries, comparisonType, edgeDistance, metrics);
+            case BRUTE_FORCE -> new PTBruteForceEngine(geometries, comparisonType, metrics);
+        };
+    }
+
+}
@@ -0,0 +1,128 @@
+package qupath.ext.proximity.engine;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of (ordinal, distance) pairs receiving the results of a range search (see
+ * {@link PTNeighborEngine#findWithin(org.locationtech.jts.geom.Geometry, double, PTNeighborList)}).
+ * Meant to be reused across searches by a single thread. Not thread safe.
+ */
+public class PTNeighborList {
+
+    /**
+     * Length of the runs sorted by insertion sort before merging.
+     */
+    private static final int INSERTION_RUN = 16;
+
+    private int[] ordinals;
+    private double[] distances;
+    private int[] scratchOrdinals = new int[0];
+    private double[] scratchDistances = new double[0];
+    private int size = 0;
+
+    public PTNeighborList() {
+        this(16);
+    }
+
+    public PTNeighborList(int capacity) {
+        this.ordinals = new int[Math.max(capacity, 1)];
+        this.distances = new double[Math.max(capacity, 1)];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(int ordinal, double distance) {
+        if (size == ordinals.length) {
+            ordinals = Arrays.copyOf(ordinals, size * 2);
+            distances = Arrays.copyOf(distances, size * 2);
+        }
+        ordinals[size] = ordinal;
+        distances[size] = distance;
+        size++;
+    }
+
+    /**
+     * Sort by ascending distance, with ties broken by ascending ordinal. Range searches fill the list in the visit
+     * order of the index, which is arbitrary, so lists are sorted by a bottom-up merge sort (O(m log m)) over runs
+     * presorted by insertion sort. The scratch arrays are kept for the next searches.
+     */
+    void sort() {
+        for (int from = 0; from < size; from += INSERTION_RUN) {
+            insertionSort(from, Math.min(from + INSERTION_RUN, size));
+        }
+        if (size <= INSERTION_RUN)
+            return;
+
+        if (scratchOrdinals.length < size) {
+            scratchOrdinals = new int[ordinals.length];
+            scratchDistances = new double[distances.length];
+        }
+        int[] srcOrdinals = ordinals, dstOrdinals = scratchOrdinals;
+        double[] srcDistances = distances, dstDistances = scratchDistances;
+        for (int width = INSERTION_RUN; width < size; width *= 2) {
+            for (int from = 0; from < size; from += 2 * width) {
+                int mid = Math.min(from + width, size);
+                int to = Math.min(from + 2 * width, size);
+                int i = from, j = mid, k = from;
+                while (i < mid && j < to) {
+                    if (srcDistances[j] < srcDistances[i] || (srcDistances[j] == srcDistances[i] && srcOrdinals[j] < srcOrdinals[i])) {
+                        dstOrdinals[k] = srcOrdinals[j];
+                        dstDistances[k++] = srcDistances[j++];
+                    } else {
+                        dstOrdinals[k] = srcOrdinals[i];
+                        dstDistances[k++] = srcDistances[i++];
+                    }
+                }
+                while (i < mid) {
+                    dstOrdinals[k] = srcOrdinals[i];
+                    dstDistances[k++] = srcDistances[i++];
+                }
+                while (j < to) {
+                    dstOrdinals[k] = srcOrdinals[j];
+                    dstDistances[k++] = srcDistances[j++];
+                }
+            }
+            int[] tempOrdinals = srcOrdinals;
+            srcOrdinals = dstOrdinals;
+            dstOrdinals = tempOrdinals;
+            double[] tempDistances = srcDistances;
+            srcDistances = dstDistances;
+            dstDistances = tempDistances;
+        }
+        // keep the sorted arrays as the list (and the others as scratch)
+        scratchOrdinals = dstOrdinals;
+        scratchDistances = dstDistances;
+        ordinals = srcOrdinals;
+        distances = srcDistances;
+    }
+
+    private void insertionSort(int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            int ordinal = ordinals[i];
+            double distance = distances[i];
+            int j = i - 1;
+            while (j >= from && (distances[j] > distance || (distances[j] == distance && ordinals[j] > ordinal))) {
+                ordinals[j + 1] = ordinals[j];
+                distances[j + 1] = distances[j];
+                j--;
+            }
+            ordinals[j + 1] = ordinal;
+            distances[j + 1] = distance;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getOrdinal(int i) {
+        return ordinals[i];
+    }
+
+    public double getDistance(int i) {
+        return distances[i];
+    }
+
+}
@@ -0,0 +1,283 @@
+package qupath.ext.proximity.engine;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.index.strtree.AbstractNode;
+import org.locationtech.jts.index.strtree.Boundable;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.proximity.PT2D;
+import qupath.ext.proximity.aux.PTMetrics;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Nearest neighbor search using the k-nearest neighbor query of a JTS {@link STRtree}. The tree items are
+ * the ordinals of the reference geometries. Edge distances are computed as set by {@link PT2D.EdgeDistance}.
+ * <p>
+ * With pruning ({@link PT2D.NeighborEngine#STRTREE_PRUNED}), edge searches use a best-first traversal in which
+ * each candidate is first ranked by cheap lower bounds (the envelope distance, then the distance between bounding
+ * circles, i.e., centroid distance minus both radii), and its exact distance is only computed if that bound beats
+ * the kth distance so far.
+ */
+class PTSTRtreeEngine implements PTNeighborEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(PTSTRtreeEngine.class);
+    private final Geometry[] geometries;
+    private final Point[] centroids;
+    private final PT2D.ComparisonType comparisonType;
+    private final PT2D.EdgeDistance edgeDistance;
+    /**
+     * Bounding circles of the reference geometries for pruning edge searches (see
+     * {@link PTGeometryDistance#getBoundingCircles(Geometry[])}), or null if pruning is disabled.
+     */
+    private final double[] circles;
+    private final PTMetrics metrics;
+    private final STRtree tree = new STRtree();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    PTSTRtreeEngine(Geometry[] geometries, PT2D.ComparisonType comparisonType, PT2D.EdgeDistance edgeDistance, boolean prune, PTMetrics metrics) {
+        this.geometries = geometries;
+        this.comparisonType = comparisonType;
+        this.edgeDistance = edgeDistance;
+        this.metrics = metrics;
+        this.centroids = (comparisonType == PT2D.ComparisonType.CENTROID) ? PTGeometryDistance.getCentroids(geometries) : null;
+        // centroid distances are as cheap as any bound, so only edge searches are pruned
+        this.circles = (prune && centroids == null) ? PTGeometryDistance.getBoundingCircles(geometries) : null;
+        for (int i = 0; i < geometries.length; i++) {
+            tree.insert(geometries[i].getEnvelopeInternal(), i);
+        }
+        // Explicitly build the R-tree. This should prevent any NullPointerExceptions when querying later.
+        tree.build();
+    }
+
+    @Override
+    public int findNearest(Geometry query, int k, int[] ordinals, double[] distances) {
+        if (geometries.length == 0 || k == 0)
+            return 0;
+        if (circles != null)
+            return searchBestFirst(query, 0, k, ordinals, distances);
+
+        Object[] nearestItems;
+        int[] noEvaluations = new int[1]; // distances evaluated by the tree search, including any reattempt
+        IntToDoubleFunction distance = PTGeometryDistance.prepare(query, geometries, centroids, edgeDistance);
+
+        // permit multithreading by default, but enforce single threading temporarily if an exception is caught
+        lock.readLock().lock();
+        try {
+            nearestItems = callNearestNeighbor(query, distance, k, noEvaluations);
+        } catch (Exception e) {
+            lock.readLock().unlock();
+            lock.writeLock().lock();
+            logger.warn("Unexpected exception in R-Tree query. Reattempting operation...", e);
+
+            try {
+                tree.build(); // prompt to build the tree to resolve any issues there
+                nearestItems = callNearestNeighbor(query, distance, k, noEvaluations); // reattempt the query
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            lock.readLock().lock();
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // the order of the returned items is not guaranteed, so sort them through the collector
+        PTTopK topK = new PTTopK(k, ordinals, distances);
+        for (Object item : nearestItems) {
+            int ordinal = (Integer) item;
+            topK.offer(ordinal, distance.applyAsDouble(ordinal));
+        }
+        metrics.recordSearch(noEvaluations[0] + nearestItems.length);
+        return topK.size();
+    }
+
+    /**
+     * Resume a search with a best-first traversal of the R-tree (the JTS k-nearest neighbor query cannot be
+     * resumed). See {@link #searchBestFirst(Geometry, int, int, int[], double[])}.
+     */
+    @Override
+    public int findNearestFrom(Geometry query, int from, int k, int[] ordinals, double[] distances) {
+        return searchBestFirst(query, from, k, ordinals, distances);
+    }
+
+    /**
+     * Best-first traversal of the R-tree. Nodes are visited in order of their envelope distance, which is a lower
+     * bound of the distances they contain, and the traversal stops once that bound exceeds the kth distance so far.
+     * Nodes whose upper bound is below the distance of the farthest neighbor already found only contain neighbors
+     * already found, so they are skipped without being expanded. With pruning, each candidate is requeued with the
+     * tighter bounding circle bound before its exact distance is computed, and dropped if that bound exceeds the
+     * kth distance so far.
+     * @param query
+     * @param from the number of neighbors already found (0 for a new search)
+     * @param k
+     * @param ordinals
+     * @param distances
+     * @return the total number of neighbors found
+     * @see PTNeighborEngine#findNearestFrom(Geometry, int, int, int[], double[])
+     */
+    private int searchBestFirst(Geometry query, int from, int k, int[] ordinals, double[] distances) {
+        if (geometries.length <= from || k <= from)
+            return Math.min(from, geometries.length);
+
+        int[] found = Arrays.copyOf(ordinals, from);
+        Arrays.sort(found);
+        IntToDoubleFunction distance = PTGeometryDistance.prepare(query, geometries, centroids, edgeDistance);
+        // recompute rather than trust the given distance, which may have been rescaled (e.g., to µm) and back
+        double lastDistance = (from == 0) ? 0 : distance.applyAsDouble(ordinals[from - 1]);
+        Envelope queryEnvelope = getQueryEnvelope(query);
+        double[] queryCircle = (circles == null) ? null : PTGeometryDistance.getBoundingCircle(query);
+
+        PTTopK topK = PTTopK.extending(from, k);
+        int noEvaluations = 0;
+        int noPruned = 0;
+        PriorityQueue<BoundedNode> queue = new PriorityQueue<>(Comparator.comparingDouble(BoundedNode::lowerBound));
+        queue.add(new BoundedNode(tree.getRoot(), 0, false));
+        while (!queue.isEmpty()) {
+            BoundedNode next = queue.poll();
+            if (next.lowerBound() > topK.getKthDistance()) {
+                queue.add(next); // counted below with the other remaining nodes
+                break; // all remaining nodes are farther than the kth neighbor so far
+            }
+            if (next.boundable() instanceof ItemBoundable itemBoundable) {
+                int ordinal = (Integer) itemBoundable.getItem();
+                if (Arrays.binarySearch(found, ordinal) >= 0)
+                    continue;
+                if (queryCircle != null && !next.refined()) {
+                    double lowerBound = Math.max(next.lowerBound(), getCircleDistance(queryCircle, ordinal));
+                    if (lowerBound > topK.getKthDistance()) {
+                        noPruned++;
+                        continue;
+                    }
+                    if (lowerBound > next.lowerBound()) { // revisit in order of the tighter bound
+                        queue.add(new BoundedNode(next.boundable(), lowerBound, true));
+                        continue;
+                    }
+                }
+                noEvaluations++;
+                topK.offer(ordinal, distance.applyAsDouble(ordinal));
+            } else {
+                for (Object child : ((AbstractNode) next.boundable()).getChildBoundables()) {
+                    Envelope envelope = (Envelope) ((Boundable) child).getBounds();
+                    if (getUpperBound(queryEnvelope, envelope) < lastDistance)
+                        continue; // only contains neighbors already found
+                    queue.add(new BoundedNode((Boundable) child, queryEnvelope.distance(envelope), false));
+                }
+            }
+        }
+        if (queryCircle != null) { // candidates left in the queue were bounded but never evaluated exactly
+            for (BoundedNode node : queue) {
+                if (node.boundable() instanceof ItemBoundable)
+                    noPruned++;
+            }
+        }
+        metrics.recordSearch(noEvaluations, noPruned);
+        topK.copyTo(ordinals, distances, from);
+        return from + topK.size();
+    }
+
+    /**
+     * A node or item of the R-tree with a lower bound of its distance to the query.
+     * @param boundable
+     * @param lowerBound
+     * @param refined whether the bound of an item already includes the bounding circle bound
+     */
+    private record BoundedNode(Boundable boundable, double lowerBound, boolean refined) {}
+
+    /**
+     * Get a lower bound of the edge distance to a reference geometry from the bounding circles.
+     * @param queryCircle bounding circle of the query (x, y, radius)
+     * @param ordinal the reference ordinal
+     * @return the lower bound (0 if the circles overlap)
+     */
+    private double getCircleDistance(double[] queryCircle, int ordinal) {
+        double dx = queryCircle[0] - circles[3*ordinal];
+        double dy = queryCircle[1] - circles[3*ordinal + 1];
+        return Math.max(0, Math.sqrt(dx*dx + dy*dy) - queryCircle[2] - circles[3*ordinal + 2]);
+    }
+
+    /**
+     * Get an upper bound of the distance between geometries (or points) within two envelopes, i.e., the distance
+     * between their farthest corners.
+     * @param a
+     * @param b
+     * @return the upper bound
+     */
+    static double getUpperBound(Envelope a, Envelope b) {
+        double dx = Math.max(a.getMaxX() - b.getMinX(), b.getMaxX() - a.getMinX());
+        double dy = Math.max(a.getMaxY() - b.getMinY(), b.getMaxY() - a.getMinY());
+        return Math.sqrt(dx*dx + dy*dy);
+    }
+
+    /**
+     * Range search: the R-tree is queried with the query envelope expanded by the maximum distance, which is a
+     * superset of the references within that distance (the distance between envelopes never exceeds the distance
+     * between the geometries, or centroids, they contain), then each candidate is refined exactly.
+     */
+    @Override
+    public void findWithin(Geometry query, double maxDistance, PTNeighborList result) {
+        result.clear();
+        if (geometries.length == 0)
+            return;
+
+        IntToDoubleFunction prepared = PTGeometryDistance.prepare(query, geometries, centroids, edgeDistance);
+        Envelope searchEnvelope = new Envelope(getQueryEnvelope(query));
+        searchEnvelope.expandBy(maxDistance);
+
+        double[] queryCircle = (circles == null) ? null : PTGeometryDistance.getBoundingCircle(query);
+        int[] noEvaluations = new int[2]; // exact, pruned
+        tree.query(searchEnvelope, item -> {
+            int ordinal = (Integer) item;
+            if (queryCircle != null && getCircleDistance(queryCircle, ordinal) > maxDistance) {
+                noEvaluations[1]++;
+                return;
+            }
+            double distance = prepared.applyAsDouble(ordinal);
+            noEvaluations[0]++;
+            if (distance <= maxDistance)
+                result.add(ordinal, distance);
+        });
+        result.sort();
+        metrics.recordSearch(noEvaluations[0], noEvaluations[1]);
+    }
+
+    /**
+     * @param query
+     * @return the envelope of the query geometry, or of its centroid for centroid comparisons
+     */
+    private Envelope getQueryEnvelope(Geometry query) {
+        return (centroids == null) ? query.getEnvelopeInternal() : query.getCentroid().getEnvelopeInternal();
+    }
+
+    /**
+     * Get the array of nearest neighbor ordinals. According to the {@link STRtree} documentation, read operations
+     * are thread safe, but for some reason, when multithreading, this method occasionally produces a
+     * NullPointerException despite valid arguments. (This probably has to do with the STRtree not being built yet;
+     * explicitly calling {@code build()} on the tree beforehand may help).
+     * @param query
+     * @param distance the distances from the query to the references (see {@link PTGeometryDistance#prepare})
+     * @param k
+     * @param noEvaluations single-element array incremented for each distance evaluated
+     * @return the array of nearest neighbor ordinals
+     * @throws NullPointerException
+     */
+    private Object[] callNearestNeighbor(Geometry query, IntToDoubleFunction distance, int k, int[] noEvaluations) throws NullPointerException {
+        return tree.nearestNeighbour(query.getEnvelopeInternal(), query, (item1, item2) -> {
+            // one of the items is the query geometry, the other a tree item (ordinal)
+            Object o1 = item1.getItem();
+            Object o2 = item2.getItem();
+            int ordinal = (o1 instanceof Integer) ? (Integer) o1 : (Integer) o2;
+            noEvaluations[0]++;
+            return distance.applyAsDouble(ordinal);
+        }, k);
+    }
+
+}
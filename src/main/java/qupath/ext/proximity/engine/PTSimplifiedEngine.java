@@ -0,0 +1,113 @@
+package qupath.ext.proximity.engine;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import qupath.ext.proximity.PT2D;
+import qupath.ext.proximity.aux.PTMetrics;
+
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Edge search against simplified outlines, refined exactly on the original geometries. Outlines are simplified
+ * with a {@link TopologyPreservingSimplifier}, so every point of a simplified outline is within the tolerance of
+ * the original outline and vice versa, and the distance between two simplified geometries differs from the exact
+ * distance by at most twice the tolerance.
+ * <p>
+ * The search over the simplified outlines (with any engine) only selects candidates: for the k nearest neighbors,
+ * all references within the kth simplified distance plus four times the tolerance are refined exactly, which
+ * includes every reference that can be among the exact k nearest. The neighbors and distances returned are
+ * therefore the same as without simplification.
+ */
+class PTSimplifiedEngine implements PTNeighborEngine {
+
+    private final Geometry[] geometries;
+    private final double tolerance;
+    private final PTNeighborEngine simplifiedEngine;
+    private final PT2D.EdgeDistance edgeDistance;
+    private final PTMetrics metrics;
+
+    /**
+     * Constructor
+     * @param geometries the original reference geometries
+     * @param tolerance the simplification tolerance (in pixels)
+     * @param edgeDistance how exact edge distances are computed
+     * @param metrics metrics to which the exact refinements are reported (the engine over the simplified
+     *                geometries reports its own searches)
+     * @param createEngine function creating the engine over the simplified geometries
+     */
+    PTSimplifiedEngine(Geometry[] geometries,
+                       double tolerance,
+                       PT2D.EdgeDistance edgeDistance,
+                       PTMetrics metrics,
+                       Function<Geometry[], PTNeighborEngine> createEngine) {
+        this.geometries = geometries;
+        this.tolerance = tolerance;
+        this.edgeDistance = edgeDistance;
+        this.metrics = metrics;
+        Geometry[] simplified = new Geometry[geometries.length];
+        for (int i = 0; i < geometries.length; i++) {
+            simplified[i] = simplify(geometries[i]);
+        }
+        this.simplifiedEngine = createEngine.apply(simplified);
+    }
+
+    private Geometry simplify(Geometry geometry) {
+        return TopologyPreservingSimplifier.simplify(geometry, tolerance);
+    }
+
+    @Override
+    public int findNearest(Geometry query, int k, int[] ordinals, double[] distances) {
+        if (geometries.length == 0 || k == 0)
+            return 0;
+
+        Geometry simplifiedQuery = simplify(query);
+        int noCandidates = simplifiedEngine.findNearest(simplifiedQuery, k, ordinals, distances);
+        IntToDoubleFunction distance = PTGeometryDistance.prepare(query, geometries, null, edgeDistance);
+        PTTopK topK = new PTTopK(k, ordinals, distances);
+        if (noCandidates < k) { // all references are candidates
+            int[] candidates = Arrays.copyOf(ordinals, noCandidates);
+            for (int ordinal : candidates) {
+                topK.offer(ordinal, distance.applyAsDouble(ordinal));
+            }
+            metrics.recordSearch(candidates.length);
+            return topK.size();
+        }
+
+        // the exact kth distance is at most the simplified one + 2 tolerances, and any reference within that
+        // distance is within another 2 tolerances when simplified
+        PTNeighborList candidates = new PTNeighborList(k);
+        simplifiedEngine.findWithin(simplifiedQuery, distances[noCandidates - 1] + 4*tolerance, candidates);
+        for (int i = 0; i < candidates.size(); i++) {
+            topK.offer(candidates.getOrdinal(i), distance.applyAsDouble(candidates.getOrdinal(i)));
+        }
+        metrics.recordSearch(candidates.size());
+        return topK.size();
+    }
+
+    /**
+     * The candidates depend on the kth simplified distance, so the search is repeated in full (the neighbors
+     * already found are returned again, in the same order).
+     */
+    @Override
+    public int findNearestFrom(Geometry query, int from, int k, int[] ordinals, double[] distances) {
+        return findNearest(query, k, ordinals, distances);
+    }
+
+    @Override
+    public void findWithin(Geometry query, double maxDistance, PTNeighborList result) {
+        PTNeighborList candidates = new PTNeighborList();
+        simplifiedEngine.findWithin(simplify(query), maxDistance + 2*tolerance, candidates);
+        IntToDoubleFunction distance = PTGeometryDistance.prepare(query, geometries, null, edgeDistance);
+        result.clear();
+        for (int i = 0; i < candidates.size(); i++) {
+            double exactDistance = distance.applyAsDouble(candidates.getOrdinal(i));
+            if (exactDistance <= maxDistance)
+                result.add(candidates.getOrdinal(i), exactDistance);
+        }
+        result.sort();
+        metrics.recordSearch(candidates.size());
+    }
+
+}
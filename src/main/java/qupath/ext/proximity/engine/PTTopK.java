@@ -0,0 +1,85 @@
+package qupath.ext.proximity.engine;
+
+/**
+ * Collector of the k smallest distances (with their ordinals), kept sorted by ascending distance and then by
+ * ascending ordinal. Insertion is linear in k, which is cheap for the small k used by PT2D. Not thread safe.
+ */
+class PTTopK {
+
+    private final int k;
+    private final int[] ordinals;
+    private final double[] distances;
+    private int size = 0;
+
+    PTTopK(int k, int[] ordinals, double[] distances) {
+        this.k = k;
+        this.ordinals = ordinals;
+        this.distances = distances;
+    }
+
+    /**
+     * Create a collector for the neighbors ranked {@code [from, k)} of an extended search, with its own storage
+     * (see {@link #copyTo(int[], double[], int)}).
+     * @param from
+     * @param k
+     * @return the collector
+     */
+    static PTTopK extending(int from, int k) {
+        int size = Math.max(k - from, 0);
+        return new PTTopK(size, new int[size], new double[size]);
+    }
+
+    /**
+     * Copy the collected candidates into other arrays.
+     * @param ordinals
+     * @param distances
+     * @param offset index in the destination arrays of the first candidate
+     */
+    void copyTo(int[] ordinals, double[] distances, int offset) {
+        System.arraycopy(this.ordinals, 0, ordinals, offset, size);
+        System.arraycopy(this.distances, 0, distances, offset, size);
+    }
+
+    /**
+     * Offer a candidate, keeping it if it is among the k nearest so far.
+     * @param ordinal
+     * @param distance
+     */
+    void offer(int ordinal, double distance) {
+        if (k == 0) return;
+        if (size == k && !isBefore(distance, ordinal, distances[k - 1], ordinals[k - 1]))
+            return;
+
+        int i = (size == k) ? k - 1 : size++;
+        while (i > 0 && isBefore(distance, ordinal, distances[i - 1], ordinals[i - 1])) {
+            distances[i] = distances[i - 1];
+            ordinals[i] = ordinals[i - 1];
+            i--;
+        }
+        distances[i] = distance;
+        ordinals[i] = ordinal;
+    }
+
+    private static boolean isBefore(double distance, int ordinal, double otherDistance, int otherOrdinal) {
+        return distance < otherDistance || (distance == otherDistance && ordinal < otherOrdinal);
+    }
+
+    /**
+     * @return whether k candidates have been collected
+     */
+    boolean isFull() {
+        return size == k;
+    }
+
+    /**
+     * @return the kth smallest distance so far, or positive infinity if fewer than k candidates were collected
+     */
+    double getKthDistance() {
+        return size == k && k > 0 ? distances[k - 1] : Double.POSITIVE_INFINITY;
+    }
+
+    int size() {
+        return size;
+    }
+
+}
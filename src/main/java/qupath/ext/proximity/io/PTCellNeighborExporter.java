@@ -0,0 +1,252 @@
+package qupath.ext.proximity.io;
+
+import qupath.ext.proximity.aux.PTCellNeighborTracker;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Streams per-cell nearest neighbor data of a {@link qupath.ext.proximity.PT2D} instance to a local file
+ * in a compact binary columnar layout, with an optional CSV alongside.
+ * <p>
+ * Binary layout (all values little-endian):
+ * <pre>
+ * header:  magic "PT2DCOLS" (8 bytes), int version, int N (cells), int k (ranks), double pixel size (µm)
+ * strings: int count, then for each string: int byte length + UTF-8 bytes (class and TMA core names)
+ * columns: long[N] cell ID (most significant bits), long[N] cell ID (least significant bits),
+ *          double[N] centroid X (µm), double[N] centroid Y (µm),
+ *          int[N] class (string index, -1 if none), int[N] TMA core (string index, -1 if none),
+ *          k x double[N] distance to the nth nearest neighbor (µm, NaN if missing),
+ *          k x (long[N] + long[N]) ID of the nth nearest neighbor (most/least significant bits, 0 if missing)
+ * </pre>
+ * Each column is written in its own pass over the cells through a single reusable buffer, so the export
+ * does not create intermediate objects per cell.
+ */
+public class PTCellNeighborExporter {
+
+    public static final String MAGIC = "PT2DCOLS";
+    public static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final PTCellNeighborTracker[] trackers;
+    private final int k;
+    private final double pixelSize;
+    /**
+     * String table shared by the class and TMA core columns.
+     */
+    private final List<String> strings = new ArrayList<>();
+    private final int[] classIndices;
+    private final int[] coreIndices;
+
+    /**
+     * Constructor
+     * @param trackers the nearest neighbor data of the cells to export (in export order)
+     * @param k the number of nearest neighbors (ranks) to export per cell
+     * @param pixelSize pixel size (µm) used to convert centroids
+     * @param coreFunction function to get the TMA core of a cell (may return null)
+     */
+    public PTCellNeighborExporter(PTCellNeighborTracker[] trackers,
+                                  int k,
+                                  double pixelSize,
+                                  Function<PathObject, TMACoreObject> coreFunction) {
+        this.trackers = trackers;
+        this.k = k;
+        this.pixelSize = pixelSize;
+        this.classIndices = new int[trackers.length];
+        this.coreIndices = new int[trackers.length];
+
+        Map<String, Integer> stringIndices = new HashMap<>();
+        for (int i = 0; i < trackers.length; i++) {
+            PathObject cell = trackers[i].getCell();
+            classIndices[i] = cell.getPathClass() == null
+                    ? -1
+                    : stringIndices.computeIfAbsent(cell.getPathClass().toString(), this::addString);
+            TMACoreObject core = (coreFunction == null) ? null : coreFunction.apply(cell);
+            coreIndices[i] = (core == null || core.getName() == null)
+                    ? -1
+                    : stringIndices.computeIfAbsent(core.getName(), this::addString);
+        }
+    }
+
+    private int addString(String string) {
+        strings.add(string);
+        return strings.size() - 1;
+    }
+
+    /**
+     * Write the binary columnar file.
+     * @param path the file to write (overwritten if it exists)
+     * @throws IOException
+     */
+    public void writeBinary(Path path) throws IOException {
+        try (ColumnWriter writer = new ColumnWriter(path)) {
+            // header
+            writer.putBytes(MAGIC.getBytes(StandardCharsets.US_ASCII));
+            writer.putInt(VERSION);
+            writer.putInt(trackers.length);
+            writer.putInt(k);
+            writer.putDouble(pixelSize);
+
+            // string table
+            writer.putInt(strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                writer.putInt(bytes.length);
+                writer.putBytes(bytes);
+            }
+
+            // cell columns
+            for (PTCellNeighborTracker tracker : trackers)
+                writer.putLong(tracker.getCell().getID().getMostSignificantBits());
+            for (PTCellNeighborTracker tracker : trackers)
+                writer.putLong(tracker.getCell().getID().getLeastSignificantBits());
+            for (PTCellNeighborTracker tracker : trackers)
+                writer.putDouble(tracker.getCell().getROI().getCentroidX()*pixelSize);
+            for (PTCellNeighborTracker tracker : trackers)
+                writer.putDouble(tracker.getCell().getROI().getCentroidY()*pixelSize);
+            for (int classIndex : classIndices)
+                writer.putInt(classIndex);
+            for (int coreIndex : coreIndices)
+                writer.putInt(coreIndex);
+
+            // distance matrix, one column per rank
+            for (int n = 0; n < k; n++) {
+                for (PTCellNeighborTracker tracker : trackers)
+                    writer.putDouble(n < tracker.size() ? tracker.getDistance(n) : Double.NaN);
+            }
+
+            // neighbor ID matrix, one pair of columns per rank
+            for (int n = 0; n < k; n++) {
+                for (PTCellNeighborTracker tracker : trackers) {
+                    PathObject neighbor = n < tracker.size() ? tracker.getNeighbor(n) : null;
+                    writer.putLong(neighbor == null ? 0L : neighbor.getID().getMostSignificantBits());
+                }
+                for (PTCellNeighborTracker tracker : trackers) {
+                    PathObject neighbor = n < tracker.size() ? tracker.getNeighbor(n) : null;
+                    writer.putLong(neighbor == null ? 0L : neighbor.getID().getLeastSignificantBits());
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the same data as a CSV file (one row per cell).
+     * @param path the file to write (overwritten if it exists)
+     * @throws IOException
+     */
+    public void writeCSV(Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            StringBuilder row = new StringBuilder("Object ID,Centroid X µm,Centroid Y µm,Class,TMA core");
+            for (int n = 1; n <= k; n++)
+                row.append(",#").append(n).append(" nearest distance µm");
+            for (int n = 1; n <= k; n++)
+                row.append(",#").append(n).append(" nearest ID");
+            writer.write(row.toString());
+            writer.newLine();
+
+            for (int i = 0; i < trackers.length; i++) {
+                PTCellNeighborTracker tracker = trackers[i];
+                ROI roi = tracker.getCell().getROI();
+                row.setLength(0);
+                row.append(tracker.getCell().getID())
+                        .append(',').append(roi.getCentroidX()*pixelSize)
+                        .append(',').append(roi.getCentroidY()*pixelSize)
+                        .append(',');
+                appendEscaped(row, classIndices[i] < 0 ? "" : strings.get(classIndices[i]));
+                row.append(',');
+                appendEscaped(row, coreIndices[i] < 0 ? "" : strings.get(coreIndices[i]));
+                for (int n = 0; n < k; n++) {
+                    row.append(',');
+                    if (n < tracker.size()) row.append(tracker.getDistance(n));
+                }
+                for (int n = 0; n < k; n++) {
+                    row.append(',');
+                    if (n < tracker.size() && tracker.getNeighbor(n) != null) row.append(tracker.getNeighbor(n).getID());
+                }
+                writer.write(row.toString());
+                writer.newLine();
+            }
+        }
+    }
+
+    private static void appendEscaped(StringBuilder row, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            row.append(value);
+        } else {
+            row.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+    }
+
+    /**
+     * Buffered writer over a {@link FileChannel}, flushing a single direct buffer whenever it fills up.
+     */
+    private static class ColumnWriter implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        private ColumnWriter(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+
+        private void ensureRemaining(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void putInt(int value) throws IOException {
+            ensureRemaining(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        private void putLong(long value) throws IOException {
+            ensureRemaining(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        private void putDouble(double value) throws IOException {
+            ensureRemaining(Double.BYTES);
+            buffer.putDouble(value);
+        }
+
+        private void putBytes(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensureRemaining(1);
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+}
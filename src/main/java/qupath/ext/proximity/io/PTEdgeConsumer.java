@@ -0,0 +1,21 @@
+package qupath.ext.proximity.io;
+
+import qupath.lib.objects.PathObject;
+
+/**
+ * Consumer of target-reference interaction edges from the nearest neighbor stage of
+ * {@link qupath.ext.proximity.PT2D}.
+ */
+@FunctionalInterface
+public interface PTEdgeConsumer {
+
+    /**
+     * Accept an edge.
+     * @param target the target cell (i.e., cell to analyze)
+     * @param reference the reference cell
+     * @param rank rank n of the reference cell among the target's nearest neighbors (0 = nearest)
+     * @param distance distance between the two cells (µm)
+     */
+    void accept(PathObject target, PathObject reference, int rank, double distance);
+
+}
@@ -0,0 +1,240 @@
+package qupath.ext.proximity.io;
+
+import qupath.ext.proximity.aux.PTCellNeighborTracker;
+import qupath.lib.objects.PathObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * Memory-mapped edge list of target-reference interactions, with one fixed-size record per edge so
+ * that tens of millions of edges can be written and read back without materializing them on the heap.
+ * <p>
+ * File layout (all values little-endian):
+ * <pre>
+ * header (32 bytes): magic "PT2DEDGE" (8 bytes), int version, int record size, long edge count, 8 reserved bytes
+ * records (48 bytes each): long target ID (most significant bits), long target ID (least significant bits),
+ *                          long reference ID (most significant bits), long reference ID (least significant bits),
+ *                          double distance (µm), int rank (0 = nearest), 4 reserved bytes
+ * </pre>
+ * The file is mapped in segments so that it is not limited by the maximum size of a single buffer.
+ */
+public class PTEdgeListFile {
+
+    public static final String MAGIC = "PT2DEDGE";
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 48;
+    /**
+     * Number of records per mapped segment (~1 GB), so records never straddle two segments.
+     */
+    private static final long RECORDS_PER_SEGMENT = (1L << 30) / RECORD_SIZE;
+
+    private PTEdgeListFile() {}
+
+    /**
+     * A source of edges that can be iterated more than once, in the same order, e.g.,
+     * {@link qupath.ext.proximity.PT2D#forEachInteraction(double, PTEdgeConsumer)}.
+     */
+    @FunctionalInterface
+    public interface EdgeSource {
+        /**
+         * Pass each edge to a consumer.
+         * @param maxDistance only pass edges with distances less than or equal to this value (µm)
+         * @param consumer the consumer of the edges
+         */
+        void forEachEdge(double maxDistance, PTEdgeConsumer consumer);
+    }
+
+    /**
+     * Write the edges of the given trackers to a file, skipping neighbors without a known identity.
+     * @param path the file to write (overwritten if it exists)
+     * @param trackers the nearest neighbor data of the target cells
+     * @param maxDistance only write edges with distances less than or equal to this value (µm)
+     * @return the number of edges written
+     * @throws IOException
+     */
+    public static long write(Path path, PTCellNeighborTracker[] trackers, double maxDistance) throws IOException {
+        return write(path, (distance, consumer) -> {
+            for (PTCellNeighborTracker tracker : trackers) {
+                for (int n = 0; n < tracker.size(); n++) {
+                    PathObject neighbor = tracker.getNeighbor(n);
+                    if (neighbor != null && tracker.getDistance(n) <= distance)
+                        consumer.accept(tracker.getCell(), neighbor, n, tracker.getDistance(n));
+                }
+            }
+        }, maxDistance);
+    }
+
+    /**
+     * Write the edges of a source to a file. The source is iterated twice: once to count the edges, once to write them.
+     * @param path the file to write (overwritten if it exists)
+     * @param source the edges
+     * @param maxDistance only write edges with distances less than or equal to this value (µm)
+     * @return the number of edges written
+     * @throws IOException
+     */
+    public static long write(Path path, EdgeSource source, double maxDistance) throws IOException {
+        long[] counter = new long[1];
+        source.forEachEdge(maxDistance, (target, reference, rank, distance) -> counter[0]++);
+        long count = counter[0];
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC.getBytes(StandardCharsets.US_ASCII));
+            header.putInt(VERSION);
+            header.putInt(RECORD_SIZE);
+            header.putLong(count);
+            header.force();
+
+            long[] index = new long[1];
+            MappedByteBuffer[] segment = new MappedByteBuffer[1];
+            try {
+                source.forEachEdge(maxDistance, (target, reference, rank, distance) -> {
+                    if (index[0] == count)
+                        throw new IllegalStateException("Edges changed while writing");
+                    if (index[0] % RECORDS_PER_SEGMENT == 0) {
+                        if (segment[0] != null) segment[0].force();
+                        try {
+                            segment[0] = mapSegment(channel, FileChannel.MapMode.READ_WRITE, index[0] / RECORDS_PER_SEGMENT, count);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    segment[0].putLong(target.getID().getMostSignificantBits());
+                    segment[0].putLong(target.getID().getLeastSignificantBits());
+                    segment[0].putLong(reference.getID().getMostSignificantBits());
+                    segment[0].putLong(reference.getID().getLeastSignificantBits());
+                    segment[0].putDouble(distance);
+                    segment[0].putInt(rank);
+                    segment[0].putInt(0);
+                    index[0]++;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } catch (IllegalStateException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            if (index[0] != count)
+                throw new IOException("Edges changed while writing");
+            if (segment[0] != null) segment[0].force();
+        }
+        return count;
+    }
+
+    private static MappedByteBuffer mapSegment(FileChannel channel, FileChannel.MapMode mapMode, long segmentIndex, long count)
+            throws IOException {
+        long firstRecord = segmentIndex * RECORDS_PER_SEGMENT;
+        long noRecords = Math.min(RECORDS_PER_SEGMENT, count - firstRecord);
+        MappedByteBuffer segment = channel.map(mapMode, HEADER_SIZE + firstRecord * RECORD_SIZE, noRecords * RECORD_SIZE);
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        return segment;
+    }
+
+    /**
+     * Open an edge list file for reading.
+     * @param path the file to read
+     * @return the reader
+     * @throws IOException
+     */
+    public static Reader open(Path path) throws IOException {
+        return new Reader(path);
+    }
+
+    /**
+     * Random-access reader over a memory-mapped edge list file. Reads are thread safe.
+     */
+    public static class Reader implements Closeable {
+
+        private final FileChannel channel;
+        private final long count;
+        private final MappedByteBuffer[] segments;
+
+        private Reader(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                byte[] magic = new byte[MAGIC.length()];
+                header.get(magic);
+                if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII)))
+                    throw new IOException("Not a PT2D edge list file: " + path);
+                int version = header.getInt();
+                if (version != VERSION)
+                    throw new IOException("Unsupported PT2D edge list version: " + version);
+                if (header.getInt() != RECORD_SIZE)
+                    throw new IOException("Unexpected PT2D edge list record size");
+                this.count = header.getLong();
+
+                int noSegments = (int) ((count + RECORDS_PER_SEGMENT - 1) / RECORDS_PER_SEGMENT);
+                this.segments = new MappedByteBuffer[noSegments];
+                for (int i = 0; i < noSegments; i++) {
+                    segments[i] = mapSegment(channel, FileChannel.MapMode.READ_ONLY, i, count);
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the number of edges in the file
+         */
+        public long size() {
+            return count;
+        }
+
+        private long getLong(long edge, int offset) {
+            return segments[(int) (edge / RECORDS_PER_SEGMENT)].getLong((int) (edge % RECORDS_PER_SEGMENT) * RECORD_SIZE + offset);
+        }
+
+        public long getTargetIDMostSignificantBits(long edge) {
+            return getLong(edge, 0);
+        }
+
+        public long getTargetIDLeastSignificantBits(long edge) {
+            return getLong(edge, 8);
+        }
+
+        public long getReferenceIDMostSignificantBits(long edge) {
+            return getLong(edge, 16);
+        }
+
+        public long getReferenceIDLeastSignificantBits(long edge) {
+            return getLong(edge, 24);
+        }
+
+        public UUID getTargetID(long edge) {
+            return new UUID(getTargetIDMostSignificantBits(edge), getTargetIDLeastSignificantBits(edge));
+        }
+
+        public UUID getReferenceID(long edge) {
+            return new UUID(getReferenceIDMostSignificantBits(edge), getReferenceIDLeastSignificantBits(edge));
+        }
+
+        public double getDistance(long edge) {
+            return Double.longBitsToDouble(getLong(edge, 32));
+        }
+
+        public int getRank(long edge) {
+            return segments[(int) (edge / RECORDS_PER_SEGMENT)].getInt((int) (edge % RECORDS_PER_SEGMENT) * RECORD_SIZE + 40);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close(); // the mapping stays valid until the buffers are garbage collected
+        }
+    }
+
+}
@@ -0,0 +1,268 @@
+package qupath.ext.proximity.io;
+
+import qupath.ext.proximity.aux.PTCellNeighborTracker;
+import qupath.lib.objects.PathObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Memory-mapped cache of the nearest neighbors found by a PT2D instance, so that a later run with the same
+ * configuration and unchanged cells can restore them instead of searching again. The file records the
+ * configuration and a fingerprint of the cells it was computed for; readers compare both before use.
+ * <p>
+ * File layout (all values little-endian, sections aligned to 8 bytes):
+ * <pre>
+ * header (64 bytes): magic "PT2DNCAC" (8 bytes), int version, int neighbors per cell (k), long fingerprint,
+ *                    int target count, int reference count, int configuration length (bytes), 28 reserved bytes
+ * configuration: UTF-8 string
+ * target IDs: per cell to analyze, long most significant bits, long least significant bits
+ * reference IDs: per reference cell, long most significant bits, long least significant bits
+ * neighbor counts: int per cell to analyze
+ * neighbors: int[target count × k] reference indices (into the reference IDs), row-major by cell to analyze
+ * distances: double[target count × k] distances (µm), row-major by cell to analyze
+ * </pre>
+ * The file is written to a temporary file first and then moved into place, so readers never see a partial file.
+ */
+public class PTNeighborCacheFile {
+
+    public static final String MAGIC = "PT2DNCAC";
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+
+    private PTNeighborCacheFile() {}
+
+    /**
+     * Write the nearest neighbors of cells to a cache file.
+     * @param path the file to write (replaced if it exists)
+     * @param configuration description of the configuration the neighbors were computed with
+     * @param fingerprint fingerprint of the cells the neighbors were computed for
+     * @param k the number of neighbors stored per cell (max interactions to test + 1)
+     * @param targets the cells to analyze
+     * @param trackers the neighbor trackers of the cells to analyze (indexed as {@code targets})
+     * @param references the reference cells; every neighbor must be one of them
+     * @throws IOException
+     * @throws IllegalArgumentException if a neighbor is unknown or not a reference cell
+     */
+    public static void write(Path path,
+                             String configuration,
+                             long fingerprint,
+                             int k,
+                             PathObject[] targets,
+                             PTCellNeighborTracker[] trackers,
+                             PathObject[] references) throws IOException {
+        byte[] configurationBytes = configuration.getBytes(StandardCharsets.UTF_8);
+        Layout layout = new Layout(configurationBytes.length, targets.length, references.length, k);
+        if (layout.size > Integer.MAX_VALUE)
+            throw new IOException("Too many neighbors to cache (" + layout.size + " bytes)");
+
+        Map<PathObject, Integer> referenceIndices = new HashMap<>(references.length * 2);
+        for (int j = 0; j < references.length; j++) {
+            referenceIndices.put(references[j], j);
+        }
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, layout.size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(MAGIC.getBytes(StandardCharsets.US_ASCII));
+            buffer.putInt(VERSION);
+            buffer.putInt(k);
+            buffer.putLong(fingerprint);
+            buffer.putInt(targets.length);
+            buffer.putInt(references.length);
+            buffer.putInt(configurationBytes.length);
+            buffer.put(HEADER_SIZE, configurationBytes);
+
+            for (int i = 0; i < targets.length; i++) {
+                putUUID(buffer, layout.targetIDs + 16L * i, targets[i].getID());
+            }
+            for (int j = 0; j < references.length; j++) {
+                putUUID(buffer, layout.referenceIDs + 16L * j, references[j].getID());
+            }
+            for (int i = 0; i < targets.length; i++) {
+                PTCellNeighborTracker tracker = trackers[i];
+                int noNeighbors = Math.min(k, tracker.size());
+                buffer.putInt((int) (layout.counts + 4L * i), noNeighbors);
+                for (int n = 0; n < noNeighbors; n++) {
+                    Integer j = tracker.getNeighbor(n) == null ? null : referenceIndices.get(tracker.getNeighbor(n));
+                    if (j == null)
+                        throw new IllegalArgumentException("Neighbor " + n + " of " + targets[i] + " is not a known reference cell");
+                    long entry = (long) i * k + n;
+                    buffer.putInt((int) (layout.neighbors + 4 * entry), j);
+                    buffer.putDouble((int) (layout.distances + 8 * entry), tracker.getDistance(n));
+                }
+            }
+            buffer.force();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void putUUID(MappedByteBuffer buffer, long position, UUID id) {
+        buffer.putLong((int) position, id.getMostSignificantBits());
+        buffer.putLong((int) (position + 8), id.getLeastSignificantBits());
+    }
+
+    /**
+     * Open a cache file for reading.
+     * @param path the file to read
+     * @return the reader
+     * @throws IOException if the file cannot be read or is not a valid cache file
+     */
+    public static Reader open(Path path) throws IOException {
+        return new Reader(path);
+    }
+
+    /**
+     * Offsets of the sections of a cache file.
+     */
+    private static class Layout {
+        private final long targetIDs;
+        private final long referenceIDs;
+        private final long counts;
+        private final long neighbors;
+        private final long distances;
+        private final long size;
+
+        private Layout(int configurationLength, int noTargets, int noReferences, int k) {
+            this.targetIDs = align(HEADER_SIZE + configurationLength);
+            this.referenceIDs = targetIDs + 16L * noTargets;
+            this.counts = referenceIDs + 16L * noReferences;
+            this.neighbors = align(counts + 4L * noTargets);
+            this.distances = align(neighbors + 4L * noTargets * k);
+            this.size = distances + 8L * noTargets * k;
+        }
+
+        private static long align(long position) {
+            return (position + 7) & ~7L;
+        }
+    }
+
+    /**
+     * Random-access reader over a memory-mapped cache file. Reads are thread safe.
+     */
+    public static class Reader implements Closeable {
+
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final String configuration;
+        private final long fingerprint;
+        private final int k;
+        private final int noTargets;
+        private final int noReferences;
+        private final Layout layout;
+
+        private Reader(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+                    throw new IOException("Not a PT2D neighbor cache file: " + path);
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                byte[] magic = new byte[MAGIC.length()];
+                buffer.get(magic);
+                if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII)))
+                    throw new IOException("Not a PT2D neighbor cache file: " + path);
+                int version = buffer.getInt();
+                if (version != VERSION)
+                    throw new IOException("Unsupported PT2D neighbor cache version: " + version);
+                this.k = buffer.getInt();
+                this.fingerprint = buffer.getLong();
+                this.noTargets = buffer.getInt();
+                this.noReferences = buffer.getInt();
+                byte[] configurationBytes = new byte[buffer.getInt()];
+                buffer.get(HEADER_SIZE, configurationBytes);
+                this.configuration = new String(configurationBytes, StandardCharsets.UTF_8);
+                this.layout = new Layout(configurationBytes.length, noTargets, noReferences, k);
+                if (layout.size != channel.size())
+                    throw new IOException("Truncated PT2D neighbor cache file: " + path);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public String getConfiguration() {
+            return configuration;
+        }
+
+        public long getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return the number of neighbors stored per cell (max interactions to test + 1)
+         */
+        public int getK() {
+            return k;
+        }
+
+        public int getNoTargets() {
+            return noTargets;
+        }
+
+        public int getNoReferences() {
+            return noReferences;
+        }
+
+        public UUID getTargetID(int i) {
+            return getUUID(layout.targetIDs + 16L * i);
+        }
+
+        public UUID getReferenceID(int j) {
+            return getUUID(layout.referenceIDs + 16L * j);
+        }
+
+        private UUID getUUID(long position) {
+            return new UUID(buffer.getLong((int) position), buffer.getLong((int) (position + 8)));
+        }
+
+        /**
+         * @param i index of the cell to analyze
+         * @return the number of neighbors stored
+         */
+        public int getNoNeighbors(int i) {
+            return buffer.getInt((int) (layout.counts + 4L * i));
+        }
+
+        /**
+         * @param i index of the cell to analyze
+         * @param n rank of the neighbor (0 = nearest)
+         * @return the index of the reference cell (see {@link #getReferenceID(int)})
+         */
+        public int getReferenceIndex(int i, int n) {
+            return buffer.getInt((int) (layout.neighbors + 4 * ((long) i * k + n)));
+        }
+
+        /**
+         * @param i index of the cell to analyze
+         * @param n rank of the neighbor (0 = nearest)
+         * @return the distance (µm)
+         */
+        public double getDistance(int i, int n) {
+            return buffer.getDouble((int) (layout.distances + 8 * ((long) i * k + n)));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close(); // the mapping stays valid until the buffer is garbage collected
+        }
+    }
+
+}
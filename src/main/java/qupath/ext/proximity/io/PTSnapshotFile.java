@@ -0,0 +1,384 @@
+package qupath.ext.proximity.io;
+
+import qupath.ext.proximity.PT2D;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Memory-mapped snapshot of the computed state of a PT2D instance (see {@link PT2D#saveSnapshot(Path)}), so that
+ * it can be restored without searching again, e.g., after restarting QuPath or on another workstation. Cells and
+ * TMA cores are identified by their IDs, which are kept in QuPath data files.
+ * <p>
+ * File layout (all values little-endian, sections aligned to 8 bytes):
+ * <pre>
+ * header (96 bytes): magic "PT2DSNAP" (8 bytes), int version, int map size (max interactions to test + 1),
+ *                    double radius (µm), double tile size (µm), double halo (µm), double pixel size (µm),
+ *                    int target count, int reference count, int neighbor count, int core count,
+ *                    int core target count, int core reference count, int settings length (bytes), 20 reserved bytes
+ * settings: UTF-8 string of "key=value" pairs separated by ';' (enum names and simplification tolerance)
+ * target IDs, reference IDs, core IDs: per object, long most significant bits, long least significant bits
+ * neighbors: int[target count + 1] offsets of each target's neighbors, int[neighbor count] reference indices,
+ *            double[neighbor count] distances (µm), sorted by ascending distance per target
+ * threshold columns: per rank n below the map size, int[target count] target indices sorted by the distance to
+ *                    their nth neighbor (targets with fewer neighbors last)
+ * cores: int[core count + 1] offsets and int[core target count] target indices of each core, then the same for
+ *        reference indices
+ * </pre>
+ * In radius mode, the neighbors are all those within the radius; otherwise, the nearest neighbors (at most the map
+ * size per target). Snapshots are limited to 2 GB.
+ */
+public class PTSnapshotFile {
+
+    public static final String MAGIC = "PT2DSNAP";
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 96;
+
+    private PTSnapshotFile() {}
+
+    /**
+     * The computed state of a PT2D instance. The neighbors of target {@code i} occupy the range
+     * {@code [neighborOffsets[i], neighborOffsets[i + 1])} of {@code neighborIndices} and {@code neighborDistances};
+     * the cells of core {@code c} likewise in the core arrays.
+     * @param mode
+     * @param comparisonType
+     * @param comparisonROI
+     * @param lineType
+     * @param neighborEngine
+     * @param edgeDistance
+     * @param simplificationTolerance tolerance (µm) of the simplified outlines
+     * @param mapSize max interactions to test + 1
+     * @param radius radius (µm) in radius mode, otherwise 0
+     * @param tileSize tile size (µm) in tiled mode, otherwise 0
+     * @param halo halo (µm)
+     * @param pixelSize pixel size (µm) of the image
+     * @param targetIDs IDs of the cells to analyze
+     * @param referenceIDs IDs of the reference cells
+     * @param neighborOffsets start of each target's neighbors (length {@code targetIDs.length + 1})
+     * @param neighborIndices indices of the neighbors in {@code referenceIDs}
+     * @param neighborDistances distances (µm) of the neighbors
+     * @param thresholdColumns per rank, target indices sorted by the distance to their neighbor of that rank
+     * @param coreIDs IDs of the TMA cores (TMA mode)
+     * @param coreTargetOffsets start of each core's targets (length {@code coreIDs.length + 1})
+     * @param coreTargetIndices indices of the cores' cells to analyze
+     * @param coreReferenceOffsets start of each core's reference cells (length {@code coreIDs.length + 1})
+     * @param coreReferenceIndices indices of the cores' reference cells
+     */
+    public record Snapshot(PT2D.Mode mode,
+                           PT2D.ComparisonType comparisonType,
+                           PT2D.ComparisonROI comparisonROI,
+                           PT2D.LineType lineType,
+                           PT2D.NeighborEngine neighborEngine,
+                           PT2D.EdgeDistance edgeDistance,
+                           double simplificationTolerance,
+                           int mapSize,
+                           double radius,
+                           double tileSize,
+                           double halo,
+                           double pixelSize,
+                           UUID[] targetIDs,
+                           UUID[] referenceIDs,
+                           int[] neighborOffsets,
+                           int[] neighborIndices,
+                           double[] neighborDistances,
+                           int[][] thresholdColumns,
+                           UUID[] coreIDs,
+                           int[] coreTargetOffsets,
+                           int[] coreTargetIndices,
+                           int[] coreReferenceOffsets,
+                           int[] coreReferenceIndices) {}
+
+    /**
+     * Offsets of the sections of a snapshot file.
+     */
+    private static class Layout {
+        private final long targetIDs;
+        private final long referenceIDs;
+        private final long coreIDs;
+        private final long neighborOffsets;
+        private final long neighborIndices;
+        private final long neighborDistances;
+        private final long thresholdColumns;
+        private final long coreTargetOffsets;
+        private final long coreTargetIndices;
+        private final long coreReferenceOffsets;
+        private final long coreReferenceIndices;
+        private final long size;
+
+        private Layout(int settingsLength, int mapSize, int noTargets, int noReferences, int noNeighbors,
+                       int noCores, int noCoreTargets, int noCoreReferences) {
+            this.targetIDs = align(HEADER_SIZE + settingsLength);
+            this.referenceIDs = targetIDs + 16L * noTargets;
+            this.coreIDs = referenceIDs + 16L * noReferences;
+            this.neighborOffsets = coreIDs + 16L * noCores;
+            this.neighborIndices = neighborOffsets + 4L * (noTargets + 1);
+            this.neighborDistances = align(neighborIndices + 4L * noNeighbors);
+            this.thresholdColumns = neighborDistances + 8L * noNeighbors;
+            this.coreTargetOffsets = thresholdColumns + 4L * mapSize * noTargets;
+            this.coreTargetIndices = coreTargetOffsets + 4L * (noCores + 1);
+            this.coreReferenceOffsets = coreTargetIndices + 4L * noCoreTargets;
+            this.coreReferenceIndices = coreReferenceOffsets + 4L * (noCores + 1);
+            this.size = coreReferenceIndices + 4L * noCoreReferences;
+        }
+
+        private static long align(long position) {
+            return (position + 7) & ~7L;
+        }
+    }
+
+    /**
+     * Write a snapshot file.
+     * @param path the file to write (replaced if it exists)
+     * @param snapshot the snapshot
+     * @throws IOException
+     */
+    public static void write(Path path, Snapshot snapshot) throws IOException {
+        byte[] settings = ("mode=" + snapshot.mode()
+                + ";comparisonType=" + snapshot.comparisonType()
+                + ";comparisonROI=" + snapshot.comparisonROI()
+                + ";lineType=" + snapshot.lineType()
+                + ";neighborEngine=" + snapshot.neighborEngine()
+                + ";edgeDistance=" + snapshot.edgeDistance()
+                + ";simplificationTolerance=" + snapshot.simplificationTolerance()).getBytes(StandardCharsets.UTF_8);
+        int noTargets = snapshot.targetIDs().length;
+        Layout layout = new Layout(settings.length,
+                snapshot.mapSize(),
+                noTargets,
+                snapshot.referenceIDs().length,
+                snapshot.neighborIndices().length,
+                snapshot.coreIDs().length,
+                snapshot.coreTargetIndices().length,
+                snapshot.coreReferenceIndices().length);
+        if (layout.size > Integer.MAX_VALUE)
+            throw new IOException("Snapshot too large (" + layout.size + " bytes)");
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, layout.size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(MAGIC.getBytes(StandardCharsets.US_ASCII));
+            buffer.putInt(VERSION);
+            buffer.putInt(snapshot.mapSize());
+            buffer.putDouble(snapshot.radius());
+            buffer.putDouble(snapshot.tileSize());
+            buffer.putDouble(snapshot.halo());
+            buffer.putDouble(snapshot.pixelSize());
+            buffer.putInt(noTargets);
+            buffer.putInt(snapshot.referenceIDs().length);
+            buffer.putInt(snapshot.neighborIndices().length);
+            buffer.putInt(snapshot.coreIDs().length);
+            buffer.putInt(snapshot.coreTargetIndices().length);
+            buffer.putInt(snapshot.coreReferenceIndices().length);
+            buffer.putInt(settings.length);
+            buffer.put(HEADER_SIZE, settings);
+
+            putUUIDs(buffer, layout.targetIDs, snapshot.targetIDs());
+            putUUIDs(buffer, layout.referenceIDs, snapshot.referenceIDs());
+            putUUIDs(buffer, layout.coreIDs, snapshot.coreIDs());
+            putInts(buffer, layout.neighborOffsets, snapshot.neighborOffsets());
+            putInts(buffer, layout.neighborIndices, snapshot.neighborIndices());
+            slice(buffer, layout.neighborDistances, 8L * snapshot.neighborDistances().length)
+                    .asDoubleBuffer().put(snapshot.neighborDistances());
+            for (int n = 0; n < snapshot.mapSize(); n++) {
+                putInts(buffer, layout.thresholdColumns + 4L * n * noTargets, snapshot.thresholdColumns()[n]);
+            }
+            putInts(buffer, layout.coreTargetOffsets, snapshot.coreTargetOffsets());
+            putInts(buffer, layout.coreTargetIndices, snapshot.coreTargetIndices());
+            putInts(buffer, layout.coreReferenceOffsets, snapshot.coreReferenceOffsets());
+            putInts(buffer, layout.coreReferenceIndices, snapshot.coreReferenceIndices());
+            buffer.force();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a snapshot file.
+     * @param path the file to read
+     * @return the snapshot
+     * @throws IOException if the file cannot be read or is not a valid snapshot file
+     */
+    public static Snapshot read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Not a PT2D snapshot file: " + path);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[MAGIC.length()];
+            buffer.get(magic);
+            if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII)))
+                throw new IOException("Not a PT2D snapshot file: " + path);
+            int version = buffer.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported PT2D snapshot version: " + version);
+
+            int mapSize = buffer.getInt();
+            double radius = buffer.getDouble();
+            double tileSize = buffer.getDouble();
+            double halo = buffer.getDouble();
+            double pixelSize = buffer.getDouble();
+            int noTargets = buffer.getInt();
+            int noReferences = buffer.getInt();
+            int noNeighbors = buffer.getInt();
+            int noCores = buffer.getInt();
+            int noCoreTargets = buffer.getInt();
+            int noCoreReferences = buffer.getInt();
+            int settingsLength = buffer.getInt();
+            if (mapSize < 1 || noTargets < 0 || noReferences < 0 || noNeighbors < 0 || noCores < 0
+                    || noCoreTargets < 0 || noCoreReferences < 0 || settingsLength < 0
+                    || settingsLength > channel.size() - HEADER_SIZE)
+                throw new IOException("Invalid PT2D snapshot header: " + path);
+            byte[] settingsBytes = new byte[settingsLength];
+            buffer.get(HEADER_SIZE, settingsBytes);
+            Layout layout = new Layout(settingsBytes.length, mapSize, noTargets, noReferences, noNeighbors,
+                    noCores, noCoreTargets, noCoreReferences);
+            if (layout.size != channel.size())
+                throw new IOException("Truncated PT2D snapshot file: " + path);
+
+            Map<String, String> settings = new HashMap<>();
+            for (String setting : new String(settingsBytes, StandardCharsets.UTF_8).split(";")) {
+                int separator = setting.indexOf('=');
+                if (separator > 0)
+                    settings.put(setting.substring(0, separator), setting.substring(separator + 1));
+            }
+
+            double[] neighborDistances = new double[noNeighbors];
+            slice(buffer, layout.neighborDistances, 8L * noNeighbors).asDoubleBuffer().get(neighborDistances);
+            int[][] thresholdColumns = new int[mapSize][];
+            for (int n = 0; n < mapSize; n++) {
+                thresholdColumns[n] = getInts(buffer, layout.thresholdColumns + 4L * n * noTargets, noTargets);
+            }
+            Snapshot snapshot;
+            try {
+                snapshot = new Snapshot(PT2D.Mode.valueOf(settings.get("mode")),
+                        PT2D.ComparisonType.valueOf(settings.get("comparisonType")),
+                        PT2D.ComparisonROI.valueOf(settings.get("comparisonROI")),
+                        PT2D.LineType.valueOf(settings.get("lineType")),
+                        PT2D.NeighborEngine.valueOf(settings.get("neighborEngine")),
+                        PT2D.EdgeDistance.valueOf(settings.get("edgeDistance")),
+                        Double.parseDouble(settings.get("simplificationTolerance")),
+                        mapSize,
+                        radius,
+                        tileSize,
+                        halo,
+                        pixelSize,
+                        getUUIDs(buffer, layout.targetIDs, noTargets),
+                        getUUIDs(buffer, layout.referenceIDs, noReferences),
+                        getInts(buffer, layout.neighborOffsets, noTargets + 1),
+                        getInts(buffer, layout.neighborIndices, noNeighbors),
+                        neighborDistances,
+                        thresholdColumns,
+                        getUUIDs(buffer, layout.coreIDs, noCores),
+                        getInts(buffer, layout.coreTargetOffsets, noCores + 1),
+                        getInts(buffer, layout.coreTargetIndices, noCoreTargets),
+                        getInts(buffer, layout.coreReferenceOffsets, noCores + 1),
+                        getInts(buffer, layout.coreReferenceIndices, noCoreReferences));
+            } catch (IllegalArgumentException | NullPointerException e) {
+                throw new IOException("Invalid PT2D snapshot settings: " + settings, e);
+            }
+            validate(snapshot, path);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Check that the offsets and indices of a snapshot are in range, so that a corrupted file fails to load
+     * rather than restoring an inconsistent instance.
+     * @param snapshot
+     * @param path the file read, for the exception message
+     * @throws IOException if anything is out of range
+     */
+    private static void validate(Snapshot snapshot, Path path) throws IOException {
+        int noTargets = snapshot.targetIDs().length;
+        int noReferences = snapshot.referenceIDs().length;
+        int[] neighborOffsets = snapshot.neighborOffsets();
+        validateOffsets(neighborOffsets, snapshot.neighborIndices().length, "neighbor", path);
+        validateIndices(snapshot.neighborIndices(), noReferences, "neighbor", path);
+        for (int i = 0; i < noTargets; i++) {
+            if (snapshot.radius() == 0 && neighborOffsets[i + 1] - neighborOffsets[i] > snapshot.mapSize())
+                throw new IOException("Invalid PT2D snapshot: more neighbors than the map size for target " + i + " in " + path);
+            for (int n = neighborOffsets[i]; n < neighborOffsets[i + 1]; n++) {
+                double distance = snapshot.neighborDistances()[n];
+                if (!(distance >= 0) || (n > neighborOffsets[i] && distance < snapshot.neighborDistances()[n - 1]))
+                    throw new IOException("Invalid PT2D snapshot: unsorted or invalid neighbor distances for target " + i + " in " + path);
+            }
+        }
+
+        boolean[] found = new boolean[noTargets];
+        for (int n = 0; n < snapshot.mapSize(); n++) {
+            Arrays.fill(found, false);
+            for (int i : snapshot.thresholdColumns()[n]) {
+                if (i < 0 || i >= noTargets || found[i])
+                    throw new IOException("Invalid PT2D snapshot: threshold column " + n + " is not a permutation of the targets in " + path);
+                found[i] = true;
+            }
+        }
+
+        validateOffsets(snapshot.coreTargetOffsets(), snapshot.coreTargetIndices().length, "core target", path);
+        validateIndices(snapshot.coreTargetIndices(), noTargets, "core target", path);
+        validateOffsets(snapshot.coreReferenceOffsets(), snapshot.coreReferenceIndices().length, "core reference", path);
+        validateIndices(snapshot.coreReferenceIndices(), noReferences, "core reference", path);
+    }
+
+    private static void validateOffsets(int[] offsets, int length, String description, Path path) throws IOException {
+        if (offsets[0] != 0 || offsets[offsets.length - 1] != length)
+            throw new IOException("Invalid PT2D snapshot: " + description + " offsets do not cover the " + description + " indices in " + path);
+        for (int i = 1; i < offsets.length; i++) {
+            if (offsets[i] < offsets[i - 1])
+                throw new IOException("Invalid PT2D snapshot: decreasing " + description + " offsets in " + path);
+        }
+    }
+
+    private static void validateIndices(int[] indices, int size, String description, Path path) throws IOException {
+        for (int index : indices) {
+            if (index < 0 || index >= size)
+                throw new IOException("Invalid PT2D snapshot: " + description + " index " + index + " out of range in " + path);
+        }
+    }
+
+    private static ByteBuffer slice(MappedByteBuffer buffer, long position, long length) {
+        return buffer.slice((int) position, (int) length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void putInts(MappedByteBuffer buffer, long position, int[] values) {
+        slice(buffer, position, 4L * values.length).asIntBuffer().put(values);
+    }
+
+    private static int[] getInts(MappedByteBuffer buffer, long position, int length) {
+        int[] values = new int[length];
+        slice(buffer, position, 4L * length).asIntBuffer().get(values);
+        return values;
+    }
+
+    private static void putUUIDs(MappedByteBuffer buffer, long position, UUID[] ids) {
+        for (int i = 0; i < ids.length; i++) {
+            buffer.putLong((int) (position + 16L * i), ids[i].getMostSignificantBits());
+            buffer.putLong((int) (position + 16L * i + 8), ids[i].getLeastSignificantBits());
+        }
+    }
+
+    private static UUID[] getUUIDs(MappedByteBuffer buffer, long position, int length) {
+        UUID[] ids = new UUID[length];
+        for (int i = 0; i < length; i++) {
+            ids[i] = new UUID(buffer.getLong((int) (position + 16L * i)), buffer.getLong((int) (position + 16L * i + 8)));
+        }
+        return ids;
+    }
+
+}
@@ -0,0 +1,33 @@
+package qupath.ext.proximity.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for objects (labels, connections) added to or removed from the hierarchy by a PT2D instance.
+ */
+@Name("qupath.ext.proximity.HierarchyMutation")
+@Label("PT2D Hierarchy Mutation")
+@Category({"QuPath", "Proximity Tools"})
+@Description("Objects added to or removed from the hierarchy by a PT2D instance")
+@StackTrace(false)
+public class PTHierarchyMutationEvent extends Event {
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Objects")
+    @Description("Number of objects added or removed")
+    public int noObjects;
+
+    @Label("Cells To Analyze")
+    public int noCellsToAnalyze;
+
+    @Label("Neighbors Per Cell")
+    public int k;
+
+}
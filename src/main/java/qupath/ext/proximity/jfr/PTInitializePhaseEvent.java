@@ -0,0 +1,40 @@
+package qupath.ext.proximity.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for one phase of the initialization of a PT2D instance (see
+ * {@link qupath.ext.proximity.aux.PTMetrics.Timer} for the phase names).
+ */
+@Name("qupath.ext.proximity.InitializePhase")
+@Label("PT2D Initialize Phase")
+@Category({"QuPath", "Proximity Tools"})
+@Description("A phase of the initialization of a PT2D instance")
+@StackTrace(false)
+public class PTInitializePhaseEvent extends Event {
+
+    @Label("Phase")
+    public String phase;
+
+    @Label("Mode")
+    public String mode;
+
+    @Label("Neighbor Engine")
+    public String neighborEngine;
+
+    @Label("Cells To Analyze")
+    public int noCellsToAnalyze;
+
+    @Label("Reference Cells")
+    public int noReferenceCells;
+
+    @Label("Neighbors Per Cell")
+    @Description("Number of nearest neighbors stored per cell to analyze (max interactions to test + 1)")
+    public int k;
+
+}
@@ -0,0 +1,39 @@
+package qupath.ext.proximity.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for a step of a measurement batch run from the GUI (measurements, cell measurements, saving).
+ */
+@Name("qupath.ext.proximity.MeasurementBatch")
+@Label("PT2D Measurement Batch")
+@Category({"QuPath", "Proximity Tools"})
+@Description("A step of a measurement batch run from the Proximity Tools GUI")
+@StackTrace(false)
+public class PTMeasurementBatchEvent extends Event {
+
+    @Label("Step")
+    public String step;
+
+    @Label("Objects")
+    @Description("Number of objects (e.g., TMA cores) receiving measurements")
+    public int noObjects;
+
+    @Label("Distance Threshold (µm)")
+    public double distanceThreshold;
+
+    @Label("Cells To Analyze")
+    public int noCellsToAnalyze;
+
+    @Label("Reference Cells")
+    public int noReferenceCells;
+
+    @Label("Neighbors Per Cell")
+    public int k;
+
+}
@@ -0,0 +1,48 @@
+package qupath.ext.proximity.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for a display query made by the GUI (e.g., when a slider moves).
+ */
+@Name("qupath.ext.proximity.Query")
+@Label("PT2D GUI Query")
+@Category({"QuPath", "Proximity Tools"})
+@Description("A display query made by the Proximity Tools GUI")
+@StackTrace(false)
+public class PTQueryEvent extends Event {
+
+    @Label("Trigger")
+    @Description("GUI control that triggered the query")
+    public String trigger;
+
+    @Label("Distance Threshold (µm)")
+    public double distanceThreshold;
+
+    @Label("Reference Cells Per Cell")
+    public int noRefCells;
+
+    @Label("Exclusive")
+    public boolean exclusive;
+
+    @Label("Highlight")
+    public boolean highlight;
+
+    @Label("Label")
+    public boolean label;
+
+    @Label("Connect")
+    public boolean connect;
+
+    @Label("Cells To Analyze")
+    public int noCellsToAnalyze;
+
+    @Label("Neighbors Per Cell")
+    public int k;
+
+}
@@ -0,0 +1,32 @@
+package qupath.ext.proximity.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for work done by a PT2D instance on a single TMA core.
+ */
+@Name("qupath.ext.proximity.TMACore")
+@Label("PT2D TMA Core")
+@Category({"QuPath", "Proximity Tools"})
+@Description("Work done by a PT2D instance on a single TMA core")
+@StackTrace(false)
+public class PTTMACoreEvent extends Event {
+
+    @Label("Work")
+    public String work;
+
+    @Label("Core")
+    public String core;
+
+    @Label("Reference Cells")
+    public int noReferenceCells;
+
+    @Label("Neighbors Per Cell")
+    public int k;
+
+}
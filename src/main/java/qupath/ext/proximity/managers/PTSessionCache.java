@@ -0,0 +1,120 @@
+package qupath.ext.proximity.managers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.proximity.PT2D;
+import qupath.lib.images.ImageData;
+
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the PT2D sessions set aside by the GUI when another image gets the focus, so that a session is
+ * restored instead of run again when its image gets the focus back (e.g., when switching between viewers). Sessions
+ * are keyed by image (the {@link ImageData} instance, as a reopened image has new objects) and by a description of
+ * the GUI configuration. The least recently used sessions are evicted once there are more than the max number of
+ * sessions or their estimated memory exceeds the cap. Thread safe.
+ */
+public class PTSessionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(PTSessionCache.class);
+
+    private record Key(ImageData<BufferedImage> imageData, String configuration) {
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key key && key.imageData == imageData && key.configuration.equals(configuration);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(imageData) + configuration.hashCode();
+        }
+    }
+
+    private record Session(PT2D pt2D, long bytes) {}
+
+    private final int maxSessions;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Session> sessions = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private long bytes = 0;
+
+    /**
+     * Constructor
+     * @param maxSessions the max number of sessions kept
+     * @param maxBytes the max estimated memory of the sessions kept (bytes)
+     */
+    public PTSessionCache(int maxSessions, long maxBytes) {
+        this.maxSessions = maxSessions;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Keep a session, replacing any session with the same image and configuration, and evict the least recently
+     * used sessions beyond the limits (possibly this one, if it exceeds the memory cap on its own).
+     * @param imageData the image of the session
+     * @param configuration description of the configuration of the session
+     * @param pt2D the session
+     * @param bytes estimated memory of the session (bytes)
+     */
+    public synchronized void put(ImageData<BufferedImage> imageData, String configuration, PT2D pt2D, long bytes) {
+        Session previous = sessions.put(new Key(imageData, configuration), new Session(pt2D, bytes));
+        this.bytes += bytes - (previous == null ? 0 : previous.bytes());
+
+        Iterator<Map.Entry<Key, Session>> iterator = sessions.entrySet().iterator(); // least recently used first
+        while (iterator.hasNext() && (sessions.size() > maxSessions || this.bytes > maxBytes)) {
+            Map.Entry<Key, Session> eldest = iterator.next();
+            iterator.remove();
+            this.bytes -= eldest.getValue().bytes();
+            logger.debug("Session evicted: {} ({})", eldest.getKey().configuration(), eldest.getValue().pt2D());
+        }
+        logger.debug("Sessions kept: {} ({} bytes)", sessions.size(), this.bytes);
+    }
+
+    /**
+     * Remove a session.
+     * @param imageData the image of the session
+     * @param configuration description of the configuration of the session
+     * @return the session, or null if none is kept
+     */
+    public synchronized PT2D remove(ImageData<BufferedImage> imageData, String configuration) {
+        Session session = sessions.remove(new Key(imageData, configuration));
+        if (session == null)
+            return null;
+        bytes -= session.bytes();
+        return session.pt2D();
+    }
+
+    /**
+     * Remove the sessions of images that are no longer open.
+     * @param openImages the images still open
+     */
+    public synchronized void retainImages(Collection<ImageData<BufferedImage>> openImages) {
+        Iterator<Map.Entry<Key, Session>> iterator = sessions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Session> entry = iterator.next();
+            if (openImages.stream().noneMatch(imageData -> imageData == entry.getKey().imageData())) {
+                iterator.remove();
+                bytes -= entry.getValue().bytes();
+            }
+        }
+    }
+
+    /**
+     * Remove all sessions.
+     */
+    public synchronized void clear() {
+        sessions.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the number of sessions kept
+     */
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+}
@@ -0,0 +1,300 @@
+package qupath.ext.proximity.shard;
+
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.proximity.PT2D;
+import qupath.ext.proximity.aux.PTTileGrid;
+import qupath.lib.objects.PathObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Coordinator of the sharded mode: the tiles of a {@link PTTileGrid} are split across worker JVMs on the same
+ * machine, so that the reference indexes do not have to fit the coordinator's heap (e.g., QuPath's).
+ * <ol>
+ *     <li>Tiles with cells to analyze are assigned to workers, balancing the number of cells per worker.</li>
+ *     <li>The tiles of each worker are written to a memory-mapped shard file (see {@link PTShardFile}), creating
+ *     the cells' geometries one tile at a time.</li>
+ *     <li>One {@link PTShardWorker} process is started per shard, with the same Java runtime and class path.</li>
+ *     <li>The result files of the workers are merged into {@link PTShardResults}.</li>
+ * </ol>
+ * Files are written to a temporary directory, deleted when done. The log of each worker is collected: it is
+ * logged at debug level, or included in the exception thrown if the worker failed. Workers can also be run in the coordinator's JVM (see {@link #inProcess(boolean)}),
+ * e.g., to debug the file exchange.
+ */
+public class PTShardCoordinator {
+
+    private static final Logger logger = LoggerFactory.getLogger(PTShardCoordinator.class);
+    /**
+     * System property to override the Java executable of the workers (e.g., if the runtime has no launcher)
+     */
+    public static final String JAVA_PROPERTY = "pt2d.shard.java";
+    /**
+     * Maximum number of characters of a failed worker's output included in the exception
+     */
+    private static final int MAX_OUTPUT_LENGTH = 4000;
+
+    private final int noWorkers;
+    private final String workerHeap;
+    private final AtomicBoolean terminationFlag;
+    private boolean inProcess = false;
+
+    /**
+     * Constructor
+     * @param noWorkers the number of worker processes
+     * @param workerHeap the max heap of each worker, as for {@code -Xmx} (e.g., "4g"), or null for the JVM default
+     * @param terminationFlag flag that may be set asynchronously to stop the workers
+     */
+    public PTShardCoordinator(int noWorkers, String workerHeap, AtomicBoolean terminationFlag) {
+        if (noWorkers < 1)
+            throw new IllegalArgumentException("Number of workers must be at least 1!");
+        this.noWorkers = noWorkers;
+        this.workerHeap = workerHeap;
+        this.terminationFlag = terminationFlag;
+    }
+
+    /**
+     * Set whether shards are processed in this JVM (one after the other) instead of worker processes.
+     * @param inProcess
+     * @return this coordinator
+     */
+    public PTShardCoordinator inProcess(boolean inProcess) {
+        this.inProcess = inProcess;
+        return this;
+    }
+
+    /**
+     * Search the neighbors of the cells to analyze of a tile grid in worker processes.
+     * @param tileGrid the tile grid
+     * @param comparisonROI the ROI of each cell compared
+     * @param settings the search settings
+     * @return the neighbors of each cell to analyze, indexed as {@link PTTileGrid#getTargets()}
+     * @throws IOException if a shard file cannot be written or read, or a worker fails
+     * @throws CancellationException if the termination flag is set
+     */
+    public PTShardResults run(PTTileGrid tileGrid, PT2D.ComparisonROI comparisonROI, PTShardFile.Settings settings)
+            throws IOException, CancellationException {
+        List<List<Integer>> shards = assignTiles(tileGrid);
+        Path directory = Files.createTempDirectory("pt2d-shards");
+        List<Process> processes = new ArrayList<>();
+        try {
+            long start = System.nanoTime();
+            try {
+                IntStream.range(0, shards.size()).parallel().forEach(s -> {
+                    try {
+                        writeShard(directory.resolve("shard-" + s + ".bin"), shards.get(s), tileGrid, comparisonROI, settings);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            logger.info("{} shards written in {} ms", shards.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            checkTermination();
+
+            if (inProcess) {
+                for (int s = 0; s < shards.size(); s++) {
+                    checkTermination();
+                    PTShardWorker.run(directory.resolve("shard-" + s + ".bin"), directory.resolve("result-" + s + ".bin"));
+                }
+            } else {
+                for (int s = 0; s < shards.size(); s++) {
+                    processes.add(startWorker(directory.resolve("shard-" + s + ".bin"),
+                            directory.resolve("result-" + s + ".bin"),
+                            directory.resolve("worker-" + s + ".log")));
+                }
+                for (int s = 0; s < processes.size(); s++) {
+                    int exitCode = waitFor(processes.get(s));
+                    if (exitCode != 0)
+                        throw new IOException("Shard worker " + s + " failed (exit code " + exitCode + "):\n"
+                                + getOutput(directory.resolve("worker-" + s + ".log")));
+                    if (logger.isDebugEnabled())
+                        logger.debug("Shard worker {} log:\n{}", s, getOutput(directory.resolve("worker-" + s + ".log")));
+                }
+            }
+
+            List<PTShardFile.TileResult> results = new ArrayList<>();
+            for (int s = 0; s < shards.size(); s++) {
+                results.addAll(PTShardFile.readResults(directory.resolve("result-" + s + ".bin")));
+            }
+            logger.info("{} shards processed in {} ms", shards.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return PTShardResults.merge(tileGrid.getTargets().length, results);
+        } finally {
+            processes.forEach(Process::destroyForcibly);
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Assign the tiles with cells to analyze to at most {@code noWorkers} shards, largest first to the shard
+     * with the least work so far (work is estimated by the number of cells to analyze and reference cells).
+     * @param tileGrid
+     * @return the tiles of each non-empty shard
+     */
+    private List<List<Integer>> assignTiles(PTTileGrid tileGrid) {
+        List<Integer> tiles = new ArrayList<>();
+        long[] work = new long[tileGrid.getNoTiles()];
+        for (int t = 0; t < tileGrid.getNoTiles(); t++) {
+            int noTargets = tileGrid.getTargetIndices(t).length;
+            if (noTargets > 0) {
+                tiles.add(t);
+                work[t] = noTargets + tileGrid.getReferenceIndices(t).length;
+            }
+        }
+        tiles.sort(Comparator.comparingLong((Integer t) -> work[t]).reversed());
+
+        int noShards = Math.min(noWorkers, tiles.size());
+        List<List<Integer>> shards = new ArrayList<>(noShards);
+        long[] shardWork = new long[noShards];
+        for (int s = 0; s < noShards; s++) {
+            shards.add(new ArrayList<>());
+        }
+        for (int t : tiles) {
+            int s = 0;
+            for (int candidate = 1; candidate < noShards; candidate++) {
+                if (shardWork[candidate] < shardWork[s])
+                    s = candidate;
+            }
+            shards.get(s).add(t);
+            shardWork[s] += work[t];
+        }
+        return shards;
+    }
+
+    private static void writeShard(Path path, List<Integer> tiles, PTTileGrid tileGrid, PT2D.ComparisonROI comparisonROI, PTShardFile.Settings settings)
+            throws IOException {
+        PathObject[] targets = tileGrid.getTargets();
+        PathObject[] references = tileGrid.getReferences();
+        PTShardFile.writeShard(path, settings, tiles.size(), t -> {
+            int tile = tiles.get(t);
+            int[] targetIndices = tileGrid.getTargetIndices(tile);
+            int[] referenceIndices = tileGrid.getReferenceIndices(tile);
+            Geometry[] targetGeometries = new Geometry[targetIndices.length];
+            for (int i = 0; i < targetIndices.length; i++) {
+                targetGeometries[i] = comparisonROI.getROI(targets[targetIndices[i]]).getGeometry();
+            }
+            Geometry[] referenceGeometries = new Geometry[referenceIndices.length];
+            for (int j = 0; j < referenceIndices.length; j++) {
+                referenceGeometries[j] = comparisonROI.getROI(references[referenceIndices[j]]).getGeometry();
+            }
+            return new PTShardFile.Tile(targetIndices, targetGeometries, referenceIndices, referenceGeometries);
+        });
+    }
+
+    private Process startWorker(Path shardPath, Path resultPath, Path logPath) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(getJavaExecutable());
+        if (workerHeap != null)
+            command.add("-Xmx" + workerHeap);
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+            command.addAll(List.of("--add-modules", "jdk.incubator.vector"));
+        command.addAll(List.of("-cp", getWorkerClassPath(), PTShardWorker.class.getName(), shardPath.toString(), resultPath.toString()));
+        logger.debug("Starting shard worker: {}", command);
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(logPath.toFile())
+                .start();
+    }
+
+    /**
+     * Wait for a worker to exit, stopping all workers if the termination flag is set.
+     * @param process
+     * @return the exit code
+     * @throws IOException if interrupted
+     * @throws CancellationException if the termination flag is set
+     */
+    private int waitFor(Process process) throws IOException, CancellationException {
+        try {
+            while (!process.waitFor(100, TimeUnit.MILLISECONDS)) {
+                checkTermination();
+            }
+            return process.exitValue();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for shard workers");
+        }
+    }
+
+    private void checkTermination() throws CancellationException {
+        if (terminationFlag.get())
+            throw new CancellationException("Sharded execution terminated");
+    }
+
+    /**
+     * @return the Java executable of this runtime, unless overridden by the {@value #JAVA_PROPERTY} system property
+     */
+    static String getJavaExecutable() {
+        String java = System.getProperty(JAVA_PROPERTY);
+        if (java != null)
+            return java;
+        Path path = Path.of(System.getProperty("java.home"), "bin", File.separatorChar == '\\' ? "java.exe" : "java");
+        return Files.isExecutable(path) ? path.toString() : "java"; // e.g., a runtime image without launcher
+    }
+
+    /**
+     * Get the class path of the workers: the locations of this extension, JTS, SLF4J, the SLF4J provider of this
+     * JVM (so that workers log to the console, e.g., with Logback in QuPath) and QuPath core (which declares types
+     * used by the PT2D enums), then this JVM's class path. Extensions are loaded by QuPath's own
+     * class loader, so they are not on this JVM's class path.
+     * @return the class path
+     */
+    static String getWorkerClassPath() {
+        Set<String> entries = new LinkedHashSet<>();
+        for (Class<?> cls : List.of(PTShardWorker.class, Geometry.class, LoggerFactory.class,
+                LoggerFactory.getILoggerFactory().getClass(), PathObject.class)) {
+            CodeSource source = cls.getProtectionDomain().getCodeSource();
+            if (source == null || source.getLocation() == null)
+                continue;
+            try {
+                entries.add(Path.of(source.getLocation().toURI()).toString());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                logger.debug("Unable to locate {}: {}", cls, e.getMessage());
+            }
+        }
+        for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+            if (!entry.isBlank())
+                entries.add(entry);
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    private static String getOutput(Path logPath) {
+        try {
+            String output = Files.readString(logPath);
+            return output.length() > MAX_OUTPUT_LENGTH ? output.substring(output.length() - MAX_OUTPUT_LENGTH) : output;
+        } catch (IOException e) {
+            return "(no output: " + e.getMessage() + ")";
+        }
+    }
+
+    private static void deleteDirectory(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    // e.g., a file still mapped on Windows
+                    path.toFile().deleteOnExit();
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Unable to delete shard directory {}: {}", directory, e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,338 @@
+package qupath.ext.proximity.shard;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import qupath.ext.proximity.PT2D;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Memory-mapped files exchanged between the coordinator and the worker processes of the sharded mode. A shard
+ * file holds the search settings and the tiles assigned to one worker, with the geometries of their cells to
+ * analyze and reference cells as WKB; a result file holds the neighbors found for each cell to analyze. Cells are
+ * identified by their global index in the coordinator, so no object identity is needed in the workers.
+ * <p>
+ * File layouts (all values little-endian):
+ * <pre>
+ * shard header (64 bytes): magic "PT2DSHRD" (8 bytes), int version, int comparison type, int neighbor engine,
+ *                          int edge distance (ordinals), double simplification tolerance (pixels), int k
+ *                          (0 for a radius search), 4 reserved bytes, double max distance (pixels), int tile count,
+ *                          12 reserved bytes
+ * shard tile: long byte count (excluding this field), int target count, int reference count,
+ *             then for each target and then each reference: int global index, int WKB length, WKB bytes
+ * result header (32 bytes): magic "PT2DSRES" (8 bytes), int version, int tile count, 16 reserved bytes
+ * result tile: long byte count (excluding this field), int target count, int neighbor count,
+ *              int[target count] global target indices, int[target count + 1] offsets of each target's neighbors,
+ *              int[neighbor count] global reference indices, double[neighbor count] distances (pixels)
+ * </pre>
+ * Each tile is mapped separately, so files are not limited by the maximum size of a single buffer.
+ */
+public class PTShardFile {
+
+    public static final String SHARD_MAGIC = "PT2DSHRD";
+    public static final String RESULT_MAGIC = "PT2DSRES";
+    public static final int VERSION = 1;
+    public static final int SHARD_HEADER_SIZE = 64;
+    public static final int RESULT_HEADER_SIZE = 32;
+
+    /**
+     * Settings of the search made by a worker.
+     * @param comparisonType whether to compare edges or centroids
+     * @param neighborEngine the type of neighbor engine to build per tile
+     * @param edgeDistance how edge distances are computed (EDGE comparison only)
+     * @param simplificationTolerance tolerance (in pixels) of the simplified outlines searched before refining exactly
+     * @param k the number of nearest neighbors to find, or 0 for a radius search
+     * @param maxDistance the radius (in pixels) for a radius search; nearest neighbors beyond it are dropped
+     */
+    public record Settings(PT2D.ComparisonType comparisonType,
+                           PT2D.NeighborEngine neighborEngine,
+                           PT2D.EdgeDistance edgeDistance,
+                           double simplificationTolerance,
+                           int k,
+                           double maxDistance) {}
+
+    /**
+     * A tile of a shard.
+     * @param targetIndices global indices of the cells to analyze
+     * @param targets geometries of the cells to analyze
+     * @param referenceIndices global indices of the reference cells of the tile's halo region
+     * @param references geometries of the reference cells
+     */
+    public record Tile(int[] targetIndices, Geometry[] targets, int[] referenceIndices, Geometry[] references) {}
+
+    /**
+     * Neighbors found for the cells to analyze of a tile, in CSR form: the neighbors of {@code targetIndices[i]}
+     * occupy the range {@code [offsets[i], offsets[i + 1])} of {@code referenceIndices} and {@code distances},
+     * sorted by ascending distance.
+     * @param targetIndices global indices of the cells to analyze
+     * @param offsets start of each cell's range (length {@code targetIndices.length + 1})
+     * @param referenceIndices global indices of the neighbors
+     * @param distances distances (in pixels) to the neighbors
+     */
+    public record TileResult(int[] targetIndices, int[] offsets, int[] referenceIndices, double[] distances) {}
+
+    private PTShardFile() {}
+
+    /**
+     * Write a shard file. Tiles are requested and encoded one at a time, so only one tile's geometries are held.
+     * @param path the file to write (overwritten if it exists)
+     * @param settings
+     * @param noTiles the number of tiles
+     * @param tiles function returning the tile of each index in {@code [0, noTiles)}
+     * @throws IOException
+     */
+    public static void writeShard(Path path, Settings settings, int noTiles, IntFunction<Tile> tiles) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            MappedByteBuffer header = map(channel, FileChannel.MapMode.READ_WRITE, 0, SHARD_HEADER_SIZE);
+            header.put(SHARD_MAGIC.getBytes(StandardCharsets.US_ASCII));
+            header.putInt(VERSION);
+            header.putInt(settings.comparisonType().ordinal());
+            header.putInt(settings.neighborEngine().ordinal());
+            header.putInt(settings.edgeDistance().ordinal());
+            header.putDouble(settings.simplificationTolerance());
+            header.putInt(settings.k());
+            header.putInt(0);
+            header.putDouble(settings.maxDistance());
+            header.putInt(noTiles);
+            header.force();
+
+            WKBWriter writer = new WKBWriter();
+            long position = SHARD_HEADER_SIZE;
+            for (int t = 0; t < noTiles; t++) {
+                Tile tile = tiles.apply(t);
+                byte[][] targets = new byte[tile.targets().length][];
+                byte[][] references = new byte[tile.references().length][];
+                long noBytes = 8;
+                for (int i = 0; i < targets.length; i++) {
+                    targets[i] = writer.write(tile.targets()[i]);
+                    noBytes += 8 + targets[i].length;
+                }
+                for (int j = 0; j < references.length; j++) {
+                    references[j] = writer.write(tile.references()[j]);
+                    noBytes += 8 + references[j].length;
+                }
+
+                MappedByteBuffer buffer = map(channel, FileChannel.MapMode.READ_WRITE, position, 8 + noBytes);
+                buffer.putLong(noBytes);
+                buffer.putInt(targets.length);
+                buffer.putInt(references.length);
+                for (int i = 0; i < targets.length; i++) {
+                    buffer.putInt(tile.targetIndices()[i]);
+                    buffer.putInt(targets[i].length);
+                    buffer.put(targets[i]);
+                }
+                for (int j = 0; j < references.length; j++) {
+                    buffer.putInt(tile.referenceIndices()[j]);
+                    buffer.putInt(references[j].length);
+                    buffer.put(references[j]);
+                }
+                buffer.force();
+                position += 8 + noBytes;
+            }
+        }
+    }
+
+    /**
+     * Open a shard file for reading.
+     * @param path the file to read
+     * @return the reader
+     * @throws IOException
+     */
+    public static ShardReader openShard(Path path) throws IOException {
+        return new ShardReader(path);
+    }
+
+    /**
+     * Reader over a memory-mapped shard file. Tiles are mapped and decoded on request; reads are thread safe.
+     */
+    public static class ShardReader implements Closeable {
+
+        private final FileChannel channel;
+        private final Settings settings;
+        private final long[] tilePositions;
+
+        private ShardReader(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                MappedByteBuffer header = map(channel, FileChannel.MapMode.READ_ONLY, 0, SHARD_HEADER_SIZE);
+                checkMagicAndVersion(header, SHARD_MAGIC, path);
+                PT2D.ComparisonType comparisonType = PT2D.ComparisonType.values()[header.getInt()];
+                PT2D.NeighborEngine neighborEngine = PT2D.NeighborEngine.values()[header.getInt()];
+                PT2D.EdgeDistance edgeDistance = PT2D.EdgeDistance.values()[header.getInt()];
+                double simplificationTolerance = header.getDouble();
+                int k = header.getInt();
+                header.getInt();
+                double maxDistance = header.getDouble();
+                this.settings = new Settings(comparisonType, neighborEngine, edgeDistance, simplificationTolerance, k, maxDistance);
+
+                this.tilePositions = new long[header.getInt()];
+                long position = SHARD_HEADER_SIZE;
+                for (int t = 0; t < tilePositions.length; t++) {
+                    tilePositions[t] = position;
+                    position += 8 + map(channel, FileChannel.MapMode.READ_ONLY, position, 8).getLong();
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public Settings getSettings() {
+            return settings;
+        }
+
+        public int getNoTiles() {
+            return tilePositions.length;
+        }
+
+        /**
+         * Map and decode a tile.
+         * @param t index of the tile
+         * @return the tile
+         * @throws IOException
+         */
+        public Tile readTile(int t) throws IOException {
+            long noBytes = map(channel, FileChannel.MapMode.READ_ONLY, tilePositions[t], 8).getLong();
+            MappedByteBuffer buffer = map(channel, FileChannel.MapMode.READ_ONLY, tilePositions[t] + 8, noBytes);
+            int noTargets = buffer.getInt();
+            int noReferences = buffer.getInt();
+            WKBReader reader = new WKBReader();
+            int[] targetIndices = new int[noTargets];
+            Geometry[] targets = new Geometry[noTargets];
+            for (int i = 0; i < noTargets; i++) {
+                targetIndices[i] = buffer.getInt();
+                targets[i] = readGeometry(buffer, reader);
+            }
+            int[] referenceIndices = new int[noReferences];
+            Geometry[] references = new Geometry[noReferences];
+            for (int j = 0; j < noReferences; j++) {
+                referenceIndices[j] = buffer.getInt();
+                references[j] = readGeometry(buffer, reader);
+            }
+            return new Tile(targetIndices, targets, referenceIndices, references);
+        }
+
+        private static Geometry readGeometry(MappedByteBuffer buffer, WKBReader reader) throws IOException {
+            byte[] wkb = new byte[buffer.getInt()];
+            buffer.get(wkb);
+            try {
+                return reader.read(wkb);
+            } catch (ParseException e) {
+                throw new IOException("Invalid geometry in shard file", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close(); // the mappings stay valid until the buffers are garbage collected
+        }
+    }
+
+    /**
+     * Write a result file.
+     * @param path the file to write (overwritten if it exists)
+     * @param results the results of each tile
+     * @throws IOException
+     */
+    public static void writeResults(Path path, TileResult[] results) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            MappedByteBuffer header = map(channel, FileChannel.MapMode.READ_WRITE, 0, RESULT_HEADER_SIZE);
+            header.put(RESULT_MAGIC.getBytes(StandardCharsets.US_ASCII));
+            header.putInt(VERSION);
+            header.putInt(results.length);
+            header.force();
+
+            long position = RESULT_HEADER_SIZE;
+            for (TileResult result : results) {
+                int noTargets = result.targetIndices().length;
+                int noNeighbors = result.referenceIndices().length;
+                long noBytes = 8 + 4L * noTargets + 4L * (noTargets + 1) + 12L * noNeighbors;
+                MappedByteBuffer buffer = map(channel, FileChannel.MapMode.READ_WRITE, position, 8 + noBytes);
+                buffer.putLong(noBytes);
+                buffer.putInt(noTargets);
+                buffer.putInt(noNeighbors);
+                buffer.asIntBuffer().put(result.targetIndices());
+                buffer.position(buffer.position() + 4 * noTargets);
+                buffer.asIntBuffer().put(result.offsets(), 0, noTargets + 1);
+                buffer.position(buffer.position() + 4 * (noTargets + 1));
+                buffer.asIntBuffer().put(result.referenceIndices());
+                buffer.position(buffer.position() + 4 * noNeighbors);
+                buffer.asDoubleBuffer().put(result.distances(), 0, noNeighbors);
+                buffer.force();
+                position += 8 + noBytes;
+            }
+        }
+    }
+
+    /**
+     * Read a result file.
+     * @param path the file to read
+     * @return the results of each tile
+     * @throws IOException
+     */
+    public static List<TileResult> readResults(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer header = map(channel, FileChannel.MapMode.READ_ONLY, 0, RESULT_HEADER_SIZE);
+            checkMagicAndVersion(header, RESULT_MAGIC, path);
+            int noTiles = header.getInt();
+
+            List<TileResult> results = new ArrayList<>(noTiles);
+            long position = RESULT_HEADER_SIZE;
+            for (int t = 0; t < noTiles; t++) {
+                long noBytes = map(channel, FileChannel.MapMode.READ_ONLY, position, 8).getLong();
+                MappedByteBuffer buffer = map(channel, FileChannel.MapMode.READ_ONLY, position + 8, noBytes);
+                int noTargets = buffer.getInt();
+                int noNeighbors = buffer.getInt();
+                int[] targetIndices = new int[noTargets];
+                int[] offsets = new int[noTargets + 1];
+                int[] referenceIndices = new int[noNeighbors];
+                double[] distances = new double[noNeighbors];
+                buffer.asIntBuffer().get(targetIndices);
+                buffer.position(buffer.position() + 4 * noTargets);
+                buffer.asIntBuffer().get(offsets);
+                buffer.position(buffer.position() + 4 * (noTargets + 1));
+                buffer.asIntBuffer().get(referenceIndices);
+                buffer.position(buffer.position() + 4 * noNeighbors);
+                buffer.asDoubleBuffer().get(distances);
+                results.add(new TileResult(targetIndices, offsets, referenceIndices, distances));
+                position += 8 + noBytes;
+            }
+            return results;
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mapMode, long position, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Shard tile too large to map (" + size + " bytes); use a smaller tile size");
+        MappedByteBuffer buffer = channel.map(mapMode, position, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private static void checkMagicAndVersion(MappedByteBuffer header, String magic, Path path) throws IOException {
+        byte[] bytes = new byte[magic.length()];
+        header.get(bytes);
+        if (!magic.equals(new String(bytes, StandardCharsets.US_ASCII)))
+            throw new IOException("Not a PT2D shard file: " + path);
+        int version = header.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported PT2D shard file version: " + version);
+    }
+
+}
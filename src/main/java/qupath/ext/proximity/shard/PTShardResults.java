@@ -0,0 +1,91 @@
+package qupath.ext.proximity.shard;
+
+import java.util.List;
+
+/**
+ * Neighbors of the cells to analyze merged from the result files of all workers of the sharded mode, in
+ * compressed sparse row (CSR) form: the neighbors of cell {@code i} (global index) occupy the range
+ * {@code [offsets[i], offsets[i + 1])} of the flat {@code referenceIndices} and {@code distances} arrays, sorted
+ * by ascending distance. Immutable once created, so thread safe.
+ */
+public class PTShardResults {
+
+    private final int[] offsets;
+    private final int[] referenceIndices;
+    /**
+     * Distances (in pixels)
+     */
+    private final double[] distances;
+
+    private PTShardResults(int[] offsets, int[] referenceIndices, double[] distances) {
+        this.offsets = offsets;
+        this.referenceIndices = referenceIndices;
+        this.distances = distances;
+    }
+
+    /**
+     * Merge the results of tiles.
+     * @param noTargets the number of cells to analyze (global indices are in {@code [0, noTargets)})
+     * @param results the results of the tiles; cells to analyze without results have no neighbors
+     * @return the merged results
+     */
+    public static PTShardResults merge(int noTargets, List<PTShardFile.TileResult> results) {
+        int[] offsets = new int[noTargets + 1];
+        for (PTShardFile.TileResult result : results) {
+            for (int i = 0; i < result.targetIndices().length; i++) {
+                offsets[result.targetIndices()[i] + 1] = result.offsets()[i + 1] - result.offsets()[i];
+            }
+        }
+        long noEntries = 0;
+        for (int i = 0; i < noTargets; i++) {
+            noEntries += offsets[i + 1];
+            if (noEntries > Integer.MAX_VALUE)
+                throw new IllegalStateException("Too many neighbors to merge");
+            offsets[i + 1] = (int) noEntries;
+        }
+        int[] referenceIndices = new int[(int) noEntries];
+        double[] distances = new double[(int) noEntries];
+        for (PTShardFile.TileResult result : results) {
+            for (int i = 0; i < result.targetIndices().length; i++) {
+                int length = result.offsets()[i + 1] - result.offsets()[i];
+                System.arraycopy(result.referenceIndices(), result.offsets()[i], referenceIndices, offsets[result.targetIndices()[i]], length);
+                System.arraycopy(result.distances(), result.offsets()[i], distances, offsets[result.targetIndices()[i]], length);
+            }
+        }
+        return new PTShardResults(offsets, referenceIndices, distances);
+    }
+
+    /**
+     * @return the number of cells to analyze
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @param i global index of the cell to analyze
+     * @return the number of neighbors found
+     */
+    public int getNoNeighbors(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * @param i global index of the cell to analyze
+     * @param n rank of the neighbor (0 = nearest)
+     * @return the global index of the reference cell
+     */
+    public int getReferenceIndex(int i, int n) {
+        return referenceIndices[offsets[i] + n];
+    }
+
+    /**
+     * @param i global index of the cell to analyze
+     * @param n rank of the neighbor (0 = nearest)
+     * @return the distance (in pixels)
+     */
+    public double getDistance(int i, int n) {
+        return distances[offsets[i] + n];
+    }
+
+}
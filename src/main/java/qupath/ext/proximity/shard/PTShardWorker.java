@@ -0,0 +1,128 @@
+package qupath.ext.proximity.shard;
+
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.proximity.aux.PTMetrics;
+import qupath.ext.proximity.engine.PTNeighborEngine;
+import qupath.ext.proximity.engine.PTNeighborList;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Worker process of the sharded mode (see {@link PTShardCoordinator}). It reads the tiles of a shard file, builds
+ * a neighbor engine over each tile's reference cells, searches the neighbors of the tile's cells to analyze and
+ * writes them to a result file (see {@link PTShardFile}). Tiles are processed in parallel.
+ * <p>
+ * Only depends on JTS and the neighbor engines, so it runs in a plain JVM without QuPath:
+ * <pre>
+ * java -cp &lt;class path&gt; qupath.ext.proximity.shard.PTShardWorker &lt;shard file&gt; &lt;result file&gt;
+ * </pre>
+ * It logs to the console with the SLF4J provider of the coordinator, which puts it on the worker class path and
+ * collects that output.
+ */
+public class PTShardWorker {
+
+    private static final Logger logger = LoggerFactory.getLogger(PTShardWorker.class);
+
+    private PTShardWorker() {}
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            logger.error("Usage: PTShardWorker <shard file> <result file>");
+            System.exit(2);
+        }
+        try {
+            run(Path.of(args[0]), Path.of(args[1]));
+        } catch (Throwable t) {
+            logger.error("Shard worker failed", t); // the coordinator collects the log of each worker
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Process a shard file, e.g., in the coordinator's JVM instead of a worker process.
+     * @param shardPath the shard file to read
+     * @param resultPath the result file to write
+     * @throws IOException
+     */
+    public static void run(Path shardPath, Path resultPath) throws IOException {
+        long start = PTMetrics.start();
+        PTMetrics metrics = new PTMetrics();
+        try (PTShardFile.ShardReader shard = PTShardFile.openShard(shardPath)) {
+            PTShardFile.Settings settings = shard.getSettings();
+            PTShardFile.TileResult[] results = new PTShardFile.TileResult[shard.getNoTiles()];
+            try {
+                IntStream.range(0, shard.getNoTiles()).parallel().forEach(t -> {
+                    try {
+                        results[t] = processTile(shard.readTile(t), settings, metrics);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            PTShardFile.writeResults(resultPath, results);
+        }
+        logger.info("Shard {} processed in {} ms ({} distance evaluations)", shardPath.getFileName(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), metrics.getDistanceEvaluations());
+    }
+
+    /**
+     * Search the neighbors of the cells to analyze of a tile.
+     * @param tile
+     * @param settings
+     * @param metrics
+     * @return the neighbors, with global indices
+     */
+    static PTShardFile.TileResult processTile(PTShardFile.Tile tile, PTShardFile.Settings settings, PTMetrics metrics) {
+        PTNeighborEngine engine = PTNeighborEngine.create(settings.neighborEngine(),
+                tile.references(),
+                settings.comparisonType(),
+                settings.edgeDistance(),
+                settings.simplificationTolerance(),
+                metrics);
+
+        Geometry[] targets = tile.targets();
+        int[] offsets = new int[targets.length + 1];
+        int[] referenceIndices = new int[Math.max(16, targets.length * Math.max(settings.k(), 1))];
+        double[] distances = new double[referenceIndices.length];
+        int[] ordinals = new int[settings.k()];
+        double[] nearestDistances = new double[settings.k()];
+        PTNeighborList result = new PTNeighborList();
+        for (int i = 0; i < targets.length; i++) {
+            if (settings.k() > 0) {
+                int noNeighbors = engine.findNearest(targets[i], settings.k(), ordinals, nearestDistances);
+                result.clear();
+                for (int n = 0; n < noNeighbors && nearestDistances[n] <= settings.maxDistance(); n++) {
+                    result.add(ordinals[n], nearestDistances[n]);
+                }
+            } else {
+                engine.findWithin(targets[i], settings.maxDistance(), result);
+            }
+
+            int end = offsets[i] + result.size();
+            if (end > referenceIndices.length) {
+                referenceIndices = Arrays.copyOf(referenceIndices, Math.max(end, 2*referenceIndices.length));
+                distances = Arrays.copyOf(distances, referenceIndices.length);
+            }
+            for (int n = 0; n < result.size(); n++) {
+                referenceIndices[offsets[i] + n] = tile.referenceIndices()[result.getOrdinal(n)];
+                distances[offsets[i] + n] = result.getDistance(n);
+            }
+            offsets[i + 1] = end;
+        }
+        return new PTShardFile.TileResult(tile.targetIndices(),
+                offsets,
+                Arrays.copyOf(referenceIndices, offsets[targets.length]),
+                Arrays.copyOf(distances, offsets[targets.length]));
+    }
+
+}
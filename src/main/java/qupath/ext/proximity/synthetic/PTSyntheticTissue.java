@@ -0,0 +1,363 @@
+package qupath.ext.proximity.synthetic;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.DefaultTMAGrid;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Seeded generator of synthetic cell populations for benchmarking and correctness testing of
+ * {@link qupath.ext.proximity.PT2D}. It creates polygonal cells (with optional nuclei) on a jittered lattice,
+ * assigns them to classes that are either clustered or dispersed, and can arrange them in a grid of
+ * {@link TMACoreObject}s and/or nest them inside annotations.
+ * <p>
+ * Everything is built in memory (the resulting {@link ImageData} has no image server), so the generator runs
+ * headless. Each cell is derived from its own seeded random stream, so the output only depends on the
+ * builder settings, not on thread scheduling.
+ */
+public class PTSyntheticTissue {
+
+    public enum Distribution {
+        /**
+         * Cells of the class are concentrated around randomly placed cluster centers.
+         */
+        CLUSTERED,
+        /**
+         * Cells of the class are spread uniformly.
+         */
+        DISPERSED
+    }
+
+    /**
+     * A cell population to generate.
+     * @param name the class name
+     * @param fraction the relative share of cells with this class
+     * @param distribution how the class is spread over the tissue
+     */
+    public record Population(String name, double fraction, Distribution distribution) {}
+
+    /**
+     * Resolution of the precomputed cluster intensity maps (per side).
+     */
+    private static final int INTENSITY_GRID_SIZE = 128;
+
+    private final ImageData<BufferedImage> imageData;
+    private final List<PathObject> cells;
+    private final Map<String, List<PathObject>> cellsByClass;
+
+    private PTSyntheticTissue(ImageData<BufferedImage> imageData, List<PathObject> cells, Map<String, List<PathObject>> cellsByClass) {
+        this.imageData = imageData;
+        this.cells = cells;
+        this.cellsByClass = cellsByClass;
+    }
+
+    public ImageData<BufferedImage> getImageData() {
+        return imageData;
+    }
+
+    public PathObjectHierarchy getHierarchy() {
+        return imageData.getHierarchy();
+    }
+
+    /**
+     * Get all generated cells.
+     * @return unmodifiable list of cells
+     */
+    public List<PathObject> getCells() {
+        return Collections.unmodifiableList(cells);
+    }
+
+    /**
+     * Get the generated cells of a class.
+     * @param name the class name
+     * @return unmodifiable list of cells (empty if the class does not exist)
+     */
+    public List<PathObject> getCells(String name) {
+        return Collections.unmodifiableList(cellsByClass.getOrDefault(name, Collections.emptyList()));
+    }
+
+    public static class PTSyntheticTissueBuilder {
+        private long seed = 42;
+        private int noCells = 10_000;
+        private double cellSpacing = 20; // pixels
+        private double cellRadius = 7; // pixels
+        private int minVertices = 20;
+        private int maxVertices = 60;
+        private boolean nuclei = false;
+        private final List<Population> populations = new ArrayList<>();
+        private int noClusters = 20;
+        private double clusterRadius = 200; // pixels
+        private int tmaRows = 0;
+        private int tmaColumns = 0;
+        private boolean nestedAnnotations = false;
+
+        public PTSyntheticTissueBuilder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public PTSyntheticTissueBuilder setNoCells(int noCells) {
+            this.noCells = noCells;
+            return this;
+        }
+
+        /**
+         * Set the lattice spacing between cell centers and the mean cell radius (both in pixels).
+         * @param cellSpacing
+         * @param cellRadius
+         * @return this builder
+         */
+        public PTSyntheticTissueBuilder setCellSize(double cellSpacing, double cellRadius) {
+            this.cellSpacing = cellSpacing;
+            this.cellRadius = cellRadius;
+            return this;
+        }
+
+        /**
+         * Set the range of vertices per cell outline. Detected cell outlines typically have tens to hundreds of vertices.
+         * @param minVertices
+         * @param maxVertices
+         * @return this builder
+         */
+        public PTSyntheticTissueBuilder setVertices(int minVertices, int maxVertices) {
+            this.minVertices = minVertices;
+            this.maxVertices = maxVertices;
+            return this;
+        }
+
+        public PTSyntheticTissueBuilder withNuclei(boolean nuclei) {
+            this.nuclei = nuclei;
+            return this;
+        }
+
+        public PTSyntheticTissueBuilder addPopulation(String name, double fraction, Distribution distribution) {
+            this.populations.add(new Population(name, fraction, distribution));
+            return this;
+        }
+
+        /**
+         * Set the number and radius (in pixels) of the clusters used by {@link Distribution#CLUSTERED} populations.
+         * @param noClusters
+         * @param clusterRadius
+         * @return this builder
+         */
+        public PTSyntheticTissueBuilder setClusters(int noClusters, double clusterRadius) {
+            this.noClusters = noClusters;
+            this.clusterRadius = clusterRadius;
+            return this;
+        }
+
+        /**
+         * Arrange the cells in a grid of TMA cores (0 rows or columns for a full image).
+         * @param rows
+         * @param columns
+         * @return this builder
+         */
+        public PTSyntheticTissueBuilder setTMAGrid(int rows, int columns) {
+            this.tmaRows = rows;
+            this.tmaColumns = columns;
+            return this;
+        }
+
+        /**
+         * Nest the cells of each region (TMA core or full image) inside an annotation, so that cells are not
+         * direct children of their TMA cores.
+         * @param nestedAnnotations
+         * @return this builder
+         */
+        public PTSyntheticTissueBuilder withNestedAnnotations(boolean nestedAnnotations) {
+            this.nestedAnnotations = nestedAnnotations;
+            return this;
+        }
+
+        public PTSyntheticTissue build() {
+            if (noCells <= 0)
+                throw new IllegalArgumentException("Number of cells must be positive!");
+            if (minVertices < 3 || maxVertices < minVertices)
+                throw new IllegalArgumentException("Invalid vertex range!");
+            List<Population> finalPopulations = populations.isEmpty()
+                    ? List.of(new Population("Target", 0.5, Distribution.DISPERSED),
+                              new Population("Reference", 0.5, Distribution.CLUSTERED))
+                    : List.copyOf(populations);
+            return generate(this, finalPopulations);
+        }
+    }
+
+    private static PTSyntheticTissue generate(PTSyntheticTissueBuilder builder, List<Population> populations) {
+        boolean isTMA = builder.tmaRows > 0 && builder.tmaColumns > 0;
+        int noRegions = isTMA ? builder.tmaRows * builder.tmaColumns : 1;
+        int cellsPerRegion = (builder.noCells + noRegions - 1) / noRegions;
+        int slotsPerRow = (int) Math.ceil(Math.sqrt(cellsPerRegion));
+        double regionSize = slotsPerRow * builder.cellSpacing;
+        double regionStride = isTMA ? regionSize * 1.25 : regionSize; // leave gaps between cores
+        double width = (isTMA ? builder.tmaColumns : 1) * regionStride;
+        double height = (isTMA ? builder.tmaRows : 1) * regionStride;
+
+        SplittableRandom masterRandom = new SplittableRandom(builder.seed);
+        float[][] intensityMaps = new float[populations.size()][];
+        for (int p = 0; p < populations.size(); p++) {
+            if (populations.get(p).distribution() == Distribution.CLUSTERED)
+                intensityMaps[p] = createIntensityMap(masterRandom.split(), width, height, builder.noClusters, builder.clusterRadius);
+        }
+        PathClass[] pathClasses = populations.stream()
+                .map(population -> PathClass.fromString(population.name()))
+                .toArray(PathClass[]::new);
+
+        // generate cells in parallel, each from its own random stream
+        PathObject[] cellArray = new PathObject[builder.noCells];
+        int[] classIndices = new int[builder.noCells];
+        IntStream.range(0, builder.noCells).parallel().forEach(i -> {
+            SplittableRandom random = new SplittableRandom(mix(builder.seed, i));
+            int region = i / cellsPerRegion;
+            int slot = i % cellsPerRegion;
+            double originX = isTMA ? (region % builder.tmaColumns) * regionStride : 0;
+            double originY = isTMA ? (region / builder.tmaColumns) * regionStride : 0;
+            double jitter = builder.cellSpacing * 0.3;
+            double cx = originX + (slot % slotsPerRow + 0.5) * builder.cellSpacing + (random.nextDouble() - 0.5) * jitter;
+            double cy = originY + (slot / slotsPerRow + 0.5) * builder.cellSpacing + (random.nextDouble() - 0.5) * jitter;
+
+            int classIndex = chooseClass(random, populations, intensityMaps, cx / width, cy / height);
+            int noVertices = builder.minVertices + random.nextInt(builder.maxVertices - builder.minVertices + 1);
+            ROI cellROI = createOutline(random, cx, cy, builder.cellRadius, noVertices);
+            ROI nucleusROI = builder.nuclei ? createOutline(random, cx, cy, builder.cellRadius * 0.5, Math.max(3, noVertices / 2)) : null;
+
+            cellArray[i] = PathObjects.createCellObject(cellROI, nucleusROI, pathClasses[classIndex], null);
+            classIndices[i] = classIndex;
+        });
+
+        // assemble the hierarchy
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        List<TMACoreObject> cores = new ArrayList<>();
+        if (isTMA) {
+            for (int region = 0; region < noRegions; region++) {
+                int row = region / builder.tmaColumns;
+                int column = region % builder.tmaColumns;
+                TMACoreObject core = PathObjects.createTMACoreObject(column * regionStride + regionSize / 2.0, row * regionStride + regionSize / 2.0, regionSize, false); // centered on the region
+                core.setName((char) ('A' + row % 26) + "-" + (column + 1));
+                cores.add(core);
+            }
+            hierarchy.setTMAGrid(DefaultTMAGrid.create(cores, builder.tmaColumns));
+        }
+        for (int region = 0; region < noRegions; region++) {
+            int from = region * cellsPerRegion;
+            int to = Math.min(from + cellsPerRegion, builder.noCells);
+            if (from >= to) continue;
+            PathObject parent = isTMA ? cores.get(region) : hierarchy.getRootObject();
+            List<PathObject> regionCells = Arrays.asList(cellArray).subList(from, to);
+            if (builder.nestedAnnotations) {
+                double originX = isTMA ? (region % builder.tmaColumns) * regionStride : 0;
+                double originY = isTMA ? (region / builder.tmaColumns) * regionStride : 0;
+                PathObject annotation = PathObjects.createAnnotationObject(
+                        ROIs.createRectangleROI(originX, originY, regionSize, regionSize, ImagePlane.getDefaultPlane()));
+                annotation.addChildObjects(regionCells);
+                parent.addChildObject(annotation);
+            } else {
+                parent.addChildObjects(regionCells);
+            }
+        }
+        hierarchy.fireHierarchyChangedEvent(hierarchy.getRootObject());
+
+        Map<String, List<PathObject>> cellsByClass = new LinkedHashMap<>();
+        for (Population population : populations)
+            cellsByClass.put(population.name(), new ArrayList<>());
+        for (int i = 0; i < cellArray.length; i++)
+            cellsByClass.get(populations.get(classIndices[i]).name()).add(cellArray[i]);
+
+        ImageData<BufferedImage> imageData = new ImageData<>(null, hierarchy, ImageData.ImageType.FLUORESCENCE);
+        return new PTSyntheticTissue(imageData, Arrays.asList(cellArray), cellsByClass);
+    }
+
+    /**
+     * Create a star-shaped outline with smoothly varying radius, which is always a valid (simple) polygon.
+     */
+    private static ROI createOutline(SplittableRandom random, double cx, double cy, double radius, int noVertices) {
+        double phase1 = random.nextDouble() * 2 * Math.PI;
+        double phase2 = random.nextDouble() * 2 * Math.PI;
+        double amplitude1 = 0.15 * random.nextDouble();
+        double amplitude2 = 0.08 * random.nextDouble();
+        double[] x = new double[noVertices];
+        double[] y = new double[noVertices];
+        for (int v = 0; v < noVertices; v++) {
+            double angle = 2 * Math.PI * v / noVertices;
+            double r = radius * (1 + amplitude1 * Math.sin(2 * angle + phase1) + amplitude2 * Math.sin(5 * angle + phase2)
+                    + 0.02 * (random.nextDouble() - 0.5));
+            x[v] = cx + r * Math.cos(angle);
+            y[v] = cy + r * Math.sin(angle);
+        }
+        return ROIs.createPolygonROI(x, y, ImagePlane.getDefaultPlane());
+    }
+
+    /**
+     * Create a map of cluster intensity over the unit square (normalized to a mean of 1).
+     */
+    private static float[] createIntensityMap(SplittableRandom random, double width, double height, int noClusters, double clusterRadius) {
+        double[] centersX = new double[noClusters];
+        double[] centersY = new double[noClusters];
+        for (int c = 0; c < noClusters; c++) {
+            centersX[c] = random.nextDouble() * width;
+            centersY[c] = random.nextDouble() * height;
+        }
+        float[] map = new float[INTENSITY_GRID_SIZE * INTENSITY_GRID_SIZE];
+        double twoSigmaSquared = 2 * clusterRadius * clusterRadius;
+        double sum = 0;
+        for (int gy = 0; gy < INTENSITY_GRID_SIZE; gy++) {
+            for (int gx = 0; gx < INTENSITY_GRID_SIZE; gx++) {
+                double x = (gx + 0.5) / INTENSITY_GRID_SIZE * width;
+                double y = (gy + 0.5) / INTENSITY_GRID_SIZE * height;
+                double intensity = 0;
+                for (int c = 0; c < noClusters; c++) {
+                    double dx = x - centersX[c];
+                    double dy = y - centersY[c];
+                    intensity += Math.exp(-(dx * dx + dy * dy) / twoSigmaSquared);
+                }
+                map[gy * INTENSITY_GRID_SIZE + gx] = (float) intensity;
+                sum += intensity;
+            }
+        }
+        double mean = sum / map.length;
+        for (int i = 0; i < map.length; i++)
+            map[i] = (float) (mean == 0 ? 1 : map[i] / mean);
+        return map;
+    }
+
+    private static int chooseClass(SplittableRandom random, List<Population> populations, float[][] intensityMaps, double u, double v) {
+        int gx = Math.min(INTENSITY_GRID_SIZE - 1, (int) (u * INTENSITY_GRID_SIZE));
+        int gy = Math.min(INTENSITY_GRID_SIZE - 1, (int) (v * INTENSITY_GRID_SIZE));
+        double total = 0;
+        double[] weights = new double[populations.size()];
+        for (int p = 0; p < weights.length; p++) {
+            double weight = populations.get(p).fraction();
+            if (intensityMaps[p] != null)
+                weight *= intensityMaps[p][gy * INTENSITY_GRID_SIZE + gx];
+            weights[p] = weight;
+            total += weight;
+        }
+        double target = random.nextDouble() * total;
+        for (int p = 0; p < weights.length; p++) {
+            target -= weights[p];
+            if (target < 0) return p;
+        }
+        return weights.length - 1;
+    }
+
+    /**
+     * Mix the seed with a cell index into an independent stream seed (SplitMix64 finalizer).
+     */
+    private static long mix(long seed, long index) {
+        long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}
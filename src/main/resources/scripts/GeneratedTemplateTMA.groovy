@@ -13,6 +13,7 @@ PT2D pt = new PT2D.PT2DBuilder()
         .setMaxInteractionsToTest(3) // set max number of interactions to test (i.e., nearest neighbor search depth)
         .mode(PT2D.Mode.TMA) // 'FULL_IMAGE' or 'TMA'
         .comparisonType(PT2D.ComparisonType.EDGE) // 'EDGE' or 'CENTROID'
+        .comparisonROI(PT2D.ComparisonROI.[comparisonROI]) // 'CELL' or 'NUCLEUS' boundaries (or centroids) compared
         .lineType(PT2D.LineType.LINE) // 'LINE', 'ARROW', or 'DOUBLE_ARROW' for displayed connections. Does NOT affect calculations.
         .build()
 
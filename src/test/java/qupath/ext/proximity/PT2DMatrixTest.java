@@ -0,0 +1,224 @@
+package qupath.ext.proximity;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import qupath.ext.proximity.synthetic.PTSyntheticTissue;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the measurements of a {@link PT2DMatrix} against those of one {@link PT2D} per pair of classes, on
+ * generated data (whose images have no pixel size, so distances are in pixels).
+ */
+class PT2DMatrixTest {
+
+    private static final String[] CLASSES = {"A", "B", "C"};
+    private static final String MISSING_CLASS = "D"; // no cells
+    private static final int MAX_INTERACTIONS_TO_TEST = 3;
+    private static final double DISTANCE_THRESHOLD = 30;
+    private static final double RADIUS = 50;
+    private static final double TOLERANCE = 1e-9;
+    private static final double WEIBULL_TOLERANCE = 1e-3; // fitted, so it may depend on the order of the distances
+
+    @TempDir
+    Path tempDir;
+
+    static Stream<Arguments> configurations() {
+        return Stream.of(PT2D.Mode.values())
+                .flatMap(mode -> Stream.of(Arguments.of(mode, 0.0), Arguments.of(mode, RADIUS)));
+    }
+
+    @ParameterizedTest(name = "{0}, radius {1}")
+    @MethodSource("configurations")
+    void offDiagonalPairsMatchPT2D(PT2D.Mode mode, double radius) {
+        PTSyntheticTissue tissue = createTissue(mode);
+        createMatrix(tissue, mode, radius).addMeasurements(DISTANCE_THRESHOLD);
+
+        for (String anaName : CLASSES) {
+            for (String refName : CLASSES) {
+                if (anaName.equals(refName))
+                    continue;
+                PT2D pt2D = createPT2D(tissue, mode, radius, anaName, refName, MAX_INTERACTIONS_TO_TEST);
+                for (PathObject container : getContainers(tissue, mode)) {
+                    PathObject expected = createMeasurementObject();
+                    pt2D.addMeasurements(expected, anaName, refName, getCells(tissue, mode, container, anaName),
+                            getCells(tissue, mode, container, refName), DISTANCE_THRESHOLD);
+                    Map<String, Number> actual = container.getMeasurementList().asMap();
+                    expected.getMeasurementList().asMap().forEach((name, value) ->
+                            assertMeasurement(container + ": " + name, value.doubleValue(), actual.get(name)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Within a class, the matrix does not count a cell as its own neighbor, whereas PT2D finds each cell first (at
+     * distance 0): the nth neighbor of the matrix is the (n + 1)th of PT2D, and each count is one less. The
+     * reference class is then named "other '...'", so that these measurements do not overwrite those of a PT2D.
+     */
+    @ParameterizedTest(name = "{0}, radius {1}")
+    @MethodSource("configurations")
+    void diagonalPairsExcludeSelf(PT2D.Mode mode, double radius) {
+        PTSyntheticTissue tissue = createTissue(mode);
+        createMatrix(tissue, mode, radius).addMeasurements(DISTANCE_THRESHOLD);
+        String threshold = String.format(" (≤ %.2f µm)", DISTANCE_THRESHOLD);
+        int mapSize = MAX_INTERACTIONS_TO_TEST + 1;
+
+        for (String name : CLASSES) {
+            PT2D pt2D = createPT2D(tissue, mode, radius, name, name, MAX_INTERACTIONS_TO_TEST + 1);
+            for (PathObject container : getContainers(tissue, mode)) {
+                PathObject expectedObject = createMeasurementObject();
+                Collection<PathObject> cells = getCells(tissue, mode, container, name);
+                pt2D.addMeasurements(expectedObject, name, name, cells, cells, DISTANCE_THRESHOLD);
+                Map<String, Number> expected = expectedObject.getMeasurementList().asMap();
+                Map<String, Number> actual = container.getMeasurementList().asMap();
+                String other = "other '" + name + "'";
+
+                for (int i = 0; i < mapSize; i++) {
+                    assertMeasurement(container + ": " + name + " with exactly " + i,
+                            getValue(expected, "Count of '" + name + "' with exactly " + (i + 1) + " '" + name + "' "
+                                    + (i + 1 == 1 ? "interaction" : "interactions") + threshold),
+                            actual.get("Count of '" + name + "' with exactly " + i + " " + other + " "
+                                    + (i == 1 ? "interaction" : "interactions") + threshold));
+                }
+                assertMeasurement(container + ": " + name + " with more than " + (mapSize - 1),
+                        getValue(expected, "Count of '" + name + "' with more than " + mapSize + " '" + name + "' interactions" + threshold),
+                        actual.get("Count of '" + name + "' with more than " + (mapSize - 1) + " " + other + " interactions" + threshold));
+                if (radius > 0) {
+                    assertMeasurement(container + ": " + name + " interactions",
+                            getValue(expected, "Count of '" + name + "'-'" + name + "' interactions" + threshold) - cells.size(),
+                            actual.get("Count of '" + name + "'-" + other + " interactions" + threshold));
+                }
+                for (int n = 1; n <= mapSize; n++) {
+                    for (String statistic : List.of("mean", "median", "standard deviation")) {
+                        assertMeasurement(container + ": " + name + " #" + n + " " + statistic,
+                                getValue(expected, "'" + name + "': #" + (n + 1) + " nearest '" + name + "' distance (μm): " + statistic),
+                                actual.get("'" + name + "': #" + n + " nearest " + other + " distance (μm): " + statistic));
+                    }
+                }
+
+                // none of the names of a PT2D comparing the class with itself is taken
+                for (String expectedName : expected.keySet()) {
+                    if (!expectedName.startsWith("Total "))
+                        assertFalse(actual.containsKey(expectedName), container + ": " + expectedName);
+                }
+            }
+        }
+    }
+
+    /**
+     * A class without cells in a container (a TMA core, or the whole image) has no neighbors there.
+     */
+    @ParameterizedTest(name = "{0}, radius {1}")
+    @MethodSource("configurations")
+    void missingClassesHaveNoNeighbors(PT2D.Mode mode, double radius) throws IOException {
+        PTSyntheticTissue tissue = createTissue(mode);
+        PathObject emptyContainer = getContainers(tissue, mode).get(0);
+        tissue.getHierarchy().removeObjects(getCells(tissue, mode, emptyContainer, CLASSES[2]), false);
+        PT2DMatrix matrix = new PT2DMatrix.PT2DMatrixBuilder()
+                .setImageData(tissue.getImageData())
+                .setClasses(CLASSES[0], CLASSES[1], CLASSES[2], MISSING_CLASS)
+                .setMaxInteractionsToTest(MAX_INTERACTIONS_TO_TEST)
+                .mode(mode)
+                .setRadius(radius)
+                .build();
+        matrix.addMeasurements(DISTANCE_THRESHOLD);
+        matrix.writeTable(tempDir.resolve("matrix.csv"), DISTANCE_THRESHOLD);
+
+        String threshold = String.format(" (≤ %.2f µm)", DISTANCE_THRESHOLD);
+        Map<String, Number> measurements = emptyContainer.getMeasurementList().asMap();
+        double noCells = getValue(measurements, "Total count of " + CLASSES[0]);
+        assertTrue(noCells > 0, "No cells in " + emptyContainer);
+        assertEquals(0, getValue(measurements, "Total count of " + CLASSES[2]));
+        assertEquals(0, getValue(measurements, "Total count of " + MISSING_CLASS));
+        for (String refName : List.of(CLASSES[2], MISSING_CLASS)) {
+            assertEquals(noCells, getValue(measurements, "Count of '" + CLASSES[0] + "' with exactly 0 '" + refName + "' interactions" + threshold));
+            assertEquals(0, getValue(measurements, "Count of '" + CLASSES[0] + "' with 1 or more '" + refName + "' interactions" + threshold));
+        }
+    }
+
+    private static PTSyntheticTissue createTissue(PT2D.Mode mode) {
+        PTSyntheticTissue.PTSyntheticTissueBuilder builder = new PTSyntheticTissue.PTSyntheticTissueBuilder()
+                .setNoCells(3_000)
+                .setTMAGrid(mode == PT2D.Mode.TMA ? 2 : 0, mode == PT2D.Mode.TMA ? 2 : 0);
+        builder.addPopulation(CLASSES[0], 0.4, PTSyntheticTissue.Distribution.DISPERSED);
+        builder.addPopulation(CLASSES[1], 0.3, PTSyntheticTissue.Distribution.CLUSTERED);
+        builder.addPopulation(CLASSES[2], 0.3, PTSyntheticTissue.Distribution.DISPERSED);
+        return builder.build();
+    }
+
+    private static PT2DMatrix createMatrix(PTSyntheticTissue tissue, PT2D.Mode mode, double radius) {
+        return new PT2DMatrix.PT2DMatrixBuilder()
+                .setImageData(tissue.getImageData())
+                .setClasses(CLASSES)
+                .setMaxInteractionsToTest(MAX_INTERACTIONS_TO_TEST)
+                .mode(mode)
+                .setRadius(radius)
+                .build();
+    }
+
+    private static PT2D createPT2D(PTSyntheticTissue tissue, PT2D.Mode mode, double radius, String anaName, String refName,
+                                   int maxInteractionsToTest) {
+        return new PT2D.PT2DBuilder()
+                .setImageData(tissue.getImageData())
+                .setCellsToAnalyze(tissue.getCells(anaName))
+                .setReferenceCells(tissue.getCells(refName))
+                .setMaxInteractionsToTest(maxInteractionsToTest)
+                .mode(mode)
+                .setRadius(radius)
+                .build();
+    }
+
+    private static List<PathObject> getContainers(PTSyntheticTissue tissue, PT2D.Mode mode) {
+        if (mode == PT2D.Mode.FULL_IMAGE)
+            return List.of(tissue.getHierarchy().getRootObject());
+        List<PathObject> cores = new ArrayList<>(tissue.getHierarchy().getTMAGrid().getTMACoreList());
+        assertFalse(cores.isEmpty(), "No TMA cores");
+        return cores;
+    }
+
+    /**
+     * @return the cells of a class in a container (all of them in full image mode)
+     */
+    private static Collection<PathObject> getCells(PTSyntheticTissue tissue, PT2D.Mode mode, PathObject container, String name) {
+        if (mode == PT2D.Mode.FULL_IMAGE)
+            return tissue.getCells(name);
+        TMACoreObject core = (TMACoreObject) container;
+        return tissue.getCells(name).stream()
+                .filter(cell -> PT2D.getTMACore(cell) == core)
+                .toList();
+    }
+
+    private static double getValue(Map<String, Number> measurements, String name) {
+        Number value = measurements.get(name);
+        assertNotNull(value, "Missing PT2D measurement: " + name);
+        return value.doubleValue();
+    }
+
+    private static void assertMeasurement(String name, double expected, Number actual) {
+        assertNotNull(actual, "Missing matrix measurement: " + name);
+        if (Double.isNaN(expected)) {
+            assertTrue(Double.isNaN(actual.doubleValue()), name);
+        } else {
+            double tolerance = name.contains("Weibull") ? WEIBULL_TOLERANCE : TOLERANCE;
+            assertEquals(expected, actual.doubleValue(), tolerance * Math.max(1, Math.abs(expected)), name);
+        }
+    }
+
+    private static PathObject createMeasurementObject() {
+        return PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1, 1, ImagePlane.getDefaultPlane()));
+    }
+
+}
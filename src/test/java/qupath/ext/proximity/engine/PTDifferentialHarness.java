@@ -0,0 +1,215 @@
+package qupath.ext.proximity.engine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.proximity.PT2D;
+import qupath.ext.proximity.synthetic.PTSyntheticTissue;
+import qupath.lib.objects.PathObject;
+
+import java.util.*;
+
+/**
+ * Differential harness that checks a neighbor engine against the brute-force oracle
+ * ({@link PT2D.NeighborEngine#BRUTE_FORCE}) by building two PT2D instances with otherwise identical
+ * settings and comparing, for every target cell, the nearest neighbor distances and identities.
+ * <p>
+ * The comparison is tolerance-aware: distances must agree within the tolerance at every rank, and the set of
+ * neighbors must agree except for reference cells tied (within the tolerance) with the kth nearest neighbor,
+ * whose order is arbitrary. It runs on generated data (see {@link PTSyntheticTissue} and
+ * {@link PTDifferentialTest}) as well as on real images, so a new engine can be verified before being used in
+ * production. Configurations that only keep some of the neighbors (tiled and radius modes) are compared with the
+ * oracle up to a max distance.
+ */
+public class PTDifferentialHarness {
+
+    private static final Logger logger = LoggerFactory.getLogger(PTDifferentialHarness.class);
+    /**
+     * Maximum number of mismatches to keep as examples in the report.
+     */
+    private static final int MAX_EXAMPLES = 20;
+
+    private PTDifferentialHarness() {}
+
+    /**
+     * A difference between the engine and the oracle for one target cell.
+     * @param cell the target cell
+     * @param rank the rank at which the difference was found (-1 if not rank specific)
+     * @param expectedDistance the oracle distance (µm)
+     * @param actualDistance the engine distance (µm)
+     * @param reason description of the difference
+     */
+    public record Mismatch(PathObject cell, int rank, double expectedDistance, double actualDistance, String reason) {}
+
+    /**
+     * Result of a comparison.
+     * @param engine the engine compared against the oracle
+     * @param noCellsCompared number of target cells compared
+     * @param noRanksCompared number of (cell, rank) pairs compared
+     * @param noMismatchedCells number of target cells with at least one difference
+     * @param maxDistanceError largest absolute distance difference found (µm)
+     * @param examples up to {@value MAX_EXAMPLES} example differences
+     */
+    public record Report(PT2D.NeighborEngine engine,
+                         int noCellsCompared,
+                         long noRanksCompared,
+                         int noMismatchedCells,
+                         double maxDistanceError,
+                         List<Mismatch> examples) {
+
+        public boolean passed() {
+            return noMismatchedCells == 0;
+        }
+
+        /**
+         * Throw an exception if the engine did not match the oracle.
+         * @throws IllegalStateException
+         */
+        public void assertPassed() throws IllegalStateException {
+            if (!passed())
+                throw new IllegalStateException(this.toString());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s vs BRUTE_FORCE: %d cells (%d ranks) compared, %d mismatched, max distance error %.3g µm%s",
+                    engine, noCellsCompared, noRanksCompared, noMismatchedCells, maxDistanceError,
+                    examples.isEmpty() ? "" : ", e.g. " + examples.get(0));
+        }
+    }
+
+    private record Neighbor(PathObject reference, double distance) {}
+
+    /**
+     * Compare an engine against the oracle.
+     * @param builder the PT2D configuration to compare (its neighbor engine setting will be overridden)
+     * @param engine the engine to check
+     * @param tolerance the distance tolerance (µm)
+     * @return the report
+     */
+    public static Report compare(PT2D.PT2DBuilder builder, PT2D.NeighborEngine engine, double tolerance) {
+        PT2D actualPT2D = builder.neighborEngine(engine).build();
+        PT2D expectedPT2D = builder.neighborEngine(PT2D.NeighborEngine.BRUTE_FORCE).build();
+        return compare(engine, actualPT2D, expectedPT2D, Integer.MAX_VALUE, Double.POSITIVE_INFINITY, tolerance);
+    }
+
+    /**
+     * Compare a PT2D instance against an oracle instance, on the nearest neighbors of each target cell within a
+     * max distance, e.g., to compare a tiled or radius mode instance with the oracle in the default mode.
+     * @param engine the engine of the instance, for the report
+     * @param actualPT2D the instance to check
+     * @param expectedPT2D the oracle instance (see {@link PT2D.NeighborEngine#BRUTE_FORCE})
+     * @param maxNeighbors the number of nearest neighbors compared per target cell
+     * @param maxDistance the max distance of the neighbors compared (µm)
+     * @param tolerance the distance tolerance (µm)
+     * @return the report
+     */
+    public static Report compare(PT2D.NeighborEngine engine,
+                                 PT2D actualPT2D,
+                                 PT2D expectedPT2D,
+                                 int maxNeighbors,
+                                 double maxDistance,
+                                 double tolerance) {
+        Map<PathObject, List<Neighbor>> actual = collectNeighbors(actualPT2D, maxNeighbors, maxDistance);
+        Map<PathObject, List<Neighbor>> expected = collectNeighbors(expectedPT2D, maxNeighbors, maxDistance);
+
+        Set<PathObject> cells = new LinkedHashSet<>(expected.keySet());
+        cells.addAll(actual.keySet());
+
+        long noRanksCompared = 0;
+        int noMismatchedCells = 0;
+        double maxDistanceError = 0;
+        List<Mismatch> examples = new ArrayList<>();
+
+        for (PathObject cell : cells) {
+            List<Neighbor> expectedNeighbors = expected.getOrDefault(cell, Collections.emptyList());
+            List<Neighbor> actualNeighbors = actual.getOrDefault(cell, Collections.emptyList());
+            Mismatch mismatch = null;
+
+            if (expectedNeighbors.size() != actualNeighbors.size()) {
+                mismatch = new Mismatch(cell, -1, Double.NaN, Double.NaN,
+                        "expected " + expectedNeighbors.size() + " neighbors but found " + actualNeighbors.size());
+            } else {
+                for (int rank = 0; rank < expectedNeighbors.size(); rank++) {
+                    double expectedDistance = expectedNeighbors.get(rank).distance();
+                    double actualDistance = actualNeighbors.get(rank).distance();
+                    double error = Math.abs(expectedDistance - actualDistance);
+                    maxDistanceError = Math.max(maxDistanceError, error);
+                    noRanksCompared++;
+                    if (error > tolerance && mismatch == null)
+                        mismatch = new Mismatch(cell, rank, expectedDistance, actualDistance, "distance differs");
+                }
+
+                // neighbors closer than the kth neighbor (beyond the tolerance) cannot be tied, so they must match exactly
+                if (mismatch == null && !expectedNeighbors.isEmpty()) {
+                    double kthDistance = expectedNeighbors.get(expectedNeighbors.size() - 1).distance();
+                    if (!getUntiedReferences(expectedNeighbors, kthDistance, tolerance)
+                            .equals(getUntiedReferences(actualNeighbors, kthDistance, tolerance)))
+                        mismatch = new Mismatch(cell, -1, kthDistance, kthDistance, "different neighbors");
+                }
+            }
+
+            if (mismatch != null) {
+                noMismatchedCells++;
+                if (examples.size() < MAX_EXAMPLES)
+                    examples.add(mismatch);
+            }
+        }
+
+        Report report = new Report(engine, cells.size(), noRanksCompared, noMismatchedCells, maxDistanceError, List.copyOf(examples));
+        if (report.passed())
+            logger.info(report.toString());
+        else
+            logger.warn(report.toString());
+        return report;
+    }
+
+    /**
+     * Compare an engine against the oracle on generated data.
+     * @param tissue the generated data
+     * @param anaName class of the cells to analyze
+     * @param refName class of the reference cells
+     * @param maxInteractionsToTest
+     * @param mode
+     * @param comparisonType
+     * @param engine the engine to check
+     * @param tolerance the distance tolerance (µm)
+     * @return the report
+     */
+    public static Report compare(PTSyntheticTissue tissue,
+                                 String anaName,
+                                 String refName,
+                                 int maxInteractionsToTest,
+                                 PT2D.Mode mode,
+                                 PT2D.ComparisonType comparisonType,
+                                 PT2D.NeighborEngine engine,
+                                 double tolerance) {
+        return compare(new PT2D.PT2DBuilder()
+                        .setImageData(tissue.getImageData())
+                        .setCellsToAnalyze(tissue.getCells(anaName))
+                        .setReferenceCells(tissue.getCells(refName))
+                        .setMaxInteractionsToTest(maxInteractionsToTest)
+                        .mode(mode)
+                        .comparisonType(comparisonType),
+                engine, tolerance);
+    }
+
+    private static Map<PathObject, List<Neighbor>> collectNeighbors(PT2D pt2D, int maxNeighbors, double maxDistance) {
+        Map<PathObject, List<Neighbor>> neighbors = new HashMap<>();
+        pt2D.forEachInteraction(maxDistance, (target, reference, rank, distance) -> {
+            List<Neighbor> targetNeighbors = neighbors.computeIfAbsent(target, k -> new ArrayList<>());
+            if (targetNeighbors.size() < maxNeighbors) // interactions are passed by rank
+                targetNeighbors.add(new Neighbor(reference, distance));
+        });
+        return neighbors;
+    }
+
+    private static Set<PathObject> getUntiedReferences(List<Neighbor> neighbors, double kthDistance, double tolerance) {
+        Set<PathObject> references = new HashSet<>();
+        for (Neighbor neighbor : neighbors) {
+            if (neighbor.distance() < kthDistance - tolerance)
+                references.add(neighbor.reference());
+        }
+        return references;
+    }
+
+}
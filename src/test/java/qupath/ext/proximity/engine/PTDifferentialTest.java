@@ -0,0 +1,120 @@
+package qupath.ext.proximity.engine;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import qupath.ext.proximity.PT2D;
+import qupath.ext.proximity.synthetic.PTSyntheticTissue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks each neighbor engine and search mode against the brute-force oracle on generated data (see
+ * {@link PTDifferentialHarness}), for the full image and TMA modes and both comparison types.
+ */
+class PTDifferentialTest {
+
+    private static final int MAX_INTERACTIONS_TO_TEST = 5;
+    private static final double TOLERANCE = 1e-6;
+    private static final double SIMPLIFICATION_TOLERANCE = 1;
+    private static final double TILE_SIZE = 150;
+    private static final double HALO = 60;
+    private static final double RADIUS = 45;
+
+    /**
+     * The configurations compared with the oracle: each engine, and the default engine with simplified outlines,
+     * in tiled mode (full image only) and in radius mode.
+     */
+    enum Variant {
+        STRTREE, STRTREE_PRUNED, GRID, SIMPLIFIED, TILED, RADIUS
+    }
+
+    private static final Map<PT2D.Mode, PTSyntheticTissue> tissues = new ConcurrentHashMap<>();
+    private static final Map<String, PT2D> oracles = new ConcurrentHashMap<>();
+
+    static Stream<Arguments> configurations() {
+        return Stream.of(PT2D.Mode.values())
+                .flatMap(mode -> Stream.of(PT2D.ComparisonType.values())
+                        .flatMap(comparisonType -> Stream.of(Variant.values())
+                                .filter(variant -> variant != Variant.TILED || mode == PT2D.Mode.FULL_IMAGE)
+                                .map(variant -> Arguments.of(mode, comparisonType, variant))));
+    }
+
+    @ParameterizedTest(name = "{0}, {1}, {2}")
+    @MethodSource("configurations")
+    void matchesBruteForce(PT2D.Mode mode, PT2D.ComparisonType comparisonType, Variant variant) {
+        PT2D.PT2DBuilder builder = createBuilder(mode, comparisonType);
+        PT2D.NeighborEngine engine = PT2D.NeighborEngine.getDefault(comparisonType);
+        double maxDistance = Double.POSITIVE_INFINITY;
+        switch (variant) {
+            case STRTREE -> engine = PT2D.NeighborEngine.STRTREE;
+            case STRTREE_PRUNED -> engine = PT2D.NeighborEngine.STRTREE_PRUNED;
+            case GRID -> engine = PT2D.NeighborEngine.GRID;
+            case SIMPLIFIED -> builder.setSimplificationTolerance(SIMPLIFICATION_TOLERANCE);
+            case TILED -> {
+                builder.setTiling(TILE_SIZE, HALO);
+                maxDistance = HALO - 1; // only the neighbors within the halo are kept
+            }
+            case RADIUS -> {
+                builder.setRadius(RADIUS);
+                maxDistance = RADIUS - 1; // only the neighbors within the radius are kept
+            }
+        }
+
+        PT2D pt2D = builder.neighborEngine(engine).build();
+        PTDifferentialHarness.Report report = PTDifferentialHarness.compare(engine, pt2D, getOracle(mode, comparisonType),
+                MAX_INTERACTIONS_TO_TEST + 1, maxDistance, TOLERANCE);
+
+        assertTrue(report.noCellsCompared() > 0, "No cells compared");
+        assertTrue(report.passed(), report::toString);
+    }
+
+    /**
+     * In tiled mode, extending the max interactions to test resumes the searches in rebuilt tile indexes, which
+     * must find the same neighbors as the oracle.
+     */
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("comparisonTypes")
+    void extendedTiledMatchesBruteForce(PT2D.ComparisonType comparisonType) {
+        PT2D pt2D = createBuilder(PT2D.Mode.FULL_IMAGE, comparisonType)
+                .setMaxInteractionsToTest(1)
+                .setTiling(TILE_SIZE, HALO)
+                .build();
+        pt2D.extendMaxInteractionsToTest(MAX_INTERACTIONS_TO_TEST);
+        PTDifferentialHarness.Report report = PTDifferentialHarness.compare(PT2D.NeighborEngine.getDefault(comparisonType),
+                pt2D, getOracle(PT2D.Mode.FULL_IMAGE, comparisonType), MAX_INTERACTIONS_TO_TEST + 1, HALO - 1, TOLERANCE);
+
+        assertTrue(report.noCellsCompared() > 0, "No cells compared");
+        assertTrue(report.passed(), report::toString);
+    }
+
+    static Stream<PT2D.ComparisonType> comparisonTypes() {
+        return Stream.of(PT2D.ComparisonType.values());
+    }
+
+    private static PT2D.PT2DBuilder createBuilder(PT2D.Mode mode, PT2D.ComparisonType comparisonType) {
+        PTSyntheticTissue tissue = tissues.computeIfAbsent(mode, m -> new PTSyntheticTissue.PTSyntheticTissueBuilder()
+                .setNoCells(1_200)
+                .setVertices(8, 16) // the oracle compares every pair of outlines
+                .setTMAGrid(m == PT2D.Mode.TMA ? 2 : 0, m == PT2D.Mode.TMA ? 2 : 0)
+                .build());
+        return new PT2D.PT2DBuilder()
+                .setImageData(tissue.getImageData())
+                .setCellsToAnalyze(tissue.getCells("Target"))
+                .setReferenceCells(tissue.getCells("Reference"))
+                .setMaxInteractionsToTest(MAX_INTERACTIONS_TO_TEST)
+                .mode(mode)
+                .comparisonType(comparisonType);
+    }
+
+    private static PT2D getOracle(PT2D.Mode mode, PT2D.ComparisonType comparisonType) {
+        return oracles.computeIfAbsent(mode + " " + comparisonType, key -> createBuilder(mode, comparisonType)
+                .neighborEngine(PT2D.NeighborEngine.BRUTE_FORCE)
+                .build());
+    }
+
+}
@@ -0,0 +1,135 @@
+package qupath.ext.proximity.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import qupath.ext.proximity.PT2D;
+import qupath.ext.proximity.synthetic.PTSyntheticTissue;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trip of PT2D snapshots on generated data, and rejection of corrupted snapshot files.
+ */
+class PTSnapshotFileTest {
+
+    private static final int MAX_INTERACTIONS_TO_TEST = 4;
+    private static final double[] DISTANCE_THRESHOLDS = {5, 20, 50, Double.POSITIVE_INFINITY};
+
+    @TempDir
+    Path tempDir;
+
+    static Stream<Arguments> configurations() {
+        return Stream.of(PT2D.Mode.values())
+                .flatMap(mode -> Stream.of(Arguments.of(mode, 0.0), Arguments.of(mode, 40.0)));
+    }
+
+    @ParameterizedTest(name = "{0}, radius {1}")
+    @MethodSource("configurations")
+    void loadedSnapshotGivesTheSameResults(PT2D.Mode mode, double radius) throws IOException {
+        PTSyntheticTissue tissue = new PTSyntheticTissue.PTSyntheticTissueBuilder()
+                .setNoCells(2_000)
+                .setTMAGrid(mode == PT2D.Mode.TMA ? 2 : 0, mode == PT2D.Mode.TMA ? 2 : 0)
+                .build();
+        PT2D saved = new PT2D.PT2DBuilder()
+                .setImageData(tissue.getImageData())
+                .setCellsToAnalyze(tissue.getCells("Target"))
+                .setReferenceCells(tissue.getCells("Reference"))
+                .setMaxInteractionsToTest(MAX_INTERACTIONS_TO_TEST)
+                .mode(mode)
+                .setRadius(radius)
+                .build();
+        Path path = tempDir.resolve("snapshot.pt2d");
+        saved.saveSnapshot(path);
+        PT2D loaded = PT2D.loadSnapshot(path, tissue.getImageData());
+
+        for (double distanceThreshold : DISTANCE_THRESHOLDS) {
+            for (int noRefCells = 1; noRefCells <= MAX_INTERACTIONS_TO_TEST; noRefCells++) {
+                assertEquals(saved.get(distanceThreshold, noRefCells), loaded.get(distanceThreshold, noRefCells),
+                        "Cells within " + distanceThreshold + " µm of " + noRefCells + " reference cells");
+            }
+
+            PathObject expected = createMeasurementObject();
+            PathObject actual = createMeasurementObject();
+            saved.addMeasurements(expected, "Target", "Reference", null, null, distanceThreshold);
+            loaded.addMeasurements(actual, "Target", "Reference", null, null, distanceThreshold);
+            assertFalse(expected.getMeasurementList().isEmpty());
+            assertEquals(expected.getMeasurementList().asMap(), actual.getMeasurementList().asMap(),
+                    "Measurements within " + distanceThreshold + " µm");
+        }
+    }
+
+    @Test
+    void validSnapshotIsRead() throws IOException {
+        Path path = tempDir.resolve("valid.pt2d");
+        PTSnapshotFile.write(path, createSnapshot(new int[] {0, 1, 2}, new int[] {0, 0}, new int[][] {{0, 1}, {1, 0}}));
+        assertArrayEquals(new int[] {0, 0}, PTSnapshotFile.read(path).neighborIndices());
+    }
+
+    @Test
+    void neighborIndexOutOfRangeIsRejected() throws IOException {
+        Path path = tempDir.resolve("index.pt2d");
+        PTSnapshotFile.write(path, createSnapshot(new int[] {0, 1, 2}, new int[] {0, 1}, new int[][] {{0, 1}, {1, 0}}));
+        assertThrows(IOException.class, () -> PTSnapshotFile.read(path));
+    }
+
+    @Test
+    void decreasingNeighborOffsetsAreRejected() throws IOException {
+        Path path = tempDir.resolve("offsets.pt2d");
+        PTSnapshotFile.write(path, createSnapshot(new int[] {0, 2, 1}, new int[] {0}, new int[][] {{0, 1}, {1, 0}}));
+        assertThrows(IOException.class, () -> PTSnapshotFile.read(path));
+    }
+
+    @Test
+    void thresholdColumnNotPermutationIsRejected() throws IOException {
+        Path path = tempDir.resolve("column.pt2d");
+        PTSnapshotFile.write(path, createSnapshot(new int[] {0, 1, 2}, new int[] {0, 0}, new int[][] {{0, 1}, {1, 1}}));
+        assertThrows(IOException.class, () -> PTSnapshotFile.read(path));
+    }
+
+    /**
+     * Create a snapshot of two targets, one reference cell and a map size of 2, without TMA cores.
+     */
+    private static PTSnapshotFile.Snapshot createSnapshot(int[] neighborOffsets, int[] neighborIndices, int[][] thresholdColumns) {
+        double[] neighborDistances = new double[neighborIndices.length];
+        return new PTSnapshotFile.Snapshot(PT2D.Mode.FULL_IMAGE,
+                PT2D.ComparisonType.EDGE,
+                PT2D.ComparisonROI.CELL,
+                PT2D.LineType.values()[0],
+                PT2D.NeighborEngine.BRUTE_FORCE,
+                PT2D.EdgeDistance.values()[0],
+                0,
+                2,
+                0,
+                0,
+                0,
+                1,
+                new UUID[] {UUID.randomUUID(), UUID.randomUUID()},
+                new UUID[] {UUID.randomUUID()},
+                neighborOffsets,
+                neighborIndices,
+                neighborDistances,
+                thresholdColumns,
+                new UUID[0],
+                new int[] {0},
+                new int[0],
+                new int[] {0},
+                new int[0]);
+    }
+
+    private static PathObject createMeasurementObject() {
+        return PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1, 1, ImagePlane.getDefaultPlane()));
+    }
+
+}
@@ -0,0 +1,96 @@
+package qupath.ext.proximity.shard;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import qupath.ext.proximity.PT2D;
+import qupath.ext.proximity.aux.PTTileGrid;
+import qupath.ext.proximity.synthetic.PTSyntheticTissue;
+import qupath.lib.objects.PathObject;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the neighbors merged from shards, processed in this JVM or in worker JVMs, are those of the tiled
+ * mode in a single JVM, on generated data (whose images have no pixel size, so distances are in pixels).
+ */
+class PTShardCoordinatorTest {
+
+    private static final int MAX_INTERACTIONS_TO_TEST = 4;
+    private static final int NO_WORKERS = 3;
+    private static final double TILE_SIZE = 150;
+    private static final double HALO = 60;
+    private static final double RADIUS = 40;
+    private static final double TOLERANCE = 1e-9;
+
+    private static final PTSyntheticTissue tissue = new PTSyntheticTissue.PTSyntheticTissueBuilder()
+            .setNoCells(3_000)
+            .build();
+
+    private record Neighbor(PathObject reference, double distance) {}
+
+    static Stream<Arguments> configurations() {
+        return Stream.of(true, false)
+                .flatMap(inProcess -> Stream.of(Arguments.of(inProcess, 0.0), Arguments.of(inProcess, RADIUS)));
+    }
+
+    @ParameterizedTest(name = "in process: {0}, radius {1}")
+    @MethodSource("configurations")
+    void mergedNeighborsMatchTiledMode(boolean inProcess, double radius) throws IOException {
+        List<PathObject> targets = tissue.getCells("Target");
+        List<PathObject> references = tissue.getCells("Reference");
+        PT2D tiled = new PT2D.PT2DBuilder()
+                .setImageData(tissue.getImageData())
+                .setCellsToAnalyze(targets)
+                .setReferenceCells(references)
+                .setMaxInteractionsToTest(MAX_INTERACTIONS_TO_TEST)
+                .setRadius(radius)
+                .setTiling(TILE_SIZE, HALO)
+                .build();
+        Map<PathObject, List<Neighbor>> expected = new HashMap<>();
+        tiled.forEachInteraction(Double.POSITIVE_INFINITY, (target, reference, rank, distance) ->
+                expected.computeIfAbsent(target, k -> new ArrayList<>()).add(new Neighbor(reference, distance)));
+
+        PTTileGrid tileGrid = new PTTileGrid(targets.toArray(PathObject[]::new), references.toArray(PathObject[]::new),
+                PT2D.ComparisonROI.CELL, TILE_SIZE, HALO);
+        boolean radiusMode = radius > 0;
+        PTShardFile.Settings settings = new PTShardFile.Settings(PT2D.ComparisonType.EDGE,
+                PT2D.NeighborEngine.getDefault(PT2D.ComparisonType.EDGE),
+                PT2D.EdgeDistance.INDEXED,
+                0,
+                radiusMode ? 0 : MAX_INTERACTIONS_TO_TEST + 1,
+                radiusMode ? radius : Double.POSITIVE_INFINITY);
+        PTShardResults results = new PTShardCoordinator(NO_WORKERS, null, new AtomicBoolean(false))
+                .inProcess(inProcess)
+                .run(tileGrid, PT2D.ComparisonROI.CELL, settings);
+
+        assertEquals(targets.size(), results.size());
+        PathObject[] gridTargets = tileGrid.getTargets();
+        PathObject[] gridReferences = tileGrid.getReferences();
+        int noNeighbors = 0;
+        for (int i = 0; i < results.size(); i++) {
+            List<Neighbor> actual = new ArrayList<>();
+            for (int n = 0; n < results.getNoNeighbors(i); n++) {
+                if (!radiusMode && (n > MAX_INTERACTIONS_TO_TEST || results.getDistance(i, n) > HALO))
+                    break; // as stored by the tiled mode
+                actual.add(new Neighbor(gridReferences[results.getReferenceIndex(i, n)], results.getDistance(i, n)));
+            }
+            List<Neighbor> expectedNeighbors = expected.getOrDefault(gridTargets[i], List.of());
+            assertEquals(expectedNeighbors.size(), actual.size(), "Number of neighbors of target " + i);
+            for (int n = 0; n < actual.size(); n++) {
+                assertEquals(expectedNeighbors.get(n).distance(), actual.get(n).distance(), TOLERANCE,
+                        "Distance to neighbor " + n + " of target " + i);
+                assertSame(expectedNeighbors.get(n).reference(), actual.get(n).reference(),
+                        "Neighbor " + n + " of target " + i);
+            }
+            noNeighbors += actual.size();
+        }
+        assertTrue(noNeighbors > 0, "No neighbors found");
+    }
+
+}